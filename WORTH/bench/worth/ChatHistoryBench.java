@@ -0,0 +1,160 @@
+package worth;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * Benchmark della memoria usata dalla storia delle chat:
+ * - byte trattenuti per messaggio: riempie R storie da C messaggi ciascuna, con un checkpoint
+ *   simulato (unsaved e saved) ogni C messaggi come fa il server, e misura l'heap occupato
+ *   dopo una garbage collection; per confronto misura R liste di C stringhe, come la chat
+ *   conservava i messaggi prima dell'arena
+ * - byte allocati per messaggio ricevuto: riceve N datagrammi su un DatagramChannel locale
+ *   in un buffer diretto riutilizzato e li aggiunge ad una storia piena, come ChatReceiver,
+ *   misurando con ThreadMXBean solo ricezione e add
+ *
+ * Uso:
+ *   java -cp <bin>:<bench>:external/* worth.ChatHistoryBench [R] [C] [N]
+ *
+ */
+public class ChatHistoryBench {
+
+	private static final String MESSAGE = "utente0: messaggio di prova \u00e8 33";	//Il messaggio ricevuto, 33 byte in UTF-8
+
+	public static void main(String[] args) throws Exception {
+
+		int rings = args.length>0 ? Integer.parseInt(args[0]) : 1000;
+		int capacity = args.length>1 ? Integer.parseInt(args[1]) : 1000;
+		int n = args.length>2 ? Integer.parseInt(args[2]) : 200000;
+
+		byte[] bytes = MESSAGE.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer message = ByteBuffer.allocateDirect(bytes.length);
+		message.put(bytes).flip();
+
+		long before = usedHeap();
+
+		ChatHistory[] histories = new ChatHistory[rings];
+		for(int r=0; r<rings; r++) {
+			histories[r] = new ChatHistory(capacity, null);
+			histories[r].number();
+			for(int i=0; i<2*capacity; i++) {
+				histories[r].add(message);
+				message.rewind();
+				if((i+1)%capacity==0) checkpoint(histories[r]);
+			}
+		}
+
+		long arena = usedHeap()-before;
+
+		if(histories[rings-1].lastSeq()!=2*capacity) throw new IllegalStateException("Numeri di sequenza inattesi");
+
+		histories = null;
+
+		before = usedHeap();
+
+		List<List<String>> lists = new ArrayList<List<String>>(rings);
+		for(int r=0; r<rings; r++) {
+			List<String> list = new ArrayList<String>(capacity);
+			for(int i=0; i<capacity; i++) list.add(new String(bytes, StandardCharsets.UTF_8));
+			lists.add(list);
+		}
+
+		long strings = usedHeap()-before;
+
+		if(lists.get(rings-1).size()!=capacity) throw new IllegalStateException("Liste incomplete");
+
+		lists = null;
+
+		System.out.println("storia                                 byte trattenuti per messaggio ("+rings+" storie da "+capacity+" messaggi di "+bytes.length+" byte)");
+		System.out.println(String.format("%-38s %10.1f", "ChatHistory (arena)", (double) arena/rings/capacity));
+		System.out.println(String.format("%-38s %10.1f", "lista di String", (double) strings/rings/capacity));
+
+		System.out.println(String.format("%-38s %10.1f", "byte allocati per messaggio ricevuto", receive(capacity, bytes, n)));
+	}
+
+	/**
+	 * metodo di utility chiamato per ricevere n messaggi come il ChatReceiver, aggiungendoli
+	 * ad una storia piena
+	 * @param capacity la capacita' della storia
+	 * @param bytes il messaggio inviato
+	 * @param n il numero di messaggi ricevuti durante la misura
+	 * @return i byte allocati in media da ricezione e add per ogni messaggio
+	 * @throws Exception se il canale non puo' essere aperto
+	 */
+	private static double receive(int capacity, byte[] bytes, int n) throws Exception {
+
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		try(DatagramChannel receiver = DatagramChannel.open(); DatagramChannel sender = DatagramChannel.open()) {
+
+			receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			sender.connect(receiver.getLocalAddress());
+
+			ByteBuffer out = ByteBuffer.allocateDirect(bytes.length);
+			out.put(bytes).flip();
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64*1024);
+
+			ChatHistory history = new ChatHistory(capacity, null);
+			history.number();
+
+			long allocated = 0;
+
+			for(int i=-n; i<n; i++) {	//La prima meta' e' di riscaldamento
+
+				sender.write(out);
+				out.rewind();
+
+				long begin = mx.getCurrentThreadAllocatedBytes();
+
+				buffer.clear();
+				receiver.receive(buffer);
+				buffer.flip();
+				history.add(buffer);
+
+				long end = mx.getCurrentThreadAllocatedBytes();
+
+				if(i>=0) allocated += end-begin;
+
+				if((i+n+1)%capacity==0) checkpoint(history);
+			}
+
+			return (double) allocated/n;
+		}
+	}
+
+	/**
+	 * metodo di utility chiamato per simulare il checkpoint di una storia, dopo il quale
+	 * i messaggi possono essere sovrascritti
+	 * @param history la storia
+	 */
+	private static void checkpoint(ChatHistory history) {
+		history.unsaved();
+		history.saved();
+	}
+
+	/**
+	 * metodo di utility chiamato per misurare l'heap occupato dopo una garbage collection
+	 * @return i byte occupati
+	 * @throws InterruptedException se l'attesa viene interrotta
+	 */
+	private static long usedHeap() throws InterruptedException {
+
+		Runtime runtime = Runtime.getRuntime();
+
+		for(int i=0; i<3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+
+		return runtime.totalMemory()-runtime.freeMemory();
+	}
+
+}
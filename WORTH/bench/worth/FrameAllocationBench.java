@@ -0,0 +1,163 @@
+package worth;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *
+ * Benchmark della memoria allocata dalla sessione per ogni messaggio: estrae N comandi
+ * dal buffer di lettura con pollFrame, accoda la risposta con queueResponse, la invia con
+ * flush su un canale che scarta i byte e restituisce la richiesta con recycle, come fa il
+ * reactor, e misura i byte allocati dal thread con ThreadMXBean
+ * per confronto misura anche l'estrazione e la risposta con array e buffer nuovi per ogni
+ * messaggio (copia del payload, indici dei token, header e payload della risposta)
+ * l'esecuzione del comando non e' inclusa, la risposta e' una stringa gia' costruita
+ *
+ * Uso:
+ *   java -cp <bin>:<bench>:external/* worth.FrameAllocationBench [N]
+ *
+ */
+public class FrameAllocationBench {
+
+	private static final String COMMAND = "showcards progetto utente";	//Il comando letto per ogni messaggio
+	private static final String RESPONSE = "Card del progetto progetto:\ncard0 (todo)\ncard1 (inprogress)\ncard2 (toberevised)\ncard3 (done) \u00e8 conclusa\n";	//La risposta accodata per ogni messaggio
+	private static final int WARMUP = 100000;	//Messaggi di riscaldamento, per far compilare il percorso al JIT
+
+	private static long sink;	//Evita che il JIT elimini il lavoro del confronto
+
+	public static void main(String[] args) {
+
+		int n = args.length>0 ? Integer.parseInt(args[0]) : 1000000;
+
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		CommandRegistry registry = new CommandRegistry();
+		registry.register(new Command("showcards", 2, "", Command.PROJECT_LANE, false, false, r -> {}));
+
+		Session session = new Session(registry);
+		DiscardChannel channel = new DiscardChannel();
+		ByteBuffer frame = Frame.encode(1, COMMAND);
+
+		sessionPath(session, channel, frame, WARMUP);
+		long before = mx.getCurrentThreadAllocatedBytes();
+		sessionPath(session, channel, frame, n);
+		long sessionBytes = mx.getCurrentThreadAllocatedBytes()-before;
+
+		int[] bounds = new int[CommandRegistry.BOUNDS_SIZE];
+		copyPath(registry, frame, bounds, WARMUP);
+		before = mx.getCurrentThreadAllocatedBytes();
+		copyPath(registry, frame, bounds, n);
+		long copyBytes = mx.getCurrentThreadAllocatedBytes()-before;
+
+		System.out.println("percorso                                     byte allocati per messaggio ("+n+" messaggi)");
+		System.out.println(String.format("%-40s %10.1f", "sessione (pollFrame, queueResponse)", (double) sessionBytes/n));
+		System.out.println(String.format("%-40s %10.1f", "array e buffer nuovi per messaggio", (double) copyBytes/n));
+		System.out.println("byte inviati: "+channel.written+" "+sink);
+	}
+
+	/**
+	 * metodo chiamato per eseguire n messaggi sul percorso della sessione, come il reactor
+	 * @param session la sessione
+	 * @param channel il canale su cui inviare le risposte
+	 * @param frame il messaggio codificato, copiato nel buffer di lettura per ogni iterazione
+	 * @param n il numero di messaggi
+	 */
+	private static void sessionPath(Session session, DiscardChannel channel, ByteBuffer frame, int n) {
+
+		try {
+			for(int i=0; i<n; i++) {
+
+				session.getReadBuffer().put(frame.array(), 0, frame.limit());
+
+				Request request = session.pollFrame(null, null);
+
+				request.setResponse(RESPONSE);
+
+				session.queueResponse(request.getId(), request.getResponse());
+
+				session.flush(channel);
+
+				session.recycle(request);
+			}
+		} catch (java.io.IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * metodo chiamato per eseguire n messaggi allocando payload, indici e buffer di risposta
+	 * per ogni messaggio
+	 * @param registry i comandi riconosciuti
+	 * @param frame il messaggio codificato
+	 * @param scratch gli indici dei token nel messaggio
+	 * @param n il numero di messaggi
+	 */
+	private static void copyPath(CommandRegistry registry, ByteBuffer frame, int[] scratch, int n) {
+
+		byte[] data = frame.array();
+		int start = Frame.HEADER_SIZE;
+		int length = data.length-start;
+
+		for(int i=0; i<n; i++) {
+
+			registry.tokenize(data, start, start+length, scratch);
+
+			int[] bounds = new int[CommandRegistry.BOUNDS_SIZE];
+			for(int j=0; j<CommandRegistry.BOUNDS_SIZE; j++) bounds[j] = scratch[j]-start;
+
+			byte[] payload = Arrays.copyOfRange(data, start, start+length);
+
+			byte[] message = RESPONSE.getBytes(StandardCharsets.UTF_8);
+
+			ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+			header.putInt(message.length);
+			header.putInt(i);
+			header.flip();
+
+			ByteBuffer body = ByteBuffer.wrap(message);
+
+			sink += header.remaining()+body.remaining()+payload[bounds[0]];
+		}
+	}
+
+	/**
+	 *
+	 * Canale che accetta e scarta tutti i byte, usato al posto del socket
+	 *
+	 */
+	private static class DiscardChannel implements GatheringByteChannel {
+
+		private long written;
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long n = 0;
+			for(int i=offset; i<offset+length; i++) {
+				n += srcs[i].remaining();
+				srcs[i].position(srcs[i].limit());
+			}
+			this.written += n;
+			return n;
+		}
+
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			this.written += n;
+			return n;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {}
+	}
+
+}
@@ -0,0 +1,144 @@
+package worth;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ *
+ * Benchmark del throughput della serializzazione JSON: codifica e legge un progetto con
+ * CARDS card e una card con la sua storia, con i reader e writer condivisi di JsonCodec
+ * e, per confronto, con un nuovo ObjectMapper per ogni chiamata come faceva il server
+ * prima di JsonCodec
+ * ogni operazione viene eseguita N volte da ognuno dei T thread, dopo un riscaldamento
+ *
+ * Uso:
+ *   java -cp <bin>:<bench>:external/* worth.JsonCodecBench [N] [T]
+ *
+ */
+public class JsonCodecBench {
+
+	private static final int CARDS = 20;	//Card del progetto codificato
+	private static final int WARMUP = 2000;	//Operazioni di riscaldamento per ogni thread
+
+	private static volatile long sink;	//Evita che il JIT elimini le operazioni misurate
+
+	/**
+	 *
+	 * Operazione misurata dal benchmark
+	 *
+	 */
+	private interface Operation {
+		long run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int n = args.length>0 ? Integer.parseInt(args[0]) : 20000;
+		int threads = args.length>1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		Project project = buildProject();
+		Card card = project.getAllCards().get(0);
+
+		byte[] projectFile = JsonCodec.encodeProject(project);
+		byte[] cardFile = JsonCodec.encodeCard(card);
+
+		System.out.println("operazione                           operazioni al secondo ("+n+" per thread)");
+
+		for(int t : new int[] {1, threads}) {
+
+			System.out.println("thread: "+t);
+
+			measure("encodeProject condiviso", t, n, () -> JsonCodec.encodeProject(project).length);
+			measure("encodeProject nuovo ObjectMapper", t, n,
+					() -> new ObjectMapper().writerFor(Project.class).with(new DefaultPrettyPrinter()).writeValueAsBytes(project).length);
+
+			measure("readProject condiviso", t, n, () -> JsonCodec.readProject(projectFile).getLsn());
+			measure("readProject nuovo ObjectMapper", t, n,
+					() -> new ObjectMapper().readerFor(Project.class).<Project>readValue(projectFile).getLsn());
+
+			measure("encodeCard condiviso", t, n, () -> JsonCodec.encodeCard(card).length);
+			measure("encodeCard nuovo ObjectMapper", t, n,
+					() -> new ObjectMapper().writerFor(Card.class).with(new DefaultPrettyPrinter()).writeValueAsBytes(card).length);
+
+			measure("readCard condiviso", t, n, () -> JsonCodec.readCard(cardFile).getLsn());
+			measure("readCard nuovo ObjectMapper", t, n,
+					() -> new ObjectMapper().readerFor(Card.class).<Card>readValue(cardFile).getLsn());
+		}
+	}
+
+	/**
+	 * metodo di utility chiamato per costruire il progetto codificato dal benchmark
+	 * @return un progetto con CARDS card distribuite nelle quattro liste
+	 */
+	private static Project buildProject() {
+
+		Project project = new Project();
+		project.setProjectName("bench");
+		project.setCreatedBy("utente0");
+
+		ArrayList<String> members = new ArrayList<String>();
+		for(int i=0; i<5; i++) members.add("utente"+i);
+		project.setMembers(members);
+
+		CardState[] states = CardState.values();
+
+		for(int i=0; i<CARDS; i++) {
+			Card card = new Card();
+			card.setProjectname("bench");
+			card.setName("card"+i);
+			card.setDescription("Descrizione della card numero "+i+" del progetto di prova");
+			card.setLsn(i+1);
+			project.addCard(card);
+			for(int s=1; s<=i%states.length; s++) project.moveCard(card, states[s]);
+		}
+
+		project.setLsn(CARDS);
+		project.markCardsLoaded();
+
+		return project;
+	}
+
+	/**
+	 * metodo di utility chiamato per misurare e stampare il throughput di un'operazione
+	 * @param name il nome dell'operazione
+	 * @param threads il numero di thread che la eseguono in parallelo
+	 * @param n il numero di operazioni per thread
+	 * @param operation l'operazione
+	 * @throws InterruptedException se l'attesa dei thread viene interrotta
+	 */
+	private static void measure(String name, int threads, int n, Operation operation) throws InterruptedException {
+
+		CountDownLatch ready = new CountDownLatch(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+
+		for(int i=0; i<threads; i++) {
+			new Thread(() -> {
+				try {
+					long sum = 0;
+					for(int j=0; j<WARMUP; j++) sum += operation.run();
+					ready.countDown();
+					start.await();
+					for(int j=0; j<n; j++) sum += operation.run();
+					sink += sum;
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+
+		ready.await();
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime()-begin;
+
+		System.out.println(String.format("  %-38s %12.0f", name, (double) threads*n/elapsed*1e9));
+	}
+
+}
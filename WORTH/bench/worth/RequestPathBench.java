@@ -0,0 +1,248 @@
+package worth;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Benchmark degli accessi al disco eseguiti sul percorso delle richieste: avvia il server
+ * nello stesso processo e sostituisce il suo archivio e il suo journal con versioni che
+ * contano le chiamate eseguite dai thread che ricevono ed eseguono i comandi (acceptor,
+ * reactor e corsie), escluso il checkpoint
+ * nel server gli altri accessi al disco avvengono solo all'avvio e nel checkpoint
+ * ogni comando viene inviato N volte via TCP su un progetto con una card in memoria, dopo un
+ * riscaldamento che carica le classi usate
+ *
+ * Uso, da una cartella vuota (il server crea users, projects e journal nella cartella corrente):
+ *   java -cp <bin>:<bench>:external/* worth.RequestPathBench [N]
+ *
+ */
+public class RequestPathBench {
+
+	private static final String ACCEPTOR = "worth-acceptor";	//Il thread che esegue il server, con --reactors=0 gestisce anche le connessioni
+	private static final int PORT = 7777;	//La porta TCP del server
+	private static final int WARMUP = 200;	//Richieste di riscaldamento per ogni comando
+
+	private static LongAdder storeCalls = new LongAdder();	//Chiamate all'archivio dai thread delle richieste
+	private static LongAdder journalCalls = new LongAdder();	//Record aggiunti al journal dai thread delle richieste
+	private static int nextId = 1;
+
+	public static void main(String[] args) throws Exception {
+
+		int n = args.length>0 ? Integer.parseInt(args[0]) : 1000;
+
+		for(String folder : new String[] {"users", "projects", "boards", "journal", "journal-bench"}) {
+			if(new File(folder).exists()) {
+				System.err.println("La cartella corrente contiene gia' "+folder+", eseguire il benchmark da una cartella vuota");
+				System.exit(1);
+			}
+		}
+
+		Server server = new Server(ServerConfig.fromArgs(new String[] {"--reactors=0", "--checkpoint-interval=3600"}));
+
+		Thread t = new Thread(server, ACCEPTOR);
+		t.setDaemon(true);
+		t.start();
+
+		SocketChannel sc = connect();	//Il server accetta connessioni solo dopo aver aperto archivio e journal
+
+		countStore(server, "storage", Storage.class);
+
+		CountingJournal journal = new CountingJournal("journal-bench");
+		journal.recover(r -> {});
+		setField(server, "journal", journal);
+
+		server.register("bench", "bench");
+
+		call(sc, "login bench bench");
+		call(sc, "createproject bench bench");
+		call(sc, "addcard bench card0 descrizione bench");
+
+		String[] reads = {
+			"listprojects bench",
+			"showmembers bench bench",
+			"showcards bench bench",
+			"showcard bench card0 bench",
+			"getcardhistory bench card0 bench",
+			"readchat bench bench",
+			"readchat bench since 0 bench"
+		};
+
+		for(String command : reads) {
+			for(int i=0; i<WARMUP; i++) call(sc, command);
+		}
+
+		for(int i=0; i<WARMUP; i++) {
+			call(sc, "addcard bench warm"+i+" descrizione bench");
+			call(sc, "movecard bench warm"+i+" todo inprogress bench");
+		}
+
+		System.out.println("comando                                      archivio  journal   (chiamate per richiesta, "+n+" richieste)");
+
+		for(String command : reads) {
+			reset();
+			for(int i=0; i<n; i++) call(sc, command);
+			print(command, n);
+		}
+
+		reset();
+		for(int i=0; i<n; i++) call(sc, "createproject bench"+i+" bench");
+		print("createproject bench<i> bench", n);
+
+		reset();
+		for(int i=0; i<n; i++) call(sc, "addcard bench card"+(i+1)+" descrizione bench");
+		print("addcard bench <card> descrizione bench", n);
+
+		reset();
+		for(int i=0; i<n; i++) call(sc, "movecard bench card"+(i+1)+" todo inprogress bench");
+		print("movecard bench <card> todo inprogress bench", n);
+
+		System.exit(0);
+	}
+
+	/**
+	 * metodo di utility chiamato per sostituire l'archivio del server con un proxy
+	 * che conta le chiamate dei thread delle richieste
+	 * @param server il server
+	 * @param field il campo del server che contiene l'archivio
+	 * @param type l'interfaccia dell'archivio
+	 * @throws ReflectiveOperationException se il campo non esiste
+	 */
+	private static <T> void countStore(Server server, String field, Class<T> type) throws ReflectiveOperationException {
+
+		Object store = getField(server, field);
+
+		Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (p, method, methodArgs) -> {
+			if(method.getDeclaringClass()!=Object.class && onRequestPath()) storeCalls.increment();
+			try {
+				return method.invoke(store, methodArgs);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		});
+
+		setField(server, field, type.cast(proxy));
+	}
+
+	private static Object getField(Server server, String name) throws ReflectiveOperationException {
+		Field f = Server.class.getDeclaredField(name);
+		f.setAccessible(true);
+		return f.get(server);
+	}
+
+	private static void setField(Server server, String name, Object value) throws ReflectiveOperationException {
+		Field f = Server.class.getDeclaredField(name);
+		f.setAccessible(true);
+		f.set(server, value);
+	}
+
+	/**
+	 * metodo di utility chiamato per sapere se il thread corrente riceve o esegue i comandi
+	 * @return true per l'acceptor, i reactor e i thread delle corsie
+	 */
+	private static boolean onRequestPath() {
+
+		String name = Thread.currentThread().getName();
+
+		return name.equals(ACCEPTOR) || name.startsWith("worth-reactor") || name.startsWith("worth-worker");
+	}
+
+	private static void reset() {
+		storeCalls.reset();
+		journalCalls.reset();
+	}
+
+	/**
+	 * metodo di utility chiamato per stampare le chiamate contate per un comando
+	 * @param command il comando eseguito
+	 * @param n il numero di richieste inviate
+	 */
+	private static void print(String command, int n) {
+		System.out.println(String.format("%-44s %8.3f %8.3f", command, (double) storeCalls.sum()/n, (double) journalCalls.sum()/n));
+	}
+
+	/**
+	 * metodo di utility chiamato per connettersi al server, riprovando finche' non accetta connessioni
+	 * @return il canale connesso
+	 * @throws Exception se il server non accetta connessioni entro 10 secondi
+	 */
+	private static SocketChannel connect() throws Exception {
+
+		for(int i=0; ; i++) {
+			try {
+				return SocketChannel.open(new InetSocketAddress("localhost", PORT));
+			} catch (IOException e) {
+				if(i==100) throw e;
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * metodo di utility chiamato per inviare un comando ed attenderne la risposta
+	 * @param sc il canale connesso al server
+	 * @param command il comando da inviare
+	 * @return la risposta del server
+	 * @throws IOException se il comando non puo' essere inviato o la risposta letta
+	 */
+	private static String call(SocketChannel sc, String command) throws IOException {
+
+		int id = nextId++;
+
+		ByteBuffer request = Frame.encode(id, command);
+
+		while(request.hasRemaining()) sc.write(request);
+
+		ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+
+		readFully(sc, header);
+
+		ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+
+		readFully(sc, payload);
+
+		if(header.getInt(4)!=id) throw new IOException("Risposta ad un'altra richiesta: "+header.getInt(4));
+
+		return new String(payload.array(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * metodo di utility chiamato per riempire un buffer leggendo dal canale
+	 * @param sc il canale da cui leggere
+	 * @param buffer il buffer da riempire
+	 * @throws IOException se il server chiude la connessione
+	 */
+	private static void readFully(SocketChannel sc, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(sc.read(buffer)<0) throw new IOException("Connessione chiusa dal server");
+		}
+	}
+
+	/**
+	 *
+	 * Journal che conta i record aggiunti dai thread delle richieste, scritti e sincronizzati
+	 * subito nella propria cartella
+	 *
+	 */
+	private static class CountingJournal extends Journal {
+
+		private CountingJournal(String folder) throws IOException {
+			super(folder, Journal.Durability.SYNC, 0, 1);
+		}
+
+		public synchronized long append(List<JournalRecord> records) throws IOException {
+			if(onRequestPath()) journalCalls.increment();
+			return super.append(records);
+		}
+	}
+
+}
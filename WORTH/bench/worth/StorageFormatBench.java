@@ -0,0 +1,176 @@
+package worth;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ *
+ * Benchmark dei formati dell'archivio: salva P progetti con C card ciascuno nell'archivio JSON
+ * (una cartella per progetto, un file per card), nell'archivio a segmenti con record JSON e
+ * nell'archivio a segmenti con record binari, stampa i byte occupati su disco da ciascuno e
+ * poi i tempi di caricamento, come al boot del server (readProjectHeaders) e al primo accesso
+ * a tutti i progetti (readProject e readCards)
+ * il caricamento viene ripetuto PASSES volte, il primo passaggio comprende la compilazione
+ * del codice di lettura: per confrontare i tempi a freddo si indica un solo archivio, che
+ * viene caricato in una JVM appena avviata
+ * gli archivi vengono creati in una cartella temporanea, cancellata alla fine
+ *
+ * Uso:
+ *   java -cp <bin>:<bench>:external/* worth.StorageFormatBench [P] [C] [json|log-json|log-binary]
+ *
+ */
+public class StorageFormatBench {
+
+	private static final int PASSES = 5;	//Caricamenti completi di ogni archivio
+
+	public static void main(String[] args) throws IOException {
+
+		int projects = args.length>0 ? Integer.parseInt(args[0]) : 2000;
+		int cards = args.length>1 ? Integer.parseInt(args[1]) : 20;
+		String only = args.length>2 ? args[2] : null;
+
+		Path root = Files.createTempDirectory("worth-bench");
+
+		try {
+			String[] names = {"json", "log-json", "log-binary"};
+
+			System.out.println("archivio      byte su disco   ("+projects+" progetti, "+cards+" card per progetto)");
+
+			for(String name : names) {
+				if(only!=null && !only.equals(name)) continue;
+
+				Storage storage = open(root, name);
+				StorageFormat format = name.equals("log-binary") ? StorageFormat.BINARY : StorageFormat.JSON;
+
+				for(int i=0; i<projects; i++) write(storage, format, "progetto"+i, cards);
+
+				storage.flush();
+				storage.close();
+
+				System.out.println(String.format("%-12s %14d", name, size(root.resolve(name))));
+			}
+
+			System.out.println("archivio      passaggio   header (ms)   tutti i progetti (ms)");
+
+			for(String name : names) {
+				if(only!=null && !only.equals(name)) continue;
+
+				for(int pass=1; pass<=PASSES; pass++) {
+
+					Storage storage = open(root, name);
+
+					long begin = System.nanoTime();
+					List<Project> headers = storage.readProjectHeaders();
+					long middle = System.nanoTime();
+
+					int read = 0;
+					for(Project header : headers) {
+						storage.readProject(header.getProjectName());
+						read += storage.readCards(header.getProjectName()).size();
+					}
+					long end = System.nanoTime();
+
+					storage.close();
+
+					if(read!=projects*cards) throw new IllegalStateException("Lette "+read+" card invece di "+projects*cards);
+
+					System.out.println(String.format("%-12s %10d %13.0f %23.0f", name, pass, (middle-begin)/1e6, (end-middle)/1e6));
+				}
+			}
+		}
+		finally {
+			delete(root);
+		}
+	}
+
+	/**
+	 * metodo di utility chiamato per aprire uno degli archivi nella cartella del benchmark
+	 * @param root la cartella del benchmark
+	 * @param name il nome dell'archivio
+	 * @return l'archivio aperto
+	 * @throws IOException se l'archivio non puo' essere aperto
+	 */
+	private static Storage open(Path root, String name) throws IOException {
+
+		Path folder = root.resolve(name);
+
+		if(name.equals("json")) return new JsonStorage(folder.resolve("members.json").toString(), folder.resolve("projects").toString());
+
+		return new LogStorage(folder.toString());
+	}
+
+	/**
+	 * metodo di utility chiamato per salvare un progetto con le sue card, distribuite nelle quattro liste,
+	 * come fa il checkpoint del server
+	 * @param storage l'archivio
+	 * @param format la codifica dei record
+	 * @param projectname il nome del progetto
+	 * @param cards il numero di card
+	 * @throws IOException se il salvataggio fallisce
+	 */
+	private static void write(Storage storage, StorageFormat format, String projectname, int cards) throws IOException {
+
+		Project project = new Project();
+		project.setProjectName(projectname);
+		project.setCreatedBy("utente0");
+
+		ArrayList<String> members = new ArrayList<String>();
+		for(int i=0; i<5; i++) members.add("utente"+i);
+		project.setMembers(members);
+
+		CardState[] states = CardState.values();
+
+		Map<String, byte[]> encoded = new LinkedHashMap<String, byte[]>();
+
+		for(int i=0; i<cards; i++) {
+			Card card = new Card();
+			card.setProjectname(projectname);
+			card.setName("card"+i);
+			card.setDescription("Descrizione della card numero "+i+" del progetto "+projectname);
+			card.setLsn(i+1);
+			project.addCard(card);
+			for(int s=1; s<=i%states.length; s++) {
+				project.moveCard(card, states[s]);
+				card.getHistory().add("Card spostata da "+states[s-1]+" a "+states[s]);
+			}
+			encoded.put(card.getName(), format.encodeCard(card));
+		}
+
+		project.setLsn(cards);
+		project.markCardsLoaded();
+
+		storage.writeBoard(projectname, encoded, format.encodeProject(project));
+	}
+
+	/**
+	 * metodo di utility chiamato per calcolare i byte occupati dai file di una cartella
+	 * @param folder la cartella
+	 * @return la somma delle dimensioni dei file contenuti, anche nelle sottocartelle
+	 * @throws IOException se la cartella non puo' essere letta
+	 */
+	private static long size(Path folder) throws IOException {
+
+		try(Stream<Path> files = Files.walk(folder)) {
+			return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+		}
+	}
+
+	/**
+	 * metodo di utility chiamato per cancellare la cartella del benchmark
+	 * @param folder la cartella
+	 * @throws IOException se un file non puo' essere cancellato
+	 */
+	private static void delete(Path folder) throws IOException {
+
+		try(Stream<Path> files = Files.walk(folder)) {
+			for(Path f : (Iterable<Path>) files.sorted((a, b) -> b.compareTo(a))::iterator) Files.delete(f);
+		}
+	}
+
+}
@@ -0,0 +1,21 @@
+package myInterfaces;
+
+import worth.Request;
+
+/**
+ * 
+ * Interfaccia utilizzata dal server per eseguire un comando TCP ricevuto da un client,
+ * ogni comando del protocollo viene registrato con il proprio handler
+ *
+ */
+@FunctionalInterface
+public interface CommandHandler {
+
+	/**
+	 * metodo chiamato da un thread del pool per eseguire il comando,
+	 * gli argomenti sono gia' stati contati e si leggono con request.getArgument
+	 * @param request la richiesta da eseguire, a cui assegnare la risposta
+	 */
+	public void execute(Request request);
+	
+}
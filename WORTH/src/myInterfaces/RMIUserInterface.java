@@ -39,12 +39,5 @@ public interface RMIUserInterface extends Remote {
 	 * @return String l'indirizzo associato al progetto su cui poter inviare il messaggio
 	 */
 	public String needToSendMessage(String projectname, String username) throws RemoteException;
-	
-	/**
-	 * metodo utilizzato da un utente per notificare il server di aver inviato un messaggio
-	 * in chat
-	 * @param projectname il nome del progetto in cui  stato inviato il messaggio
-	 * @throws RemoteException
-	 */
-	public void didSendMessage(String projectname) throws RemoteException;
+
 }
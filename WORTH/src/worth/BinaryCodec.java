@@ -0,0 +1,408 @@
+package worth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ *
+ * Classe di utility per la codifica binaria compatta di progetti, card e utenti,
+ * alternativa a JsonCodec per l'archivio log-structured e quello in memoria:
+ * nessuno spazio, nessun nome di campo, interi e lunghezze in formato varint
+ * e stringhe in UTF-8
+ * ogni contenuto inizia con il byte MAGIC, che non puo' iniziare un documento JSON,
+ * seguito dal tipo: in lettura StorageFormat riconosce cosi' il formato di ogni contenuto
+ * e un archivio puo' contenere contenuti scritti in entrambi i formati
+ * formato di un progetto: nome, creatore, membri, lsn, indirizzo della chat (vuoto se non assegnato)
+ * e, per ogni stato, nome e lsn delle card della lista (il contenuto delle card e' salvato solo nei
+ * contenuti delle card); i progetti di tipo PROJECT, scritti prima che l'indirizzo fosse salvato, non lo contengono
+ * formato di una card: nome, progetto, stato, descrizione, storia, lsn
+ * formato degli utenti: per ogni utente nome utente e password
+ *
+ */
+public class BinaryCodec {
+
+	public static final byte MAGIC = (byte) 0xB1;
+
+	//Tipi di contenuto
+	private static final byte PROJECT = 1;	//Progetto senza l'indirizzo della chat, solo in lettura
+	private static final byte CARD = 2;
+	private static final byte USERS = 3;
+	private static final byte CHAT_PROJECT = 4;	//Progetto con l'indirizzo della chat dopo lsn
+
+	private static final CardState[] STATES = CardState.values();	//Gli stati nell'ordine delle liste, indicizzati per ordinal
+	private static final int NO_STATE = 0xFF;	//Stato di una card senza lista
+
+	private BinaryCodec() {}
+
+	/**
+	 * metodo chiamato per sapere se un contenuto e' stato codificato da questa classe
+	 * @param bytes il contenuto
+	 * @return true se il contenuto e' in formato binario, false altrimenti
+	 */
+	public static boolean isBinary(byte[] bytes) {
+		return bytes.length>0 && bytes[0]==MAGIC;
+	}
+
+	/**
+	 * metodo chiamato dal checkpoint per codificare un progetto, senza il contenuto delle sue card
+	 * @param project il progetto da codificare
+	 * @return il progetto codificato
+	 */
+	public static byte[] encodeProject(Project project) {
+
+		ByteArrayOutputStream out = header(CHAT_PROJECT, 64+16*project.countCards());
+
+		writeString(out, project.getProjectName());
+		writeString(out, project.getCreatedBy());
+
+		List<String> members = project.getMembers();
+		writeVarint(out, members.size());
+		for(String m : members) {
+			writeString(out, m);
+		}
+
+		writeVarint(out, project.getLsn());
+
+		writeString(out, project.getChatGroup()==null ? "" : project.getChatGroup());
+
+		for(CardState state : STATES) {
+			writeVarint(out, project.countCards(state));
+		}
+
+		for(Card c : project.getAllCards()) {	//Le card nell'ordine delle liste, il numero di card di ogni lista e' gia' scritto
+			writeString(out, c.getName());
+			writeVarint(out, c.getLsn());
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * metodo chiamato per leggere un progetto: le liste contengono card con solo nome,
+	 * stato e lsn, da sostituire con le card lette dai loro contenuti
+	 * @param bytes il progetto codificato
+	 * @return il progetto letto
+	 * @throws IOException se il contenuto non e' un progetto valido
+	 */
+	public static Project readProject(byte[] bytes) throws IOException {
+
+		try {
+			ByteBuffer in = openProject(bytes);
+
+			Project p = readHeader(in, bytes[1]==CHAT_PROJECT);
+
+			int[] counts = new int[STATES.length];
+			for(int i=0; i<counts.length; i++) {
+				counts[i] = readLength(in);
+			}
+
+			for(CardState state : STATES) {
+
+				List<Card> list = new ArrayList<Card>(counts[state.ordinal()]);
+
+				for(int i=0; i<counts[state.ordinal()]; i++) {
+					Card c = new Card();
+					c.setName(readString(in));
+					c.setCurrentList(state);
+					c.setLsn(readVarint(in));
+					list.add(c);
+				}
+
+				p.replaceCards(state, list);
+			}
+
+			return p;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Progetto incompleto", e);
+		}
+	}
+
+	/**
+	 * metodo chiamato all'avvio per leggere solo nome, creatore, membri, lsn e indirizzo della chat di un progetto,
+	 * senza leggere le liste
+	 * @param bytes il progetto codificato
+	 * @return il progetto letto, senza card
+	 * @throws IOException se il contenuto non e' un progetto valido
+	 */
+	public static Project readProjectHeader(byte[] bytes) throws IOException {
+
+		try {
+			return readHeader(openProject(bytes), bytes[1]==CHAT_PROJECT);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Progetto incompleto", e);
+		}
+	}
+
+	/**
+	 * metodo chiamato dal checkpoint per codificare una card
+	 * @param card la card da codificare
+	 * @return la card codificata
+	 */
+	public static byte[] encodeCard(Card card) {
+
+		ByteArrayOutputStream out = header(CARD, 128+64*card.getHistory().size());
+
+		writeString(out, card.getName());
+		writeString(out, card.getProjectname());
+		out.write(card.getCurrentList()==null ? NO_STATE : card.getCurrentList().ordinal());
+		writeString(out, card.getDescription());
+
+		writeVarint(out, card.getHistory().size());
+		for(String h : card.getHistory()) {
+			writeString(out, h);
+		}
+
+		writeVarint(out, card.getLsn());
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * metodo chiamato per leggere una card
+	 * @param bytes la card codificata
+	 * @return la card letta
+	 * @throws IOException se il contenuto non e' una card valida
+	 */
+	public static Card readCard(byte[] bytes) throws IOException {
+
+		try {
+			ByteBuffer in = open(bytes, CARD);
+
+			Card c = new Card();
+
+			c.setName(readString(in));
+			c.setProjectname(readString(in));
+
+			int state = in.get() & 0xFF;
+			if(state>=STATES.length && state!=NO_STATE) throw new IOException("Stato della card non valido: "+state);
+			c.setCurrentList(state==NO_STATE ? null : STATES[state]);
+
+			c.setDescription(readString(in));
+
+			int n = readLength(in);
+			ArrayList<String> history = new ArrayList<String>(n);
+			for(int i=0; i<n; i++) {
+				history.add(readString(in));
+			}
+			c.setHistory(history);
+
+			c.setLsn(readVarint(in));
+
+			return c;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Card incompleta", e);
+		}
+	}
+
+	/**
+	 * metodo chiamato dal checkpoint per codificare gli utenti registrati
+	 * @param users gli utenti da codificare
+	 * @return gli utenti codificati
+	 */
+	public static byte[] encodeUsers(Collection<User> users) {
+
+		ByteArrayOutputStream out = header(USERS, 16+32*users.size());
+
+		writeVarint(out, users.size());
+
+		for(User u : users) {
+			writeString(out, u.getUsername());
+			writeString(out, u.getPassword());
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * metodo chiamato per leggere gli utenti registrati
+	 * @param bytes gli utenti codificati
+	 * @return gli utenti letti
+	 * @throws IOException se il contenuto non e' una lista di utenti valida
+	 */
+	public static User[] readUsers(byte[] bytes) throws IOException {
+
+		try {
+			ByteBuffer in = open(bytes, USERS);
+
+			User[] users = new User[readLength(in)];
+
+			for(int i=0; i<users.length; i++) {
+				users[i] = new User();
+				users[i].setUsername(readString(in));
+				users[i].setPassword(readString(in));
+			}
+
+			return users;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Utenti incompleti", e);
+		}
+	}
+
+	/**
+	 * metodo chiamato per leggere nome, creatore, membri, lsn e indirizzo della chat di un progetto
+	 * @param in il contenuto, posizionato dopo il tipo
+	 * @param group true se il contenuto contiene l'indirizzo della chat (tipo CHAT_PROJECT)
+	 * @return il progetto letto, senza card
+	 * @throws IOException se una lunghezza non e' valida
+	 */
+	private static Project readHeader(ByteBuffer in, boolean group) throws IOException {
+
+		Project p = new Project();
+
+		p.setProjectName(readString(in));
+		p.setCreatedBy(readString(in));
+
+		int n = readLength(in);
+		ArrayList<String> members = new ArrayList<String>(n);
+		for(int i=0; i<n; i++) {
+			members.add(readString(in));
+		}
+		p.setMembers(members);
+
+		p.setLsn(readVarint(in));
+
+		if(group) {
+			String address = readString(in);
+			p.setChatGroup(address.isEmpty() ? null : address);
+		}
+
+		return p;
+	}
+
+	/**
+	 * metodo chiamato per iniziare la codifica di un contenuto
+	 * @param type il tipo di contenuto
+	 * @param size la dimensione stimata del contenuto
+	 * @return lo stream su cui scrivere il resto del contenuto
+	 */
+	private static ByteArrayOutputStream header(byte type, int size) {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+
+		out.write(MAGIC);
+		out.write(type);
+
+		return out;
+	}
+
+	/**
+	 * metodo chiamato per iniziare la lettura di un contenuto, controllandone formato e tipo
+	 * @param bytes il contenuto
+	 * @param type il tipo atteso
+	 * @return il contenuto, posizionato dopo il tipo
+	 * @throws IOException se il contenuto non e' in formato binario o non e' del tipo atteso
+	 */
+	private static ByteBuffer open(byte[] bytes, byte type) throws IOException {
+
+		if(bytes.length<2 || bytes[0]!=MAGIC || bytes[1]!=type) throw new IOException("Contenuto binario non valido");
+
+		return ByteBuffer.wrap(bytes, 2, bytes.length-2);
+	}
+
+	/**
+	 * metodo chiamato per iniziare la lettura di un progetto, con o senza l'indirizzo della chat
+	 * @param bytes il progetto codificato
+	 * @return il contenuto, posizionato dopo il tipo
+	 * @throws IOException se il contenuto non e' un progetto in formato binario
+	 */
+	private static ByteBuffer openProject(byte[] bytes) throws IOException {
+		return open(bytes, bytes.length>1 && bytes[1]==PROJECT ? PROJECT : CHAT_PROJECT);
+	}
+
+	/**
+	 * metodo chiamato per scrivere un intero non negativo in formato varint:
+	 * 7 bit per byte, il bit alto indica che segue un altro byte
+	 * @param out lo stream su cui scrivere
+	 * @param value l'intero da scrivere
+	 */
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+
+		while((value & ~0x7FL)!=0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		out.write((int) value);
+	}
+
+	/**
+	 * metodo chiamato per leggere un intero scritto da writeVarint
+	 * @param in il contenuto da leggere
+	 * @return l'intero letto
+	 * @throws IOException se l'intero occupa piu' di 10 byte
+	 */
+	private static long readVarint(ByteBuffer in) throws IOException {
+
+		long value = 0;
+
+		for(int shift=0; shift<64; shift+=7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7F)<<shift;
+			if((b & 0x80)==0) return value;
+		}
+
+		throw new IOException("Intero non valido");
+	}
+
+	/**
+	 * metodo chiamato per leggere una lunghezza, che non puo' superare i byte rimasti
+	 * @param in il contenuto da leggere
+	 * @return la lunghezza letta
+	 * @throws IOException se la lunghezza non e' valida
+	 */
+	private static int readLength(ByteBuffer in) throws IOException {
+
+		long length = readVarint(in);
+
+		if(length>in.remaining()) throw new IOException("Lunghezza non valida: "+length);
+
+		return (int) length;
+	}
+
+	/**
+	 * metodo chiamato per scrivere una stringa: lunghezza in byte piu' uno (0 per null) e byte UTF-8
+	 * @param out lo stream su cui scrivere
+	 * @param s la stringa da scrivere, anche null
+	 */
+	private static void writeString(ByteArrayOutputStream out, String s) {
+
+		if(s==null) {
+			out.write(0);
+			return;
+		}
+
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+
+		writeVarint(out, bytes.length+1);
+
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * metodo chiamato per leggere una stringa scritta da writeString
+	 * @param in il contenuto da leggere
+	 * @return la stringa letta, anche null
+	 * @throws IOException se la lunghezza non e' valida
+	 */
+	private static String readString(ByteBuffer in) throws IOException {
+
+		long length = readVarint(in);
+
+		if(length==0) return null;
+
+		if(length-1>in.remaining()) throw new IOException("Lunghezza non valida: "+length);
+
+		String s = new String(in.array(), in.arrayOffset()+in.position(), (int) length-1, StandardCharsets.UTF_8);
+
+		in.position(in.position()+(int) length-1);
+
+		return s;
+	}
+
+}
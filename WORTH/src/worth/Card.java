@@ -6,18 +6,28 @@ import java.util.Date;
 public class Card {
 
 	private String projectname;	//Il nome del progetto in cui si trova la card
-	private String currentList;	//Il nome della lista in cui si trova la card
+	private CardState currentList;	//Lo stato della card, corrispondente alla lista in cui si trova
 	private String name;	//Il nome della card
 	private String description;	//La descrizione testuale della card
 	private ArrayList<String> history;	//La storia dei movimenti della card
+	private long lsn;	//Il numero di sequenza dell'ultima modifica del journal applicata alla card
 	
 	/**
 	 * metodo costruttore chiamato dal server per la creazione di una nuova card
 	 */
 	public Card() {
+		this(System.currentTimeMillis());
+	}
+	
+	/**
+	 * metodo costruttore chiamato dal server per creare una card con un istante di creazione
+	 * gia' noto, usato per ripetere la creazione di una card letta dal journal
+	 * @param created l'istante di creazione della card, riportato nella sua storia
+	 */
+	public Card(long created) {
 		this.history = new ArrayList<String>();
-		this.history.add(new Date(System.currentTimeMillis())+"  Card creata, inserita automaticamente in lista TODO");	//Nuova card creata
-		this.setCurrentList("TODO");
+		this.history.add(new Date(created)+"  Card creata, inserita automaticamente in lista TODO");	//Nuova card creata
+		this.setCurrentList(CardState.TODO);
 	}
 	
 	/**
@@ -29,10 +39,10 @@ public class Card {
 	}
 	
 	/**
-	 * metodo chiamato dal server per modificare il nome della lista in cui si trova la card
-	 * @param currentList il nuovo nome della lista
+	 * metodo chiamato dal server per modificare la lista in cui si trova la card
+	 * @param currentList il nuovo stato della card
 	 */
-	public void setCurrentList(String currentList) {
+	public void setCurrentList(CardState currentList) {
 		this.currentList = currentList;
 	}
 	
@@ -60,6 +70,14 @@ public class Card {
 		this.history = history;
 	}
 	
+	/**
+	 * metodo chiamato dal server dopo aver aggiunto al journal una modifica della card
+	 * @param lsn il numero di sequenza della modifica
+	 */
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+	
 	/**
 	 * metodo chiamato per restituire il nome del progetto in cui si trova la card
 	 * @return projectname il nome del progetto in cui si trova la card
@@ -69,10 +87,10 @@ public class Card {
 	}
 	
 	/**
-	 * metodo chiamato per restituire il nome della lista in cui si trova attualmente la card
-	 * @return il nome della lista in cui si trova la card
+	 * metodo chiamato per restituire la lista in cui si trova attualmente la card
+	 * @return lo stato della card
 	 */
-	public String getCurrentList() {
+	public CardState getCurrentList() {
 		return this.currentList;
 	}
 	
@@ -100,4 +118,13 @@ public class Card {
 		return this.history;
 	}
 	
+	/**
+	 * metodo chiamato per restituire il numero di sequenza dell'ultima modifica del journal
+	 * applicata alla card, le modifiche con numero minore sono gia' contenute nel file della card
+	 * @return il numero di sequenza, 0 se la card non e' mai stata modificata tramite journal
+	 */
+	public long getLsn() {
+		return this.lsn;
+	}
+	
 }
@@ -0,0 +1,69 @@
+package worth;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+/**
+ *
+ * Stati in cui puo' trovarsi una card, ognuno corrispondente ad una lista del progetto,
+ * con gli spostamenti consentiti da ogni stato:
+ * TODO -> INPROGRESS
+ * INPROGRESS -> TOBEREVISED, DONE
+ * TOBEREVISED -> INPROGRESS, DONE
+ * DONE e' uno stato finale
+ *
+ */
+public enum CardState {
+
+	TODO,
+	INPROGRESS,
+	TOBEREVISED,
+	DONE;
+
+	private static final CardState[] VALUES = values();	//Copia usata da parse, values() crea un nuovo array ad ogni chiamata
+
+	private boolean[] transitions;	//transitions[s.ordinal()] = true se la card puo' essere spostata nello stato s
+
+	static {
+		TODO.allow(INPROGRESS);
+		INPROGRESS.allow(TOBEREVISED, DONE);
+		TOBEREVISED.allow(INPROGRESS, DONE);
+	}
+
+	/**
+	 * metodo chiamato all'inizializzazione della classe per dichiarare gli spostamenti consentiti
+	 * @param targets gli stati in cui puo' essere spostata una card in questo stato
+	 */
+	private void allow(CardState... targets) {
+		this.transitions = new boolean[VALUES.length];
+		for(CardState target : targets) this.transitions[target.ordinal()] = true;
+	}
+
+	/**
+	 * metodo chiamato per sapere se una card in questo stato puo' essere spostata in un altro stato
+	 * @param target lo stato destinazione
+	 * @return true se lo spostamento e' consentito, false altrimenti
+	 */
+	public boolean canMoveTo(CardState target) {
+		return this.transitions!=null && this.transitions[target.ordinal()];
+	}
+
+	/**
+	 * metodo chiamato per convertire il nome di una lista nello stato corrispondente,
+	 * senza distinzione tra maiuscole e minuscole e senza creare nuove stringhe
+	 * usato anche da Jackson per leggere lo stato delle card dai file json
+	 * @param list il nome della lista
+	 * @return lo stato corrispondente, null se il nome non e' valido
+	 */
+	@JsonCreator
+	public static CardState parse(String list) {
+
+		if(list==null) return null;
+
+		for(CardState state : VALUES) {
+			if(state.name().equalsIgnoreCase(list)) return state;
+		}
+
+		return null;
+	}
+
+}
@@ -0,0 +1,68 @@
+package worth;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Classe di utility che definisce il formato dei datagrammi che il server inoltra sul gruppo
+ * multicast di una chat dopo aver salvato un messaggio: i client inviano sul gruppo il solo testo
+ * del messaggio, il server lo salva e lo ripete sul gruppo preceduto da un header con
+ * MARKER, il tipo, il numero di sequenza del messaggio e il nome del progetto
+ * il primo byte di un messaggio inviato da un client e' il primo carattere del nome utente,
+ * mai MARKER, cosi' server e client distinguono i messaggi numerati da quelli da salvare
+ * i client che ascoltano il gruppo usano i numeri di sequenza per accorgersi dei messaggi persi,
+ * che richiedono al server via TCP con readchat since; periodicamente il server annuncia
+ * l'ultimo numero di sequenza delle chat attive (ANNOUNCE, senza testo), per segnalare
+ * la perdita degli ultimi messaggi
+ *
+ */
+public class ChatDatagram {
+
+	public static final int MAX_SIZE = 65507;	//Dimensione massima del contenuto di un datagramma UDP
+
+	public static final byte MARKER = 0;	//Primo byte di un datagramma inoltrato dal server
+
+	public static final byte MESSAGE = 1;	//Tipo di un messaggio salvato, seguito dal testo
+
+	public static final byte ANNOUNCE = 2;	//Tipo dell'annuncio dell'ultimo numero di sequenza, senza testo
+
+	public static final int HEADER_SIZE = 12;	//MARKER, tipo, numero di sequenza e lunghezza del nome, prima del nome del progetto
+
+	private ChatDatagram() {}
+
+	/**
+	 * metodo chiamato per sapere se un datagramma ricevuto e' stato inoltrato dal server
+	 * @param datagram il buffer con il datagramma tra position e limit
+	 * @return true se il datagramma ha l'header del server, false se e' il testo di un client
+	 */
+	public static boolean isStamped(ByteBuffer datagram) {
+		return datagram.remaining()>=HEADER_SIZE && datagram.get(datagram.position())==MARKER;
+	}
+
+	/**
+	 * metodo chiamato dal server per scrivere in un buffer il datagramma da inoltrare sul gruppo:
+	 * se il testo non entra nel datagramma viene inoltrato solo il numero di sequenza (ANNOUNCE)
+	 * e i client leggono il messaggio via TCP
+	 * @param out il buffer in cui scrivere il datagramma, pronto per l'invio al ritorno
+	 * @param project il nome del progetto codificato in UTF-8
+	 * @param seq il numero di sequenza del messaggio
+	 * @param message il testo del messaggio tra position e limit, null per un annuncio
+	 */
+	public static void stamp(ByteBuffer out, byte[] project, long seq, ByteBuffer message) {
+
+		out.clear();
+
+		boolean fits = message!=null && HEADER_SIZE+project.length+message.remaining()<=MAX_SIZE;
+
+		out.put(MARKER);
+		out.put(fits ? MESSAGE : ANNOUNCE);
+		out.putLong(seq);
+		out.putShort((short) project.length);
+		out.put(project);
+
+		if(fits) out.put(message);
+
+		out.flip();
+	}
+
+}
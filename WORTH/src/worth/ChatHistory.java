@@ -0,0 +1,421 @@
+package worth;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * Storia in memoria della chat di un progetto: un buffer circolare che contiene gli ultimi
+ * capacity messaggi, ognuno con un numero di sequenza che parte da 1 ed e' la sua posizione
+ * nella chat salvata nell'archivio
+ * i numeri di sequenza vengono riservati nell'archivio a blocchi, prima di essere comunicati:
+ * dopo un riavvio la numerazione riprende dopo l'ultimo numero riservato, senza riusare i numeri
+ * gia' comunicati ai client; i numeri riservati e non assegnati restano senza messaggio (null)
+ * il blocco successivo viene chiesto quando meta' di quello corrente e' assegnata e viene scritto
+ * fuori dal thread che riceve i messaggi: un messaggio con un numero non ancora riservato resta
+ * provvisorio, non viene restituito ai client finche' la scrittura non lo conferma con reserved
+ * i messaggi piu' vecchi restano solo nell'archivio, dove li scrive il checkpoint: un messaggio
+ * viene sovrascritto solo dopo che il checkpoint ne ha confermato il salvataggio, se tra due
+ * checkpoint arrivano piu' di capacity messaggi il buffer cresce fino al checkpoint successivo
+ * e torna poi alla capacita' scelta
+ * finche' i messaggi salvati non vengono letti dall'archivio (restore) i numeri di sequenza
+ * partono dal primo messaggio ricevuto dopo l'avvio e sono provvisori, non vengono comunicati ai client
+ * i messaggi sono salvati come byte UTF-8 ricevuti, uno dopo l'altro in un unico array circolare
+ * (arena) di cui si tengono posizione e lunghezza di ogni messaggio: salvare un messaggio non
+ * alloca oggetti, le stringhe vengono create solo quando un client legge la chat
+ *
+ */
+public class ChatHistory {
+
+	private static final int MIN_SLOTS = 8;	//Posizioni allocate al primo messaggio, crescono fino a capacity
+	private static final int MIN_ARENA = 256;	//Dimensione dell'arena al primo messaggio, cresce con i messaggi
+	private static final int[] NO_SLOTS = new int[0];	//Indici di una chat senza messaggi, condivisi da tutte le chat
+	private static final byte[] NO_BYTES = new byte[0];	//Arena di una chat senza messaggi, condivisa da tutte le chat
+	private static final int RESERVED_SEQS = 256;	//Numeri di sequenza riservati nell'archivio ad ogni scrittura
+	private static final int NO_MESSAGE = -1;	//Lunghezza di un numero di sequenza senza messaggio
+
+	private int capacity;	//Il numero di messaggi da tenere in memoria
+	private int[] offsets;	//Per ogni messaggio in memoria, la posizione del primo byte nell'arena
+	private int[] lengths;	//Per ogni messaggio in memoria, il numero di byte
+	private byte[] arena;	//I byte dei messaggi, dal piu' vecchio a partire da offsets[head]
+	private int head;	//L'indice in offsets del messaggio piu' vecchio
+	private int size;	//Il numero di messaggi in memoria
+	private int tail;	//La posizione nell'arena successiva all'ultimo byte del messaggio piu' recente
+	private int bytes;	//Il numero di byte dei messaggi in memoria
+	private long firstSeq = 1;	//Il numero di sequenza del messaggio piu' vecchio in memoria
+	private long savedSeq;	//Il numero di sequenza dell'ultimo messaggio salvato nell'archivio
+	private long pendingSeq;	//Il numero di sequenza dell'ultimo messaggio passato al checkpoint
+	private boolean numbered;	//true dopo restore, quando i numeri di sequenza sono quelli della chat salvata
+	private Reservation reservation;	//Salva nell'archivio i numeri di sequenza riservati, null se non vanno salvati
+	private long reservedSeq;	//L'ultimo numero di sequenza riservato nell'archivio
+	private boolean reserving;	//true mentre la scrittura di un blocco di numeri e' in corso
+
+	/**
+	 * Scrittura nell'archivio dell'ultimo numero di sequenza che puo' essere comunicato,
+	 * chiesta con il lock della storia, anche dal thread che riceve i messaggi: la scrittura
+	 * va solo pianificata, al termine chiama reserved o reserveFailed
+	 */
+	public interface Reservation {
+
+		/**
+		 * metodo chiamato per pianificare il salvataggio persistente dell'ultimo numero di sequenza riservato
+		 * @param last l'ultimo numero di sequenza che puo' essere comunicato
+		 */
+		void reserve(long last);
+	}
+
+	/**
+	 * costruttore per la classe chat history, indici e arena vengono allocati al primo messaggio:
+	 * la storia di una chat mai usata non occupa memoria oltre all'oggetto
+	 * @param capacity il numero di messaggi da tenere in memoria
+	 * @param reservation la scrittura dei numeri di sequenza riservati, null se non vanno salvati
+	 */
+	public ChatHistory(int capacity, Reservation reservation) {
+
+		this.capacity = capacity;
+
+		this.reservation = reservation;
+
+		this.offsets = NO_SLOTS;
+
+		this.lengths = NO_SLOTS;
+
+		this.arena = NO_BYTES;
+
+	}
+
+	/**
+	 * metodo chiamato dal ChatReceiver per aggiungere un messaggio ricevuto, copiandone i byte
+	 * nell'arena e sovrascrivendo il piu' vecchio se il buffer e' pieno e il messaggio e' gia' salvato
+	 * @param message il buffer con i byte del messaggio tra position e limit, che viene consumato
+	 * @return il numero di sequenza del messaggio, 0 se il numero e' provvisorio perche' i messaggi
+	 * salvati non sono ancora stati letti o perche' non e' ancora riservato nell'archivio
+	 */
+	public synchronized long add(ByteBuffer message) {
+
+		while(this.size>=this.capacity && this.firstSeq<=this.savedSeq) {	//Il messaggio piu' vecchio e' gia' nell'archivio
+			evict();
+		}
+
+		if(this.size==this.offsets.length) {	//Tutte le posizioni occupate, da messaggi in memoria o in attesa del checkpoint
+			rebuild(this.size<this.capacity ? Math.min(this.capacity, Math.max(MIN_SLOTS, this.size*2)) : this.size*2, null, message.remaining());
+		}
+		else if(this.offsets.length>this.capacity && this.size<this.capacity) {	//Messaggi salvati, torna alla capacita' scelta
+			rebuild(this.capacity, null, message.remaining());
+		}
+
+		int length = message.remaining();
+		int offset = reserve(length);
+
+		message.get(this.arena, offset, length);
+
+		int slot = (this.head+this.size)%this.offsets.length;
+		this.offsets[slot] = offset;
+		this.lengths[slot] = length;
+		this.size++;
+		this.tail = offset+length;
+		this.bytes += length;
+
+		if(!this.numbered) return 0;
+
+		requestReservation();	//Solo pianificata, il receiver non scrive nell'archivio
+
+		long seq = this.firstSeq+this.size-1;
+
+		return seq<=lastSeq() ? seq : 0;
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero di sequenza del messaggio piu' vecchio in memoria
+	 * @return il numero di sequenza, maggiore di lastSeq se la chat e' vuota
+	 */
+	public synchronized long firstSeq() {
+		return this.firstSeq;
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero di sequenza dell'ultimo messaggio ricevuto
+	 * che puo' essere comunicato ai client, i successivi attendono la riserva del loro numero
+	 * @return il numero di sequenza, 0 se la chat e' vuota
+	 */
+	public synchronized long lastSeq() {
+
+		long last = this.firstSeq+this.size-1;
+
+		if(this.numbered && this.reservation!=null) return Math.min(last, this.reservedSeq);
+
+		return last;
+	}
+
+	/**
+	 * metodo chiamato per sapere se i numeri di sequenza sono definitivi e possono essere
+	 * comunicati ai client
+	 * @return true se i messaggi salvati sono stati letti con restore
+	 */
+	public synchronized boolean isNumbered() {
+		return this.numbered;
+	}
+
+	/**
+	 * metodo chiamato per restituire i messaggi successivi ad un numero di sequenza
+	 * @param seq il numero di sequenza dell'ultimo messaggio gia' letto
+	 * @param max il numero massimo di messaggi da restituire
+	 * @return i messaggi, dal piu' vecchio, null per i numeri di sequenza senza messaggio,
+	 * una lista vuota se il messaggio seq+1 non e' piu' in memoria (va letto dall'archivio)
+	 * o non e' ancora stato ricevuto
+	 */
+	public synchronized List<String> since(long seq, int max) {
+
+		if(seq+1<this.firstSeq) return new ArrayList<String>();	//Messaggio sovrascritto, non si salta nessun messaggio
+
+		int visible = (int) (lastSeq()-this.firstSeq+1);	//Messaggi con un numero che puo' essere comunicato
+
+		int from = (int) Math.min(visible, seq+1-this.firstSeq);	//Indice del primo messaggio da restituire
+
+		int n = Math.min(max, visible-from);
+
+		ArrayList<String> messages = new ArrayList<String>(n);
+
+		for(int i=0; i<n; i++) {
+			int slot = (this.head+from+i)%this.offsets.length;
+			messages.add(this.lengths[slot]==NO_MESSAGE ? null : new String(this.arena, this.offsets[slot], this.lengths[slot], StandardCharsets.UTF_8));
+		}
+
+		return messages;
+	}
+
+	/**
+	 * metodo chiamato per restituire i messaggi in memoria fino ad un numero di sequenza,
+	 * letto in precedenza con lastSeq: i messaggi ricevuti nel frattempo non vengono restituiti
+	 * @param last il numero di sequenza dell'ultimo messaggio da restituire
+	 * @return i messaggi, dal piu' vecchio, null per i numeri di sequenza senza messaggio
+	 */
+	public synchronized List<String> recent(long last) {
+		return since(this.firstSeq-1, (int) Math.max(0, Math.min(this.size, last-this.firstSeq+1)));
+	}
+
+	/**
+	 * metodo chiamato per la chat di un progetto nuovo, senza messaggi salvati nell'archivio:
+	 * i numeri di sequenza partono da 1 e sono gia' definitivi
+	 */
+	public synchronized void number() {
+
+		this.numbered = true;
+
+		requestReservation();	//Il primo blocco, prima che arrivino messaggi
+	}
+
+	/**
+	 * metodo chiamato dopo aver letto dall'archivio i messaggi salvati: i messaggi ricevuti
+	 * dopo l'avvio vengono numerati dopo quelli salvati e gli ultimi numeri riservati,
+	 * e i piu' recenti tra i salvati vengono inseriti in testa, fin dove c'e' spazio
+	 * @param saved i messaggi letti dall'archivio, dal piu' vecchio, con null per i numeri
+	 * riservati senza messaggio
+	 */
+	public synchronized void restore(List<String> saved) {
+
+		int n = saved.size();
+
+		this.reservedSeq = n;	//L'archivio contiene un null per ogni numero riservato e non assegnato
+
+		this.numbered = true;
+
+		requestReservation();	//I messaggi ricevuti dopo l'avvio restano provvisori fino alla scrittura
+
+		this.firstSeq += n;
+		this.savedSeq += n;
+		this.pendingSeq += n;
+
+		int k = Math.max(0, Math.min(n, this.capacity-this.size));	//Messaggi salvati che entrano nel buffer
+
+		if(k==0) return;
+
+		byte[][] prefix = new byte[k][];
+
+		for(int i=0; i<k; i++) {
+			String message = saved.get(n-k+i);
+			prefix[i] = message==null ? null : message.getBytes(StandardCharsets.UTF_8);
+		}
+
+		rebuild(Math.max(this.offsets.length, this.size+k), prefix, 0);
+
+		this.firstSeq -= k;
+	}
+
+	/**
+	 * metodo chiamato dal checkpoint, prima di unsaved, per restituire il numero di sequenza
+	 * dell'ultimo messaggio gia' passato ad un checkpoint
+	 * @return il numero di sequenza, i messaggi restituiti da unsaved partono dal successivo
+	 */
+	public synchronized long pendingSeq() {
+		return this.pendingSeq;
+	}
+
+	/**
+	 * metodo chiamato dal checkpoint per restituire i messaggi non ancora passati ad un checkpoint,
+	 * che restano in memoria finche' il checkpoint non ne conferma il salvataggio con saved
+	 * @return i messaggi da salvare, dal piu' vecchio
+	 */
+	public synchronized List<String> unsaved() {
+
+		List<String> messages = since(this.pendingSeq, Integer.MAX_VALUE);
+
+		this.pendingSeq = lastSeq();
+
+		return messages;
+	}
+
+	/**
+	 * metodo chiamato dal checkpoint dopo aver aggiunto all'archivio i messaggi restituiti
+	 * da unsaved, che da quel momento possono essere sovrascritti
+	 */
+	public synchronized void saved() {
+		this.savedSeq = this.pendingSeq;
+	}
+
+	/**
+	 * metodo chiamato se il checkpoint fallisce, per salvare di nuovo i messaggi restituiti
+	 * da unsaved al checkpoint successivo
+	 */
+	public synchronized void unsave() {
+		this.pendingSeq = this.savedSeq;
+	}
+
+	/**
+	 * metodo chiamato dopo aver salvato nell'archivio l'ultimo numero di sequenza riservato:
+	 * i messaggi fino a last diventano definitivi e possono essere comunicati ai client
+	 * @param last l'ultimo numero di sequenza riservato
+	 */
+	public synchronized void reserved(long last) {
+
+		this.reservedSeq = Math.max(this.reservedSeq, last);
+
+		this.reserving = false;
+
+		requestReservation();	//Se nel frattempo e' stata assegnata meta' del nuovo blocco
+	}
+
+	/**
+	 * metodo chiamato se il numero di sequenza non puo' essere salvato nell'archivio,
+	 * la riserva viene chiesta di nuovo al prossimo messaggio o da requestReservation
+	 */
+	public synchronized void reserveFailed() {
+		this.reserving = false;
+	}
+
+	/**
+	 * metodo chiamato per chiedere la riserva del blocco successivo di numeri di sequenza
+	 * se meta' del blocco corrente e' gia' assegnata e non c'e' una scrittura in corso,
+	 * anche dal checkpoint per i messaggi rimasti provvisori dopo una scrittura fallita
+	 */
+	public synchronized void requestReservation() {
+
+		if(!this.numbered || this.reservation==null || this.reserving) return;
+
+		long last = this.firstSeq+this.size-1;
+
+		if(this.reservedSeq-last>RESERVED_SEQS/2) return;	//Numeri ancora sufficienti
+
+		this.reserving = true;
+
+		this.reservation.reserve(Math.max(this.reservedSeq, last)+RESERVED_SEQS);
+	}
+
+	/**
+	 * metodo di utility chiamato per scaricare dalla memoria il messaggio piu' vecchio
+	 */
+	private void evict() {
+
+		this.bytes -= Math.max(0, this.lengths[this.head]);
+		this.head = (this.head+1)%this.offsets.length;
+		this.size--;
+		this.firstSeq++;
+
+		if(this.size==0) this.tail = 0;	//Arena vuota, si riparte dall'inizio
+	}
+
+	/**
+	 * metodo di utility chiamato per scegliere dove copiare un nuovo messaggio nell'arena:
+	 * dopo il messaggio piu' recente o, se non c'e' spazio fino alla fine dell'arena,
+	 * dall'inizio fino al messaggio piu' vecchio; altrimenti l'arena viene compattata o ingrandita
+	 * @param length il numero di byte del messaggio
+	 * @return la posizione nell'arena in cui copiare il messaggio
+	 */
+	private int reserve(int length) {
+
+		if(this.size==0) {
+			if(length>this.arena.length) rebuild(this.offsets.length, null, length);
+			return 0;
+		}
+
+		int start = this.offsets[this.head];	//Il primo byte del messaggio piu' vecchio
+
+		if(this.tail>start) {	//Messaggi tra start e tail
+			if(this.arena.length-this.tail>=length) return this.tail;
+			if(start>=length) return 0;	//Il resto dell'arena dopo tail resta inutilizzato fino al prossimo giro
+		}
+		else if(start-this.tail>=length) {	//Messaggi tra start e la fine dell'arena e tra l'inizio e tail
+			return this.tail;
+		}
+
+		rebuild(this.offsets.length, null, length);
+
+		return this.tail;
+	}
+
+	/**
+	 * metodo di utility chiamato per copiare i messaggi in nuovi indici e in una nuova arena,
+	 * dal piu' vecchio a partire dalla posizione 0, senza spazi tra un messaggio e l'altro
+	 * l'arena viene dimensionata con un terzo dello spazio libero dopo la copia, per i messaggi successivi
+	 * @param slots il numero di posizioni dei nuovi indici, non minore dei messaggi da copiare
+	 * @param prefix i messaggi da inserire prima di quelli in memoria, null se nessuno;
+	 * un messaggio null occupa una posizione senza byte, per un numero di sequenza senza messaggio
+	 * @param reserved i byte da lasciare liberi dopo i messaggi per il prossimo messaggio
+	 */
+	private void rebuild(int slots, byte[][] prefix, int reserved) {
+
+		int[] newOffsets = new int[slots];
+		int[] newLengths = new int[slots];
+
+		int used = this.bytes+reserved;
+		if(prefix!=null) for(byte[] message : prefix) if(message!=null) used += message.length;
+
+		byte[] newArena = new byte[Math.max(MIN_ARENA, used+used/2)];
+
+		int position = 0;
+		int n = 0;
+
+		if(prefix!=null) {
+			for(byte[] message : prefix) {
+				newOffsets[n] = position;
+				if(message==null) {
+					newLengths[n++] = NO_MESSAGE;
+					continue;
+				}
+				System.arraycopy(message, 0, newArena, position, message.length);
+				newLengths[n++] = message.length;
+				position += message.length;
+			}
+		}
+
+		for(int i=0; i<this.size; i++) {
+			int slot = (this.head+i)%this.offsets.length;
+			int length = Math.max(0, this.lengths[slot]);
+			System.arraycopy(this.arena, this.offsets[slot], newArena, position, length);
+			newOffsets[n] = position;
+			newLengths[n++] = this.lengths[slot];
+			position += length;
+		}
+
+		this.offsets = newOffsets;
+		this.lengths = newLengths;
+		this.arena = newArena;
+		this.head = 0;
+		this.size = n;
+		this.tail = position;
+		this.bytes = position;
+	}
+
+}
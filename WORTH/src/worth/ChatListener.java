@@ -0,0 +1,408 @@
+package worth;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *
+ * Thread del client che ascolta i gruppi multicast delle chat dei progetti letti con readChat
+ * e conserva i messaggi inoltrati dal server (ChatDatagram), ordinati per numero di sequenza
+ * un numero di sequenza mancante tra l'ultimo messaggio restituito al client e l'ultimo ricevuto
+ * o annunciato dal server e' un messaggio perso: il client lo richiede al server via TCP
+ * con readchat since e lo inserisce con fill prima di leggere i nuovi messaggi con drain
+ * i messaggi inviati dai client sul gruppo, non ancora numerati, vengono ignorati
+ * ogni gruppo ha un canale collegato all'indirizzo del gruppo, come nel ChatReceiver del server
+ *
+ */
+public class ChatListener implements Runnable {
+
+	//Abilita o disabilita la modalita' debug
+	private static boolean DEBUG = false;
+
+	/**
+	 *
+	 * La chat di un progetto ascoltata dal client
+	 *
+	 */
+	private static class ProjectChat {
+
+		private String project;	//Il nome del progetto
+		private InetSocketAddress group;	//Gruppo e porta della chat
+		private long delivered = -1;	//L'ultimo messaggio restituito al client, -1 finche' la chat non e' stata letta dal server
+		private long last;	//L'ultimo numero di sequenza ricevuto o annunciato dal server
+		private TreeMap<Long, String> received = new TreeMap<Long, String>();	//I messaggi successivi a delivered, per numero di sequenza
+
+		private ProjectChat(String project, InetSocketAddress group) {
+			this.project = project;
+			this.group = group;
+		}
+	}
+
+	private NetworkInterface networkInterface;	//L'interfaccia su cui iscriversi ai gruppi
+	private Selector selector;	//Selettore su cui sono registrati i canali delle chat
+	private Queue<ProjectChat> pendingChats;	//Chat da aprire o chiudere dal thread del listener
+	private Map<ProjectChat, DatagramChannel> channels;	//Il canale di ogni chat ascoltata, usato solo dal thread del listener
+	private Map<String, ProjectChat> chats;	//Le chat ascoltate, per nome del progetto, sincronizzata con this
+	private ByteBuffer buffer;	//Buffer in cui vengono ricevuti i datagrammi
+
+	/**
+	 * costruttore per la classe chat listener, invocato dal client dopo il login
+	 * @throws IOException se il selettore non puo' essere aperto
+	 */
+	public ChatListener() throws IOException {
+
+		this.networkInterface = ChatReceiver.multicastInterface();
+
+		this.selector = Selector.open();
+
+		this.pendingChats = new ConcurrentLinkedQueue<ProjectChat>();
+
+		this.channels = new HashMap<ProjectChat, DatagramChannel>();
+
+		this.chats = new HashMap<String, ProjectChat>();
+
+		this.buffer = ByteBuffer.allocate(ChatDatagram.MAX_SIZE);
+
+	}
+
+	/**
+	 * metodo chiamato per sapere se la chat di un progetto e' gia' ascoltata
+	 * @param project il nome del progetto
+	 * @return true se i messaggi del progetto vengono ricevuti dal gruppo
+	 */
+	public synchronized boolean isListening(String project) {
+		return this.chats.containsKey(project);
+	}
+
+	/**
+	 * metodo chiamato prima di leggere la chat di un progetto dal server per la prima volta,
+	 * per iscriversi al suo gruppo: i messaggi inoltrati nel frattempo vengono conservati
+	 * finche' start non indica l'ultimo messaggio letto
+	 * @param project il nome del progetto
+	 * @param group gruppo e porta della chat
+	 */
+	public synchronized void listen(String project, InetSocketAddress group) {
+
+		ProjectChat chat = new ProjectChat(project, group);
+
+		this.chats.put(project, chat);
+
+		this.pendingChats.add(chat);
+
+		this.selector.wakeup();
+	}
+
+	/**
+	 * metodo chiamato dopo aver letto la chat di un progetto dal server, per indicare
+	 * l'ultimo messaggio letto: i messaggi precedenti ricevuti dal gruppo vengono scartati
+	 * @param project il nome del progetto
+	 * @param seq il numero di sequenza dell'ultimo messaggio letto
+	 */
+	public synchronized void start(String project, long seq) {
+
+		ProjectChat chat = this.chats.get(project);
+
+		if(chat==null) return;
+
+		chat.delivered = seq;
+		chat.last = Math.max(chat.last, seq);
+		chat.received.headMap(seq, true).clear();
+	}
+
+	/**
+	 * metodo chiamato per smettere di ascoltare la chat di un progetto
+	 * @param project il nome del progetto
+	 */
+	public synchronized void forget(String project) {
+
+		ProjectChat chat = this.chats.remove(project);
+
+		if(chat==null) return;
+
+		this.pendingChats.add(chat);
+
+		this.selector.wakeup();
+	}
+
+	/**
+	 * metodo chiamato prima di leggere i nuovi messaggi di un progetto, per sapere
+	 * se ne mancano alcuni tra quelli gia' numerati dal server
+	 * @param project il nome del progetto
+	 * @return il numero di sequenza dell'ultimo messaggio ricevuto senza interruzioni,
+	 * da cui richiedere i successivi al server, -1 se non manca nessun messaggio
+	 */
+	public synchronized long missing(String project) {
+
+		ProjectChat chat = this.chats.get(project);
+
+		if(chat==null || chat.delivered<0) return -1;
+
+		long seq = chat.delivered;
+
+		while(chat.received.containsKey(seq+1)) seq++;
+
+		return chat.last>seq ? seq : -1;
+	}
+
+	/**
+	 * metodo chiamato per inserire un messaggio letto dal server via TCP
+	 * @param project il nome del progetto
+	 * @param seq il numero di sequenza del messaggio
+	 * @param message il messaggio
+	 */
+	public synchronized void fill(String project, long seq, String message) {
+		received(project, seq, message);
+	}
+
+	/**
+	 * metodo chiamato con l'ultimo numero di sequenza comunicato dal server via TCP
+	 * @param project il nome del progetto
+	 * @param seq il numero di sequenza dell'ultimo messaggio del progetto
+	 */
+	public synchronized void known(String project, long seq) {
+		received(project, seq, null);
+	}
+
+	/**
+	 * metodo chiamato se il server non restituisce i messaggi mancanti, non piu' disponibili,
+	 * dopo aver letto con drain i messaggi che li precedono: la lettura riprende
+	 * dal primo messaggio successivo ricevuto
+	 * @param project il nome del progetto
+	 */
+	public synchronized void skip(String project) {
+
+		ProjectChat chat = this.chats.get(project);
+
+		if(chat==null || chat.delivered<0 || chat.received.containsKey(chat.delivered+1)) return;
+
+		chat.delivered = chat.received.isEmpty() ? chat.last : chat.received.firstKey()-1;
+	}
+
+	/**
+	 * metodo chiamato per leggere i nuovi messaggi di un progetto, fino al primo mancante
+	 * @param project il nome del progetto
+	 * @return i messaggi preceduti dal numero di sequenza, dal piu' vecchio
+	 */
+	public synchronized List<String> drain(String project) {
+
+		List<String> messages = new ArrayList<String>();
+
+		ProjectChat chat = this.chats.get(project);
+
+		if(chat==null || chat.delivered<0) return messages;
+
+		String message;
+
+		while((message = chat.received.remove(chat.delivered+1))!=null) {
+			messages.add("["+(++chat.delivered)+"] "+message.trim());
+		}
+
+		return messages;
+	}
+
+	/**
+	 * metodo chiamato per restituire l'ultimo numero di sequenza noto di un progetto
+	 * @param project il nome del progetto
+	 * @return l'ultimo numero di sequenza ricevuto o annunciato dal server
+	 */
+	public synchronized long lastSeq(String project) {
+
+		ProjectChat chat = this.chats.get(project);
+
+		return chat==null ? 0 : chat.last;
+	}
+
+	/**
+	 * metodo chiamato al logout per chiudere i canali e terminare il thread
+	 */
+	public void stop() {
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Error closing chat listener");
+		}
+	}
+
+	/**
+	 * Listener Loop: riceve finche' non terminato i messaggi inoltrati dal server sui gruppi ascoltati
+	 */
+	public void run() {
+
+		while(this.selector.isOpen()) {
+			try {
+				int keys = this.selector.select();
+
+				registerPendingChats();
+
+				if(keys>0) handleKeys();
+
+			} catch (IOException | ClosedSelectorException e) {
+				if(DEBUG) System.err.println("Chat listener stopped");
+				break;
+			}
+		}
+
+		for(DatagramChannel channel : this.channels.values()) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				if(DEBUG) System.err.println("Error closing chat channel");
+			}
+		}
+	}
+
+	/**
+	 * metodo chiamato nel Listener Loop per aprire i canali delle chat da ascoltare
+	 * e chiudere quelli delle chat dimenticate
+	 */
+	private void registerPendingChats() {
+
+		ProjectChat chat;
+
+		while((chat = this.pendingChats.poll())!=null) {
+
+			DatagramChannel channel = this.channels.remove(chat);
+
+			if(channel!=null) {	//Chat dimenticata
+				try {
+					channel.close();
+				} catch (IOException e) {
+					if(DEBUG) System.err.println("Error closing chat "+chat.project);
+				}
+				continue;
+			}
+
+			if(!isCurrent(chat)) continue;	//Dimenticata prima di essere aperta
+
+			try {
+				this.channels.put(chat, openChannel(chat.group));
+			} catch (IOException e) {
+				if(DEBUG) System.err.println("Can't listen to chat "+chat.project);
+			}
+		}
+	}
+
+	/**
+	 * metodo di utility chiamato dal Listener Loop per sapere se una chat e' ancora ascoltata
+	 * @param chat la chat da aprire
+	 * @return true se la chat non e' stata dimenticata o sostituita
+	 */
+	private synchronized boolean isCurrent(ProjectChat chat) {
+		return this.chats.get(chat.project)==chat;
+	}
+
+	/**
+	 * metodo chiamato per aprire il canale di una chat, iscritto al gruppo e registrato in lettura sul selettore
+	 * @param group gruppo e porta della chat
+	 * @return il canale aperto
+	 * @throws IOException se il canale non puo' essere aperto o iscritto al gruppo
+	 */
+	private DatagramChannel openChannel(InetSocketAddress group) throws IOException {
+
+		DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+
+		try {
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);	//Server e altri client usano la stessa porta
+
+			try {
+				channel.bind(group);
+			} catch (IOException e) {
+				channel.bind(new InetSocketAddress(group.getPort()));
+			}
+
+			channel.join(group.getAddress(), this.networkInterface);
+
+			channel.configureBlocking(false);
+
+			channel.register(this.selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		return channel;
+	}
+
+	/**
+	 * metodo chiamato nel Listener Loop per leggere i datagrammi dei canali pronti:
+	 * un errore di lettura su un canale interrompe solo quel canale, gli altri vengono letti
+	 */
+	private void handleKeys() {
+
+		Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+
+		while(it.hasNext()) {
+
+			SelectionKey key = it.next();
+			it.remove();
+
+			DatagramChannel channel = (DatagramChannel) key.channel();
+
+			try {
+				while(true) {
+					this.buffer.clear();
+
+					if(channel.receive(this.buffer)==null) break;
+
+					this.buffer.flip();
+
+					if(!ChatDatagram.isStamped(this.buffer)) continue;	//Messaggio di un client, non ancora salvato dal server
+
+					this.buffer.get();	//MARKER
+					byte type = this.buffer.get();
+					long seq = this.buffer.getLong();
+					int length = this.buffer.getShort() & 0xFFFF;
+
+					if(length>this.buffer.remaining()) continue;	//Datagramma non valido
+
+					String project = new String(this.buffer.array(), this.buffer.position(), length, StandardCharsets.UTF_8);
+					this.buffer.position(this.buffer.position()+length);
+
+					String message = type==ChatDatagram.MESSAGE ? new String(this.buffer.array(), this.buffer.position(), this.buffer.remaining(), StandardCharsets.UTF_8) : null;
+
+					synchronized(this) {
+						received(project, seq, message);
+					}
+				}
+			} catch (IOException e) {
+				if(DEBUG) System.err.println("Error receiving chat on "+channel);
+			}
+		}
+	}
+
+	/**
+	 * metodo di utility chiamato, con il lock di this, per aggiornare una chat con un messaggio
+	 * o un numero di sequenza ricevuti
+	 * @param project il nome del progetto
+	 * @param seq il numero di sequenza
+	 * @param message il messaggio, null se e' stato comunicato solo il numero di sequenza
+	 */
+	private void received(String project, long seq, String message) {
+
+		ProjectChat chat = this.chats.get(project);
+
+		if(chat==null) return;	//Chat non ascoltata, o ricevuta da un canale non collegato al gruppo
+
+		if(seq>chat.last) chat.last = seq;
+
+		if(message!=null && seq>chat.delivered) chat.received.put(seq, message);
+	}
+
+}
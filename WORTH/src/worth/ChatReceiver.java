@@ -0,0 +1,311 @@
+package worth;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *
+ * Loop NIO Multiplexing che riceve i messaggi di tutte le chat dei progetti con un solo thread:
+ * ogni chat con almeno un membro online ha un canale non bloccante iscritto al proprio gruppo multicast e collegato
+ * all'indirizzo del gruppo, cosi' e' il sistema a consegnargli solo i datagrammi destinati al gruppo
+ * (Java non restituisce l'indirizzo di destinazione di un datagramma e Linux limita i gruppi
+ * di un singolo socket, net.ipv4.igmp_max_memberships); tutti i canali sono registrati
+ * sullo stesso selettore con la chat come attachment e condividono un unico buffer di ricezione
+ * diretto, da cui i byte ricevuti vengono copiati nella storia della chat senza allocare oggetti
+ * i messaggi vengono salvati appena ricevuti, senza che il client debba avvisare il server
+ * le chat senza membri online non hanno un canale: i descrittori aperti e le iscrizioni ai gruppi
+ * dipendono dalle chat in uso e non dal numero di progetti
+ * ogni messaggio salvato con un numero di sequenza definitivo viene inoltrato sul gruppo nel formato
+ * ChatDatagram, da un unico canale di invio non bloccante: se il sistema non ha spazio per inviarlo
+ * il messaggio non viene inoltrato e i client lo leggono via TCP, come ogni messaggio perso
+ * ogni ANNOUNCE_INTERVAL millisecondi viene annunciato l'ultimo numero di sequenza delle chat
+ * che hanno ricevuto messaggi, cosi' i client si accorgono anche della perdita degli ultimi messaggi
+ *
+ */
+public class ChatReceiver implements Runnable {
+
+	//Abilita o disabilita la modalita' debug
+	private static boolean DEBUG = false;
+
+	private static final long ANNOUNCE_INTERVAL = 2000;	//Millisecondi tra due annunci dell'ultimo numero di sequenza delle chat
+
+	private int chatPort;	//La porta su cui vengono inviati i messaggi di tutte le chat
+	private NetworkInterface networkInterface;	//L'interfaccia su cui iscriversi ai gruppi
+	private Selector selector;	//Selettore su cui sono registrati i canali delle chat
+	private Queue<MulticastChat> pendingChats;	//Chat da aprire o chiudere dal thread del receiver, secondo isActive
+	private Map<MulticastChat, DatagramChannel> channels;	//Il canale di ogni chat aperta, usato solo dal thread del receiver
+	private ByteBuffer buffer;	//Buffer diretto in cui vengono ricevuti i datagrammi di tutte le chat, senza copie intermedie
+	private DatagramChannel sender;	//Canale non bloccante da cui vengono inoltrati i messaggi numerati
+	private ByteBuffer stamped;	//Buffer diretto in cui vengono composti i datagrammi da inoltrare
+	private long lastAnnounce;	//L'istante dell'ultimo annuncio, in millisecondi
+
+	/**
+	 * costruttore per la classe chat receiver, invocato dal server all'avvio
+	 * @param chatPort la porta su cui vengono inviati i messaggi delle chat
+	 * @throws IOException se il selettore o il canale di invio non possono essere aperti
+	 */
+	public ChatReceiver(int chatPort) throws IOException {
+
+		this.chatPort = chatPort;
+
+		this.networkInterface = multicastInterface();
+
+		this.selector = Selector.open();
+
+		this.pendingChats = new ConcurrentLinkedQueue<MulticastChat>();
+
+		this.channels = new HashMap<MulticastChat, DatagramChannel>();
+
+		this.buffer = ByteBuffer.allocateDirect(ChatDatagram.MAX_SIZE);
+
+		this.sender = DatagramChannel.open(StandardProtocolFamily.INET);
+
+		this.sender.setOption(StandardSocketOptions.IP_MULTICAST_IF, this.networkInterface);	//La stessa interfaccia su cui si riceve
+
+		this.sender.configureBlocking(false);
+
+		this.stamped = ByteBuffer.allocateDirect(ChatDatagram.MAX_SIZE);
+
+	}
+
+	/**
+	 * metodo chiamato per scegliere l'interfaccia da cui il sistema invia i datagrammi multicast,
+	 * la stessa usata dai client che inviano i messaggi senza indicare un'interfaccia
+	 * @return l'interfaccia su cui iscriversi ai gruppi delle chat
+	 * @throws IOException se nessuna interfaccia puo' essere usata
+	 */
+	static NetworkInterface multicastInterface() throws IOException {
+
+		try(DatagramSocket probe = new DatagramSocket()) {
+			probe.connect(InetAddress.getByAddress(new byte[] {(byte) 224, 0, 0, 2}), 4444);	//Nessun pacchetto inviato, sceglie solo la rotta
+
+			NetworkInterface ni = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+
+			if(ni!=null) return ni;
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("No route for multicast chats, using loopback");
+		}
+
+		NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+
+		if(loopback==null) throw new IOException("Nessuna interfaccia disponibile per le chat multicast");
+
+		return loopback;
+	}
+
+	/**
+	 * metodo chiamato quando cambiano i membri online di una chat: il thread del receiver
+	 * apre il canale della chat se ha membri online e chiude quello di una chat rimasta senza
+	 * @param chat la chat da aggiornare
+	 */
+	public void update(MulticastChat chat) {
+
+		this.pendingChats.add(chat);
+
+		this.selector.wakeup();	//Sblocca la select per aprire subito il canale
+	}
+
+	/**
+	 * metodo chiamato alla cancellazione di un progetto per smettere di ricevere la sua chat,
+	 * il canale viene chiuso dal thread del receiver
+	 * @param chat la chat da chiudere
+	 */
+	public void leave(MulticastChat chat) {
+
+		chat.close();
+
+		update(chat);
+	}
+
+	/**
+	 * Chat Loop: riceve finche' non terminato i messaggi di tutte le chat aperte
+	 */
+	public void run() {
+
+		while(this.selector.isOpen()) {
+			try {
+				int keys = this.selector.select(ANNOUNCE_INTERVAL);
+
+				registerPendingChats();
+
+				if(keys>0) handleKeys(this.selector.selectedKeys());
+
+				long now = System.currentTimeMillis();
+
+				if(now-this.lastAnnounce>=ANNOUNCE_INTERVAL) {
+					announce();
+					this.lastAnnounce = now;
+				}
+
+			} catch (IOException e) {
+				if(DEBUG) System.err.println("Failed to retrieve chat Selector keys");
+				e.printStackTrace();
+				return;
+			}
+		}
+
+	}
+
+	/**
+	 * metodo chiamato nel Chat Loop per aprire i canali delle chat con membri online
+	 * e chiudere quelli delle chat senza membri online o fermate, nell'ordine delle richieste:
+	 * il canale di una chat fermata viene chiuso prima che il suo indirizzo sia usato da un'altra
+	 */
+	private void registerPendingChats() {
+
+		MulticastChat chat;
+
+		while((chat = this.pendingChats.poll())!=null) {
+
+			DatagramChannel channel = this.channels.get(chat);
+
+			if(chat.isActive()) {
+				if(channel!=null) continue;	//Gia' ricevuta
+
+				try {
+					this.channels.put(chat, openChannel(chat));
+				} catch (IOException e) {
+					if(DEBUG) System.err.println("Can't open chat "+chat.getAddress());
+					e.printStackTrace();
+				}
+			}
+			else if(channel!=null) {
+				this.channels.remove(chat);
+				try {
+					channel.close();	//Chiude anche l'iscrizione al gruppo e la chiave sul selettore
+				} catch (IOException e) {
+					if(DEBUG) System.err.println("Error closing chat "+chat.getAddress());
+				}
+			}
+		}
+	}
+
+	/**
+	 * metodo chiamato per aprire il canale di una chat, iscritto al gruppo della chat
+	 * e registrato in lettura sul selettore
+	 * @param chat la chat da ricevere
+	 * @return il canale aperto
+	 * @throws IOException se il canale non puo' essere aperto, collegato all'indirizzo del gruppo o iscritto al gruppo:
+	 * un canale collegato a tutti gli indirizzi riceverebbe anche i datagrammi delle altre chat
+	 */
+	private DatagramChannel openChannel(MulticastChat chat) throws IOException {
+
+		DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+
+		try {
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);	//Tutte le chat usano la stessa porta
+
+			channel.bind(new InetSocketAddress(chat.getGroup(), this.chatPort));	//Riceve solo i datagrammi destinati al gruppo
+
+			channel.join(chat.getGroup(), this.networkInterface);
+
+			channel.configureBlocking(false);
+
+			channel.register(this.selector, SelectionKey.OP_READ, chat);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		return channel;
+	}
+
+	/**
+	 * metodo chiamato nel Chat Loop per salvare i datagrammi ricevuti da ogni canale pronto,
+	 * nella chat associata al canale
+	 * @param keys le chiavi dei canali pronti
+	 */
+	private void handleKeys(Set<SelectionKey> keys) {
+
+		Iterator<SelectionKey> it = keys.iterator();
+
+		while(it.hasNext()) {
+
+			SelectionKey key = it.next();
+			it.remove();
+
+			MulticastChat chat = (MulticastChat) key.attachment();
+			DatagramChannel channel = (DatagramChannel) key.channel();
+
+			try {
+				while(true) {
+					this.buffer.clear();
+
+					if(channel.receive(this.buffer)==null) break;	//Nessun altro datagramma in attesa
+
+					if(chat.isClosed()) continue;	//Progetto cancellato, il canale verra' chiuso
+
+					this.buffer.flip();
+
+					if(ChatDatagram.isStamped(this.buffer)) continue;	//Messaggio gia' salvato e inoltrato dal server
+
+					long seq = chat.addMessage(this.buffer);	//Solo i byte ricevuti, decodificati quando la chat viene letta
+
+					if(seq==0) continue;	//Numero provvisorio o non ancora riservato, i client leggeranno il messaggio via TCP
+
+					this.buffer.position(0);	//Il testo, consumato da addMessage
+
+					forward(chat, seq, this.buffer);
+				}
+			} catch (IOException e) {
+				if(DEBUG) System.err.println("Error receiving chat "+chat.getAddress());
+			}
+		}
+	}
+
+	/**
+	 * metodo chiamato nel Chat Loop per inoltrare sul gruppo della chat un messaggio salvato,
+	 * con il suo numero di sequenza
+	 * @param chat la chat del messaggio
+	 * @param seq il numero di sequenza del messaggio, o l'ultimo della chat per un annuncio
+	 * @param message il testo del messaggio tra position e limit, null per un annuncio
+	 */
+	private void forward(MulticastChat chat, long seq, ByteBuffer message) {
+
+		ChatDatagram.stamp(this.stamped, chat.getProject(), seq, message);
+
+		try {
+			this.sender.send(this.stamped, chat.getDestination());	//Non inviato se il sistema non ha spazio, i client lo leggono via TCP
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Error forwarding message "+seq+" of chat "+chat.getAddress());
+		}
+	}
+
+	/**
+	 * metodo chiamato nel Chat Loop per annunciare l'ultimo numero di sequenza delle chat ricevute
+	 * che hanno inoltrato messaggi dopo l'annuncio precedente
+	 */
+	private void announce() {
+
+		for(MulticastChat chat : this.channels.keySet()) {
+
+			ChatHistory history = chat.getHistory();
+
+			if(!history.isNumbered()) continue;
+
+			long seq = history.lastSeq();
+
+			if(seq==chat.getAnnouncedSeq()) continue;	//Nessun nuovo messaggio
+
+			forward(chat, seq, null);
+
+			chat.setAnnouncedSeq(seq);
+		}
+	}
+
+}
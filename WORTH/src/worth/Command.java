@@ -0,0 +1,171 @@
+package worth;
+
+import java.nio.charset.StandardCharsets;
+
+import myInterfaces.CommandHandler;
+
+/**
+ *
+ * Comando del protocollo TCP: contiene il nome del comando, il numero di argomenti richiesti,
+ * il messaggio di errore da inviare se gli argomenti non sono corretti, la corsia
+ * e il tipo di lock con cui deve essere eseguito e l'handler che lo esegue
+ *
+ */
+public class Command {
+
+	public static final String USER_LANE = "user:";	//Corsia dei comandi che riguardano un utente
+	public static final String PROJECT_LANE = "project:";	//Corsia dei comandi che riguardano un progetto
+
+	private String name;	//Il nome del comando in minuscolo
+	private byte[] nameBytes;	//Il nome del comando in byte, per il confronto con il buffer di lettura
+	private int arguments;	//Numero di argomenti richiesti
+	private int maxArguments;	//Numero massimo di argomenti, maggiore di arguments se alcuni sono facoltativi
+	private String usage;	//Messaggio di errore se il numero di argomenti non e' corretto
+	private String lane;	//Prefisso della corsia, seguito dal primo argomento
+	private boolean exclusive;	//true se il comando richiede il lock in scrittura
+	private boolean body;	//true se dopo la prima riga il comando contiene altre righe da non separare in argomenti
+	private CommandHandler handler;	//L'handler che esegue il comando
+
+	/**
+	 * costruttore per la classe comando, invocato dal server all'avvio per registrare i comandi
+	 * @param name il nome del comando
+	 * @param arguments il numero di argomenti richiesti
+	 * @param usage il messaggio di errore se il numero di argomenti non e' corretto
+	 * @param lane il prefisso della corsia in cui eseguire il comando
+	 * @param exclusive true se il comando richiede il lock in scrittura
+	 * @param body true se il comando contiene altre righe dopo la prima
+	 * @param handler l'handler che esegue il comando
+	 */
+	public Command(String name, int arguments, String usage, String lane, boolean exclusive, boolean body, CommandHandler handler) {
+		this(name, arguments, arguments, usage, lane, exclusive, body, handler);
+	}
+
+	/**
+	 * costruttore per la classe comando con argomenti facoltativi, il cui handler
+	 * riceve da minArguments a maxArguments argomenti
+	 * @param name il nome del comando
+	 * @param minArguments il numero di argomenti richiesti
+	 * @param maxArguments il numero massimo di argomenti
+	 * @param usage il messaggio di errore se il numero di argomenti non e' corretto
+	 * @param lane il prefisso della corsia in cui eseguire il comando
+	 * @param exclusive true se il comando richiede il lock in scrittura
+	 * @param body true se il comando contiene altre righe dopo la prima
+	 * @param handler l'handler che esegue il comando
+	 */
+	public Command(String name, int minArguments, int maxArguments, String usage, String lane, boolean exclusive, boolean body, CommandHandler handler) {
+
+		this.name = name.toLowerCase();
+
+		this.nameBytes = this.name.getBytes(StandardCharsets.US_ASCII);
+
+		this.arguments = minArguments;
+
+		this.maxArguments = maxArguments;
+
+		this.usage = usage;
+
+		this.lane = lane;
+
+		this.exclusive = exclusive;
+
+		this.body = body;
+
+		this.handler = handler;
+
+	}
+
+	/**
+	 * metodo chiamato per confrontare il nome del comando, senza distinzione tra maiuscole
+	 * e minuscole, con i byte ricevuti dal client senza convertirli in stringa
+	 * @param data l'array contenente i byte ricevuti
+	 * @param start l'indice del primo byte del nome
+	 * @param end l'indice successivo all'ultimo byte del nome
+	 * @return true se i byte corrispondono al nome del comando, false altrimenti
+	 */
+	public boolean matches(byte[] data, int start, int end) {
+
+		if(end-start!=this.nameBytes.length) return false;
+
+		for(int i=0; i<this.nameBytes.length; i++) {
+			if(CommandRegistry.toLower(data[start+i])!=this.nameBytes[i]) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * metodo chiamato per restituire il nome del comando
+	 * @return il nome del comando in minuscolo
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * metodo chiamato per restituire il nome del comando in byte
+	 * @return il nome del comando in byte
+	 */
+	public byte[] getNameBytes() {
+		return this.nameBytes;
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero di argomenti richiesti
+	 * @return il numero di argomenti richiesti
+	 */
+	public int getArguments() {
+		return this.arguments;
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero massimo di argomenti
+	 * @return il numero massimo di argomenti, uguale a getArguments se nessuno e' facoltativo
+	 */
+	public int getMaxArguments() {
+		return this.maxArguments;
+	}
+
+	/**
+	 * metodo chiamato per restituire il messaggio di errore da inviare
+	 * se il numero di argomenti ricevuti non e' corretto
+	 * @return il messaggio di errore
+	 */
+	public String getUsage() {
+		return this.usage;
+	}
+
+	/**
+	 * metodo chiamato per restituire la corsia in cui eseguire una richiesta,
+	 * formata dal prefisso del comando e dal suo primo argomento
+	 * @param request la richiesta da eseguire
+	 * @return la corsia della richiesta
+	 */
+	public String getLane(Request request) {
+		return this.lane+request.getArgument(0);
+	}
+
+	/**
+	 * metodo chiamato per sapere se il comando richiede il lock in scrittura
+	 * @return true se il comando modifica utenti o progetti, false altrimenti
+	 */
+	public boolean isExclusive() {
+		return this.exclusive;
+	}
+
+	/**
+	 * metodo chiamato per sapere se il comando contiene altre righe dopo la prima
+	 * @return true se le righe successive vanno lette con request.getBody
+	 */
+	public boolean hasBody() {
+		return this.body;
+	}
+
+	/**
+	 * metodo chiamato per restituire l'handler che esegue il comando
+	 * @return l'handler del comando
+	 */
+	public CommandHandler getHandler() {
+		return this.handler;
+	}
+
+}
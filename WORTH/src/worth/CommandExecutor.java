@@ -0,0 +1,109 @@
+package worth;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Pool di thread a dimensione fissa che esegue i comandi dei client:
+ * i comandi con la stessa corsia (es. lo stesso progetto) vengono eseguiti
+ * uno alla volta nell'ordine di arrivo, quelli di corsie diverse in parallelo
+ *
+ */
+public class CommandExecutor {
+
+	private ExecutorService pool;	//I thread che eseguono i comandi
+	private Map<String, Lane> lanes;	//Le corsie con comandi in attesa o in esecuzione
+
+	/**
+	 * costruttore per la classe executor, invocato dal server all'avvio
+	 * @param threads il numero di thread del pool
+	 */
+	public CommandExecutor(int threads) {
+
+		AtomicInteger counter = new AtomicInteger();
+
+		ThreadFactory factory = r -> {
+			Thread t = new Thread(r, "worth-worker-"+counter.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		};
+
+		this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+
+		this.lanes = new ConcurrentHashMap<String, Lane>();
+
+	}
+
+	/**
+	 * metodo chiamato per eseguire un comando nella corsia indicata, dopo tutti
+	 * i comandi della stessa corsia ricevuti in precedenza
+	 * @param lane la corsia del comando
+	 * @param task il comando da eseguire
+	 */
+	public void execute(String lane, Runnable task) {
+
+		this.lanes.compute(lane, (name, l) -> {
+			if(l==null) l = new Lane(name);
+
+			l.tasks.add(task);
+
+			if(!l.scheduled) {	//La corsia non e' in esecuzione, la affida al pool
+				l.scheduled = true;
+				this.pool.execute(l);
+			}
+
+			return l;
+		});
+	}
+
+	/**
+	 *
+	 * Corsia di comandi da eseguire in ordine: ogni esecuzione sul pool esegue un solo
+	 * comando e poi, se ce ne sono altri, riaccoda la corsia, cosi' una corsia molto
+	 * carica non occupa un thread a scapito delle altre
+	 *
+	 */
+	private class Lane implements Runnable {
+
+		private String name;	//Il nome della corsia
+		private ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();	//Comandi in attesa, acceduti solo dentro compute
+		private boolean scheduled;	//true se la corsia e' affidata al pool
+
+		private Lane(String name) {
+			this.name = name;
+		}
+
+		public void run() {
+
+			Runnable[] next = new Runnable[1];
+
+			lanes.computeIfPresent(this.name, (n, l) -> {
+				next[0] = l.tasks.poll();
+				return l;
+			});
+
+			try {
+				if(next[0]!=null) next[0].run();
+			}
+			finally {
+				lanes.computeIfPresent(this.name, (n, l) -> {
+					if(l.tasks.isEmpty()) {	//Corsia vuota, viene rimossa
+						l.scheduled = false;
+						return null;
+					}
+					pool.execute(l);	//Altri comandi in attesa, riaccoda la corsia
+					return l;
+				});
+			}
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+package worth;
+
+/**
+ *
+ * Tabella dei comandi del protocollo TCP, indicizzata direttamente sui byte
+ * del nome del comando: il riconoscimento di un comando avviene sul buffer di lettura
+ * senza creare stringhe, senza StringTokenizer e senza conversioni in minuscolo
+ * il tokenizer salva solo gli indici di inizio e fine di ogni argomento, che viene
+ * convertito in stringa solo quando l'handler lo richiede
+ *
+ */
+public class CommandRegistry {
+
+	private static final int TABLE_SIZE = 64;	//Dimensione della tabella, potenza di 2 maggiore del numero di comandi
+	public static final int MAX_TOKENS = 8;	//Numero massimo di token (comando e argomenti) di cui salvare gli indici
+	public static final int BODY = 2*MAX_TOKENS;	//Posizione in bounds dell'indice di inizio del corpo
+	public static final int COUNT = 2*MAX_TOKENS+1;	//Posizione in bounds del numero di token
+	public static final int BOUNDS_SIZE = 2*MAX_TOKENS+2;	//Dimensione dell'array degli indici
+
+	private Command[] table;	//Tabella ad indirizzamento aperto con scansione lineare
+
+	/**
+	 * costruttore per la classe registro, invocato dal server all'avvio
+	 */
+	public CommandRegistry() {
+		this.table = new Command[TABLE_SIZE];
+	}
+
+	/**
+	 * metodo chiamato dal server all'avvio per registrare un comando
+	 * @param command il comando da registrare
+	 * @throws IllegalArgumentException se un comando con lo stesso nome e' gia' registrato
+	 */
+	public void register(Command command) {
+
+		byte[] name = command.getNameBytes();
+
+		int i = hash(name, 0, name.length) & (TABLE_SIZE-1);
+
+		while(this.table[i]!=null) {
+			if(this.table[i].matches(name, 0, name.length)) throw new IllegalArgumentException("Comando gia' registrato: "+command.getName());
+			i = (i+1) & (TABLE_SIZE-1);
+		}
+
+		this.table[i] = command;
+	}
+
+	/**
+	 * metodo chiamato per cercare un comando a partire dai byte del suo nome
+	 * @param data l'array contenente i byte ricevuti
+	 * @param start l'indice del primo byte del nome
+	 * @param end l'indice successivo all'ultimo byte del nome
+	 * @return il comando, null se non esiste un comando con il nome specificato
+	 */
+	public Command lookup(byte[] data, int start, int end) {
+
+		int i = hash(data, start, end) & (TABLE_SIZE-1);
+
+		while(this.table[i]!=null) {
+			if(this.table[i].matches(data, start, end)) return this.table[i];
+			i = (i+1) & (TABLE_SIZE-1);
+		}
+
+		return null;
+	}
+
+	/**
+	 * metodo chiamato per separare in token un comando ricevuto, direttamente sui byte
+	 * del buffer di lettura, e riconoscere il comando dal primo token:
+	 * gli indici di inizio e fine di ogni token vengono salvati a coppie nell'array bounds,
+	 * seguiti dall'indice di inizio del corpo e dal numero di token trovati
+	 * se il comando ha un corpo la separazione si ferma alla fine della prima riga
+	 * @param data l'array contenente il comando
+	 * @param start l'indice del primo byte del comando
+	 * @param end l'indice successivo all'ultimo byte del comando
+	 * @param bounds l'array in cui salvare gli indici, di dimensione BOUNDS_SIZE
+	 * @return il comando riconosciuto, null se il comando e' vuoto o inesistente
+	 */
+	public Command tokenize(byte[] data, int start, int end, int[] bounds) {
+
+		Command command = null;
+		int count = 0;
+		int i = start;
+
+		bounds[BODY] = end;	//Nessun corpo
+
+		while(i<end) {
+
+			if(isWhitespace(data[i])) {
+				if(data[i]=='\n' && command!=null && command.hasBody()) {	//Fine della prima riga, il resto e' il corpo del comando
+					bounds[BODY] = i+1;
+					break;
+				}
+				i++;
+				continue;
+			}
+
+			int tokenstart = i;
+			while(i<end && !isWhitespace(data[i])) i++;
+
+			if(count<MAX_TOKENS) {
+				bounds[2*count] = tokenstart;
+				bounds[2*count+1] = i;
+			}
+
+			if(count==0) command = lookup(data, tokenstart, i);	//Il primo token e' il nome del comando
+
+			count++;
+		}
+
+		bounds[COUNT] = count;
+
+		return command;
+	}
+
+	/**
+	 * metodo di utility che calcola l'hash dei byte di un nome senza distinzione
+	 * tra maiuscole e minuscole
+	 */
+	private static int hash(byte[] data, int start, int end) {
+
+		int h = 0;
+
+		for(int i=start; i<end; i++) h = 31*h+toLower(data[i]);
+
+		return h ^ (h>>>16);
+	}
+
+	/**
+	 * metodo di utility che converte in minuscolo una lettera ASCII
+	 */
+	static byte toLower(byte b) {
+		return (b>='A' && b<='Z') ? (byte) (b+('a'-'A')) : b;
+	}
+
+	/**
+	 * metodo di utility che riconosce i separatori di StringTokenizer: spazio, tab, a capo e form feed
+	 */
+	private static boolean isWhitespace(byte b) {
+		return b==' ' || b=='\t' || b=='\n' || b=='\r' || b=='\f';
+	}
+
+}
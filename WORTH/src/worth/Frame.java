@@ -0,0 +1,67 @@
+package worth;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * Classe di utility che definisce il formato dei messaggi TCP scambiati tra client e server:
+ * ogni messaggio (comando o risposta) e' composto da un header di HEADER_SIZE byte,
+ * contenente la lunghezza in byte del payload e l'identificativo della richiesta,
+ * seguito dal payload codificato in UTF-8
+ * l'identificativo viene scelto dal client e ripetuto dal server nella risposta,
+ * cosi' un client puo' inviare piu' comandi senza attendere le risposte, che possono
+ * arrivare in qualsiasi ordine
+ *
+ */
+public class Frame {
+
+	public static final int HEADER_SIZE = 8;	//Dimensione in byte dell'header (lunghezza del payload e identificativo)
+
+	public static final int MAX_PAYLOAD_SIZE = 16*1024*1024;	//Dimensione massima accettata per un payload
+
+	public static final int MAX_LOGIN_PAYLOAD_SIZE = 4096;	//Dimensione massima di un payload prima del login, i comandi sono brevi
+
+	private Frame() {}
+
+	/**
+	 * metodo chiamato per codificare un messaggio nel formato del protocollo
+	 * @param id l'identificativo della richiesta
+	 * @param message il messaggio da codificare
+	 * @return il buffer, pronto per la lettura, contenente header e payload
+	 */
+	public static ByteBuffer encode(int id, String message) {
+
+		byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE+payload.length);
+
+		buffer.putInt(payload.length);
+		buffer.putInt(id);
+		buffer.put(payload);
+		buffer.flip();
+
+		return buffer;
+	}
+
+	/**
+	 * metodo chiamato per controllare se la lunghezza letta da un header e' valida
+	 * @param length la lunghezza del payload letta dall'header
+	 * @return true se la lunghezza e' valida, false altrimenti
+	 */
+	public static boolean isValidLength(int length) {
+		return length>=0 && length<=MAX_PAYLOAD_SIZE;
+	}
+
+	/**
+	 * metodo chiamato dal server per controllare la lunghezza letta dall'header di un comando:
+	 * prima del login una connessione non puo' far allocare al server piu' di MAX_LOGIN_PAYLOAD_SIZE byte
+	 * @param length la lunghezza del payload letta dall'header
+	 * @param authenticated true se sulla connessione e' stato effettuato il login
+	 * @return true se la lunghezza e' valida, false altrimenti
+	 */
+	public static boolean isValidLength(int length, boolean authenticated) {
+		return isValidLength(length) && (authenticated || length<=MAX_LOGIN_PAYLOAD_SIZE);
+	}
+
+}
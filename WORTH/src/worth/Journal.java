@@ -0,0 +1,567 @@
+package worth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ *
+ * Journal (write-ahead log) delle modifiche allo stato persistente del server:
+ * ogni modifica viene aggiunta in coda al segmento corrente come un record JSON
+ * su una sola riga, cosi' il costo di una scrittura non dipende dalla dimensione
+ * di progetti e utenti
+ * il checkpoint del server chiude il segmento corrente con rotate, salva lo stato
+ * e cancella i segmenti chiusi, all'avvio i segmenti rimasti vengono ripetuti in ordine
+ * quando un record e' su disco dipende dalla politica di durabilita' scelta all'avvio:
+ * chi ha aggiunto un record puo' attendere con whenDurable che sia stato sincronizzato
+ * dopo una sincronizzazione fallita non si sa quali record siano su disco, e una sincronizzazione
+ * successiva dello stesso file puo' riuscire anche se i dati sono stati persi: il journal rifiuta
+ * nuovi record e le attese continuano finche' un checkpoint non salva nell'archivio lo stato
+ * che contiene i record non sincronizzati
+ * senza cartella (archivio in memoria) il journal assegna solo i numeri di sequenza,
+ * senza scrivere su disco
+ *
+ */
+public class Journal {
+
+	/**
+	 *
+	 * Politiche di durabilita' del journal
+	 * SYNC: ogni scrittura viene sincronizzata su disco prima di ritornare
+	 * GROUP: un thread dedicato sincronizza insieme tutti i record scritti nella finestra
+	 * di commit (o fino a raggiungere la dimensione massima), le risposte attendono la sincronizzazione
+	 * ASYNC: le risposte non attendono, il thread dedicato sincronizza una volta al secondo
+	 *
+	 */
+	public enum Durability {
+		SYNC,
+		GROUP,
+		ASYNC
+	}
+
+	//Abilita o disabilita la modalita' debug
+	private static boolean DEBUG = false;
+
+	private static final String SEGMENT_PREFIX = "wal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final long ASYNC_SYNC_INTERVAL = 1000;	//Millisecondi tra due sincronizzazioni in modalita' ASYNC
+
+	private Path folder;	//La cartella dei segmenti, null se il journal non scrive su disco
+	private Path segment;	//Il segmento su cui vengono aggiunti i record
+	private FileChannel channel;	//Il canale aperto sul segmento corrente
+	private List<Path> closedSegments;	//I segmenti chiusi, non ancora coperti da un checkpoint
+	private long nextLsn;	//Il numero di sequenza del prossimo record
+	private int pendingRecords;	//I record aggiunti dall'ultima rotazione
+
+	private Durability durability;	//La politica di durabilita'
+	private long commitWindow;	//Millisecondi di attesa di altri record prima di una sincronizzazione in modalita' GROUP
+	private int commitSize;	//Numero di record che fa partire subito la sincronizzazione in modalita' GROUP
+	private long durableLsn;	//L'ultimo lsn sincronizzato su disco (o gia' confermato, in modalita' ASYNC)
+	private long failedLsn;	//L'ultimo lsn scritto quando una sincronizzazione e' fallita, 0 quando un checkpoint lo copre
+	private long rotatedLsn;	//L'ultimo lsn dei segmenti chiusi dall'ultima rotazione
+	private Runnable failureHandler;	//Eseguito dopo una sincronizzazione fallita, per anticipare il checkpoint
+	private PriorityQueue<Waiter> waiters;	//Le attese di sincronizzazione, ordinate per lsn
+
+	/**
+	 * costruttore per la classe journal, invocato dal server all'avvio
+	 * crea la cartella dei segmenti se non esiste
+	 * @param folder la cartella in cui salvare i segmenti, null per un journal senza file
+	 * @param durability la politica di durabilita'
+	 * @param commitWindow i millisecondi di attesa prima di una sincronizzazione di gruppo
+	 * @param commitSize il numero di record che fa partire subito una sincronizzazione di gruppo
+	 * @throws IOException se la cartella non puo' essere creata
+	 */
+	public Journal(String folder, Durability durability, long commitWindow, int commitSize) throws IOException {
+
+		if(folder!=null) {
+			this.folder = Paths.get(folder);
+
+			Files.createDirectories(this.folder);
+		}
+
+		this.closedSegments = new ArrayList<Path>();
+
+		this.nextLsn = 1;
+
+		this.durability = durability;
+
+		this.commitWindow = commitWindow;
+
+		this.commitSize = commitSize;
+
+		this.waiters = new PriorityQueue<Waiter>((a, b) -> Long.compare(a.lsn, b.lsn));
+
+	}
+
+	/**
+	 * metodo chiamato all'avvio, dopo aver letto l'ultimo stato salvato, per ripetere in ordine
+	 * i record dei segmenti rimasti; una riga incompleta o non valida (scrittura interrotta)
+	 * termina la lettura del segmento
+	 * al termine apre un nuovo segmento su cui aggiungere i record successivi
+	 * @param replay l'operazione da eseguire per ogni record letto
+	 * @return il numero di record letti
+	 * @throws IOException se un segmento non puo' essere letto o il nuovo segmento creato
+	 */
+	public int recover(Consumer<JournalRecord> replay) throws IOException {
+
+		if(this.folder==null) return 0;	//Nessun segmento da ripetere, nessun thread di sincronizzazione
+
+		List<Path> segments = new ArrayList<Path>();
+
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(this.folder, SEGMENT_PREFIX+"*"+SEGMENT_SUFFIX)) {
+			for(Path p : stream) segments.add(p);
+		}
+
+		Collections.sort(segments);	//Il nome contiene il primo lsn con zeri iniziali, l'ordine dei nomi e' l'ordine dei record
+
+		int count = 0;
+
+		for(Path p : segments) {
+
+			//Il primo lsn del segmento: anche un segmento vuoto, aperto dall'ultimo checkpoint, mantiene la numerazione
+			this.nextLsn = Math.max(this.nextLsn, firstLsn(p));
+
+			byte[] bytes = Files.readAllBytes(p);
+
+			int start = 0;
+
+			for(int i=0; i<bytes.length; i++) {
+
+				if(bytes[i]!='\n') continue;
+
+				JournalRecord r;
+				try {
+					r = JsonCodec.readRecord(bytes, start, i-start);
+				} catch (IOException e) {
+					if(DEBUG) System.err.println("Corrupted record in journal segment "+p+", skipping the rest of the segment");
+					break;
+				}
+
+				start = i+1;
+
+				if(r.getLsn()<this.nextLsn) continue;	//Record gia' letto
+
+				replay.accept(r);
+
+				this.nextLsn = r.getLsn()+1;
+
+				count++;
+			}
+
+			this.closedSegments.add(p);	//Verra' cancellato dal prossimo checkpoint
+		}
+
+		openSegment();
+
+		this.closedSegments.remove(this.segment);	//Segmento senza record completi, viene riscritto
+
+		this.durableLsn = this.nextLsn-1;	//I record letti sono gia' su disco
+
+		if(this.durability!=Durability.SYNC) {
+			Thread t = new Thread(this::syncLoop, "worth-journal-sync");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		if(DEBUG) System.out.println("Journal recovered: "+count+" records from "+segments.size()+" segments");
+
+		return count;
+	}
+
+	/**
+	 * metodo chiamato per leggere dal nome di un segmento il lsn del suo primo record
+	 * @param segment il segmento
+	 * @return il primo lsn del segmento, 1 se il nome non e' valido
+	 */
+	private static long firstLsn(Path segment) {
+
+		String name = segment.getFileName().toString();
+
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length()-SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * metodo chiamato per aprire un nuovo segmento, il cui nome contiene il primo lsn
+	 * un segmento con lo stesso nome puo' esistere solo se non contiene record completi,
+	 * e viene quindi svuotato
+	 * @throws IOException se il segmento non puo' essere creato
+	 */
+	private void openSegment() throws IOException {
+
+		this.segment = this.folder.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, this.nextLsn, SEGMENT_SUFFIX));
+
+		this.channel = FileChannel.open(this.segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+		this.pendingRecords = 0;
+	}
+
+	/**
+	 * metodo chiamato dal server per scegliere l'operazione da eseguire dopo una sincronizzazione
+	 * fallita, tipicamente un checkpoint che copra i record non sincronizzati
+	 * @param handler l'operazione, eseguita dal thread che ha rilevato l'errore
+	 */
+	public synchronized void onFailure(Runnable handler) {
+		this.failureHandler = handler;
+	}
+
+	/**
+	 * metodo chiamato per aggiungere al journal i record di una modifica, con una sola scrittura:
+	 * assegna ad ogni record il proprio lsn, in modalita' SYNC ritorna solo quando i record sono su disco,
+	 * altrimenti la sincronizzazione va attesa con whenDurable
+	 * se la scrittura fallisce i byte gia' scritti vengono rimossi dal segmento e gli lsn riassegnati,
+	 * cosi' all'avvio non viene ripetuta una modifica che il client ha visto fallire
+	 * dopo una sincronizzazione fallita nessun record viene aggiunto finche' un checkpoint non la copre
+	 * @param records i record da aggiungere, nell'ordine in cui sono stati applicati
+	 * @return il lsn dell'ultimo record aggiunto
+	 * @throws IOException se la scrittura fallisce o il journal attende un checkpoint
+	 */
+	public synchronized long append(List<JournalRecord> records) throws IOException {
+
+		if(this.failedLsn>0) throw new IOException("Journal in attesa di un checkpoint dopo una sincronizzazione fallita");
+
+		if(this.folder==null) {
+			write(records, false);
+
+			return this.durableLsn = this.nextLsn-1;
+		}
+
+		long lsn = write(records, this.durability==Durability.SYNC);
+
+		switch(this.durability) {
+
+			case SYNC:
+				this.durableLsn = lsn;	//Sincronizzato prima di assegnare gli lsn
+				break;
+
+			case GROUP:
+				notifyAll();	//Sveglia il thread di sincronizzazione
+				break;
+
+			case ASYNC:
+				this.durableLsn = lsn;	//Confermato subito, sincronizzato dal thread dedicato
+				break;
+		}
+
+		return lsn;
+	}
+
+	/**
+	 * metodo di utility chiamato con il lock del journal per scrivere dei record in coda al segmento
+	 * corrente con una sola scrittura, assegnando gli lsn solo se la scrittura riesce
+	 * @param records i record da scrivere
+	 * @param force true per sincronizzare il segmento prima di assegnare gli lsn
+	 * @return il lsn dell'ultimo record scritto
+	 * @throws IOException se la scrittura o la sincronizzazione falliscono
+	 */
+	private long write(List<JournalRecord> records, boolean force) throws IOException {
+
+		if(this.folder==null) {
+			for(JournalRecord r : records) {
+				r.setLsn(this.nextLsn++);
+			}
+
+			this.pendingRecords += records.size();
+
+			return this.nextLsn-1;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(128*records.size());
+
+		long next = this.nextLsn;	//Assegnato a this.nextLsn solo se la scrittura riesce
+
+		for(JournalRecord r : records) {
+			r.setLsn(next++);
+			out.write(JsonCodec.writeRecord(r));
+			out.write('\n');
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+
+		long start = this.channel.position();	//Fine del segmento prima della scrittura
+
+		try {
+			while(buffer.hasRemaining()) {
+				this.channel.write(buffer);
+			}
+
+			if(force) this.channel.force(false);
+		} catch (IOException e) {
+			try {
+				this.channel.truncate(start);	//Rimuove un record scritto solo in parte
+				this.channel.position(start);
+			} catch (IOException t) {
+				if(DEBUG) System.err.println("Error in truncating journal segment");
+			}
+			throw e;
+		}
+
+		this.nextLsn = next;
+
+		this.pendingRecords += records.size();
+
+		return this.nextLsn-1;
+	}
+
+	/**
+	 * metodo chiamato per eseguire un'operazione quando un record e' su disco: subito, se e' gia'
+	 * stato sincronizzato, altrimenti dal thread di sincronizzazione al termine del gruppo
+	 * che lo contiene
+	 * un record coperto da una sincronizzazione fallita e' su disco solo quando un checkpoint
+	 * ha salvato nell'archivio lo stato che lo contiene: l'operazione viene eseguita allora
+	 * dal thread del checkpoint, una modifica applicata non viene mai segnalata come fallita
+	 * @param lsn il lsn del record, restituito da append
+	 * @param callback l'operazione da eseguire
+	 */
+	public void whenDurable(long lsn, Runnable callback) {
+
+		synchronized(this) {
+			if(lsn>this.durableLsn) {
+				this.waiters.add(new Waiter(lsn, callback));
+				return;
+			}
+		}
+
+		callback.run();
+	}
+
+	/**
+	 * metodo chiamato per attendere, bloccando il thread chiamante, che un record sia su disco
+	 * @param lsn il lsn del record, restituito da append
+	 */
+	public void awaitDurable(long lsn) {
+
+		CompletableFuture<Void> durable = new CompletableFuture<Void>();
+
+		whenDurable(lsn, () -> durable.complete(null));
+
+		durable.join();
+	}
+
+	/**
+	 * Loop di sincronizzazione, eseguito da un thread dedicato nelle modalita' GROUP e ASYNC:
+	 * in modalita' GROUP attende un record non sincronizzato e poi, al massimo per this.commitWindow
+	 * millisecondi, altri record da sincronizzare insieme; in modalita' ASYNC sincronizza ad intervalli regolari
+	 * la sincronizzazione avviene senza il lock del journal, cosi' i record aggiunti nel frattempo
+	 * formano il gruppo successivo
+	 * dopo una sincronizzazione fallita il loop non sincronizza piu' il segmento, i record
+	 * non sincronizzati vengono coperti dal checkpoint
+	 */
+	private void syncLoop() {
+
+		while(true) {
+
+			long target;
+			FileChannel channel;
+
+			synchronized(this) {
+				try {
+					if(this.durability==Durability.ASYNC) {
+						do {
+							wait(ASYNC_SYNC_INTERVAL);
+						} while(this.failedLsn>0);
+					}
+					else {
+						while(this.failedLsn>0 || this.nextLsn-1==this.durableLsn) wait();
+
+						long deadline = System.currentTimeMillis()+this.commitWindow;
+						long remaining;
+
+						while(this.nextLsn-1-this.durableLsn<this.commitSize && (remaining = deadline-System.currentTimeMillis())>0) {
+							wait(remaining);
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				target = this.nextLsn-1;
+				channel = this.channel;
+			}
+
+			boolean ok = true;
+
+			try {
+				channel.force(false);
+			} catch (ClosedChannelException e) {
+				//Segmento chiuso da rotate, che lo ha sincronizzato prima di chiuderlo se la sincronizzazione
+				//non e' fallita: altrimenti i record restano in attesa del checkpoint, come dopo fail
+				synchronized(this) {
+					if(this.failedLsn>=target) continue;
+				}
+			} catch (IOException e) {
+				if(DEBUG) System.err.println("Error in syncing journal segment");
+				ok = false;
+			}
+
+			if(!ok) fail();
+			else if(this.durability==Durability.GROUP) markDurable(target);
+		}
+	}
+
+	/**
+	 * metodo chiamato dal thread di sincronizzazione al termine di un gruppo sincronizzato,
+	 * o dal checkpoint per i record salvati nell'archivio, per eseguire le operazioni in attesa
+	 * @param lsn l'ultimo lsn su disco
+	 */
+	private void markDurable(long lsn) {
+
+		List<Waiter> ready = new ArrayList<Waiter>();
+
+		synchronized(this) {
+			this.durableLsn = Math.max(this.durableLsn, lsn);
+
+			while(!this.waiters.isEmpty() && this.waiters.peek().lsn<=this.durableLsn) {
+				ready.add(this.waiters.poll());
+			}
+		}
+
+		for(Waiter w : ready) {
+			w.callback.run();
+		}
+	}
+
+	/**
+	 * metodo chiamato dal thread di sincronizzazione quando una sincronizzazione fallisce:
+	 * i record scritti fino a quel momento restano in attesa e non vengono aggiunti altri record
+	 * finche' un checkpoint non li copre, quindi viene eseguito this.failureHandler
+	 */
+	private void fail() {
+
+		Runnable handler;
+
+		synchronized(this) {
+			this.failedLsn = Math.max(this.failedLsn, this.nextLsn-1);
+			handler = this.failureHandler;
+		}
+
+		if(DEBUG) System.err.println("Journal sync failed, waiting for a checkpoint");
+
+		if(handler!=null) handler.run();
+	}
+
+	/**
+	 * metodo chiamato dal checkpoint, con il lock dello stato acquisito in scrittura, per chiudere
+	 * il segmento corrente e aprirne uno nuovo: i record successivi non fanno parte del checkpoint
+	 * un segmento corrente ancora vuoto non viene chiuso
+	 * se il segmento non puo' essere sincronizzato il journal attende, come dopo una sincronizzazione
+	 * fallita, che il checkpoint ne copra i record
+	 * i record di carried, che descrivono modifiche non salvate dal checkpoint, vengono scritti
+	 * e sincronizzati nel nuovo segmento, cosi' i segmenti chiusi possono essere cancellati
+	 * @param carried i record da riportare nel nuovo segmento, anche dopo una sincronizzazione fallita
+	 * @return i segmenti chiusi, da cancellare una volta completato il checkpoint
+	 * @throws IOException se il nuovo segmento non puo' essere creato o i record di carried
+	 * non possono essere scritti, i segmenti chiusi vengono restituiti dalla prossima rotazione
+	 */
+	public synchronized List<Path> rotate(List<JournalRecord> carried) throws IOException {
+
+		if(this.folder==null) {
+			this.pendingRecords = 0;
+		}
+		else if(this.pendingRecords>0) {
+			if(this.failedLsn==0) {
+				try {
+					this.channel.force(false);	//I record del segmento chiuso devono essere su disco se il checkpoint fallisce
+				} catch (IOException e) {
+					if(DEBUG) System.err.println("Error in syncing journal segment before rotation");
+					this.failedLsn = this.nextLsn-1;
+				}
+			}
+
+			this.channel.close();
+
+			this.closedSegments.add(this.segment);
+
+			openSegment();
+		}
+
+		this.rotatedLsn = this.nextLsn-1;
+
+		if(!carried.isEmpty()) write(carried, true);	//Successivi a rotatedLsn, non coperti dal checkpoint
+
+		List<Path> closed = this.closedSegments;
+
+		this.closedSegments = new ArrayList<Path>();
+
+		return closed;
+	}
+
+	/**
+	 * metodo chiamato se un checkpoint fallisce, per conservare i segmenti che non sono stati
+	 * coperti: verranno cancellati dal prossimo checkpoint completato
+	 * @param segments i segmenti restituiti da rotate
+	 */
+	public synchronized void retain(List<Path> segments) {
+		this.closedSegments.addAll(0, segments);
+	}
+
+	/**
+	 * metodo chiamato al termine di un checkpoint per cancellare i segmenti coperti: i record fino
+	 * all'ultima rotazione sono nell'archivio, anche quelli di una sincronizzazione fallita,
+	 * le loro attese vengono completate e il journal torna ad accettare record
+	 * @param segments i segmenti restituiti da rotate
+	 */
+	public void delete(List<Path> segments) {
+
+		for(Path p : segments) {
+			try {
+				Files.deleteIfExists(p);
+			} catch (IOException e) {
+				if(DEBUG) System.err.println("Can't delete journal segment "+p);
+			}
+		}
+
+		long covered;
+
+		synchronized(this) {
+			covered = this.rotatedLsn;
+
+			if(this.failedLsn<=covered) this.failedLsn = 0;
+
+			notifyAll();	//Il thread di sincronizzazione riprende con il nuovo segmento
+		}
+
+		markDurable(covered);
+	}
+
+	/**
+	 * metodo chiamato dal checkpoint per sapere se ci sono record non ancora coperti da un checkpoint
+	 * @return true se il journal non contiene record, false altrimenti
+	 */
+	public synchronized boolean isEmpty() {
+		return this.pendingRecords==0 && this.closedSegments.isEmpty();
+	}
+
+	/**
+	 *
+	 * Operazione in attesa della sincronizzazione di un record
+	 *
+	 */
+	private static class Waiter {
+
+		private long lsn;	//Il lsn da attendere
+		private Runnable callback;	//L'operazione da eseguire
+
+		private Waiter(long lsn, Runnable callback) {
+			this.lsn = lsn;
+			this.callback = callback;
+		}
+	}
+
+}
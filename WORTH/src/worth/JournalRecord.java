@@ -0,0 +1,308 @@
+package worth;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ *
+ * Record del journal del server: descrive una singola modifica allo stato persistente
+ * (registrazione, creazione o cancellazione di un progetto, nuovo membro, nuova card,
+ * spostamento di una card) con i soli campi necessari a ripeterla al riavvio
+ * ogni record riceve dal journal un numero di sequenza crescente (lsn)
+ *
+ */
+@JsonInclude(JsonInclude.Include.NON_DEFAULT)
+public class JournalRecord {
+
+	/**
+	 *
+	 * Tipi di modifica registrati nel journal
+	 *
+	 */
+	public enum Type {
+		REGISTER,
+		CREATEPROJECT,
+		ADDMEMBER,
+		ADDCARD,
+		MOVECARD,
+		CANCELPROJECT
+	}
+
+	private long lsn;	//Numero di sequenza assegnato dal journal
+	private Type type;	//Il tipo di modifica
+	private String project;	//Il progetto modificato
+	private String user;	//L'utente registrato, il creatore del progetto o il nuovo membro
+	private String password;	//La password dell'utente registrato
+	private String card;	//La card creata o spostata
+	private String description;	//La descrizione della card creata
+	private CardState from;	//La lista di partenza della card spostata
+	private CardState to;	//La lista destinazione della card spostata
+	private long time;	//L'istante di creazione della card, riportato nella sua storia
+	private String group;	//L'indirizzo multicast assegnato alla chat del progetto creato
+
+	/**
+	 * costruttore vuoto, usato per la lettura dal journal
+	 */
+	public JournalRecord() {}
+
+	private JournalRecord(Type type, String project) {
+		this.type = type;
+		this.project = project;
+	}
+
+	/**
+	 * metodo chiamato per costruire il record di una nuova registrazione
+	 * @param user il nome utente registrato
+	 * @param password la password associata al nome utente
+	 * @return il record da aggiungere al journal
+	 */
+	public static JournalRecord register(String user, String password) {
+		JournalRecord r = new JournalRecord(Type.REGISTER, null);
+		r.user = user;
+		r.password = password;
+		return r;
+	}
+
+	/**
+	 * metodo chiamato per costruire il record della creazione di un progetto
+	 * @param project il nome del progetto
+	 * @param creator l'utente che ha creato il progetto
+	 * @param group l'indirizzo multicast assegnato alla chat del progetto, null se non disponibile
+	 * @return il record da aggiungere al journal
+	 */
+	public static JournalRecord createProject(String project, String creator, String group) {
+		JournalRecord r = new JournalRecord(Type.CREATEPROJECT, project);
+		r.user = creator;
+		r.group = group;
+		return r;
+	}
+
+	/**
+	 * metodo chiamato per costruire il record dell'aggiunta di un membro ad un progetto
+	 * @param project il nome del progetto
+	 * @param member il nuovo membro
+	 * @return il record da aggiungere al journal
+	 */
+	public static JournalRecord addMember(String project, String member) {
+		JournalRecord r = new JournalRecord(Type.ADDMEMBER, project);
+		r.user = member;
+		return r;
+	}
+
+	/**
+	 * metodo chiamato per costruire il record della creazione di una card
+	 * @param project il nome del progetto
+	 * @param card il nome della card
+	 * @param description la descrizione della card
+	 * @param time l'istante di creazione della card
+	 * @return il record da aggiungere al journal
+	 */
+	public static JournalRecord addCard(String project, String card, String description, long time) {
+		JournalRecord r = new JournalRecord(Type.ADDCARD, project);
+		r.card = card;
+		r.description = description;
+		r.time = time;
+		return r;
+	}
+
+	/**
+	 * metodo chiamato per costruire il record dello spostamento di una card
+	 * @param project il nome del progetto
+	 * @param card il nome della card
+	 * @param from la lista di partenza
+	 * @param to la lista destinazione
+	 * @return il record da aggiungere al journal
+	 */
+	public static JournalRecord moveCard(String project, String card, CardState from, CardState to) {
+		JournalRecord r = new JournalRecord(Type.MOVECARD, project);
+		r.card = card;
+		r.from = from;
+		r.to = to;
+		return r;
+	}
+
+	/**
+	 * metodo chiamato per costruire il record della cancellazione di un progetto
+	 * @param project il nome del progetto
+	 * @return il record da aggiungere al journal
+	 */
+	public static JournalRecord cancelProject(String project) {
+		return new JournalRecord(Type.CANCELPROJECT, project);
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero di sequenza del record
+	 * @return il numero di sequenza del record
+	 */
+	public long getLsn() {
+		return this.lsn;
+	}
+
+	/**
+	 * metodo chiamato per impostare il numero di sequenza del record, usato nella lettura dal journal
+	 * @param lsn il numero di sequenza del record
+	 */
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
+	/**
+	 * metodo chiamato per restituire il tipo di modifica
+	 * @return il tipo di modifica
+	 */
+	public Type getType() {
+		return this.type;
+	}
+
+	/**
+	 * metodo chiamato per impostare il tipo di modifica, usato nella lettura dal journal
+	 * @param type il tipo di modifica
+	 */
+	public void setType(Type type) {
+		this.type = type;
+	}
+
+	/**
+	 * metodo chiamato per restituire il nome del progetto modificato
+	 * @return il nome del progetto modificato
+	 */
+	public String getProject() {
+		return this.project;
+	}
+
+	/**
+	 * metodo chiamato per impostare il nome del progetto modificato, usato nella lettura dal journal
+	 * @param project il nome del progetto modificato
+	 */
+	public void setProject(String project) {
+		this.project = project;
+	}
+
+	/**
+	 * metodo chiamato per restituire l'utente a cui si riferisce il record
+	 * @return l'utente a cui si riferisce il record
+	 */
+	public String getUser() {
+		return this.user;
+	}
+
+	/**
+	 * metodo chiamato per impostare l'utente a cui si riferisce il record, usato nella lettura dal journal
+	 * @param user l'utente a cui si riferisce il record
+	 */
+	public void setUser(String user) {
+		this.user = user;
+	}
+
+	/**
+	 * metodo chiamato per restituire la password dell'utente registrato
+	 * @return la password dell'utente registrato
+	 */
+	public String getPassword() {
+		return this.password;
+	}
+
+	/**
+	 * metodo chiamato per impostare la password dell'utente registrato, usato nella lettura dal journal
+	 * @param password la password dell'utente registrato
+	 */
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	/**
+	 * metodo chiamato per restituire il nome della card
+	 * @return il nome della card
+	 */
+	public String getCard() {
+		return this.card;
+	}
+
+	/**
+	 * metodo chiamato per impostare il nome della card, usato nella lettura dal journal
+	 * @param card il nome della card
+	 */
+	public void setCard(String card) {
+		this.card = card;
+	}
+
+	/**
+	 * metodo chiamato per restituire la descrizione della card creata
+	 * @return la descrizione della card creata
+	 */
+	public String getDescription() {
+		return this.description;
+	}
+
+	/**
+	 * metodo chiamato per impostare la descrizione della card creata, usato nella lettura dal journal
+	 * @param description la descrizione della card creata
+	 */
+	public void setDescription(String description) {
+		this.description = description;
+	}
+
+	/**
+	 * metodo chiamato per restituire la lista di partenza della card
+	 * @return la lista di partenza della card
+	 */
+	public CardState getFrom() {
+		return this.from;
+	}
+
+	/**
+	 * metodo chiamato per impostare la lista di partenza della card, usato nella lettura dal journal
+	 * @param from la lista di partenza della card
+	 */
+	public void setFrom(CardState from) {
+		this.from = from;
+	}
+
+	/**
+	 * metodo chiamato per restituire la lista destinazione della card
+	 * @return la lista destinazione della card
+	 */
+	public CardState getTo() {
+		return this.to;
+	}
+
+	/**
+	 * metodo chiamato per impostare la lista destinazione della card, usato nella lettura dal journal
+	 * @param to la lista destinazione della card
+	 */
+	public void setTo(CardState to) {
+		this.to = to;
+	}
+
+	/**
+	 * metodo chiamato per restituire l'istante di creazione della card
+	 * @return l'istante di creazione della card
+	 */
+	public long getTime() {
+		return this.time;
+	}
+
+	/**
+	 * metodo chiamato per impostare l'istante di creazione della card, usato nella lettura dal journal
+	 * @param time l'istante di creazione della card
+	 */
+	public void setTime(long time) {
+		this.time = time;
+	}
+
+	/**
+	 * metodo chiamato per restituire l'indirizzo multicast assegnato alla chat del progetto creato
+	 * @return l'indirizzo della chat, null se non disponibile
+	 */
+	public String getGroup() {
+		return this.group;
+	}
+
+	/**
+	 * metodo chiamato per impostare l'indirizzo della chat del progetto creato, usato nella lettura dal journal
+	 * @param group l'indirizzo della chat
+	 */
+	public void setGroup(String group) {
+		this.group = group;
+	}
+
+}
@@ -0,0 +1,403 @@
+package worth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ *
+ * Classe di utility per la serializzazione JSON dei file del server:
+ * reader e writer di Jackson sono immutabili e thread-safe, vengono quindi costruiti
+ * una sola volta all'avvio e condivisi da tutti i thread, cosi' le cache dei serializzatori
+ * non vengono ricostruite ad ogni richiesta
+ *
+ */
+public class JsonCodec {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static final ObjectReader PROJECT_READER = MAPPER.readerFor(Project.class);
+	private static final ObjectReader CARD_READER = MAPPER.readerFor(Card.class);
+	private static final ObjectReader USERS_READER = MAPPER.readerFor(User[].class);
+	private static final ObjectReader RECORD_READER = MAPPER.readerFor(JournalRecord.class);
+	private static final ObjectReader MESSAGE_READER = MAPPER.readerFor(String.class);
+
+	private static final ObjectWriter PROJECT_WRITER = MAPPER.writerFor(Project.class).with(new DefaultPrettyPrinter());
+	private static final ObjectWriter CARD_WRITER = MAPPER.writerFor(Card.class).with(new DefaultPrettyPrinter());
+	private static final ObjectWriter USERS_WRITER = MAPPER.writerFor(User[].class).with(new DefaultPrettyPrinter());
+	private static final ObjectWriter RECORD_WRITER = MAPPER.writerFor(JournalRecord.class);	//Senza indentazione, un record per riga
+	private static final ObjectWriter MESSAGE_WRITER = MAPPER.writerFor(String.class);	//Un messaggio della chat per riga
+
+	private JsonCodec() {}
+
+	/**
+	 * metodo chiamato per leggere un progetto dal contenuto di un file project.json
+	 * @param bytes il contenuto del file
+	 * @return il progetto letto
+	 * @throws IOException se il contenuto non e' un progetto valido
+	 */
+	public static Project readProject(byte[] bytes) throws IOException {
+		return PROJECT_READER.readValue(bytes);
+	}
+
+	/**
+	 * metodo chiamato all'avvio per leggere da un file project.json solo nome, creatore, membri,
+	 * numero di sequenza e indirizzo della chat del progetto: le liste delle card vengono saltate senza costruire
+	 * alcun oggetto, le card saranno lette al primo accesso al progetto
+	 * @param bytes il contenuto del file
+	 * @return il progetto letto, senza card
+	 * @throws IOException se il contenuto non e' un progetto valido
+	 */
+	public static Project readProjectHeader(byte[] bytes) throws IOException {
+
+		Project project = new Project();
+
+		try(JsonParser parser = MAPPER.getFactory().createParser(bytes)) {
+
+			if(parser.nextToken()!=JsonToken.START_OBJECT) throw new JsonParseException(parser, "Il file non contiene un progetto");
+
+			while(parser.nextToken()==JsonToken.FIELD_NAME) {
+
+				String field = parser.getCurrentName();
+
+				JsonToken value = parser.nextToken();
+
+				if(value==JsonToken.VALUE_NULL) continue;
+
+				switch(field) {
+
+					case "projectName":
+						project.setProjectName(parser.getValueAsString());
+						break;
+
+					case "createdBy":
+						project.setCreatedBy(parser.getValueAsString());
+						break;
+
+					case "members":
+						if(value!=JsonToken.START_ARRAY) throw new JsonParseException(parser, "Membri del progetto non validi");
+						ArrayList<String> members = new ArrayList<String>();
+						while(parser.nextToken()!=JsonToken.END_ARRAY) {
+							members.add(parser.getValueAsString());
+						}
+						project.setMembers(members);
+						break;
+
+					case "lsn":
+						project.setLsn(parser.getLongValue());
+						break;
+
+					case "chatGroup":
+						project.setChatGroup(parser.getValueAsString());
+						break;
+
+					default:
+						parser.skipChildren();	//Le liste delle card
+				}
+			}
+		}
+
+		return project;
+	}
+
+	/**
+	 * metodo chiamato per leggere una card dal contenuto del suo file
+	 * @param bytes il contenuto del file
+	 * @return la card letta
+	 * @throws IOException se il contenuto non e' una card valida
+	 */
+	public static Card readCard(byte[] bytes) throws IOException {
+		return CARD_READER.readValue(bytes);
+	}
+
+	/**
+	 * metodo chiamato per leggere gli utenti registrati dal contenuto del file degli utenti
+	 * @param bytes il contenuto del file
+	 * @return gli utenti letti
+	 * @throws IOException se il contenuto non e' una lista di utenti valida
+	 */
+	public static User[] readUsers(byte[] bytes) throws IOException {
+		return USERS_READER.readValue(bytes);
+	}
+
+	/**
+	 * metodo chiamato dal checkpoint per codificare un progetto nel formato del file project.json
+	 * @param project il progetto da codificare
+	 * @return il contenuto del file
+	 * @throws IOException se la codifica fallisce
+	 */
+	public static byte[] encodeProject(Project project) throws IOException {
+		return PROJECT_WRITER.writeValueAsBytes(project);
+	}
+
+	/**
+	 * metodo chiamato dal checkpoint per codificare una card nel formato del suo file
+	 * @param card la card da codificare
+	 * @return il contenuto del file
+	 * @throws IOException se la codifica fallisce
+	 */
+	public static byte[] encodeCard(Card card) throws IOException {
+		return CARD_WRITER.writeValueAsBytes(card);
+	}
+
+	/**
+	 * metodo chiamato dal checkpoint per codificare gli utenti registrati nel formato del file degli utenti
+	 * @param users gli utenti da codificare
+	 * @return il contenuto del file
+	 * @throws IOException se la codifica fallisce
+	 */
+	public static byte[] encodeUsers(Collection<User> users) throws IOException {
+		return USERS_WRITER.writeValueAsBytes(users.toArray(new User[users.size()]));
+	}
+
+	/**
+	 * metodo chiamato dal journal per leggere un record da una riga di un segmento
+	 * @param bytes il contenuto del segmento
+	 * @param offset l'inizio della riga
+	 * @param length la lunghezza della riga, senza il carattere di fine riga
+	 * @return il record letto
+	 * @throws IOException se la riga non e' un record valido
+	 */
+	public static JournalRecord readRecord(byte[] bytes, int offset, int length) throws IOException {
+		return RECORD_READER.readValue(bytes, offset, length);
+	}
+
+	/**
+	 * metodo chiamato dal journal per codificare un record su una sola riga
+	 * @param record il record da codificare
+	 * @return il record codificato, senza il carattere di fine riga
+	 * @throws IOException se la codifica fallisce
+	 */
+	public static byte[] writeRecord(JournalRecord record) throws IOException {
+		return RECORD_WRITER.writeValueAsBytes(record);
+	}
+
+	/**
+	 * metodo chiamato dal checkpoint per codificare i nuovi messaggi della chat di un progetto,
+	 * una stringa JSON per riga: blocchi codificati in momenti diversi possono essere concatenati
+	 * ogni blocco inizia con una riga vuota, che termina una riga rimasta incompleta, e con il numero
+	 * di sequenza del primo messaggio, cosi' un blocco aggiunto di nuovo dopo un checkpoint fallito
+	 * non duplica i messaggi gia' salvati; un blocco senza messaggi riserva i numeri precedenti
+	 * @param first il numero di sequenza del primo messaggio
+	 * @param messages i messaggi da codificare, null per i numeri di sequenza senza messaggio
+	 * @return i messaggi codificati
+	 * @throws IOException se la codifica fallisce
+	 */
+	public static byte[] encodeChat(long first, List<String> messages) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64*messages.size()+24);
+
+		long seq = first;
+		boolean header = true;	//true se il prossimo messaggio non segue quello precedente nel blocco
+
+		for(String m : messages) {
+			if(m==null) {	//Numero senza messaggio, il successivo ripete il numero di sequenza
+				header = true;
+				seq++;
+				continue;
+			}
+			if(header) {
+				out.write(("\n"+seq+"\n").getBytes(StandardCharsets.US_ASCII));
+				header = false;
+			}
+			out.write(MESSAGE_WRITER.writeValueAsBytes(m));
+			out.write('\n');
+			seq++;
+		}
+
+		if(header) out.write(("\n"+seq+"\n").getBytes(StandardCharsets.US_ASCII));	//Riserva i numeri fino all'ultimo del blocco
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * metodo chiamato per leggere i messaggi di una chat codificati da encodeChat: i messaggi
+	 * con un numero di sequenza gia' letto vengono ignorati, una riga incompleta o non valida
+	 * (scrittura interrotta) viene saltata; una chat salvata prima dei numeri di sequenza
+	 * inizia dal messaggio 1
+	 * @param bytes i messaggi codificati
+	 * @return i messaggi letti, dal piu' vecchio, in cui il messaggio con numero di sequenza n
+	 * e' l'n-esimo e null indica un numero riservato senza messaggio
+	 */
+	public static List<String> readChat(byte[] bytes) {
+
+		List<String> messages = new ArrayList<String>();
+
+		long next = 1;	//Il numero di sequenza della prossima riga
+		int start = 0;
+
+		for(int i=0; i<bytes.length; i++) {
+
+			if(bytes[i]!='\n') continue;
+
+			int from = start;
+			int length = i-start;
+			start = i+1;
+
+			if(length==0) continue;	//Inizio di un blocco
+
+			if(bytes[from]>='0' && bytes[from]<='9') {	//Numero di sequenza del blocco, i messaggi sono stringhe JSON
+				try {
+					next = Long.parseLong(new String(bytes, from, length, StandardCharsets.US_ASCII));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				while(messages.size()<next-1) messages.add(null);
+				continue;
+			}
+
+			String message;
+			try {
+				message = MESSAGE_READER.readValue(bytes, from, length);
+			} catch (IOException e) {
+				next++;	//Il blocco successivo ripete il proprio numero di sequenza
+				continue;
+			}
+
+			if(next>messages.size()) {
+				while(messages.size()<next-1) messages.add(null);
+				messages.add(message);
+			}
+			else if(messages.get((int) next-1)==null) {	//Numero riservato, o messaggio di un blocco interrotto
+				messages.set((int) next-1, message);
+			}
+
+			next++;
+		}
+
+		return messages;
+	}
+
+	/**
+	 * metodo chiamato per calcolare il numero di sequenza piu' alto usato da una parte di una chat
+	 * codificata da encodeChat, con le stesse regole di readChat: il numero di un blocco riserva
+	 * i numeri precedenti e ogni riga di messaggio, anche non valida, usa il numero successivo
+	 * @param bytes i messaggi codificati, dall'inizio della chat o di un blocco
+	 * @return il numero di sequenza piu' alto, 0 se non ce ne sono
+	 */
+	public static long lastChatSeq(byte[] bytes) {
+
+		long last = 0;
+		long next = 1;	//Il numero di sequenza della prossima riga
+		int start = 0;
+
+		for(int i=0; i<bytes.length; i++) {
+
+			if(bytes[i]!='\n') continue;
+
+			int from = start;
+			int length = i-start;
+			start = i+1;
+
+			if(length==0) continue;	//Inizio di un blocco
+
+			if(bytes[from]>='0' && bytes[from]<='9') {	//Numero di sequenza del blocco
+				try {
+					next = Long.parseLong(new String(bytes, from, length, StandardCharsets.US_ASCII));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				last = Math.max(last, next-1);	//Numeri riservati
+				continue;
+			}
+
+			last = Math.max(last, next++);
+		}
+
+		return last;
+	}
+
+	/**
+	 * metodo chiamato per leggere una parte dei messaggi di una chat codificati da encodeChat,
+	 * con le stesse regole di readChat: vengono decodificati solo i messaggi con numero di sequenza
+	 * tra since+1 e until, tenendo i primi max, e la lettura si ferma quando tutti i numeri
+	 * fino all'ultimo da restituire hanno un messaggio
+	 * @param bytes i messaggi codificati
+	 * @param since il numero di sequenza dell'ultimo messaggio gia' letto
+	 * @param until il numero di sequenza dell'ultimo messaggio che puo' essere restituito
+	 * @param max il numero massimo di messaggi da restituire, senza i numeri senza messaggio
+	 * @return i messaggi, in cui l'i-esimo ha numero di sequenza since+1+i e null indica un numero
+	 * senza messaggio, fino al max-esimo messaggio, a until o all'ultimo numero salvato
+	 */
+	public static List<String> readChat(byte[] bytes, long since, long until, int max) {
+
+		TreeMap<Long, String> found = new TreeMap<Long, String>();	//I primi max messaggi decodificati, per numero di sequenza
+
+		long limit = until;	//Oltre questo numero i messaggi non vengono decodificati
+		long last = since;	//L'ultimo numero di sequenza salvato tra quelli richiesti
+		long next = 1;	//Il numero di sequenza della prossima riga
+		int start = 0;
+
+		for(int i=0; i<bytes.length && max>0; i++) {
+
+			if(bytes[i]!='\n') continue;
+
+			int from = start;
+			int length = i-start;
+			start = i+1;
+
+			if(length==0) continue;	//Inizio di un blocco
+
+			if(bytes[from]>='0' && bytes[from]<='9') {	//Numero di sequenza del blocco, i messaggi sono stringhe JSON
+				try {
+					next = Long.parseLong(new String(bytes, from, length, StandardCharsets.US_ASCII));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				last = Math.max(last, Math.min(limit, next-1));	//Numeri riservati
+				continue;
+			}
+
+			long seq = next++;
+
+			if(seq<=since) continue;	//Gia' letto, non viene decodificato
+
+			if(seq>limit) {	//L'archivio prosegue oltre i messaggi richiesti
+				last = limit;
+				continue;
+			}
+
+			if(found.containsKey(seq)) continue;	//Vale il primo messaggio salvato con questo numero
+
+			String message;
+			try {
+				message = MESSAGE_READER.readValue(bytes, from, length);
+			} catch (IOException e) {
+				continue;
+			}
+
+			found.put(seq, message);
+			last = Math.max(last, seq);
+
+			if(found.size()>max) found.pollLastEntry();
+
+			if(found.size()==max) {	//I messaggi successivi all'ultimo tenuto non servono
+				limit = found.lastKey();
+				last = Math.min(last, limit);
+			}
+
+			if(found.size()==limit-since) break;	//Tutti i numeri richiesti hanno un messaggio
+		}
+
+		List<String> messages = new ArrayList<String>((int) (last-since));
+
+		for(long seq=since+1; seq<=last; seq++) {
+			messages.add(found.get(seq));
+		}
+
+		return messages;
+	}
+
+}
@@ -0,0 +1,427 @@
+package worth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ *
+ * Archivio in formato JSON, il formato originale del server: gli utenti sono salvati
+ * in un unico file, ogni progetto ha una cartella in cui il file project.json contiene
+ * nome, creatore, membri e liste del progetto, ogni card e' salvata nel file
+ * nomecard.json e la chat nel file chat.log, un messaggio per riga
+ * ogni file viene scritto su un file temporaneo, sincronizzato e poi rinominato,
+ * tranne la chat, a cui i messaggi vengono aggiunti in coda
+ * per ogni blocco aggiunto alla chat il file chat.idx contiene la fine del blocco nel file chat.log
+ * e il numero di sequenza piu' alto usato fino a quel punto: la lettura dei messaggi successivi
+ * ad un numero di sequenza cerca nell'indice il primo blocco che puo' contenerli e legge
+ * il file chat.log solo da li'
+ *
+ */
+public class JsonStorage implements Storage {
+
+	//Abilita o disabilita la modalita' debug
+	private static boolean DEBUG = false;
+
+	private static final String PROJECT_FILE = "project.json";
+	private static final String CHAT_FILE = "chat.log";
+	private static final String CHAT_INDEX = "chat.idx";
+	private static final int INDEX_ENTRY = 16;	//Una voce dell'indice: la fine del blocco e l'ultimo numero di sequenza, due long
+
+	private Path usersFile;	//Il file degli utenti
+	private Path folder;	//La cartella dei progetti
+
+	/**
+	 * costruttore per l'archivio JSON, crea la cartella degli utenti e quella dei progetti se non esistono
+	 * @param usersFile il file degli utenti
+	 * @param folder la cartella dei progetti
+	 * @throws IOException se le cartelle non possono essere create
+	 */
+	public JsonStorage(String usersFile, String folder) throws IOException {
+
+		this.usersFile = Paths.get(usersFile);
+
+		this.folder = Paths.get(folder);
+
+		Files.createDirectories(this.usersFile.toAbsolutePath().getParent());
+
+		Files.createDirectories(this.folder);
+
+	}
+
+	public List<User> readUsers() throws IOException {
+
+		byte[] bytes = readFile(this.usersFile);
+
+		if(bytes==null) return new ArrayList<User>();	//Nessun utente registrato
+
+		return new ArrayList<User>(Arrays.asList(JsonCodec.readUsers(bytes)));
+	}
+
+	public void writeUsers(byte[] users) throws IOException {
+		writeFile(this.usersFile, users);
+	}
+
+	/**
+	 * legge il file project.json di ogni sottocartella: le cartelle vengono lette in parallelo
+	 * dai thread di un ForkJoinPool, che condividono i reader di JsonCodec, e restituite
+	 * nell'ordine delle cartelle
+	 */
+	public List<Project> readProjectHeaders() throws IOException {
+
+		File[] projectfolders = this.folder.toFile().listFiles(File::isDirectory);
+
+		if(projectfolders==null || projectfolders.length==0) return new ArrayList<Project>();	//Cartella progetti vuota
+
+		ForkJoinPool pool = new ForkJoinPool();
+
+		try {
+			return pool.submit(() -> Arrays.stream(projectfolders).parallel()
+					.map(this::readProjectHeader)
+					.filter(p -> p!=null)
+					.collect(Collectors.toList())).get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException("Fallita lettura della cartella "+this.folder, e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * metodo chiamato in parallelo da readProjectHeaders per leggere dal file project.json
+	 * di una cartella nome, creatore e membri del progetto, senza le card
+	 * @param projectfolder la cartella del progetto
+	 * @return il progetto letto, null se il file project.json manca o non e' valido
+	 */
+	private Project readProjectHeader(File projectfolder) {
+
+		byte[] bytes = readFile(projectfolder.toPath().resolve(PROJECT_FILE));
+
+		if(bytes==null) return null;
+
+		try {
+			return JsonCodec.readProjectHeader(bytes);
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Errore in avvio: fallita lettura del progetto "+projectfolder+", non verra' aggiunto ai progetti attivi");
+			return null;
+		}
+	}
+
+	public Project readProject(String projectname) throws IOException {
+
+		byte[] bytes = readFile(this.folder.resolve(projectname).resolve(PROJECT_FILE));
+
+		if(bytes==null) return null;
+
+		return JsonCodec.readProject(bytes);
+	}
+
+	/**
+	 * legge tutti i file .json della cartella del progetto con nome diverso da project.json
+	 */
+	public List<Card> readCards(String projectname) throws IOException {
+
+		File[] cardfiles = this.folder.resolve(projectname).toFile().listFiles();
+
+		if(cardfiles==null) throw new IOException("Impossibile leggere la cartella del progetto "+projectname);
+
+		ArrayList<Card> cards = new ArrayList<Card>(cardfiles.length);
+
+		for(File cardfile : cardfiles) {
+
+			if(cardfile.getName().equalsIgnoreCase(PROJECT_FILE) || !cardfile.getName().endsWith(".json")) {	//Salto analisi del file project.json, della chat e dei file temporanei
+				continue;
+			}
+
+			byte[] bytes = Files.readAllBytes(cardfile.toPath());	//Un errore di lettura fa fallire la lettura delle card, i file sono scritti in modo atomico
+
+			try {
+				cards.add(JsonCodec.readCard(bytes));
+			} catch (IOException e) {
+				throw new IOException("Fallita conversione oggetto JSON su file "+cardfile, e);
+			}
+		}
+
+		return cards;
+	}
+
+	/**
+	 * metodo chiamato per leggere un file dell'archivio
+	 * @param path il file da leggere
+	 * @return il contenuto del file, null se il file non esiste, e' vuoto o non puo' essere letto
+	 */
+	private byte[] readFile(Path path) {
+
+		if(!Files.exists(path)) return null;
+
+		try {
+			byte[] bytes = Files.readAllBytes(path);
+
+			if(bytes.length==0) {
+				if(DEBUG) System.out.println("File empty "+path+", skipping it");
+				return null;
+			}
+
+			return bytes;
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Fallita lettura su file "+path);
+			return null;
+		}
+	}
+
+	public void writeBoard(String projectname, Map<String, byte[]> cards, byte[] project) throws IOException {
+
+		Path projectdir = this.folder.resolve(projectname);
+
+		for(Map.Entry<String, byte[]> card : cards.entrySet()) {
+			writeFile(projectdir.resolve(card.getKey()+".json"), card.getValue());
+		}
+
+		writeFile(projectdir.resolve(PROJECT_FILE), project);
+	}
+
+	/**
+	 * cancella la cartella del progetto, compresa la chat
+	 */
+	public void deleteBoard(String projectname) throws IOException {
+
+		File projectdir = this.folder.resolve(projectname).toFile();
+
+		if(!projectdir.exists()) return;
+
+		//Cancella i file interni alla cartella
+		for(File f : projectdir.listFiles()) {
+			if(!f.delete()) throw new IOException("Impossibile cancellare il file "+f);
+		}
+
+		if(!projectdir.delete()) throw new IOException("Impossibile cancellare la cartella "+projectdir);
+	}
+
+	public List<String> readChat(String projectname) throws IOException {
+
+		byte[] bytes = readFile(this.folder.resolve(projectname).resolve(CHAT_FILE));
+
+		if(bytes==null) return new ArrayList<String>();	//Nessun messaggio salvato
+
+		return JsonCodec.readChat(bytes);
+	}
+
+	/**
+	 * legge il file chat.log dal primo blocco che puo' contenere messaggi successivi a since,
+	 * cercato nel file chat.idx; senza indice (chat salvata prima dell'indice) legge tutto il file
+	 */
+	public List<String> readChat(String projectname, long since, long until, int max) throws IOException {
+
+		Path projectdir = this.folder.resolve(projectname);
+
+		if(!Files.exists(projectdir.resolve(CHAT_FILE))) return new ArrayList<String>();	//Nessun messaggio salvato
+
+		long offset = chatOffset(projectdir.resolve(CHAT_INDEX), since);
+
+		byte[] bytes;
+
+		try(FileChannel channel = FileChannel.open(projectdir.resolve(CHAT_FILE), StandardOpenOption.READ)) {
+			bytes = readRange(channel, offset, channel.size());
+		}
+
+		return JsonCodec.readChat(bytes, since, until, max);
+	}
+
+	/**
+	 * metodo chiamato per cercare nell'indice della chat il punto del file chat.log da cui leggere
+	 * i messaggi successivi ad un numero di sequenza: la fine dell'ultimo blocco fino al quale
+	 * nessun numero supera since, con una ricerca binaria sulle voci, in ordine di numero di sequenza
+	 * @param index il file chat.idx
+	 * @param since il numero di sequenza dell'ultimo messaggio gia' letto
+	 * @return la posizione nel file chat.log, 0 se l'indice non esiste
+	 * @throws IOException se l'indice non puo' essere letto
+	 */
+	private static long chatOffset(Path index, long since) throws IOException {
+
+		if(!Files.exists(index)) return 0;
+
+		try(FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+
+			ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+
+			long low = 0;
+			long high = channel.size()/INDEX_ENTRY;	//Una voce incompleta (scrittura interrotta) viene ignorata
+
+			while(low<high) {	//Cerca la prima voce che supera since
+				long mid = (low+high)>>>1;
+				readEntry(channel, mid, entry);
+				if(entry.getLong(8)<=since) low = mid+1;
+				else high = mid;
+			}
+
+			if(low==0) return 0;
+
+			readEntry(channel, low-1, entry);
+
+			return entry.getLong(0);
+		}
+	}
+
+	/**
+	 * metodo chiamato da appendChat dopo aver aggiunto un blocco alla chat per aggiungerne la voce
+	 * all'indice: i blocchi aggiunti senza voce (scrittura dell'indice interrotta) vengono riletti
+	 * dal file chat.log, cosi' l'ultimo numero di sequenza di ogni voce non e' mai inferiore a quelli dei blocchi precedenti
+	 * @param projectdir la cartella del progetto
+	 * @param start la posizione del blocco nel file chat.log
+	 * @param messages il blocco aggiunto
+	 * @throws IOException se l'indice non puo' essere scritto
+	 */
+	private static void indexChat(Path projectdir, long start, byte[] messages) throws IOException {
+
+		try(FileChannel channel = FileChannel.open(projectdir.resolve(CHAT_INDEX), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+			ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+
+			long entries = channel.size()/INDEX_ENTRY;
+			long indexed = 0;	//La fine dell'ultimo blocco con una voce
+			long last = 0;	//L'ultimo numero di sequenza fino a indexed
+
+			if(entries>0) {
+				readEntry(channel, entries-1, entry);
+				indexed = entry.getLong(0);
+				last = entry.getLong(8);
+			}
+
+			if(indexed>start) {	//Indice non valido per questo file, viene ricostruito
+				channel.truncate(0);
+				entries = 0;
+				indexed = 0;
+				last = 0;
+			}
+
+			if(indexed<start) {	//Blocchi senza voce, o chat salvata prima dell'indice
+				try(FileChannel chat = FileChannel.open(projectdir.resolve(CHAT_FILE), StandardOpenOption.READ)) {
+					last = Math.max(last, JsonCodec.lastChatSeq(readRange(chat, indexed, start)));
+				}
+			}
+
+			last = Math.max(last, JsonCodec.lastChatSeq(messages));
+
+			entry.clear();
+			entry.putLong(start+messages.length).putLong(last).flip();
+
+			long position = entries*INDEX_ENTRY;	//Sovrascrive una voce incompleta
+			while(entry.hasRemaining()) {
+				position += channel.write(entry, position);
+			}
+		}
+	}
+
+	/**
+	 * metodo di utility chiamato per leggere una voce dell'indice della chat
+	 * @param channel il canale del file chat.idx
+	 * @param i la posizione della voce
+	 * @param entry il buffer in cui leggere la voce
+	 * @throws IOException se la voce non puo' essere letta
+	 */
+	private static void readEntry(FileChannel channel, long i, ByteBuffer entry) throws IOException {
+
+		entry.clear();
+
+		while(entry.hasRemaining()) {
+			if(channel.read(entry, i*INDEX_ENTRY+entry.position())<0) throw new IOException("Indice della chat incompleto");
+		}
+	}
+
+	/**
+	 * metodo di utility chiamato per leggere una parte di un file
+	 * @param channel il canale del file
+	 * @param from la posizione del primo byte da leggere
+	 * @param to la posizione successiva all'ultimo byte da leggere
+	 * @return i byte letti, meno di to-from se il file finisce prima
+	 * @throws IOException se il file non puo' essere letto
+	 */
+	private static byte[] readRange(FileChannel channel, long from, long to) throws IOException {
+
+		if(from>=to) return new byte[0];
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) (to-from));
+
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, from+buffer.position())<0) break;
+		}
+
+		return Arrays.copyOf(buffer.array(), buffer.position());
+	}
+
+	/**
+	 * aggiunge i messaggi in coda al file chat.log e lo sincronizza, un blocco alla volta
+	 * anche se chiamato da piu' thread, poi aggiunge la voce del blocco al file chat.idx
+	 * l'indice non viene sincronizzato: una voce persa viene ricalcolata all'aggiunta successiva
+	 * la cartella del progetto non viene creata: la crea solo writeBoard
+	 */
+	public synchronized boolean appendChat(String projectname, byte[] messages) throws IOException {
+
+		Path projectdir = this.folder.resolve(projectname);
+
+		if(!Files.isDirectory(projectdir)) return false;	//Progetto cancellato o non ancora salvato
+
+		try(FileChannel channel = FileChannel.open(projectdir.resolve(CHAT_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			long start = channel.size();
+			ByteBuffer buffer = ByteBuffer.wrap(messages);
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+			indexChat(projectdir, start, messages);
+		}
+
+		return true;
+	}
+
+	/**
+	 * ogni file viene gia' sincronizzato da writeFile prima di essere rinominato
+	 */
+	public void flush() {}
+
+	/**
+	 * il file chat.log viene gia' sincronizzato da appendChat
+	 */
+	public void sync() {}
+
+	public void close() {}
+
+	/**
+	 * metodo chiamato per scrivere un file: il contenuto viene scritto e sincronizzato
+	 * su un file temporaneo, che viene poi rinominato, cosi' un'interruzione
+	 * non lascia mai un file scritto a meta'
+	 * @param file il file da scrivere
+	 * @param bytes il contenuto del file
+	 * @throws IOException se il file non puo' essere scritto
+	 */
+	public static void writeFile(Path file, byte[] bytes) throws IOException {
+
+		Path tmp = file.resolveSibling(file.getFileName()+".tmp");
+
+		Files.createDirectories(file.getParent());
+
+		try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
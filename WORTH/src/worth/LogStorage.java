@@ -0,0 +1,672 @@
+package worth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * Archivio log-structured in pochi file di segmento: utenti, progetti, card, messaggi delle chat
+ * e cancellazioni vengono aggiunti in coda al segmento corrente come record binari, senza creare
+ * un file per ogni card
+ * un indice in memoria contiene la posizione dell'ultima versione degli utenti e, per ogni progetto,
+ * dell'ultima versione del progetto e di ognuna delle sue card e le posizioni dei blocchi di messaggi
+ * della chat, che vengono letti dai segmenti mappati in memoria (MappedByteBuffer)
+ * all'apertura l'indice viene ricostruito leggendo i segmenti in ordine, un record incompleto
+ * (scrittura interrotta) tronca il segmento; quando i record superati dalle versioni successive
+ * sono piu' della meta', flush riscrive i soli record validi in un nuovo segmento,
+ * unendo i blocchi di messaggi di ogni chat in un solo record
+ * formato di un record: lunghezza del resto del record (int), crc32 del resto del record (int),
+ * tipo (byte), nome del progetto e nome della card (short con la lunghezza e byte UTF-8), contenuto
+ *
+ */
+public class LogStorage implements Storage {
+
+	//Abilita o disabilita la modalita' debug
+	private static boolean DEBUG = false;
+
+	private static final String SEGMENT_PREFIX = "log-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final long SEGMENT_SIZE = 64L*1024*1024;	//Dimensione oltre la quale viene aperto un nuovo segmento
+	private static final long COMPACT_MIN_SIZE = 4L*1024*1024;	//Dimensione totale sotto la quale i segmenti non vengono compattati
+	private static final int HEADER_SIZE = 8;	//Lunghezza e crc32 del record
+
+	//Tipi di record
+	private static final byte PROJECT = 1;
+	private static final byte CARD = 2;
+	private static final byte DELETE = 3;
+	private static final byte USERS = 4;
+	private static final byte CHAT = 5;
+
+	//Una posizione contiene il numero del segmento nei bit alti e l'offset del record nei bit bassi
+	private static final int OFFSET_BITS = 40;
+	private static final long OFFSET_MASK = (1L<<OFFSET_BITS)-1;
+
+	/**
+	 *
+	 * Un file di segmento, con il canale su cui aggiungere i record
+	 * e la mappatura in memoria usata per leggerli
+	 *
+	 */
+	private static class Segment {
+
+		private int id;	//Il numero del segmento, crescente
+		private Path path;	//Il file del segmento
+		private FileChannel channel;	//Il canale aperto sul file
+		private long size;	//I byte dei record completi nel segmento
+		private MappedByteBuffer map;	//La mappatura del file, rifatta quando il segmento cresce
+
+		private Segment(int id, Path path, FileChannel channel) {
+			this.id = id;
+			this.path = path;
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 *
+	 * Le posizioni dell'ultima versione di un progetto e delle sue card e dei messaggi della sua chat
+	 *
+	 */
+	private static class Board {
+
+		private long project = -1;	//La posizione del record del progetto, -1 se non ancora scritto
+		private Map<String, Long> cards = new HashMap<String, Long>();	//Le posizioni dei record delle card, per nome
+		private List<Long> chat = new ArrayList<Long>();	//Le posizioni dei blocchi di messaggi della chat, in ordine
+	}
+
+	private Path folder;	//La cartella dei segmenti
+	private TreeMap<Integer, Segment> segments;	//I segmenti, ordinati per numero
+	private Segment active;	//Il segmento su cui vengono aggiunti i record
+	private Map<String, Board> index;	//Per ogni progetto salvato, le posizioni dei suoi record
+	private long users = -1;	//La posizione dell'ultimo record degli utenti, -1 se non ancora scritto
+	private long totalBytes;	//I byte di tutti i segmenti
+	private long liveBytes;	//I byte dei record ancora indicizzati
+	private ByteBuffer lengthBuffer = ByteBuffer.allocate(4);	//Per leggere la lunghezza di un record non ancora mappato
+
+	/**
+	 * costruttore per l'archivio log-structured: crea la cartella se non esiste,
+	 * apre i segmenti presenti e ricostruisce l'indice leggendoli in ordine
+	 * @param folder la cartella dei segmenti
+	 * @throws IOException se la cartella o un segmento non possono essere letti
+	 */
+	public LogStorage(String folder) throws IOException {
+
+		this.folder = Paths.get(folder);
+
+		Files.createDirectories(this.folder);
+
+		this.segments = new TreeMap<Integer, Segment>();
+
+		this.index = new LinkedHashMap<String, Board>();	//I progetti nell'ordine in cui sono stati salvati la prima volta
+
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(this.folder, SEGMENT_PREFIX+"*"+SEGMENT_SUFFIX)) {
+			for(Path p : stream) {
+				String name = p.getFileName().toString();
+				int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length()-SEGMENT_SUFFIX.length()));
+				this.segments.put(id, new Segment(id, p, FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE)));
+			}
+		}
+
+		for(Segment s : this.segments.values()) {
+			scan(s);
+		}
+
+		this.active = this.segments.isEmpty() ? createSegment(1) : this.segments.lastEntry().getValue();
+
+		if(DEBUG) System.out.println("Log storage "+this.folder+" opened: "+this.segments.size()+" segments, "+this.index.size()+" projects");
+	}
+
+	/**
+	 * metodo chiamato all'apertura per leggere i record di un segmento e aggiornare l'indice,
+	 * il segmento viene troncato al primo record incompleto o non valido
+	 * @param s il segmento da leggere
+	 * @throws IOException se il segmento non puo' essere letto o troncato
+	 */
+	private void scan(Segment s) throws IOException {
+
+		long filesize = s.channel.size();
+
+		s.size = filesize;
+
+		MappedByteBuffer map = map(s);
+
+		int position = 0;
+
+		while(position+HEADER_SIZE<=filesize) {
+
+			int length = map.getInt(position);
+
+			if(length<=0 || position+HEADER_SIZE+(long) length>filesize || checksum(map, position+HEADER_SIZE, length)!=map.getInt(position+4)) break;
+
+			ByteBuffer record = slice(map, position);
+
+			byte type = record.get();
+			String project = readName(record);
+			String card = readName(record);
+
+			long location = ((long) s.id<<OFFSET_BITS) | position;
+
+			switch(type) {
+				case PROJECT:
+					putProject(project, location);
+					break;
+				case CARD:
+					putCard(project, card, location);
+					break;
+				case DELETE:
+					removeProject(project);
+					break;
+				case USERS:
+					putUsers(location);
+					break;
+				case CHAT:
+					putChat(project, location);
+					break;
+				default:
+					if(DEBUG) System.err.println("Unknown record type "+type+" in segment "+s.path);
+			}
+
+			position += HEADER_SIZE+length;
+		}
+
+		if(position<filesize) {
+			if(DEBUG) System.err.println("Incomplete record in segment "+s.path+", truncating at "+position);
+			s.channel.truncate(position);
+			s.map = null;
+		}
+
+		s.size = position;
+
+		this.totalBytes += position;
+	}
+
+	public synchronized List<User> readUsers() throws IOException {
+
+		if(this.users<0) return new ArrayList<User>();	//Nessun utente registrato
+
+		return new ArrayList<User>(Arrays.asList(StorageFormat.readUsers(payload(this.users))));
+	}
+
+	public synchronized void writeUsers(byte[] users) throws IOException {
+		putUsers(append(USERS, "", "", users));
+	}
+
+	public synchronized List<Project> readProjectHeaders() throws IOException {
+
+		ArrayList<Project> projects = new ArrayList<Project>(this.index.size());
+
+		for(Map.Entry<String, Board> board : this.index.entrySet()) {
+
+			if(board.getValue().project<0) continue;	//Solo card o chat, il progetto non e' stato salvato
+
+			try {
+				projects.add(StorageFormat.readProjectHeader(payload(board.getValue().project)));
+			} catch (IOException e) {
+				if(DEBUG) System.err.println("Can't decode project "+board.getKey()+", skipping it");
+			}
+		}
+
+		return projects;
+	}
+
+	public synchronized Project readProject(String projectname) throws IOException {
+
+		Board board = this.index.get(projectname);
+
+		if(board==null || board.project<0) return null;
+
+		return StorageFormat.readProject(payload(board.project));
+	}
+
+	public synchronized List<Card> readCards(String projectname) throws IOException {
+
+		Board board = this.index.get(projectname);
+
+		if(board==null) return new ArrayList<Card>();
+
+		ArrayList<Card> cards = new ArrayList<Card>(board.cards.size());
+
+		for(Map.Entry<String, Long> card : board.cards.entrySet()) {
+			try {
+				cards.add(StorageFormat.readCard(payload(card.getValue())));
+			} catch (IOException e) {
+				throw new IOException("Can't decode card "+card.getKey()+" of project "+projectname, e);
+			}
+		}
+
+		return cards;
+	}
+
+	public synchronized void writeBoard(String projectname, Map<String, byte[]> cards, byte[] project) throws IOException {
+
+		for(Map.Entry<String, byte[]> card : cards.entrySet()) {
+			putCard(projectname, card.getKey(), append(CARD, projectname, card.getKey(), card.getValue()));
+		}
+
+		putProject(projectname, append(PROJECT, projectname, "", project));
+	}
+
+	public synchronized void deleteBoard(String projectname) throws IOException {
+
+		if(!this.index.containsKey(projectname)) return;	//Nessun record da cancellare
+
+		append(DELETE, projectname, "", new byte[0]);
+
+		removeProject(projectname);
+	}
+
+	/**
+	 * unisce i blocchi di messaggi salvati dai checkpoint, nell'ordine in cui sono stati scritti
+	 */
+	public synchronized List<String> readChat(String projectname) throws IOException {
+
+		Board board = this.index.get(projectname);
+
+		if(board==null || board.chat.isEmpty()) return new ArrayList<String>();
+
+		return JsonCodec.readChat(chat(board));
+	}
+
+	public synchronized List<String> readChat(String projectname, long since, long until, int max) throws IOException {
+
+		Board board = this.index.get(projectname);
+
+		if(board==null || board.chat.isEmpty()) return new ArrayList<String>();
+
+		return JsonCodec.readChat(chat(board), since, until, max);
+	}
+
+	public synchronized boolean appendChat(String projectname, byte[] messages) throws IOException {
+
+		if(!this.index.containsKey(projectname)) return false;	//Progetto cancellato o non ancora salvato
+
+		putChat(projectname, append(CHAT, projectname, "", messages));
+
+		return true;
+	}
+
+	/**
+	 * sincronizza il segmento corrente (i precedenti sono stati sincronizzati alla chiusura)
+	 * e, se i record superati occupano piu' della meta' dei segmenti, compatta l'archivio
+	 */
+	public synchronized void flush() throws IOException {
+
+		this.active.channel.force(true);
+
+		if(this.totalBytes>=COMPACT_MIN_SIZE && this.liveBytes*2<this.totalBytes) compact();
+	}
+
+	/**
+	 * sincronizza solo il segmento corrente, la compattazione resta a flush
+	 */
+	public synchronized void sync() throws IOException {
+		this.active.channel.force(true);
+	}
+
+	public synchronized void close() throws IOException {
+
+		for(Segment s : this.segments.values()) {
+			s.channel.close();
+		}
+	}
+
+	/**
+	 * metodo chiamato da flush per compattare l'archivio: riscrive l'ultima versione degli utenti,
+	 * di ogni progetto e card e un solo blocco con tutti i messaggi di ogni chat in nuovi segmenti, li sincronizza e poi elimina tutti i segmenti precedenti
+	 * un'interruzione prima dell'eliminazione lascia nei nuovi segmenti solo copie di record gia'
+	 * validi, che all'apertura vengono letti dopo gli originali
+	 * @throws IOException se i nuovi segmenti non possono essere scritti
+	 */
+	private void compact() throws IOException {
+
+		long before = this.totalBytes;
+
+		List<Segment> old = new ArrayList<Segment>(this.segments.values());
+
+		this.active = createSegment(this.active.id+1);
+
+		Map<String, Board> compacted = new LinkedHashMap<String, Board>();
+
+		long users = this.users>=0 ? append(USERS, "", "", payload(this.users)) : -1;
+
+		for(Map.Entry<String, Board> entry : this.index.entrySet()) {
+
+			String projectname = entry.getKey();
+
+			Board board = entry.getValue();
+
+			Board copy = new Board();
+
+			for(Map.Entry<String, Long> card : board.cards.entrySet()) {
+				copy.cards.put(card.getKey(), append(CARD, projectname, card.getKey(), payload(card.getValue())));
+			}
+
+			if(!board.chat.isEmpty()) copy.chat.add(append(CHAT, projectname, "", chat(board)));
+
+			if(board.project>=0) copy.project = append(PROJECT, projectname, "", payload(board.project));
+
+			compacted.put(projectname, copy);
+		}
+
+		this.active.channel.force(true);
+
+		for(Segment s : old) {
+			s.channel.close();
+			Files.delete(s.path);
+			this.segments.remove(s.id);
+		}
+
+		this.index = compacted;
+
+		this.users = users;
+
+		this.totalBytes = 0;
+		for(Segment s : this.segments.values()) {
+			this.totalBytes += s.size;
+		}
+
+		this.liveBytes = this.totalBytes;
+
+		if(DEBUG) System.out.println("Log storage compacted: "+before+" -> "+this.totalBytes+" bytes");
+	}
+
+	/**
+	 * metodo chiamato per aggiungere un record in coda al segmento corrente,
+	 * se il segmento ha superato SEGMENT_SIZE viene prima sincronizzato e sostituito da uno nuovo
+	 * @param type il tipo di record
+	 * @param project il nome del progetto, la stringa vuota per gli utenti
+	 * @param card il nome della card, la stringa vuota per gli altri record
+	 * @param payload il contenuto del record
+	 * @return la posizione del record
+	 * @throws IOException se il record non puo' essere scritto
+	 */
+	private long append(byte type, String project, String card, byte[] payload) throws IOException {
+
+		byte[] projectbytes = project.getBytes(StandardCharsets.UTF_8);
+		byte[] cardbytes = card.getBytes(StandardCharsets.UTF_8);
+
+		if(projectbytes.length>0xFFFF || cardbytes.length>0xFFFF) throw new IOException("Nome troppo lungo: "+project+" "+card);
+
+		int length = 1+2+projectbytes.length+2+cardbytes.length+payload.length;
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE+length);
+		buffer.putInt(length);
+		buffer.putInt(0);	//Il crc32 viene calcolato dopo aver scritto il resto del record
+		buffer.put(type);
+		buffer.putShort((short) projectbytes.length);
+		buffer.put(projectbytes);
+		buffer.putShort((short) cardbytes.length);
+		buffer.put(cardbytes);
+		buffer.put(payload);
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), HEADER_SIZE, length);
+		buffer.putInt(4, (int) crc.getValue());
+
+		buffer.flip();
+
+		if(this.active.size>0 && this.active.size+buffer.remaining()>SEGMENT_SIZE) {
+			this.active.channel.force(true);
+			this.active = createSegment(this.active.id+1);
+		}
+
+		long location = ((long) this.active.id<<OFFSET_BITS) | this.active.size;
+
+		long position = this.active.size;
+		while(buffer.hasRemaining()) {
+			position += this.active.channel.write(buffer, position);
+		}
+
+		this.active.size = position;
+
+		this.totalBytes += HEADER_SIZE+length;
+
+		return location;
+	}
+
+	/**
+	 * metodo chiamato per creare un nuovo segmento vuoto
+	 * @param id il numero del segmento
+	 * @return il segmento creato
+	 * @throws IOException se il file non puo' essere creato
+	 */
+	private Segment createSegment(int id) throws IOException {
+
+		Path path = this.folder.resolve(String.format(SEGMENT_PREFIX+"%06d"+SEGMENT_SUFFIX, id));
+
+		Segment s = new Segment(id, path, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+
+		this.segments.put(id, s);
+
+		return s;
+	}
+
+	/**
+	 * metodo chiamato per aggiornare la posizione del record degli utenti
+	 * @param location la posizione del nuovo record
+	 * @throws IOException se il record precedente non puo' essere letto
+	 */
+	private void putUsers(long location) throws IOException {
+
+		if(this.users>=0) this.liveBytes -= recordSize(this.users);
+
+		this.users = location;
+
+		this.liveBytes += recordSize(location);
+	}
+
+	/**
+	 * metodo chiamato per aggiornare la posizione del record di un progetto nell'indice
+	 * @param project il nome del progetto
+	 * @param location la posizione del nuovo record
+	 * @throws IOException se il record precedente non puo' essere letto
+	 */
+	private void putProject(String project, long location) throws IOException {
+
+		Board board = this.index.computeIfAbsent(project, k -> new Board());
+
+		if(board.project>=0) this.liveBytes -= recordSize(board.project);
+
+		board.project = location;
+
+		this.liveBytes += recordSize(location);
+	}
+
+	/**
+	 * metodo chiamato per aggiornare la posizione del record di una card nell'indice
+	 * @param project il nome del progetto
+	 * @param card il nome della card
+	 * @param location la posizione del nuovo record
+	 * @throws IOException se il record precedente non puo' essere letto
+	 */
+	private void putCard(String project, String card, long location) throws IOException {
+
+		Long previous = this.index.computeIfAbsent(project, k -> new Board()).cards.put(card, location);
+
+		if(previous!=null) this.liveBytes -= recordSize(previous);
+
+		this.liveBytes += recordSize(location);
+	}
+
+	/**
+	 * metodo chiamato per aggiungere all'indice un blocco di messaggi della chat di un progetto
+	 * @param project il nome del progetto
+	 * @param location la posizione del nuovo record
+	 * @throws IOException se il record non puo' essere letto
+	 */
+	private void putChat(String project, long location) throws IOException {
+
+		this.index.computeIfAbsent(project, k -> new Board()).chat.add(location);
+
+		this.liveBytes += recordSize(location);
+	}
+
+	/**
+	 * metodo chiamato per rimuovere dall'indice un progetto cancellato, tutte le sue card e la sua chat
+	 * @param project il nome del progetto
+	 * @throws IOException se un record del progetto non puo' essere letto
+	 */
+	private void removeProject(String project) throws IOException {
+
+		Board board = this.index.remove(project);
+
+		if(board==null) return;
+
+		if(board.project>=0) this.liveBytes -= recordSize(board.project);
+
+		for(long location : board.cards.values()) {
+			this.liveBytes -= recordSize(location);
+		}
+
+		for(long location : board.chat) {
+			this.liveBytes -= recordSize(location);
+		}
+	}
+
+	/**
+	 * metodo chiamato per concatenare i blocchi di messaggi della chat di un progetto
+	 * @param board le posizioni dei record del progetto
+	 * @return i messaggi codificati, dal piu' vecchio
+	 * @throws IOException se un segmento non puo' essere mappato
+	 */
+	private byte[] chat(Board board) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for(long location : board.chat) {
+			out.write(payload(location));
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * metodo chiamato per restituire la mappatura in memoria di un segmento,
+	 * rifatta se il segmento e' cresciuto dopo l'ultima mappatura
+	 * @param s il segmento
+	 * @return la mappatura in sola lettura dei record completi del segmento
+	 * @throws IOException se il segmento non puo' essere mappato
+	 */
+	private MappedByteBuffer map(Segment s) throws IOException {
+
+		if(s.map==null || s.map.capacity()<s.size) s.map = s.channel.map(FileChannel.MapMode.READ_ONLY, 0, s.size);
+
+		return s.map;
+	}
+
+	/**
+	 * metodo chiamato per restituire il record in una certa posizione, senza lunghezza e crc32
+	 * @param map la mappatura del segmento
+	 * @param offset l'offset del record nel segmento
+	 * @return il record, da tipo a fine contenuto
+	 */
+	private static ByteBuffer slice(MappedByteBuffer map, int offset) {
+
+		ByteBuffer record = map.duplicate();
+
+		record.limit(offset+HEADER_SIZE+map.getInt(offset));
+		record.position(offset+HEADER_SIZE);
+
+		return record;
+	}
+
+	/**
+	 * metodo chiamato per leggere il contenuto del record in una certa posizione
+	 * @param location la posizione del record
+	 * @return il contenuto del record
+	 * @throws IOException se il segmento non puo' essere mappato
+	 */
+	private byte[] payload(long location) throws IOException {
+
+		ByteBuffer record = slice(map(this.segments.get((int) (location>>>OFFSET_BITS))), (int) (location & OFFSET_MASK));
+
+		record.get();	//Tipo
+
+		for(int i=0; i<2; i++) {	//Nome del progetto e nome della card
+			int length = record.getShort() & 0xFFFF;
+			record.position(record.position()+length);
+		}
+
+		byte[] bytes = new byte[record.remaining()];
+
+		record.get(bytes);
+
+		return bytes;
+	}
+
+	/**
+	 * metodo chiamato per restituire la dimensione del record in una certa posizione
+	 * @param location la posizione del record
+	 * @return i byte occupati dal record nel segmento
+	 * @throws IOException se il segmento non puo' essere mappato
+	 */
+	private long recordSize(long location) throws IOException {
+
+		Segment s = this.segments.get((int) (location>>>OFFSET_BITS));
+		int offset = (int) (location & OFFSET_MASK);
+
+		if(s.map!=null && offset<s.map.capacity()) return HEADER_SIZE+s.map.getInt(offset);	//Record gia' mappato
+
+		//Record appena scritto: la lunghezza viene letta dal canale, rimappare il segmento ad ogni
+		//scrittura lascerebbe una mappatura per record fino al garbage collector (vm.max_map_count)
+		this.lengthBuffer.clear();
+		while(this.lengthBuffer.hasRemaining()) {
+			if(s.channel.read(this.lengthBuffer, offset+this.lengthBuffer.position())<0) throw new EOFException("Record troncato nel segmento "+s.path);
+		}
+
+		return HEADER_SIZE+this.lengthBuffer.getInt(0);
+	}
+
+	/**
+	 * metodo chiamato per leggere un nome (progetto o card) da un record
+	 * @param record il record, posizionato sulla lunghezza del nome
+	 * @return il nome letto
+	 */
+	private static String readName(ByteBuffer record) {
+
+		byte[] bytes = new byte[record.getShort() & 0xFFFF];
+
+		record.get(bytes);
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * metodo chiamato per calcolare il crc32 di una parte di un segmento
+	 * @param map la mappatura del segmento
+	 * @param offset l'inizio della parte
+	 * @param length la lunghezza della parte
+	 * @return il crc32 calcolato
+	 */
+	private static int checksum(MappedByteBuffer map, int offset, int length) {
+
+		ByteBuffer part = map.duplicate();
+
+		part.limit(offset+length);
+		part.position(offset);
+
+		CRC32 crc = new CRC32();
+		crc.update(part);
+
+		return (int) crc.getValue();
+	}
+
+}
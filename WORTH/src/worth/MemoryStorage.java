@@ -0,0 +1,131 @@
+package worth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Archivio in memoria, senza file: i contenuti codificati dal checkpoint vengono conservati
+ * in mappe e si perdono alla chiusura del server
+ * usato per i test di carico, per misurare il costo della logica del server senza quello
+ * del disco (con questo archivio anche il journal non scrive su disco)
+ *
+ */
+public class MemoryStorage implements Storage {
+
+	/**
+	 *
+	 * I contenuti salvati di un progetto
+	 *
+	 */
+	private static class Board {
+
+		private byte[] project;	//Il progetto codificato, null se non ancora scritto
+		private Map<String, byte[]> cards = new HashMap<String, byte[]>();	//Le card codificate, per nome
+		private ByteArrayOutputStream chat = new ByteArrayOutputStream();	//I messaggi della chat codificati, in ordine
+	}
+
+	private byte[] users;	//Gli utenti codificati, null se non ancora scritti
+	private Map<String, Board> boards = new LinkedHashMap<String, Board>();	//I progetti salvati, nell'ordine in cui sono stati salvati la prima volta
+
+	public synchronized List<User> readUsers() throws IOException {
+
+		if(this.users==null) return new ArrayList<User>();	//Nessun utente registrato
+
+		return new ArrayList<User>(Arrays.asList(StorageFormat.readUsers(this.users)));
+	}
+
+	public synchronized void writeUsers(byte[] users) {
+		this.users = users;
+	}
+
+	public synchronized List<Project> readProjectHeaders() throws IOException {
+
+		ArrayList<Project> projects = new ArrayList<Project>(this.boards.size());
+
+		for(Board board : this.boards.values()) {
+			if(board.project!=null) projects.add(StorageFormat.readProjectHeader(board.project));
+		}
+
+		return projects;
+	}
+
+	public synchronized Project readProject(String projectname) throws IOException {
+
+		Board board = this.boards.get(projectname);
+
+		if(board==null || board.project==null) return null;
+
+		return StorageFormat.readProject(board.project);
+	}
+
+	public synchronized List<Card> readCards(String projectname) throws IOException {
+
+		Board board = this.boards.get(projectname);
+
+		if(board==null) return new ArrayList<Card>();
+
+		ArrayList<Card> cards = new ArrayList<Card>(board.cards.size());
+
+		for(byte[] card : board.cards.values()) {
+			cards.add(StorageFormat.readCard(card));
+		}
+
+		return cards;
+	}
+
+	public synchronized void writeBoard(String projectname, Map<String, byte[]> cards, byte[] project) {
+
+		Board board = this.boards.computeIfAbsent(projectname, k -> new Board());
+
+		board.cards.putAll(cards);
+
+		board.project = project;
+	}
+
+	public synchronized void deleteBoard(String projectname) {
+		this.boards.remove(projectname);
+	}
+
+	public synchronized List<String> readChat(String projectname) {
+
+		Board board = this.boards.get(projectname);
+
+		if(board==null) return new ArrayList<String>();
+
+		return JsonCodec.readChat(board.chat.toByteArray());
+	}
+
+	public synchronized List<String> readChat(String projectname, long since, long until, int max) {
+
+		Board board = this.boards.get(projectname);
+
+		if(board==null) return new ArrayList<String>();
+
+		return JsonCodec.readChat(board.chat.toByteArray(), since, until, max);
+	}
+
+	public synchronized boolean appendChat(String projectname, byte[] messages) {
+
+		Board board = this.boards.get(projectname);
+
+		if(board==null) return false;	//Progetto cancellato o non ancora salvato
+
+		board.chat.writeBytes(messages);
+
+		return true;
+	}
+
+	public void flush() {}
+
+	public void sync() {}
+
+	public void close() {}
+
+}
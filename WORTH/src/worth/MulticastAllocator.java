@@ -0,0 +1,189 @@
+package worth;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.BitSet;
+
+/**
+ *
+ * Assegna gli indirizzi multicast delle chat dei progetti da un intervallo configurabile,
+ * indicato come indirizzo/prefisso (ad esempio 239.0.0.0/8, oltre sedici milioni di indirizzi)
+ * ogni indirizzo e' un bit di una bitmap, a 1 se assegnato ad una chat: assegnare e liberare
+ * un indirizzo non alloca oggetti oltre all'InetAddress restituito e la bitmap occupa un bit
+ * per indirizzo, fino all'ultimo assegnato
+ * gli indirizzi vengono assegnati a partire da quello successivo all'ultimo assegnato (next fit),
+ * cosi' un indirizzo liberato dalla cancellazione di un progetto viene riusato solo dopo aver
+ * percorso tutto l'intervallo, quando i client hanno smesso da tempo di usarlo
+ * all'avvio ogni chat riceve di nuovo con reserve l'indirizzo salvato nell'archivio o nel journal,
+ * cosi' i client continuano ad usare lo stesso gruppo dopo un riavvio; solo le chat senza
+ * un indirizzo salvato ricevono poi un indirizzo libero
+ *
+ */
+public class MulticastAllocator {
+
+	private int base;	//Il primo indirizzo dell'intervallo, come intero
+	private int size;	//Il numero di indirizzi dell'intervallo
+	private String range;	//L'intervallo nella forma indirizzo/prefisso, per i messaggi
+	private BitSet used;	//Il bit i e' a 1 se l'indirizzo base+i e' assegnato ad una chat
+	private int next;	//La posizione da cui cercare il prossimo indirizzo libero
+	private int count;	//Il numero di indirizzi assegnati
+
+	/**
+	 * costruttore per la classe multicast allocator
+	 * @param range l'intervallo di indirizzi nella forma indirizzo/prefisso, contenuto in 224.0.0.0/4
+	 * @throws IllegalArgumentException se l'intervallo non e' valido o non e' multicast
+	 */
+	public MulticastAllocator(String range) {
+
+		int separator = range.indexOf('/');
+
+		if(separator<0) throw new IllegalArgumentException("Intervallo non valido: "+range+" (indirizzo/prefisso)");
+
+		int prefix;
+		try {
+			prefix = Integer.parseInt(range.substring(separator+1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Prefisso non valido: "+range);
+		}
+
+		if(prefix<4 || prefix>32) throw new IllegalArgumentException("Prefisso non valido: "+range+" (da 4 a 32)");
+
+		int address = parseAddress(range.substring(0, separator));
+
+		if((address & 0xF0000000)!=0xE0000000) throw new IllegalArgumentException("Intervallo non multicast: "+range+" (224.0.0.0/4)");
+
+		int mask = prefix==32 ? -1 : ~(-1>>>prefix);
+
+		this.base = address & mask;	//Ignora i bit oltre il prefisso
+		this.size = (int) (1L<<(32-prefix));	//Al massimo 2^28 con il prefisso 4
+		this.range = range;
+		this.used = new BitSet();	//Cresce fino all'ultimo indirizzo assegnato
+
+	}
+
+	/**
+	 * metodo di utility chiamato per convertire un indirizzo a.b.c.d in un intero
+	 * @param address l'indirizzo da convertire
+	 * @return l'indirizzo come intero, il primo byte nei bit piu' significativi
+	 */
+	private static int parseAddress(String address) {
+
+		String[] parts = address.split("\\.");
+
+		if(parts.length!=4) throw new IllegalArgumentException("Indirizzo non valido: "+address);
+
+		int n = 0;
+
+		for(String part : parts) {
+			int b;
+			try {
+				b = Integer.parseInt(part);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Indirizzo non valido: "+address);
+			}
+			if(b<0 || b>255) throw new IllegalArgumentException("Indirizzo non valido: "+address);
+			n = n<<8 | b;
+		}
+
+		return n;
+	}
+
+	/**
+	 * metodo chiamato all'avvio di una chat per assegnarle un indirizzo libero
+	 * @return l'indirizzo assegnato, null se tutti gli indirizzi dell'intervallo sono assegnati
+	 */
+	public synchronized InetAddress allocate() {
+
+		if(this.count==this.size) return null;
+
+		int i = this.used.nextClearBit(this.next);
+
+		if(i>=this.size) i = this.used.nextClearBit(0);	//Fine dell'intervallo, riparte dall'inizio
+
+		this.used.set(i);
+		this.count++;
+		this.next = i+1<this.size ? i+1 : 0;
+
+		return toAddress(i);
+	}
+
+	/**
+	 * metodo chiamato all'avvio per assegnare di nuovo ad una chat l'indirizzo salvato,
+	 * prima di assegnare con allocate un indirizzo alle chat che non ne hanno uno
+	 * la ricerca di allocate prosegue dopo l'ultimo indirizzo assegnato di nuovo
+	 * @param address l'indirizzo salvato nella forma a.b.c.d, null se la chat non ne ha uno
+	 * @return l'indirizzo assegnato, null se non fa parte dell'intervallo o e' gia' assegnato ad un'altra chat
+	 */
+	public synchronized InetAddress reserve(String address) {
+
+		if(address==null) return null;
+
+		long i;
+		try {
+			i = (parseAddress(address) & 0xFFFFFFFFL)-(this.base & 0xFFFFFFFFL);
+		} catch (IllegalArgumentException e) {
+			return null;	//Archivio scritto con un indirizzo non valido
+		}
+
+		if(i<0 || i>=this.size || this.used.get((int) i)) return null;	//Intervallo cambiato o indirizzo gia' assegnato
+
+		this.used.set((int) i);
+		this.count++;
+		if(i>=this.next) this.next = i+1<this.size ? (int) i+1 : 0;
+
+		return toAddress((int) i);
+	}
+
+	/**
+	 * metodo di utility chiamato per convertire la posizione di un indirizzo nell'intervallo in un InetAddress
+	 * @param i la posizione dell'indirizzo
+	 * @return l'indirizzo base+i
+	 */
+	private InetAddress toAddress(int i) {
+
+		int address = this.base+i;
+
+		try {
+			return InetAddress.getByAddress(new byte[] {(byte) (address>>>24), (byte) (address>>>16), (byte) (address>>>8), (byte) address});	//Nessuna risoluzione DNS
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);	//Impossibile con quattro byte
+		}
+	}
+
+	/**
+	 * metodo chiamato alla cancellazione di un progetto per liberare l'indirizzo della sua chat
+	 * @param group l'indirizzo restituito da allocate
+	 */
+	public synchronized void release(InetAddress group) {
+
+		byte[] b = group.getAddress();
+
+		int i = ((b[0] & 0xFF)<<24 | (b[1] & 0xFF)<<16 | (b[2] & 0xFF)<<8 | (b[3] & 0xFF))-this.base;
+
+		if(i<0 || i>=this.size || !this.used.get(i)) return;	//Non assegnato da questo allocatore
+
+		this.used.clear(i);
+		this.count--;
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero di indirizzi assegnati
+	 * @return il numero di chat con un indirizzo
+	 */
+	public synchronized int allocated() {
+		return this.count;
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero di indirizzi dell'intervallo
+	 * @return il numero massimo di chat
+	 */
+	public int capacity() {
+		return this.size;
+	}
+
+	public String toString() {
+		return this.range;
+	}
+
+}
@@ -1,88 +1,112 @@
 package worth;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 public class MulticastChat {
-	
-	private MulticastSocket multicastSocket;	//Utilizzata per salvare messaggi nella struttura dati chat
-	
+
+	private InetAddress group;	//Il gruppo multicast su cui i membri inviano i messaggi
+
+	private InetSocketAddress destination;	//Gruppo e porta su cui il server inoltra i messaggi numerati
+
+	private byte[] project;	//Il nome del progetto in UTF-8, nell'header dei messaggi inoltrati
+
 	private String address;
-	
+
 	private int chatPort;
-	
-	public ArrayList<String> chat;
-	
-	public MulticastChat (int chatPort, int n1, int n2, int n3, int n4) {
-		
-		this.address = String.valueOf(n1)+"."+String.valueOf(n2)+"."+String.valueOf(n3)+"."+String.valueOf(n4);
-		
+
+	private volatile boolean closed;	//true se il progetto e' stato cancellato, letto dal thread del ChatReceiver
+
+	private volatile int onlineMembers;	//I membri online, modificato con il lock del server in scrittura o dalla corsia del progetto
+
+	private ChatHistory history;	//Gli ultimi messaggi ricevuti, con il loro numero di sequenza
+
+	private long announcedSeq;	//L'ultimo numero di sequenza annunciato sul gruppo, usato solo dal thread del ChatReceiver
+
+	public MulticastChat (String projectname, int chatPort, int historySize, InetAddress group, ChatHistory.Reservation reservation) {
+
+		this.group = group;
+
+		this.destination = new InetSocketAddress(group, chatPort);
+
+		this.project = projectname.getBytes(StandardCharsets.UTF_8);
+
+		this.address = group.getHostAddress();
+
 		this.chatPort = chatPort;
-		
-		this.chat = new ArrayList<String>();
-		
-		startMulticast();
+
+		this.history = new ChatHistory(historySize, reservation);
 	}
-	
-	public void startMulticast() {
-		
-		try {
-			this.multicastSocket = new MulticastSocket(this.chatPort);
-		} catch (IOException e) {
-			Thread.currentThread().interrupt();
-			return;
-		}
-		
-		InetAddress address = null;
-		try {
-			address = InetAddress.getByName(this.address);
-		} catch (UnknownHostException e) {
-			Thread.currentThread().interrupt();
-			return;
-		}
-		
-		try {
-			this.multicastSocket.joinGroup(address);
-		} catch (IOException e) {
-			e.printStackTrace();
-			Thread.currentThread().interrupt();
-			return;
-		}
-		
+
+	/**
+	 * metodo chiamato dal ChatReceiver per salvare un messaggio ricevuto sul gruppo
+	 * @param message il buffer di ricezione con i byte del messaggio tra position e limit
+	 * @return il numero di sequenza del messaggio, 0 se ancora provvisorio
+	 */
+	public long addMessage(ByteBuffer message) {
+		return this.history.add(message);	//La storia e' sincronizzata, puo' essere letta in contemporanea dai thread del pool
 	}
-	
-	public void saveChatMessage() {
-		
-		byte[] data;
-		try {
-			data = new byte[this.multicastSocket.getReceiveBufferSize()];
-		} catch (SocketException e1) {
-			e1.printStackTrace();
-			return;
-		}	//Crea l'array di byte con il contenuto da ricevere
-		
-		DatagramPacket packet = new DatagramPacket(data, data.length);	//Crea il pacchetto da ricevere tramite multicast
-		try {
-			this.multicastSocket.receive(packet);	//Ricerca un nuovo messaggio
-		} catch(SocketTimeoutException e) {
-			e.printStackTrace();
-			return;
-		} catch (IOException e) {
-			e.printStackTrace();
-			return;
-		}
-			
-		String message = new String(data);
-		
-		this.chat.add(message);	//Salva il nuovo messaggio nella chat
+
+	/**
+	 * metodo chiamato alla cancellazione del progetto, i messaggi ricevuti in seguito vengono scartati
+	 */
+	public void close() {
+		this.closed = true;
+	}
+
+	public boolean isClosed() {
+		return this.closed;
 	}
-	
+
+	/**
+	 * metodo chiamato quando un membro del progetto diventa online
+	 */
+	public void memberOnline() {
+		this.onlineMembers++;
+	}
+
+	/**
+	 * metodo chiamato quando un membro del progetto va offline
+	 */
+	public void memberOffline() {
+		if(this.onlineMembers>0) this.onlineMembers--;
+	}
+
+	/**
+	 * metodo chiamato dal ChatReceiver per sapere se ricevere la chat: solo i membri online
+	 * ricevono dal server l'indirizzo del gruppo su cui inviare i messaggi
+	 * @return true se il progetto non e' stato cancellato e ha almeno un membro online
+	 */
+	public boolean isActive() {
+		return !this.closed && this.onlineMembers>0;
+	}
+
+	public ChatHistory getHistory() {
+		return this.history;
+	}
+
+	public InetAddress getGroup() {
+		return this.group;
+	}
+
+	public InetSocketAddress getDestination() {
+		return this.destination;
+	}
+
+	public byte[] getProject() {
+		return this.project;
+	}
+
+	public long getAnnouncedSeq() {
+		return this.announcedSeq;
+	}
+
+	public void setAnnouncedSeq(long seq) {
+		this.announcedSeq = seq;
+	}
+
 	public String getAddress() {
 		return this.address+":"+this.chatPort;
 	}
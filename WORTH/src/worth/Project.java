@@ -1,12 +1,18 @@
 package worth;
 
 import java.io.IOException;
-import java.net.SocketTimeoutException;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
 public class Project {
 	
@@ -14,14 +20,17 @@ public class Project {
 	private String projectName;	//Il nome del progetto
 	private String createdBy;	//Il nome dell'utente che ha creato il progetto
 	private String[] members;	//I nomi utente dei membri del progetto
-	private ArrayList<Card> todoList;	//La lista contenente le card in stato "todo"
-	private ArrayList<Card> inprogressList;	//La lista contenente le card in stato "inprogress"
-	private ArrayList<Card> toberevisedList;	//La lista contenente le card in stato "toberevised"
-	private ArrayList<Card> doneList;	//La lista contenente le card in stato "done"
+	private EnumMap<CardState, LinkedHashMap<String, Card>> lists;	//Per ogni stato, la lista delle card in quello stato in ordine di inserimento
+	private Map<String, Card> cards;	//Indice di tutte le card del progetto per nome
+	private long lsn;	//Il numero di sequenza dell'ultima modifica del journal applicata al progetto
+	private boolean loaded;	//true se le card del progetto sono in memoria
+	private long lastAccess;	//L'istante dell'ultimo accesso alle card del progetto
 	
 	
 	private int chatPort;	//La porta su cui aprire il gruppo multicast, decisa dal server
 	private MulticastChat chat;
+	private String chatGroup;	//L'indirizzo multicast della chat, salvato nell'archivio e assegnato di nuovo alla chat al riavvio
+	private boolean chatLoaded;	//true se i messaggi della chat salvati nell'archivio sono stati letti
 	
 	/**
 	 * costruttore per la classe project, viene invocato dal server
@@ -41,53 +50,88 @@ public class Project {
 
 		this.members = new String[0];	//Nuovo array vuoto
 		
-		this.todoList = new ArrayList<Card>();
+		this.lists = new EnumMap<CardState, LinkedHashMap<String, Card>>(CardState.class);
 		
-		this.inprogressList = new ArrayList<Card>();
+		for(CardState state : CardState.values()) {
+			this.lists.put(state, new LinkedHashMap<String, Card>());
+		}
 		
-		this.toberevisedList = new ArrayList<Card>();
-		
-		this.doneList = new ArrayList<Card>();
+		this.cards = new HashMap<String, Card>();
 		
 	}
 	
 	/**
-	 * metodo chiamato alla creazione di un nuovo progetto, inizializza this.multicastSocket 
-	 * e fa il join ad un gruppo su localhost alla porta this.chatPort
-	 * rimane quindi in ascolto di messaggi sul gruppo e, quando ne viene ricevuto uno, viene
-	 * salvato nella struttura dati locale this.chat
-	 * @param serverThread il thread del server, utilizzato per la terminazione del servizio chat
+	 * metodo chiamato alla creazione di un nuovo progetto o alla lettura dall'archivio,
+	 * crea la chat del progetto sul gruppo group alla porta chatPort, che il receiver del server
+	 * riceve finche' almeno un membro e' online salvando nella struttura dati locale this.chat
+	 * ogni messaggio ricevuto sul gruppo
 	 * @param chatPort la porta su cui aprire il gruppo multicast per la chat
+	 * @param historySize il numero di messaggi della chat da tenere in memoria
+	 * @param group l'indirizzo multicast assegnato alla chat dal server
+	 * @param reservation la scrittura nell'archivio dei numeri di sequenza riservati della chat
 	 */
-	public void startChatService(int chatPort, int n1, int n2, int n3, int n4) {
+	public void startChatService(int chatPort, int historySize, InetAddress group, ChatHistory.Reservation reservation) {
+		
+		MulticastChat chat = new MulticastChat(this.projectName, chatPort, historySize, group, reservation);
+		
+		if(this.chatLoaded) chat.getHistory().number();	//Progetto nuovo, i numeri di sequenza sono gi definitivi
 		
-		MulticastChat chat = new MulticastChat(chatPort, n1, n2, n3, n4);
+		this.chatPort = chatPort;
 		
 		this.chat = chat;
 		
+		this.chatGroup = group.getHostAddress();
+		
 	}
 	
 	/**
-	 * metodo chiamato alla cancellazione di un progetto, rimuove la reference all'oggetto
-	 * multicast chat, che verr eliminato dal garbage collector
+	 * metodo chiamato quando un membro del progetto effettua il login o un utente online
+	 * viene aggiunto al progetto, il receiver inizia a ricevere la chat al primo membro online
+	 * @param receiver il receiver che riceve i messaggi di tutte le chat
 	 */
-	public void stopChatService() {
+	public void chatMemberOnline(ChatReceiver receiver) {
 		
-		//Rimuove la reference alla chat multicast, che verr eliminata con il garbage collector
-		this.chat = null;
+		if(this.chat==null) return;
+		
+		this.chat.memberOnline();
+		
+		receiver.update(this.chat);
+	}
+	
+	/**
+	 * metodo chiamato quando un membro del progetto effettua il logout,
+	 * il receiver smette di ricevere la chat quando non restano membri online
+	 * @param receiver il receiver che riceve i messaggi di tutte le chat
+	 */
+	public void chatMemberOffline(ChatReceiver receiver) {
+		
+		if(this.chat==null) return;
+		
+		this.chat.memberOffline();
+		
+		receiver.update(this.chat);
 	}
 	
 	/**
-	 * metodo chiamato dal server per tentare la lettura di un nuovo messaggio
-	 * sul gruppo multicast
-	 * @throws IOException se il pacchetto non pu essere ricevuto correttamente
-	 * @throws SocketTimeoutException se il tempo per la ricezione di un nuovo messaggio  terminato
-	 * 
+	 * metodo chiamato alla cancellazione di un progetto, chiude l'iscrizione al gruppo
+	 * e rimuove la reference all'oggetto multicast chat, che verr eliminato dal garbage collector
+	 * @param receiver il receiver che riceve i messaggi di tutte le chat
+	 * @return l'indirizzo multicast della chat, da liberare, null se il progetto non ha una chat
 	 */
-	public void refreshChat() {
+	public InetAddress stopChatService(ChatReceiver receiver) {
+		
+		if(this.chat==null) return null;	//Nessun indirizzo multicast disponibile all'avvio
+		
+		receiver.leave(this.chat);
+		
+		InetAddress group = this.chat.getGroup();
+		
+		//Rimuove la reference alla chat multicast, che verr eliminata con il garbage collector
+		this.chat = null;
 		
-		this.chat.saveChatMessage();
+		this.chatGroup = null;
 		
+		return group;
 	}
 	
 	/**
@@ -111,39 +155,56 @@ public class Project {
 	 * @param members la lista dei membri del progetto
 	 */
 	public void setMembers(ArrayList<String> members) {
-		this.members = members.toArray(this.members);
+		this.members = members.toArray(new String[members.size()]);	//Mai l'array precedente, che con meno membri conterrebbe null
 	}
 	
 	/**
 	 * metodo chiamato dal server per impostare la lista todo del progetto
 	 * @param members la lista todo del progetto
 	 */
-	public void setTodoList(ArrayList<Card> list) {
-		this.todoList = list;
+	public void setTodoList(List<Card> list) {
+		replaceCards(CardState.TODO, list);
 	}
 	
 	/**
 	 * metodo chiamato dal server per impostare la lista inprogress del progetto
 	 * @param members la lista inprogress del progetto
 	 */
-	public void setInprogressList(ArrayList<Card> list) {
-		this.inprogressList = list;
+	public void setInprogressList(List<Card> list) {
+		replaceCards(CardState.INPROGRESS, list);
 	}
 	
 	/**
 	 * metodo chiamato dal server per impostare la lista toberevised del progetto
 	 * @param members la lista toberevised del progetto
 	 */
-	public void setToberevisedList(ArrayList<Card> list) {
-		this.toberevisedList = list;
+	public void setToberevisedList(List<Card> list) {
+		replaceCards(CardState.TOBEREVISED, list);
 	}
 	
 	/**
 	 * metodo chiamato dal server per impostare la lista done del progetto
 	 * @param members la lista done del progetto
 	 */
-	public void setDoneList(ArrayList<Card> list) {
-		this.doneList = list;
+	public void setDoneList(List<Card> list) {
+		replaceCards(CardState.DONE, list);
+	}
+	
+	/**
+	 * metodo chiamato dal server dopo aver aggiunto al journal una modifica del progetto
+	 * @param lsn il numero di sequenza della modifica
+	 */
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+	
+	/**
+	 * metodo chiamato alla lettura dall'archivio per impostare l'indirizzo multicast salvato della chat,
+	 * che il server assegna di nuovo alla chat all'avvio
+	 * @param group l'indirizzo della chat, null se il progetto non ne aveva uno
+	 */
+	public void setChatGroup(String group) {
+		this.chatGroup = group;
 	}
 	
 	/**
@@ -169,65 +230,356 @@ public class Project {
 	public List<String> getMembers() {
 		return Arrays.asList(this.members);
 	}
+	
+	/**
+	 * metodo chiamato per restituire il numero di sequenza dell'ultima modifica del journal
+	 * applicata al progetto, le modifiche con numero minore sono gi contenute nel file project.json
+	 * @return il numero di sequenza, 0 se il progetto non  mai stato modificato tramite journal
+	 */
+	public long getLsn() {
+		return this.lsn;
+	}
+	
+	/**
+	 * metodo chiamato per restituire l'indirizzo multicast della chat, da salvare nell'archivio
+	 * @return l'indirizzo della chat, null se non  stato possibile assegnarne uno
+	 */
+	public String getChatGroup() {
+		return this.chatGroup;
+	}
 
 	/**
 	 * metodo chiamato per restituire la lista di card con stato "todo"
 	 * @return la lista di card con stato "todo"
 	 */
-	public ArrayList<Card> getTodoList() {
-		return todoList;
+	@JsonIgnoreProperties({"projectname", "description", "history"})	//Nel progetto solo nome, stato e lsn, il contenuto  salvato nella card
+	public Collection<Card> getTodoList() {
+		return this.lists.get(CardState.TODO).values();
 	}
 
 	/**
 	 * metodo chiamato per restituire la lista di card con stato "inprogress"
 	 * @return la lista di card con stato "inprogress"
 	 */
-	public ArrayList<Card> getInprogressList() {
-		return inprogressList;
+	@JsonIgnoreProperties({"projectname", "description", "history"})
+	public Collection<Card> getInprogressList() {
+		return this.lists.get(CardState.INPROGRESS).values();
 	}
 
 	/**
 	 * metodo chiamato per restituire la lista di card con stato "toberevised"
 	 * @return la lista di card con stato "toberevised"
 	 */
-	public ArrayList<Card> getToberevisedList() {
-		return toberevisedList;
+	@JsonIgnoreProperties({"projectname", "description", "history"})
+	public Collection<Card> getToberevisedList() {
+		return this.lists.get(CardState.TOBEREVISED).values();
 	}
 
 	/**
 	 * metodo chiamato per restituire la lista di card con stato "done"
 	 * @return la lista di card con stato "done"
 	 */
-	public ArrayList<Card> getDoneList() {
-		return doneList;
+	@JsonIgnoreProperties({"projectname", "description", "history"})
+	public Collection<Card> getDoneList() {
+		return this.lists.get(CardState.DONE).values();
 	}
 	
 	@JsonIgnore
 	/**
-	 * metodo chiamato per restituire la lista di tutte le card associate al progetto
+	 * metodo chiamato per restituire la lista di tutte le card associate al progetto,
+	 * nell'ordine delle liste todo, inprogress, toberevised e done
 	 * @return la lista delle card del progetto
 	 */
 	public ArrayList<Card> getAllCards() {
 		
-		ArrayList<Card> cards = new ArrayList<Card>();
+		ArrayList<Card> cards = new ArrayList<Card>(this.cards.size());
 		
-		cards.addAll(this.todoList);
+		for(LinkedHashMap<String, Card> list : this.lists.values()) {	//EnumMap restituisce le liste nell'ordine degli stati
+			cards.addAll(list.values());
+		}
 		
-		cards.addAll(this.inprogressList);
+		return cards;
+	}
+	
+	/**
+	 * metodo chiamato per cercare una card del progetto a partire dal nome
+	 * @param cardname il nome della card
+	 * @return la card, null se non esiste una card con il nome specificato
+	 */
+	public Card retrieveCard(String cardname) {
+		return this.cards.get(cardname);
+	}
+	
+	/**
+	 * metodo chiamato per restituire il numero di card del progetto
+	 * @return il numero di card in tutte le liste
+	 */
+	public int countCards() {
+		return this.cards.size();
+	}
+	
+	/**
+	 * metodo chiamato per restituire il numero di card del progetto in un certo stato
+	 * @param state lo stato delle card da contare
+	 * @return il numero di card nella lista corrispondente allo stato
+	 */
+	public int countCards(CardState state) {
+		return this.lists.get(state).size();
+	}
+	
+	/**
+	 * metodo chiamato per aggiungere una nuova card al progetto,
+	 * nella lista corrispondente allo stato della card
+	 * @param card la card da aggiungere
+	 */
+	public void addCard(Card card) {
+		
+		this.lists.get(card.getCurrentList()).put(card.getName(), card);
 		
-		cards.addAll(this.toberevisedList);
+		this.cards.put(card.getName(), card);
+	}
+	
+	/**
+	 * metodo chiamato per rimuovere dal progetto una card appena aggiunta, se la modifica
+	 * non pu essere salvata sul journal
+	 * @param card la card da rimuovere
+	 */
+	public void removeCard(Card card) {
 		
-		cards.addAll(this.doneList);
+		this.lists.get(card.getCurrentList()).remove(card.getName());
 		
-		return cards;
+		this.cards.remove(card.getName());
+	}
+	
+	/**
+	 * metodo chiamato per spostare una card da una lista ad un'altra, in tempo costante
+	 * indipendentemente dal numero di card del progetto
+	 * la validit dello spostamento deve essere gi stata verificata con CardState.canMoveTo
+	 * @param card la card da spostare
+	 * @param to lo stato destinazione
+	 */
+	public void moveCard(Card card, CardState to) {
+		
+		this.lists.get(card.getCurrentList()).remove(card.getName());
+		
+		card.setCurrentList(to);
+		
+		this.lists.get(to).put(card.getName(), card);
+	}
+	
+	/**
+	 * metodo chiamato per sostituire il contenuto della lista di uno stato,
+	 * aggiornando l'indice delle card
+	 * @param state lo stato della lista da sostituire
+	 * @param list le nuove card della lista
+	 */
+	public void replaceCards(CardState state, List<Card> list) {
+		
+		LinkedHashMap<String, Card> target = this.lists.get(state);
+		
+		for(String name : target.keySet()) {
+			this.cards.remove(name);
+		}
+		
+		target.clear();
+		
+		for(Card c : list) {
+			target.put(c.getName(), c);
+			this.cards.put(c.getName(), c);
+		}
+	}
+	
+	/**
+	 * metodo chiamato per sapere se le card del progetto sono in memoria: un progetto letto
+	 * all'avvio contiene solo nome, creatore e membri finch non viene usato
+	 * @return true se le card sono in memoria, false altrimenti
+	 */
+	public boolean cardsLoaded() {
+		return this.loaded;
+	}
+	
+	/**
+	 * metodo chiamato alla creazione di un nuovo progetto, che non ha card da leggere dai file
+	 */
+	public void markCardsLoaded() {
+		this.loaded = true;
+	}
+	
+	/**
+	 * metodo chiamato dal server per copiare nel progetto le card lette dai suoi file
+	 * @param saved il progetto letto dai file, con le card nelle rispettive liste
+	 */
+	public void restoreCards(Project saved) {
+		
+		for(CardState state : CardState.values()) {
+			replaceCards(state, new ArrayList<Card>(saved.lists.get(state).values()));
+		}
+		
+		this.loaded = true;
+	}
+	
+	/**
+	 * metodo chiamato dal server per scaricare dalla memoria le card di un progetto non usato,
+	 * le cui modifiche sono gi state salvate nei file
+	 */
+	public void unloadCards() {
+		
+		for(CardState state : CardState.values()) {
+			this.lists.put(state, new LinkedHashMap<String, Card>());
+		}
+		
+		this.cards = new HashMap<String, Card>();
+		
+		this.loaded = false;
+	}
+	
+	/**
+	 * metodo chiamato dal server ad ogni accesso alle card del progetto
+	 * @param time l'istante dell'accesso
+	 */
+	public void markAccess(long time) {
+		this.lastAccess = time;
+	}
+	
+	/**
+	 * metodo chiamato per restituire l'istante dell'ultimo accesso alle card del progetto
+	 * @return l'istante dell'ultimo accesso
+	 */
+	public long retrieveLastAccess() {
+		return this.lastAccess;
+	}
+	
+	/**
+	 * metodo chiamato per restituire gli ultimi messaggi della chat associata al progetto,
+	 * quelli tenuti in memoria, fino ad un numero di sequenza letto con retrieveLastChatSeq
+	 * @param last il numero di sequenza dell'ultimo messaggio da restituire
+	 * @return una copia dei messaggi, dal pi vecchio, null per i numeri di sequenza senza messaggio
+	 */
+	public List<String> retrieveChatMessages(long last) {
+		if(this.chat==null) return new ArrayList<String>();
+		return this.chat.getHistory().recent(last);
+	}
+	
+	/**
+	 * metodo chiamato per restituire i messaggi della chat associata al progetto
+	 * successivi ad un numero di sequenza, se sono ancora in memoria
+	 * @param seq il numero di sequenza dell'ultimo messaggio gi letto
+	 * @param max il numero massimo di messaggi da restituire
+	 * @return una copia dei messaggi, dal pi vecchio, null per i numeri di sequenza senza messaggio,
+	 * vuota se il messaggio seq+1  solo nell'archivio
+	 */
+	public List<String> retrieveChatMessages(long seq, int max) {
+		if(this.chat==null) return new ArrayList<String>();
+		return this.chat.getHistory().since(seq, max);
+	}
+	
+	/**
+	 * metodo chiamato per restituire il numero di sequenza del messaggio pi vecchio in memoria
+	 * @return il numero di sequenza, i precedenti sono solo nell'archivio
+	 */
+	public long retrieveFirstChatSeq() {
+		if(this.chat==null) return 1;
+		return this.chat.getHistory().firstSeq();
+	}
+	
+	/**
+	 * metodo chiamato per restituire il numero di sequenza dell'ultimo messaggio in chat
+	 * @return il numero di sequenza, 0 se la chat  vuota
+	 */
+	public long retrieveLastChatSeq() {
+		if(this.chat==null) return 0;
+		return this.chat.getHistory().lastSeq();
+	}
+	
+	/**
+	 * metodo chiamato per sapere se i messaggi della chat salvati nell'archivio sono stati letti:
+	 * prima della lettura la chat di un progetto letto all'avvio contiene solo i messaggi
+	 * ricevuti dopo l'avvio, numerati a partire da 1
+	 * @return true se i messaggi salvati sono stati letti, false altrimenti
+	 */
+	public boolean chatLoaded() {
+		return this.chatLoaded;
+	}
+	
+	/**
+	 * metodo chiamato alla creazione di un nuovo progetto, che non ha messaggi da leggere dall'archivio
+	 */
+	public void markChatLoaded() {
+		this.chatLoaded = true;
+	}
+	
+	/**
+	 * metodo chiamato dal server dopo aver letto i messaggi salvati nell'archivio: i messaggi
+	 * ricevuti dopo l'avvio vengono numerati dopo quelli salvati, i pi recenti dei quali
+	 * vengono tenuti in memoria
+	 * @param saved i messaggi letti dall'archivio, dal pi vecchio
+	 */
+	public void restoreChat(List<String> saved) {
+		
+		if(this.chat!=null) this.chat.getHistory().restore(saved);
+		
+		this.chatLoaded = true;
+	}
+	
+	/**
+	 * metodo chiamato dal server dopo aver salvato nell'archivio l'ultimo numero di sequenza
+	 * riservato della chat: i messaggi fino a last possono essere comunicati ai membri
+	 * @param last l'ultimo numero di sequenza riservato
+	 */
+	public void chatReserved(long last) {
+		if(this.chat!=null) this.chat.getHistory().reserved(last);
+	}
+	
+	/**
+	 * metodo chiamato dal server se l'ultimo numero di sequenza riservato della chat
+	 * non pu essere salvato nell'archivio
+	 */
+	public void chatReserveFailed() {
+		if(this.chat!=null) this.chat.getHistory().reserveFailed();
+	}
+	
+	/**
+	 * metodo chiamato dal checkpoint per chiedere di nuovo la riserva dei numeri di sequenza
+	 * della chat, se l'ultima scrittura  fallita e i messaggi ricevuti sono ancora provvisori
+	 */
+	public void requestChatReservation() {
+		if(this.chat!=null) this.chat.getHistory().requestReservation();
+	}
+	
+	/**
+	 * metodo chiamato dal checkpoint, prima di retrieveUnsavedMessages, per restituire
+	 * il numero di sequenza dell'ultimo messaggio gi passato ad un checkpoint
+	 * @return il numero di sequenza, i messaggi da salvare partono dal successivo
+	 */
+	public long retrieveSavedChatSeq() {
+		if(this.chat==null) return 0;
+		return this.chat.getHistory().pendingSeq();
+	}
+	
+	/**
+	 * metodo chiamato dal checkpoint per restituire i messaggi della chat non ancora salvati
+	 * nell'archivio, che restano in memoria finch il checkpoint non chiama savedMessages
+	 * @return i messaggi da salvare, dal pi vecchio
+	 */
+	public List<String> retrieveUnsavedMessages() {
+		if(this.chat==null) return new ArrayList<String>();
+		return this.chat.getHistory().unsaved();
+	}
+	
+	/**
+	 * metodo chiamato dal checkpoint dopo aver aggiunto all'archivio i messaggi restituiti
+	 * da retrieveUnsavedMessages
+	 */
+	public void savedMessages() {
+		if(this.chat!=null) this.chat.getHistory().saved();
 	}
 	
 	/**
-	 * metodo chiamato per restituire i messaggi nella chat associata al progetto
-	 * @return la lista dei messaggi in chat
+	 * metodo chiamato se il checkpoint fallisce, per salvare di nuovo i messaggi restituiti
+	 * da retrieveUnsavedMessages al checkpoint successivo
 	 */
-	public ArrayList<String> retrieveChatMessages() {
-		return this.chat.chat;
+	public void unsaveMessages() {
+		if(this.chat!=null) this.chat.getHistory().unsave();
 	}
 	
 	/**
@@ -240,9 +592,10 @@ public class Project {
 	
 	/**
 	 * metodo chiamato per restituire l'indirizzo della chat associata al progetto
-	 * @return l'indirizzo della chat multicast del progetto
+	 * @return l'indirizzo della chat multicast del progetto, null se non  stato possibile assegnarne uno
 	 */
 	public String retrieveAddress() {
+		if(this.chat==null) return null;
 		return this.chat.getAddress();
 	}
 }
@@ -44,8 +44,4 @@ public class RMIUserImpl implements RMIUserInterface {
 		return this.server.needToSendMessage(projectname, username);
 	}
 
-	public void didSendMessage(String projectname) throws RemoteException {
-		this.server.didSendMessage(projectname);
-	}
-
 }
@@ -0,0 +1,321 @@
+package worth;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *
+ * Loop NIO Multiplexing con un proprio selettore: gestisce lettura e scrittura
+ * delle connessioni che gli vengono assegnate e, se gli viene associato il canale
+ * del server, accetta anche le nuove connessioni distribuendole tra i reactor worker
+ *
+ */
+public class Reactor implements Runnable {
+
+	//Abilita o disabilita la modalita' debug
+	private static boolean DEBUG = false;
+
+	private Server server;	//Il server a cui inoltrare le richieste ricevute
+	private Selector selector;	//Selettore del reactor
+	private Queue<SocketChannel> pendingChannels;	//Connessioni assegnate al reactor e non ancora registrate sul selettore
+	private Queue<Request> completedRequests;	//Richieste eseguite dal pool con la risposta da inviare
+
+	/**
+	 * costruttore per la classe reactor, invocato dal server all'avvio
+	 * @param server il server a cui inoltrare le richieste
+	 * @throws IOException se il selettore non puo' essere aperto
+	 */
+	public Reactor(Server server) throws IOException {
+
+		this.server = server;
+
+		this.selector = Selector.open();
+
+		this.pendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+
+		this.completedRequests = new ConcurrentLinkedQueue<Request>();
+
+	}
+
+	/**
+	 * metodo chiamato dal server per associare al reactor il canale su cui accettare
+	 * le nuove connessioni
+	 * @param serverChannel il canale del server, non bloccante
+	 * @throws IOException se il canale non puo' essere registrato sul selettore
+	 */
+	public void listen(ServerSocketChannel serverChannel) throws IOException {
+		serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * metodo chiamato per assegnare al reactor una nuova connessione,
+	 * che viene registrata sul selettore dal thread del reactor
+	 * @param channel il canale della connessione accettata
+	 */
+	public void assign(SocketChannel channel) {
+
+		this.pendingChannels.add(channel);
+
+		this.selector.wakeup();	//Sblocca la select per registrare subito la connessione
+	}
+
+	/**
+	 * metodo chiamato da un thread del pool per restituire al reactor una richiesta eseguita,
+	 * la risposta viene accodata sulla connessione dal thread del reactor
+	 * @param request la richiesta eseguita
+	 */
+	public void complete(Request request) {
+
+		this.completedRequests.add(request);
+
+		this.selector.wakeup();	//Sblocca la select per inviare subito la risposta
+	}
+
+	/**
+	 * Reactor Loop: gestisce finche' non terminato tutte le richieste TCP
+	 * delle connessioni assegnate al reactor
+	 */
+	public void run() {
+
+		while(this.selector.isOpen()) {
+			try {
+				int keys = this.selector.select();
+
+				registerPendingChannels();
+
+				handleCompletedRequests();
+
+				if(keys>0) handleKeys(this.selector.selectedKeys());	//Gestisce le richieste TCP dei client
+
+			} catch (IOException e) {
+				if(DEBUG) System.err.println("Failed to retrieve NIO Multiplexing Selector keys");
+				e.printStackTrace();
+				System.exit(0);	//Termina il server
+			}
+		}
+
+	}
+
+	/**
+	 * metodo chiamato nel Reactor Loop per registrare in lettura le connessioni assegnate
+	 * al reactor, ad ognuna viene associata una nuova sessione come attachment
+	 */
+	private void registerPendingChannels() {
+
+		SocketChannel channel;
+
+		while((channel = this.pendingChannels.poll())!=null) {
+			try {
+				channel.configureBlocking(false);
+
+				channel.register(this.selector, SelectionKey.OP_READ, new Session(this.server.getCommands()));	//Lo stato della connessione viene salvato come attachment
+			} catch (IOException e) {
+				if(DEBUG) System.err.println("Error in registering client connection");
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					if(DEBUG) System.err.println("Error closing connection");
+				}
+			}
+		}
+	}
+
+	/**
+	 * metodo chiamato nel Reactor Loop per accodare sulle connessioni le risposte
+	 * delle richieste eseguite dal pool, nell'ordine in cui sono state completate
+	 * le connessioni dei client che hanno effettuato il logout vengono chiuse
+	 * dopo aver inviato le risposte di tutte le richieste ancora in esecuzione
+	 */
+	private void handleCompletedRequests() {
+
+		Request request;
+
+		while((request = this.completedRequests.poll())!=null) {
+
+			SelectionKey key = request.getKey();
+
+			if(!key.isValid()) continue;	//Connessione chiusa nel frattempo
+
+			Session session = (Session) key.attachment();
+
+			session.requestCompleted();
+
+			if(request.authenticates()) session.setAuthenticated();	//Accetta messaggi grandi solo dopo il login
+
+			if(request.closesConnection()) {
+				session.setClosing();	//Non accetta altri comandi dal client
+			}
+			else {
+				session.queueResponse(request.getId(), request.getResponse());
+			}
+
+			session.recycle(request);	//La richiesta viene riutilizzata per i prossimi comandi della connessione
+
+			sendResponse(key);	//Prova subito ad inviare, il resto della risposta viene inviato quando il canale torna scrivibile
+		}
+	}
+
+	/**
+	 * Gestore delle chiavi
+	 * metodo chiamato nel Reactor Loop per gestire le richieste TCP dei client
+	 * @param keys le chiavi da gestire
+	 */
+	private void handleKeys(Set<SelectionKey> keys) {
+
+		Iterator<SelectionKey> iterator = keys.iterator();	//Iteratore per il set di chiavi
+
+		//Analizza tutte le chiavi
+		while(iterator.hasNext()) {
+
+			SelectionKey key = iterator.next();
+
+			if(key.isValid()) {
+				if(key.isAcceptable()) acceptKey(key);
+				else if(key.isReadable()) readKey(key);
+				else if(key.isWritable()) writeKey(key);
+				else if(DEBUG) System.err.println("Unsupported key "+key.toString());
+			}
+			else if(DEBUG) System.err.println("Invalid key");
+
+			iterator.remove();
+		}
+
+	}
+
+	/**
+	 * metodo chiamato dal gestore delle chiavi per accettare una nuova connessione TCP,
+	 * che viene assegnata ad uno dei reactor worker del server
+	 * @param key la chiave associata al canale del server
+	 */
+	private void acceptKey(SelectionKey key) {
+
+		try {
+			SocketChannel sockchan = ((ServerSocketChannel) key.channel()).accept();	//Accetta la connessione
+
+			if(sockchan==null) return;
+
+			this.server.nextReactor().assign(sockchan);
+
+			if(DEBUG) System.out.println("New client connection accepted");
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Error in accepting key "+key.toString());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * metodo chiamato dal gestore delle chiavi per leggere le richieste di un client:
+	 * legge i byte disponibili nel buffer di lettura della sessione e, per ogni messaggio
+	 * completo ricevuto, prepara una richiesta e la affida al server per l'esecuzione,
+	 * i messaggi incompleti restano nel buffer fino alle letture successive
+	 * @param key la chiave da leggere
+	 */
+	private void readKey(SelectionKey key) {
+
+		SocketChannel channel = (SocketChannel) key.channel();
+
+		Session session = (Session) key.attachment();
+
+		try {
+
+			int bytesread = channel.read(session.getReadBuffer());
+			if(bytesread<0) {	//Il client ha chiuso la connessione
+				closeConnection(key);
+				return;
+			}
+
+			Request request;
+			while(key.isValid() && !session.isClosing() && (request = session.pollFrame(this, key))!=null) {
+				session.requestStarted();
+
+				this.server.submitRequest(request);	//Affida la richiesta al pool del server
+			}
+
+			if(key.isValid()) updateInterest(key, session);
+
+		} catch (IOException | IllegalStateException e) {
+			if(DEBUG) System.err.println("Error in reading key "+key.toString());
+			closeConnection(key);
+		}
+
+	}
+
+	/**
+	 * metodo chiamato dal gestore delle chiavi quando il canale di un client torna scrivibile:
+	 * continua l'invio delle risposte rimaste in coda nella sessione associata alla chiave
+	 * @param key la chiave da cui ricavare il canale su cui scrivere
+	 */
+	private void writeKey(SelectionKey key) {
+
+		sendResponse(key);
+	}
+
+	/**
+	 * metodo chiamato per inviare le risposte ai comandi ricevuti da un client tramite TCP:
+	 * scrive senza bloccare quanto il canale accetta e aggiorna gli interessi della chiave,
+	 * cosi' un client lento a leggere non blocca il reactor e le altre connessioni
+	 * @param key la chiave associata al client
+	 */
+	private void sendResponse(SelectionKey key) {
+
+		Session session = (Session) key.attachment();
+
+		try {
+			session.flush((SocketChannel) key.channel());	//Invia le risposte al client
+		} catch (IOException e) {
+			if(DEBUG) System.out.println("Error sending TCP response to client with key "+key.toString());
+			closeConnection(key);
+			return;
+		}
+
+		updateInterest(key, session);
+	}
+
+	/**
+	 * metodo chiamato dopo ogni lettura o scrittura per aggiornare gli interessi della chiave:
+	 * OP_WRITE resta attivo finche' ci sono risposte in coda, OP_READ viene sospeso se il client
+	 * ha troppe risposte da leggere o ha effettuato il logout
+	 * la connessione di un client che ha effettuato il logout viene chiusa quando tutte le risposte
+	 * delle richieste ancora in esecuzione sono state inviate
+	 * @param key la chiave associata al client
+	 * @param session la sessione associata alla chiave
+	 */
+	private void updateInterest(SelectionKey key, Session session) {
+
+		if(session.isClosing() && !session.hasRequestsInFlight() && !session.hasPendingOutput()) {
+			closeConnection(key);	//TERMINA CONNESSIONE TCP
+			if(DEBUG) System.out.println("TCP connection closed for a client");
+			return;
+		}
+
+		int ops = 0;
+
+		if(!session.isClosing() && !session.isOverloaded()) ops |= SelectionKey.OP_READ;
+
+		if(session.hasPendingOutput()) ops |= SelectionKey.OP_WRITE;
+
+		if(key.interestOps()!=ops) key.interestOps(ops);
+	}
+
+	/**
+	 * metodo chiamato per chiudere la connessione con un client
+	 * @param key la chiave associata al client
+	 */
+	public static void closeConnection(SelectionKey key) {
+
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Error closing connection "+key.toString());
+		}
+		key.cancel();
+	}
+
+}
@@ -0,0 +1,299 @@
+package worth;
+
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *
+ * Richiesta TCP di un client: viene riempita dalla sessione che ha letto il comando,
+ * eseguita da un thread del pool del server e restituita al reactor con la risposta
+ * da inviare al client
+ * una volta inviata la risposta la richiesta torna alla sessione, che la riutilizza
+ * per i comandi successivi insieme ai suoi array di payload e indici
+ *
+ */
+public class Request {
+
+	private static final int INITIAL_PAYLOAD_SIZE = 256;	//Dimensione iniziale dell'array del payload, cresce con i comandi ricevuti
+	private static final int MAX_KEPT_PAYLOAD_SIZE = 4096;	//Oltre questa dimensione l'array del payload non viene riutilizzato
+
+	private Reactor reactor;	//Il reactor che gestisce la connessione del client
+	private SelectionKey key;	//La chiave associata alla connessione del client
+	private int id;	//L'identificativo scelto dal client per la richiesta
+	private Command command;	//Il comando riconosciuto, null se inesistente
+	private byte[] payload;	//I byte del comando ricevuto dal client, da 0 a length
+	private int length;	//Il numero di byte del comando in payload
+	private int[] bounds;	//Gli indici dei token nel payload, nel formato di CommandRegistry.tokenize
+	private String[] arguments;	//Gli argomenti gia' convertiti in stringa
+	private String response;	//La risposta da inviare al client
+	private boolean closeConnection;	//true se dopo la richiesta la connessione deve essere chiusa
+	private boolean authenticates;	//true se la richiesta e' un login riuscito
+	private long journalLsn;	//Il lsn dell'ultima modifica salvata sul journal dal comando, 0 se nessuna
+
+	/**
+	 * costruttore per la classe richiesta, invocato dalla sessione quando non ha richieste
+	 * da riutilizzare, il comando viene caricato con load
+	 * @param reactor il reactor che gestisce la connessione del client
+	 * @param key la chiave associata alla connessione del client
+	 */
+	public Request(Reactor reactor, SelectionKey key) {
+
+		this.reactor = reactor;
+
+		this.key = key;
+
+		this.payload = new byte[INITIAL_PAYLOAD_SIZE];
+
+		this.bounds = new int[CommandRegistry.BOUNDS_SIZE];
+
+		this.arguments = new String[CommandRegistry.MAX_TOKENS-1];
+
+		this.response = "";
+
+	}
+
+	/**
+	 * metodo chiamato dalla sessione per caricare nella richiesta un comando letto nel buffer
+	 * di lettura: il payload viene copiato nell'array della richiesta, ingrandito solo se
+	 * non basta, e gli indici dei token riportati all'inizio del payload
+	 * @param id l'identificativo della richiesta
+	 * @param command il comando riconosciuto, null se inesistente
+	 * @param data l'array del buffer di lettura
+	 * @param start la posizione del primo byte del payload in data
+	 * @param length il numero di byte del payload
+	 * @param scratch gli indici dei token in data, calcolati da CommandRegistry.tokenize
+	 */
+	void load(int id, Command command, byte[] data, int start, int length, int[] scratch) {
+
+		this.id = id;
+
+		this.command = command;
+
+		if(this.payload.length<length) this.payload = new byte[Math.max(length, 2*this.payload.length)];
+
+		System.arraycopy(data, start, this.payload, 0, length);
+
+		this.length = length;
+
+		int tokens = Math.min(scratch[CommandRegistry.COUNT], CommandRegistry.MAX_TOKENS);
+		for(int i=0; i<2*tokens; i++) this.bounds[i] = scratch[i]-start;
+		this.bounds[CommandRegistry.BODY] = scratch[CommandRegistry.BODY]-start;
+		this.bounds[CommandRegistry.COUNT] = scratch[CommandRegistry.COUNT];
+	}
+
+	/**
+	 * metodo chiamato dalla sessione dopo aver accodato la risposta, per riutilizzare la richiesta:
+	 * rilascia risposta e argomenti, e l'array del payload se un comando grande lo ha ingrandito
+	 */
+	void recycle() {
+
+		this.command = null;
+
+		this.length = 0;
+
+		if(this.payload.length>MAX_KEPT_PAYLOAD_SIZE) this.payload = new byte[INITIAL_PAYLOAD_SIZE];
+
+		Arrays.fill(this.arguments, null);
+
+		this.response = "";
+
+		this.closeConnection = false;
+
+		this.authenticates = false;
+
+		this.journalLsn = 0;
+	}
+
+	/**
+	 * metodo chiamato per restituire l'identificativo della richiesta,
+	 * da ripetere nella risposta al client
+	 * @return l'identificativo della richiesta
+	 */
+	public int getId() {
+		return this.id;
+	}
+
+	/**
+	 * metodo chiamato per restituire il comando riconosciuto
+	 * @return il comando da eseguire, null se il client ha inviato un comando inesistente
+	 */
+	public Command getCommand() {
+		return this.command;
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero di argomenti ricevuti dopo il nome del comando
+	 * @return il numero di argomenti
+	 */
+	public int getArgumentCount() {
+		return Math.max(this.bounds[CommandRegistry.COUNT]-1, 0);
+	}
+
+	/**
+	 * metodo chiamato per restituire un argomento del comando, convertito in stringa
+	 * solo alla prima richiesta
+	 * @param i la posizione dell'argomento, a partire da 0
+	 * @return l'argomento richiesto, la stringa vuota se non presente
+	 */
+	public String getArgument(int i) {
+
+		if(i>=getArgumentCount() || i+1>=CommandRegistry.MAX_TOKENS) return "";
+
+		if(this.arguments[i]==null) {
+			int start = this.bounds[2*(i+1)];
+			int end = this.bounds[2*(i+1)+1];
+			this.arguments[i] = new String(this.payload, start, end-start, StandardCharsets.UTF_8);
+		}
+
+		return this.arguments[i];
+	}
+
+	/**
+	 * metodo chiamato per restituire la posizione della prima riga ricevuta dopo la prima,
+	 * per i comandi che hanno un corpo
+	 * @return l'indice del primo byte del corpo nel payload, getLength() se non presente
+	 */
+	public int getBodyStart() {
+		return this.bounds[CommandRegistry.BODY];
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero di byte del comando ricevuto
+	 * @return la lunghezza del payload
+	 */
+	public int getLength() {
+		return this.length;
+	}
+
+	/**
+	 * metodo chiamato dai comandi con un corpo per separare in token una riga del corpo e
+	 * riconoscerne il comando con CommandRegistry.tokenize, direttamente sul payload come la prima riga
+	 * @param registry i comandi riconosciuti
+	 * @param start l'indice del primo byte della riga, getBodyStart() per la prima riga del corpo
+	 * @param lineBounds l'array in cui salvare gli indici dei token della riga, di dimensione
+	 * CommandRegistry.BOUNDS_SIZE, in lineBounds[CommandRegistry.BODY] viene salvato l'indice della riga successiva
+	 * @return il comando della riga, null se la riga e' vuota o il comando inesistente
+	 */
+	public Command tokenizeLine(CommandRegistry registry, int start, int[] lineBounds) {
+
+		int end = start;
+		while(end<this.length && this.payload[end]!='\n') end++;
+
+		Command command = registry.tokenize(this.payload, start, end, lineBounds);
+
+		lineBounds[CommandRegistry.BODY] = Math.min(end+1, this.length);
+
+		return command;
+	}
+
+	/**
+	 * metodo chiamato per convertire in stringa un token di una riga separata con tokenizeLine
+	 * @param lineBounds gli indici dei token della riga
+	 * @param i la posizione del token, 0 per il nome del comando
+	 * @return il token richiesto, la stringa vuota se non presente
+	 */
+	public String getToken(int[] lineBounds, int i) {
+
+		if(i>=lineBounds[CommandRegistry.COUNT] || i>=CommandRegistry.MAX_TOKENS) return "";
+
+		int start = lineBounds[2*i];
+		return new String(this.payload, start, lineBounds[2*i+1]-start, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * metodo chiamato per restituire il comando ricevuto come stringa, usato nei messaggi di debug
+	 * @return il testo del comando ricevuto
+	 */
+	public String getText() {
+		return new String(this.payload, 0, this.length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * metodo chiamato dopo aver eseguito il comando per salvare la risposta da inviare al client
+	 * @param response la risposta da inviare
+	 */
+	public void setResponse(String response) {
+		this.response = response;
+	}
+
+	/**
+	 * metodo chiamato per restituire la risposta da inviare al client
+	 * @return la risposta da inviare
+	 */
+	public String getResponse() {
+		return this.response;
+	}
+
+	/**
+	 * metodo chiamato dopo un logout per richiedere la chiusura della connessione
+	 */
+	public void setCloseConnection() {
+		this.closeConnection = true;
+	}
+
+	/**
+	 * metodo chiamato per sapere se dopo la richiesta la connessione deve essere chiusa
+	 * @return true se la connessione deve essere chiusa, false altrimenti
+	 */
+	public boolean closesConnection() {
+		return this.closeConnection;
+	}
+
+	/**
+	 * metodo chiamato dopo un login riuscito, il reactor abilitera' i messaggi grandi sulla connessione
+	 */
+	public void setAuthenticates() {
+		this.authenticates = true;
+	}
+
+	/**
+	 * metodo chiamato per sapere se la richiesta ha effettuato il login sulla connessione
+	 * @return true se il login e' riuscito, false altrimenti
+	 */
+	public boolean authenticates() {
+		return this.authenticates;
+	}
+
+	/**
+	 * metodo chiamato dopo aver salvato sul journal le modifiche del comando: la risposta
+	 * verra' inviata solo quando le modifiche saranno su disco
+	 * @param lsn il lsn dell'ultima modifica salvata
+	 */
+	public void setJournalLsn(long lsn) {
+		this.journalLsn = lsn;
+	}
+
+	/**
+	 * metodo chiamato per restituire il lsn dell'ultima modifica salvata sul journal dal comando
+	 * @return il lsn da attendere prima di inviare la risposta, 0 se il comando non ha modificato lo stato
+	 */
+	public long getJournalLsn() {
+		return this.journalLsn;
+	}
+
+	/**
+	 * metodo chiamato per restituire la chiave associata alla connessione del client
+	 * @return la chiave della connessione
+	 */
+	public SelectionKey getKey() {
+		return this.key;
+	}
+
+	/**
+	 * metodo chiamato per restituire la sessione della connessione da cui e' arrivata la richiesta
+	 * @return la sessione del client
+	 */
+	public Session getSession() {
+		return (Session) this.key.attachment();
+	}
+
+	/**
+	 * metodo chiamato da un thread del pool una volta eseguito il comando:
+	 * restituisce la richiesta al reactor, che inviera' la risposta al client
+	 */
+	public void complete() {
+		this.reactor.complete(this);
+	}
+
+}
@@ -2,20 +2,23 @@ package worth;
 
 import java.rmi.server.*;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
-
-import com.fasterxml.jackson.core.JsonGenerationException;
-import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.ObjectWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import myExceptions.EmptyPasswordException;
 import myExceptions.EmptyUserException;
@@ -23,16 +26,11 @@ import myExceptions.UserAlreadyRegisteredException;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.registry.*;
 
@@ -46,23 +44,54 @@ public class Server implements Runnable, RMIUserInterface {
 	private static boolean DEBUG = false;
 	
 	//Parametri e variabili utilizzati localmente dal server
-	private User[] registeredUsers;	//Contiene tutti gli utenti registrati
-	private User[] onlineUsers;	//Contiene tutti gli utenti online
-	private Project[] projects;	//Contiene tutti i progetti creati
+	private Map<String, User> registeredUsers;	//Contiene tutti gli utenti registrati, indicizzati per username
+	private Map<String, Session> onlineUsers;	//Contiene la sessione TCP di tutti gli utenti online, indicizzata per username
+	private Map<String, Project> projects;	//Contiene tutti i progetti creati, indicizzati per nome
+	private Map<String, Set<String>> projectsByMember;	//Per ogni utente, i nomi dei progetti di cui  membro
 	private int chatPort = 4444;	//La porta su cui aprire tutte le chat dei progetti
 	
 	
 	//Parametri e variabili per i file utilizzati dal server
 	private String usersFolder = "."+File.separator+"users";
 	private String usersFile = usersFolder+File.separator+"members.json";	//File che contiene gli utenti registrati
-	private String projectsFolder = "."+File.separator+"projects";	//Cartella per i progetti degli utenti
+	private String projectsFolder = "."+File.separator+"projects";	//Cartella per i progetti degli utenti, con l'archivio JSON
+	private String logFolder = "."+File.separator+"storage";	//Cartella per i segmenti dell'archivio log-structured
+	private String journalFolder = "."+File.separator+"journal";	//Cartella per i segmenti del journal
+	
+	//Parametri e variabili per journal e checkpoint
+	private Storage.Engine storeEngine;	//L'archivio scelto all'avvio
+	private Storage storage;	//Archivio su cui il checkpoint salva utenti, progetti, card e chat
+	private StorageFormat format;	//Il formato in cui il checkpoint codifica utenti, progetti e card
+	private Journal journal;	//Journal delle modifiche non ancora salvate nei file di utenti e progetti
+	private Set<String> dirtyProjects;	//I progetti da riscrivere nell'archivio al prossimo checkpoint
+	private Map<String, Set<String>> dirtyCards;	//Per ogni progetto, le card da riscrivere nell'archivio al prossimo checkpoint
+	private Set<String> deletedProjects;	//I progetti cancellati, da eliminare dall'archivio al prossimo checkpoint
+	private volatile Set<String> deletingProjects;	//I progetti cancellati che il checkpoint in corso sta eliminando dall'archivio
+	private boolean usersDirty;	//true se il file degli utenti  da riscrivere al prossimo checkpoint
+	private int checkpointInterval;	//Secondi tra due checkpoint
+	private Journal.Durability durability;	//Quando le modifiche salvate sul journal sono considerate su disco
+	private int commitWindow;	//Millisecondi di attesa per una sincronizzazione di gruppo del journal
+	private int commitSize;	//Numero di record che fa partire subito una sincronizzazione di gruppo
+	private ScheduledExecutorService checkpointer;	//Thread che esegue periodicamente il checkpoint e le riserve dei numeri di sequenza delle chat
+	
+	//Parametri e variabili per le card in memoria
+	private Set<String> loadedBoards;	//I progetti le cui card sono in memoria
+	private long boardIdle;	//Millisecondi senza accessi dopo i quali le card di un progetto vengono scaricate
+	private int boardBudget;	//Numero massimo di card in memoria, oltre il quale vengono scaricati i progetti usati meno di recente
 	
 	//Parametri e variabili per NIO Multiplexing
 	private int serverPort = 7777;
 	private ServerSocketChannel serverChannel;
-	private Selector selector;	//Selector per multiplexing
 	private ServerSocket socket;	//Socket per comunicare con i client
-	private Map<SocketChannel, StringBuilder> sessions;	//Contiene tutte le sessioni aperte con i client
+	private Reactor acceptor;	//Reactor che accetta le nuove connessioni, eseguito dal thread del server
+	private Reactor[] reactors;	//Reactor worker a cui vengono assegnate le connessioni accettate
+	private int nextReactor;	//Indice del prossimo reactor worker a cui assegnare una connessione
+	private int reactorsCount;	//Numero di reactor worker, 0 = l'acceptor gestisce anche le connessioni
+	
+	//Parametri e variabili per l'esecuzione dei comandi
+	private CommandExecutor executor;	//Pool di thread che esegue i comandi dei client
+	private ReadWriteLock stateLock;	//In scrittura per modificare utenti online ed elenco dei progetti, in lettura per gli altri comandi
+	private CommandRegistry commands;	//Tabella dei comandi TCP riconosciuti dal server
 	
 	//Parametri e variabili per RMI e RMI callback
 	private static Registry RMIRegistry;
@@ -75,12 +104,50 @@ public class Server implements Runnable, RMIUserInterface {
 	
 	
 	//Parametri e variabili per Multicast
-	private String firstfreeaddress;	//Salva il primo indirizzo libero per una chat multicast
+	private MulticastAllocator chatAddresses;	//Assegna gli indirizzi multicast alle chat dei progetti e li libera alla cancellazione
+	private ChatReceiver chatReceiver;	//Riceve con un solo thread i messaggi di tutte le chat dei progetti
+	private int chatHistory;	//Numero di messaggi di ogni chat tenuti in memoria, i precedenti vengono letti dall'archivio
 	
 	/**
 	 * Costruttore per la classe server, invocato dal main
+	 * @param config i parametri di avvio del server
 	 */
-	public Server() {
+	public Server(ServerConfig config) {
+		
+		this.reactorsCount = config.getReactors();
+		
+		this.executor = new CommandExecutor(config.getWorkers());
+		
+		//Prima di leggere i progetti, le chat dei progetti ricreati dal journal riservano subito i numeri di sequenza
+		this.checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "worth-checkpointer");
+			t.setDaemon(true);
+			return t;
+		});
+		
+		this.stateLock = new ReentrantReadWriteLock();
+		
+		this.checkpointInterval = config.getCheckpointInterval();
+		
+		this.durability = config.getDurability();
+		
+		this.commitWindow = config.getCommitWindow();
+		
+		this.commitSize = config.getCommitSize();
+		
+		this.boardIdle = TimeUnit.SECONDS.toMillis(config.getBoardIdle());
+		
+		this.boardBudget = config.getBoardBudget();
+		
+		this.storeEngine = config.getStore();
+		
+		this.format = config.getFormat();
+		
+		this.chatHistory = config.getChatHistory();
+		
+		this.chatAddresses = new MulticastAllocator(config.getChatRange());
+		
+		this.commands = initCommands();
 		
 		initVariables();
 		
@@ -91,13 +158,23 @@ public class Server implements Runnable, RMIUserInterface {
 	 */
 	private void initVariables() {
 		
-		this.registeredUsers = new User[0];	//Nuovo array vuoto
+		this.registeredUsers = new LinkedHashMap<String, User>();	//Mantiene l'ordine di registrazione nel file degli utenti
+		
+		this.onlineUsers = new HashMap<String, Session>();
+		
+		this.projects = new LinkedHashMap<String, Project>();
+		
+		this.projectsByMember = new ConcurrentHashMap<String, Set<String>>();	//Modificato anche da addMember, che acquisisce il lock in lettura
+		
+		this.dirtyProjects = ConcurrentHashMap.newKeySet();	//Modificati anche dai comandi che acquisiscono il lock in lettura
+		
+		this.dirtyCards = new ConcurrentHashMap<String, Set<String>>();
 		
-		this.onlineUsers = new User[0];	//Nuovo array vuoto
+		this.deletedProjects = new HashSet<String>();	//Modificato solo con il lock in scrittura
 		
-		this.projects = new Project[0];	//Nuovo array vuoto
+		this.deletingProjects = Collections.emptySet();
 		
-		this.sessions = new HashMap<SocketChannel, StringBuilder>();
+		this.loadedBoards = ConcurrentHashMap.newKeySet();	//Modificato anche dai comandi che acquisiscono il lock in lettura
 		
 		this.callbackUsers = new ArrayList<CallbackUserInterface>();
 		
@@ -124,1856 +201,2028 @@ public class Server implements Runnable, RMIUserInterface {
 		
 		initCallbackService();	//Inizializza il servizio RMI Callback
 		
-		//Server Loop: gestisce finch non terminato tutte le richieste TCP dei client tramite NIO Multiplexing
-		while(true) {
-			if(this.selector.isOpen()) {
-				try {
-					int keys = selector.select();
-					
-					if(keys>0) handleKeys(this.serverChannel, selector.selectedKeys());	//Gestisce le richieste TCP dei client
-					
-				} catch (IOException e) {
-					if(DEBUG) System.err.println("Failed to retrieve NIO Multiplexing Selector keys");
-					e.printStackTrace();
-					System.exit(0);	//Termina il server
-				}
-				
-			}
-		}
+		//Server Loop: accetta finch non terminato le nuove connessioni TCP dei client tramite NIO Multiplexing
+		this.acceptor.run();
 		
 	}
 	
 	/**
-	 * metodo chiamato per inizializzare le variabili del server,
-	 * gli utenti registrati vengono ricercati in formato JSON sul file this.usersFile
-	 * che, se non esiste, viene creato
-	 * le liste vengono ricercate nelle relative cartelle progetto:
-	 * se nessuna lista viene trovata, vengono create le quattro cartelle
-	 * per le liste todo, inprogress, toberevised e done
-	 * le card vengono ricercate nelle rispettive cartelle liste interne ad
-	 * un progetto
+	 * metodo chiamato per inizializzare le variabili del server a partire dall'archivio
+	 * scelto con il parametro --store: vengono letti gli utenti registrati e, dei progetti,
+	 * solo nome, creatore e membri; le card e la chat di un progetto vengono lette
+	 * dall'archivio al primo accesso
+	 * infine vengono ripetute le modifiche rimaste nel journal e avviato il checkpoint periodico
 	 */
 	private void boot() {
 		
-		File f = new File(this.usersFile);
+		long start = System.nanoTime();
 		
-		if(f.exists()) {
-			//Esiste il file con utenti registrati, legge ed inizializza le variabili del server
-			
-			assert f.exists();	//Assicura che il file esiste
-			
-			loadUsers();	//Legge gli utenti salvati
-			
-			File projectsdir = new File(this.projectsFolder);
-			
-			if(!projectsdir.exists()) {	//Controlla che esista la cartella projects
-				if(!projectsdir.mkdir()) {
-					//Errore nella creazione della cartella progetti
-					if(DEBUG) System.err.println("Boot error: can't create projects folder "+projectsdir);
-					System.exit(0);	//Termina il server
-				}
-			}
-			else {
-				loadProjects();	//Legge i progetti salvati
-				
-				loadCards();	//Legge le card salvate
-			}
-		}
-		else {
-			//Non e' stato trovato il file con utenti registrati, lo crea
-			
-			File usersdir = new File(this.usersFolder);	//Crea la cartella per il file utenti
-			
-			if(!usersdir.exists()) {
-				if(!usersdir.mkdir()) {
-					//Errore nella creazione della cartella utenti
-					if(DEBUG) System.err.println("Boot error: can't create users folder "+usersdir);
-					System.exit(0);	//Termina il server
-				}
-			}
-			
-			try {
-				
-				f.createNewFile();	//Crea il file JSON degli utenti
-			} catch (IOException e) {
-				if(DEBUG) System.err.println("Boot error: can't create user file "+f);
-				System.exit(0);	//Termina il server
-			}
-			
-			File projectsdir = new File(this.projectsFolder);
-			
-			if(!projectsdir.exists()) {	//Controlla che esista la cartella projects
-				if(!projectsdir.mkdir()) {
-					//Errore nella creazione della cartella progetti
-					if(DEBUG) System.err.println("Boot error: can't create projects folder "+projectsdir);
-					System.exit(0);	//Termina il server
-				}
+		try {
+			//Apre l'archivio, creandone le cartelle se non esistono
+			switch(this.storeEngine) {
+				case MEMORY:
+					this.storage = new MemoryStorage();
+					break;
+				case LOG:
+					this.storage = new LogStorage(this.logFolder);
+					break;
+				default:
+					this.storage = new JsonStorage(this.usersFile, this.projectsFolder);
 			}
-			
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Boot error: can't open storage "+this.storeEngine);
+			e.printStackTrace();
+			System.exit(0);	//Termina il server
 		}
 		
-		if(DEBUG) System.out.println("Boot complete");
+		initChatService();	//Avvia il thread che riceve i messaggi delle chat, prima di leggere i progetti
+		
+		loadUsers();	//Legge gli utenti salvati
+		
+		loadProjects();	//Legge i progetti salvati, senza le card
+		
+		int recovered = recoverJournal();	//Ripete le modifiche non ancora salvate nei file
+		
+		if(DEBUG) System.out.println("Boot complete in "+(System.nanoTime()-start)/1000000+" ms: "+this.registeredUsers.size()+" users, "
+				+this.projects.size()+" projects ("+this.loadedBoards.size()+" with cards in memory), "+recovered+" changes recovered from journal");
 		
 		System.out.println("Server WORTH Online");
 		
 	}
 	
 	/**
-	 * metodo chiamato ad un ripristino del server, legge dal file this.usersFile gli
-	 * utenti registrati in formato JSON e li salva nelle variabili locali
+	 * metodo chiamato all'avvio per creare il receiver delle chat e avviarne il thread:
+	 * il receiver riceve la chat di un progetto finch almeno un membro  online
 	 */
-	private void loadUsers() {
-
-		User[] utenti = null;
-		
-		Path path = Paths.get(this.usersFile);
-		
-		byte[] bytes = null;
+	private void initChatService() {
 		
 		try {
-			bytes = Files.readAllBytes(path);
+			this.chatReceiver = new ChatReceiver(this.chatPort);
 		} catch (IOException e) {
-			if(DEBUG) System.err.println("Errore in avvio: fallita lettura su file"+this.usersFile);
-			System.exit(0); //Termina il server
-		}
-		
-		if(bytes.length==0) {
-			//Il file utenti letto e' vuoto, non proseguo il parsing del file JSON
-			if(DEBUG) System.out.println("Users file empty "+this.usersFile+", skipping JSON parsing");
-			return;
+			if(DEBUG) System.err.println("Boot error: can't open chat receiver on port "+this.chatPort);
+			e.printStackTrace();
+			System.exit(0);	//Termina il server
 		}
 		
-		ObjectMapper mapper = new ObjectMapper();
+		Thread t = new Thread(this.chatReceiver, "worth-chat");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * metodo chiamato all'avvio, dopo aver letto utenti, progetti e card dai file,
+	 * per ripetere le modifiche salvate sul journal dopo l'ultimo checkpoint
+	 * avvia poi il thread che esegue il checkpoint ogni this.checkpointInterval secondi,
+	 * seguito dallo scaricamento delle card dei progetti non usati
+	 * @return il numero di modifiche lette dal journal
+	 */
+	private int recoverJournal() {
 		
-		ObjectReader reader = mapper.readerFor(User[].class);
+		int n = 0;
 		
 		try {
-			utenti = reader.readValue(bytes);
-		} catch (IOException e) {
-			if(DEBUG) System.err.println("Errore in avvio: fallita conversione oggetti JSON su file"+this.usersFile);
-			System.exit(0); //Termina il server
+			//Con l'archivio in memoria nemmeno il journal scrive su disco
+			String folder = this.storeEngine==Storage.Engine.MEMORY ? null : this.journalFolder;
+			
+			this.journal = new Journal(folder, this.durability, this.commitWindow, this.commitSize);
+			
+			n = this.journal.recover(this::replay);
+			
+			if(DEBUG) System.out.println(n+" changes recovered from journal "+this.journalFolder);
+		} catch (IOException | IllegalStateException e) {	//Anche se le card di una modifica da ripetere non possono essere lette
+			if(DEBUG) System.err.println("Boot error: can't recover journal "+this.journalFolder);
+			e.printStackTrace();
+			System.exit(0);	//Termina il server
 		}
 		
-		this.registeredUsers = utenti;
-		
-		//Al nuovo avvio, tutti gli utenti risulteranno offline in quanto nessuno ha ancora effettuato il login
-		for(User u : this.registeredUsers) {
-			this.users.put(u.getUsername(), false);
-		}
+		this.checkpointer.scheduleWithFixedDelay(() -> {
+			checkpoint();
+			evictBoards();	//Dopo il checkpoint, cos le card salvate possono essere scaricate
+		}, this.checkpointInterval, this.checkpointInterval, TimeUnit.SECONDS);
 		
-		if(DEBUG) System.out.println("Users found and loaded correctly from file"+this.usersFile);
+		//Dopo una sincronizzazione fallita le modifiche non sincronizzate vengono salvate subito dal checkpoint
+		this.journal.onFailure(() -> this.checkpointer.execute(this::checkpoint));
 		
+		return n;
 	}
-
+	
 	/**
-	 * metodo chiamato ad un ripristino del server, legge il contenuto della cartella this.projectsFolder
-	 * e, per ogni sottocartella presente ricerca al suo interno un file project.json per inizializzare
-	 * tutti i progetti localmente
-	 * attiva poi il servizio di chat per ogni progetto caricato correttamente
+	 * metodo chiamato all'avvio per ripetere una modifica letta dal journal:
+	 * una modifica gi contenuta nei file letti (numero di sequenza non maggiore di quello
+	 * salvato nel progetto o nella card) viene ignorata, cos un checkpoint interrotto
+	 * non applica due volte la stessa modifica
+	 * @param r il record della modifica
 	 */
-	private void loadProjects() {
+	private void replay(JournalRecord r) {
 		
-		File projectsfolder = new File(this.projectsFolder);
+		Project p = r.getProject()==null ? null : this.projects.get(r.getProject());
 		
-		if(projectsfolder.list().length==0) {	//Cartella progetti vuota
-			if(DEBUG) System.err.println("Projects folder "+this.projectsFolder+" empty, can't load any project");
-			return;
+		switch(r.getType()) {
+			
+			case REGISTER:
+				if(!this.registeredUsers.containsKey(r.getUser())) addUser(r.getUser(), r.getPassword());
+				break;
+				
+			case CREATEPROJECT:
+				if(p==null) {
+					InetAddress group = this.chatAddresses.reserve(r.getGroup());	//Lo stesso indirizzo assegnato prima del riavvio
+					markDirty(openProject(r.getProject(), r.getUser(), group!=null ? group : this.chatAddresses.allocate()), r);
+				}
+				break;
+				
+			case ADDMEMBER:
+				if(p!=null && p.getLsn()<r.getLsn() && !p.getMembers().contains(r.getUser())) {
+					insertMember(p, r.getUser());
+					markDirty(p, r);
+				}
+				break;
+				
+			case ADDCARD:
+				if(p!=null && !loadBoard(p)) throw new IllegalStateException("Can't read cards of project "+p.getProjectName());
+				if(p!=null && p.retrieveCard(r.getCard())==null) {
+					insertCard(p, r.getCard(), r.getDescription(), r.getTime());
+					markDirty(p, r);
+				}
+				break;
+				
+			case MOVECARD:
+				if(p!=null && !loadBoard(p)) throw new IllegalStateException("Can't read cards of project "+p.getProjectName());
+				Card c = p==null ? null : p.retrieveCard(r.getCard());
+				if(c!=null && c.getLsn()<r.getLsn() && c.getCurrentList()==r.getFrom()) {
+					p.moveCard(c, r.getTo());
+					c.getHistory().add("Card spostata dalla lista "+r.getFrom()+" alla lista "+r.getTo());
+					markDirty(p, r);
+				}
+				break;
+				
+			case CANCELPROJECT:
+				if(p!=null && p.getLsn()<r.getLsn()) closeProject(p);
+				break;
 		}
-		
-		ArrayList<Project> progetti = new ArrayList<Project>();
-		
-		//Analizza tutti i file nella cartella
-		for(File projectfolder : projectsfolder.listFiles()) {
-			if(projectfolder.isDirectory()) {	//Il file analizzato  una directory
+	}
+	
+	/**
+	 * metodo chiamato periodicamente dal thread this.checkpointer per salvare nell'archivio
+	 * le modifiche registrate sul journal e i nuovi messaggi delle chat:
+	 * prima fa leggere da prepareCheckpoint, sulle corsie dei progetti, le card e le chat salvate
+	 * che servono, poi con il lock this.stateLock in scrittura chiude il segmento corrente del journal
+	 * e codifica utenti, progetti, card e messaggi modificati, senza leggere l'archivio, infine rilascia
+	 * il lock e li scrive, cos i comandi restano bloccati solo per la codifica
+	 * i segmenti chiusi vengono cancellati solo se l'archivio  stato scritto e sincronizzato,
+	 * altrimenti verranno ripetuti al riavvio
+	 * un progetto modificato le cui card non sono in memoria, perch non possono essere lette
+	 * o perch modificato dopo prepareCheckpoint, resta da salvare al prossimo checkpoint,
+	 * con i suoi membri riportati nel nuovo segmento del journal, senza fermare gli altri
+	 */
+	private void checkpoint() {
+		
+		Set<String> chatting = prepareCheckpoint();	//I progetti con nuovi messaggi della chat
+		
+		List<Path> segments;
+		Set<String> deleted;	//Progetti da eliminare dall'archivio
+		Map<String, List<String>> written = new HashMap<String, List<String>>();	//Per ogni progetto salvato, le card salvate
+		Map<String, byte[]> projectbytes = new LinkedHashMap<String, byte[]>();	//I progetti da salvare, codificati
+		Map<String, Map<String, byte[]>> cardbytes = new HashMap<String, Map<String, byte[]>>();	//Per ogni progetto da salvare, le card codificate
+		Map<String, byte[]> chatbytes = new LinkedHashMap<String, byte[]>();	//Per ogni progetto, i nuovi messaggi della chat codificati
+		Map<String, Project> chats = new HashMap<String, Project>();	//I progetti con nuovi messaggi della chat
+		byte[] usersbytes = null;	//Gli utenti da salvare, null se non modificati
+		boolean users;
+		Set<String> skipped = new HashSet<String>();	//Progetti modificati le cui card non possono essere lette
+		List<JournalRecord> carried = new ArrayList<JournalRecord>();	//Le modifiche dei progetti non salvati, da riportare nel journal
+		
+		this.stateLock.writeLock().lock();
+		try {
+			for(String name : this.dirtyProjects) {
 				
-				String[] files = projectfolder.list();
+				Project p = this.projects.get(name);
 				
-				for(String file : files) {
-					if(file.equalsIgnoreCase("project.json")) {	//File progetto json trovato
-						
-						Path path = Paths.get(projectfolder+File.separator+file);
-						
-						byte[] bytes = null;
-						
-						try {
-							bytes = Files.readAllBytes(path);
-						} catch (IOException e) {
-							if(DEBUG) System.err.println("Errore in avvio: fallita lettura su progetto "+path+", non verr aggiunto ai progetti attivi");
-							break;
-						}
-						
-						if(bytes.length==0) {
-							//Il file progetto letto e' vuoto, non proseguo il parsing del file JSON
-							if(DEBUG) System.out.println("Project file empty "+path+", skipping it");
-							break;
-						}
-						
-						ObjectMapper mapper = new ObjectMapper();
-						
-						ObjectReader reader = mapper.readerFor(Project.class);
-						
-						Project progetto = null;
-						
-						try {
-							progetto = reader.readValue(bytes);
-						} catch (IOException e) {
-							if(DEBUG) System.err.println("Errore in avvio: fallita conversione oggetto JSON su file "+path+", non verr aggiunto ai progetti attivi");
-							e.printStackTrace();
-							break;
-						}
-						
-						progetti.add(progetto);	//Salva il progetto analizzato
+				//Un progetto modificato solo nei membri pu non avere le card in memoria, senza le card non pu essere salvato:
+				//resta da salvare e i suoi membri vengono riportati nel nuovo segmento del journal, gli altri progetti vengono salvati
+				if(p!=null && !p.cardsLoaded()) {
+					if(DEBUG) System.err.println("Checkpoint skips project "+name+": its cards are not in memory");
+					skipped.add(name);
+					for(String member : p.getMembers()) {
+						carried.add(JournalRecord.addMember(name, member));
 					}
 				}
 			}
 			
-			this.projects = progetti.toArray(this.projects);	//Salva i progetti analizzati localmente
-		}
-		
-		//Avvia il servizio chat per tutti i progetti letti
-		int n1 = 224, n2 = 0, n3 = 0, n4 = 2;	//Parte da 224.0.0.2
-		int i = 0, j = 0, k = 0, l = 0;
-		for(Project p : getProjects()) {
-			if(i<255) {
-				p.startChatService(this.chatPort,n1+l,n2+k,n3+j,n4+i);
-				i++;
-			}
-			else if(j<255) {
-				j++;
-				i=0;
-				p.startChatService(this.chatPort,n1+l,n2+k,n3+j,n4+i);
-			}
-			else if(k<255) {
-				k++;
-				i=0;
-				j=0;
-				p.startChatService(this.chatPort,n1+l,n2+k,n3+j,n4+i);
-			}
-			else if(l<239) {
-				l++;
-				i=0;
-				j=0;
-				k=0;
-				p.startChatService(this.chatPort,n1+l,n2+k,n3+j,n4+i);
-			}
-			else {
-				if(DEBUG) System.err.println("Error: Can't open chat service for project "+p.getProjectName()+", no more multicast addresses");
-				return;
+			for(String name : chatting) {
+				
+				Project p = this.projects.get(name);
+				
+				//Prima di aggiungere messaggi alla chat salvata vanno letti quelli gi salvati, che la prossima lettura non rilegger
+				if(p==null || !p.chatLoaded()) continue;
+				
+				long first = p.retrieveSavedChatSeq()+1;	//Il blocco viene riconosciuto dal primo numero se aggiunto di nuovo
+				
+				List<String> unsaved = p.retrieveUnsavedMessages();
+				
+				if(unsaved.isEmpty()) continue;
+				
+				chatbytes.put(p.getProjectName(), JsonCodec.encodeChat(first, unsaved));
+				chats.put(p.getProjectName(), p);
 			}
-		}
-		
-		//Salva il primo indirizzo disponibile
-		this.firstfreeaddress = String.valueOf(n1+l)+" "+String.valueOf(n2+k)+" "+String.valueOf(n3+j)+" "+String.valueOf(n4+i+1);
-		
-		if(DEBUG) System.out.println("Projects found and loaded correctly from directory "+this.projectsFolder);
-		
-	}
-
-	/**
-	 * metodo chiamato ad un ripristino del server, per ogni progetto caricato
-	 * analizza la cartella associata ricercando tutti i file .json con nome
-	 * diverso da "project".json e, per ogni file trovato, effettua il parsing
-	 * e la serializzazione in un oggetto card
-	 * aggiorna quindi il file project.json inserendo ogni card caricata nella
-	 * lista corretta (ultimo stato salvato della card)
-	 */
-	private void loadCards() {
-
-		if(this.projects.length==0) {	//Non sono stati caricati progetti
-			if(DEBUG) System.out.println("No projects loaded, skipping card loading");
-			return;
-		}
-		
-		ArrayList<Project> projects = new ArrayList<Project>(this.projects.length);
-		
-		for(Project p : this.projects) {
-			//Legge tutte le card nella cartella del progetto corrente
-			File projectfolder = new File(this.projectsFolder+File.separator+p.getProjectName());
 			
-			assert(projectfolder.isDirectory());	//Assicura che il file sia una directory
+			if(this.journal.isEmpty() && this.dirtyProjects.isEmpty() && chatbytes.isEmpty()) return;	//Nessuna modifica dall'ultimo checkpoint
+			
+			segments = this.journal.rotate(carried);
+			
+			deleted = new HashSet<String>(this.deletedProjects);
+			this.deletedProjects.clear();
 			
-			ArrayList<Card> cards = new ArrayList<Card>();	//Lista delle card caricate
+			Set<String> dirty = new HashSet<String>(this.dirtyProjects);
+			dirty.removeAll(skipped);
+			this.dirtyProjects.retainAll(skipped);
 			
-			for(File cardfile : projectfolder.listFiles()) {
+			for(String name : deleted) {
+				if(this.projects.containsKey(name)) dirty.add(name);	//Progetto ricreato dopo la cancellazione, va riscritto da capo
+			}
+			
+			for(String name : dirty) {
 				
-				assert(cardfile.isFile());	//Assicura che si sta analizzando un file
+				Project p = this.projects.get(name);
 				
-				if(cardfile.getName().equalsIgnoreCase("project.json")) {	//Salto analisi del file project.json
-					continue;
-				}
+				Set<String> dirtycards = this.dirtyCards.remove(name);
 				
-				Path path = Paths.get(projectfolder+File.separator+cardfile.getName());
+				if(p==null) continue;	//Progetto cancellato, le card degli altri sono state lette all'inizio
 				
-				byte[] bytes;
+				List<String> cardnames = new ArrayList<String>();
 				
-				try {
-					bytes = Files.readAllBytes(path);
-				} catch (IOException e) {
-					if(DEBUG) System.err.println("Errore in avvio: fallita lettura su card "+path+", non verr aggiunta al sistema");
-					continue;
+				if(deleted.contains(name)) {
+					for(Card c : p.getAllCards()) cardnames.add(c.getName());
 				}
-				
-				if(bytes.length==0) {
-					//Il file card letto e' vuoto, non proseguo il parsing del file JSON
-					if(DEBUG) System.out.println("Card file empty "+path+", skipping it");
-					continue;
+				else if(dirtycards!=null) {
+					cardnames.addAll(dirtycards);
 				}
 				
-				ObjectMapper mapper = new ObjectMapper();
-				
-				ObjectReader reader = mapper.readerFor(Card.class);
+				Map<String, byte[]> encoded = new LinkedHashMap<String, byte[]>();
 				
-				Card newcard = null;
-				
-				try {
-					newcard = reader.readValue(bytes);
-				} catch (IOException e) {
-					if(DEBUG) System.err.println("Errore in avvio: fallita conversione oggetto JSON su file "+path+", non verr aggiunta alle card");
-					e.printStackTrace();
-					continue;
+				for(String cardname : cardnames) {
+					encoded.put(cardname, this.format.encodeCard(p.retrieveCard(cardname)));
 				}
 				
-				cards.add(newcard);	//Aggiunge la nuova card alla lista locale delle card
+				cardbytes.put(name, encoded);
+				projectbytes.put(name, this.format.encodeProject(p));
+				
+				written.put(name, cardnames);
 			}
 			
-			if(cards.size()==0) {	//Non sono state trovate card nel progetto
-				if(DEBUG) System.out.println("Can't retrieve any card for project "+p.getProjectName());
+			users = this.usersDirty;
+			if(users) {
+				usersbytes = this.format.encodeUsers(this.registeredUsers.values());
+				this.usersDirty = false;
 			}
-			//Posiziona le card nelle liste corrette e aggiorna il file project.json
-			ArrayList<Card> todoList = new ArrayList<Card>();
-			ArrayList<Card> inprogressList = new ArrayList<Card>();
-			ArrayList<Card> toberevisedList = new ArrayList<Card>();
-			ArrayList<Card> doneList = new ArrayList<Card>();
-			
-			for(Card c : cards) {
-				if(c.getCurrentList().equalsIgnoreCase("TODO")) {
-					todoList.add(c);
-				}
-				else if(c.getCurrentList().equalsIgnoreCase("INPROGRESS")) {
-					inprogressList.add(c);
-				}
-				else if(c.getCurrentList().equalsIgnoreCase("TOBEREVISED")) {
-					toberevisedList.add(c);
-				}
-				else if(c.getCurrentList().equalsIgnoreCase("DONE")) {
-					doneList.add(c);
-				}
-				else {
-					if(DEBUG) System.out.println("Card "+c.getName()+" on project "+p.getProjectName()+" has no valid list field, skipping it");
-					continue;
-				}
+			
+			this.deletingProjects = deleted;	//Fino alla fine delle scritture, per reserveChat
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Checkpoint error: can't rotate journal");
+			e.printStackTrace();
+			return;
+		} finally {
+			this.stateLock.writeLock().unlock();
+		}
+		
+		boolean ok = true;
+		
+		try {
+			for(String name : deleted) {
+				this.storage.deleteBoard(name);
 			}
-			//Tutte le card sono state smistate, aggiorna variabili locali del progetto e il file project.json
-			p.setTodoList(todoList);
-			p.setInprogressList(inprogressList);
-			p.setToberevisedList(toberevisedList);
-			p.setDoneList(doneList);
 			
-			File projectfile = new File(projectfolder+File.separator+"project.json");
+			for(Map.Entry<String, byte[]> project : projectbytes.entrySet()) {
+				this.storage.writeBoard(project.getKey(), cardbytes.get(project.getKey()), project.getValue());
+			}
 			
-			assert(projectfile.exists());	//Assicura che il file esiste
+			for(Iterator<Map.Entry<String, byte[]>> it = chatbytes.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, byte[]> chat = it.next();
+				this.storage.appendChat(chat.getKey(), chat.getValue());
+				it.remove();	//Messaggi salvati, non vanno ripetuti se il checkpoint fallisce
+				chats.remove(chat.getKey()).savedMessages();	//Possono essere scaricati dalla memoria
+			}
 			
-			ObjectMapper mapper = new ObjectMapper();
+			if(usersbytes!=null) this.storage.writeUsers(usersbytes);
 			
-			ObjectWriter writer = mapper.writerFor(Project.class);
+			this.storage.flush();
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Error in writing on storage");
+			e.printStackTrace();
+			ok = false;
+		}
+		
+		if(ok) {
+			this.deletingProjects = Collections.emptySet();
 			
-			writer = mapper.writer(new DefaultPrettyPrinter());
+			this.journal.delete(segments);
 			
+			//Le riserve fallite, anche dei progetti nuovi appena salvati, senza attendere il prossimo messaggio
+			this.stateLock.readLock().lock();
 			try {
-				writer.writeValue(projectfile, p);
-			} catch (IOException e) {
-				if(DEBUG) System.err.println("Errore in avvio: fallita conversione oggetto JSON su file "+projectfile+", non verr aggiunto ai progetti attivi");
-				e.printStackTrace();
-				continue;
+				for(Project p : this.projects.values()) {
+					p.requestChatReservation();
+				}
+			} finally {
+				this.stateLock.readLock().unlock();
 			}
 			
-			projects.add(p);
+			if(DEBUG) System.out.println("Checkpoint complete: "+projectbytes.size()+" projects written");
+			return;
 		}
 		
-		//Aggiorna localmente i progetti
-		for(Project p : this.projects) {
-			for(Project newproject : projects) {
-				if(p.getProjectName().equals(newproject.getProjectName())) {	//Progetto da aggiornare
-					
-					ArrayList<Project> newlist = new ArrayList<Project>(this.projects.length);
-					
-					newlist.addAll(getProjects());
-					
-					newlist.remove(p);
-					
-					newlist.add(newproject);
-					
-					this.projects = newlist.toArray(this.projects);
-				}
+		//Checkpoint fallito, le modifiche restano da salvare al prossimo checkpoint
+		this.stateLock.writeLock().lock();
+		try {
+			this.journal.retain(segments);
+			
+			this.deletedProjects.addAll(deleted);
+			this.deletingProjects = Collections.emptySet();
+			
+			for(Map.Entry<String, List<String>> project : written.entrySet()) {
+				if(!this.projects.containsKey(project.getKey())) continue;	//Progetto cancellato nel frattempo
+				this.dirtyProjects.add(project.getKey());
+				this.dirtyCards.computeIfAbsent(project.getKey(), k -> ConcurrentHashMap.newKeySet()).addAll(project.getValue());
+			}
+			
+			this.usersDirty |= users;
+			
+			for(Project p : chats.values()) {
+				p.unsaveMessages();
 			}
+		} finally {
+			this.stateLock.writeLock().unlock();
 		}
 		
-		if(DEBUG) System.out.println("Card loading complete");
-		
+		if(DEBUG) System.err.println("Checkpoint failed, journal segments retained");
 	}
-
+	
 	/**
-	 * metodo chiamato per inizializzare il servizio RMI con
-	 * nome = this.RMIServiceName e porta = this.RMIServicePort
+	 * metodo chiamato dal checkpoint prima di acquisire il lock this.stateLock in scrittura: con il lock
+	 * in lettura cerca i progetti modificati con le card non in memoria e le chat con nuovi messaggi,
+	 * poi legge le card e i messaggi salvati che mancano sulla corsia di ogni progetto e attende le letture,
+	 * cos i comandi degli altri progetti proseguono durante gli accessi all'archivio
+	 * una lettura fallita lascia il progetto da leggere, il checkpoint lo salta e riprova al successivo
+	 * @return i nomi dei progetti con nuovi messaggi della chat da salvare
 	 */
-	private void initRMIService() {
+	private Set<String> prepareCheckpoint() {
 		
-		Server.rmiimpl = new RMIUserImpl(this);
+		Set<String> chatting = new HashSet<String>();
+		Set<Project> boards = new HashSet<Project>();	//I progetti modificati di cui leggere le card
+		Set<Project> chats = new HashSet<Project>();	//I progetti di cui leggere i messaggi salvati
 		
+		this.stateLock.readLock().lock();
 		try {
+			for(String name : this.dirtyProjects) {
+				Project p = this.projects.get(name);
+				if(p!=null && !p.cardsLoaded()) boards.add(p);
+			}
 			
-			Registry r = LocateRegistry.createRegistry(this.RMIServicePort);
-			
-			RMIUserInterface rmiinterface = 
-					(RMIUserInterface) UnicastRemoteObject.exportObject(rmiimpl, 0);
+			for(Project p : this.projects.values()) {
+				
+				if(p.retrieveLastChatSeq()<=p.retrieveSavedChatSeq()) continue;	//Nessun nuovo messaggio
+				
+				chatting.add(p.getProjectName());
+				
+				if(!p.chatLoaded()) chats.add(p);
+			}
+		} finally {
+			this.stateLock.readLock().unlock();
+		}
+		
+		Set<Project> load = new HashSet<Project>(boards);
+		load.addAll(chats);
+		
+		List<CompletableFuture<Void>> loads = new ArrayList<CompletableFuture<Void>>();
+		
+		for(Project p : load) {
 			
-			r.rebind(this.RMIServiceName, rmiinterface);
+			CompletableFuture<Void> loaded = new CompletableFuture<Void>();
 			
-			Server.RMIRegistry = r;
+			this.executor.execute(Command.PROJECT_LANE+p.getProjectName(), () -> {
+				this.stateLock.readLock().lock();
+				try {
+					if(this.projects.get(p.getProjectName())==p) {	//Non se cancellato nel frattempo
+						if(boards.contains(p)) loadBoard(p);
+						if(chats.contains(p)) loadChat(p);
+					}
+				} finally {
+					this.stateLock.readLock().unlock();
+					loaded.complete(null);
+				}
+			});
 			
-			if(DEBUG) System.out.println("RMIService succesfully initialized");
-		} catch (RemoteException e) {
-			System.err.println("Errore nell'inizializzazione del servizio RMI");
-			e.printStackTrace();
-			System.exit(0);
+			loads.add(loaded);
 		}
-	}
-	
-	/**
-	 * metodo chiamato per inizializzare il servizio NIO Multiplexing
-	 * per la gestione delle richieste TCP dei client, utilizzando
-	 * this.serverPort come porta associata al canale this.serverChannel
-	 * che utilizza this.selector come selettore e this.socket come socket
-	 * viene subito impostata la SelectionKey del selettore in modalita' accept,
-	 * cos da poter ricevere subito nuove connessioni
-	 */
-	private void initMultiplexing() throws IOException {
-		
-		this.serverChannel = ServerSocketChannel.open();
-		this.selector = Selector.open();
-		this.socket = serverChannel.socket();
-		this.serverChannel.configureBlocking(false);
-		this.socket.bind(new InetSocketAddress(this.serverPort));
-		this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 		
-		if(DEBUG) System.out.println("NIO Multiplexing service Online on port "+this.serverPort);
+		CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0])).join();	//Senza lock, le corsie acquisiscono il lock in lettura
 		
+		return chatting;
 	}
 	
 	/**
-	 * metodo chiamato per inizializzare il servizio RMI Callback con
-	 * nome = this.RMICallbackServiceName e porta = this.RMICallbackServicePort
+	 * metodo chiamato ad un ripristino del server, legge dall'archivio gli
+	 * utenti registrati e li salva nelle variabili locali
 	 */
-	private void initCallbackService() {
-		
-		CallbackServerImpl callbackimpl = new CallbackServerImpl(this);
+	private void loadUsers() {
+
+		List<User> utenti = null;
 		
 		try {
-			
-			CallbackServerInterface callbackinterface = 
-					(CallbackServerInterface) UnicastRemoteObject.exportObject(callbackimpl, 0);
-			
-			Server.RMIRegistry.rebind(this.RMICallbackServiceName, callbackinterface);
-			
-			if(DEBUG) System.out.println("RMICallbackService succesfully initialized");
-		} catch (RemoteException e) {
-			System.err.println("Errore nell'inizializzazione del servizio RMI Callback");
+			utenti = this.storage.readUsers();
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Errore in avvio: fallita lettura degli utenti dall'archivio");
 			e.printStackTrace();
 			System.exit(0); //Termina il server
 		}
 		
+		//Al nuovo avvio, tutti gli utenti risulteranno offline in quanto nessuno ha ancora effettuato il login
+		for(User u : utenti) {
+			this.registeredUsers.put(u.getUsername(), u);
+			this.users.put(u.getUsername(), false);
+		}
+		
+		if(DEBUG) System.out.println(utenti.size()+" users loaded from storage");
+		
 	}
 
 	/**
-	 * Gestore delle chiavi
-	 * metodo chiamato nel Server Loop per gestire le richieste TCP dei client
-	 * utilizzando NIO Multiplexing
-	 * @param channel il canale da analizzare
-	 * @param keys le chiavi da gestire
+	 * metodo chiamato ad un ripristino del server, legge dall'archivio nome, creatore e membri
+	 * dei progetti salvati, le card vengono lette solo al primo accesso al progetto
+	 * attiva poi il servizio di chat per ogni progetto caricato correttamente: ogni chat riceve di nuovo
+	 * l'indirizzo salvato nell'archivio, prima di assegnare un indirizzo libero alle chat che non ne hanno uno
 	 */
-	private void handleKeys(ServerSocketChannel channel, Set<SelectionKey> keys) {
+	private void loadProjects() {
 		
-		Iterator<SelectionKey> iterator = keys.iterator();	//Iteratore per il set di chiavi
+		List<Project> progetti = null;
 		
-		//Analizza tutte le chiavi
-		while(iterator.hasNext()) {
-			
-			SelectionKey key = iterator.next();
-			
-			if(key.isValid()) {
-				if(key.isAcceptable()) {
-					try {
-						acceptKey(channel,key);
-					} catch (IOException e) {
-						if(DEBUG) System.err.println("Error in accepting key "+key.toString());
-						e.printStackTrace();
-					}
-				}
-				else if(key.isReadable()) readKey(key);
-				else if(key.isWritable()) writeKey(key);
-				else if(DEBUG) System.err.println("Unsupported key "+key.toString());
-			}
-			else if(DEBUG) System.err.println("Invalid key");
-			
-			iterator.remove();
+		try {
+			progetti = this.storage.readProjectHeaders();
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Errore in avvio: fallita lettura dell'archivio dei progetti");
+			e.printStackTrace();
+			System.exit(0);	//Termina il server
 		}
 		
-	}
-	
-	/**
-	 * metodo chiamato dal gestore delle chiavi per accettare una nuova richiesta TCP:
-	 * la chiave associata al canale del server viene impostata come pronta per la lettura
-	 * in modo da poter leggere il comando inviato dal client, inoltre viene creata una nuova
-	 * sessione nella mappa this.sessions
-	 * @param channel il canale da analizzare
-	 * @param key la chiave da impostare in lettura
-	 * @throws IOException se la connessione non pu essere accettata o se la chiave non pu
-	 * essere impostata in lettura
-	 */
-	private void acceptKey(ServerSocketChannel channel, SelectionKey key) throws IOException {
+		if(progetti.isEmpty()) {	//Archivio vuoto
+			if(DEBUG) System.err.println("Storage empty, can't load any project");
+			return;
+		}
 		
-		SocketChannel sockchan = channel.accept();	//Accetta la connessione
+		for(Project p : progetti) {	//Salva i progetti analizzati localmente
+			addToCatalog(p);
+		}
 		
-		sockchan.configureBlocking(false);
+		//Avvia il servizio chat per tutti i progetti letti, prima quelli con un indirizzo salvato
+		List<Project> unassigned = new ArrayList<Project>();
 		
-		sockchan.register(key.selector(), SelectionKey.OP_READ);
+		for(Project p : this.projects.values()) {
+			InetAddress group = this.chatAddresses.reserve(p.getChatGroup());
+			if(group==null) unassigned.add(p);	//Salvato senza indirizzo o con un indirizzo fuori dall'intervallo
+			else startChat(p, group);
+		}
 		
-		this.sessions.put(sockchan, new StringBuilder());
+		for(Project p : unassigned) {
+			startChat(p, this.chatAddresses.allocate());
+		}
 		
-		if(DEBUG) System.out.println("New client connection accepted");
+		if(DEBUG) System.out.println("Projects found and loaded correctly from storage, "+this.chatAddresses.allocated()+" chats in "+this.chatAddresses);
 		
 	}
-
+	
 	/**
-	 * metodo chiamato dal gestore delle chiavi per leggere la richiesta di un client:
-	 * legge tutto il messaggio inviato dal client e lo salva nella sessione associata
-	 * all'interno di this.sessions
-	 * @param key la chiave da leggere
+	 * metodo chiamato prima di ogni accesso alle card di un progetto, con il lock this.stateLock
+	 * in lettura dalla corsia del progetto o in scrittura: se le card non sono in memoria
+	 * vengono lette dall'archivio, che dopo il checkpoint contiene tutte le modifiche
+	 * le card scaricate da evictBoards appartengono sempre a progetti gi salvati
+	 * se la lettura fallisce le card restano da leggere: una board vuota al loro posto
+	 * verrebbe poi salvata dal checkpoint, o cancellata da cancelProject, al posto di quella vera
+	 * @param p il progetto di cui leggere le card
+	 * @return true se le card sono in memoria, false se non possono essere lette
 	 */
-	private void readKey(SelectionKey key) {
+	private boolean loadBoard(Project p) {
 		
-		SocketChannel channel = (SocketChannel) key.channel();
+		p.markAccess(System.currentTimeMillis());
 		
-		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		if(p.cardsLoaded()) return true;
 		
-		try {
-			
-			int bytesread = channel.read(buffer);
-			if(bytesread>0) {
-				this.sessions.get(channel).replace(0, this.sessions.get(key.channel()).toString().length(), new String(buffer.array()));	//Salva il messaggio nella mappa delle sessioni
-			}
-			else if(bytesread<0) {	//Non  stato letto nessun messaggio
-				this.sessions.remove(channel);	//Rimuove il client dalle sessioni
-				channel.close();
-				key.cancel();
-			}
-			
-		} catch (IOException e) {
-			if(DEBUG) System.err.println("Error in reading key "+key.toString());
-			this.sessions.remove(channel);	//Rimuove il client dalle sessioni
-			try {
-				channel.close();
-			} catch (IOException e1) {
-				if(DEBUG) System.err.println("Error closing connection "+key.toString());
-			}
-			key.cancel();
+		Project saved = loadProject(p.getProjectName());
+		
+		if(saved==null) {
+			if(DEBUG) System.err.println("Can't read cards of project "+p.getProjectName()+", will retry on next access");
+			return false;
 		}
 		
-		analyzeRequest(key);	//Analizza ed esegue la richiesta
+		p.restoreCards(saved);
 		
-	}
-
-	/**
-	 * metodo chiamato dal gestore delle chiavi per scrivere una risposta ad un client:
-	 * scrive tutto il messaggio all'interno di this.sessions sul canale associato
-	 * alla chiave passata come parametro
-	 * @param key la chiave da cui ricavare il canale su cui scrivere
-	 */
-	private void writeKey(SelectionKey key) {
+		this.loadedBoards.add(p.getProjectName());
 		
-		sendResponse(this.sessions.get(key.channel()).toString(), key);
+		if(DEBUG) System.out.println("Cards of project "+p.getProjectName()+" loaded: "+p.countCards());
 		
-		key.interestOps(SelectionKey.OP_READ);
+		return true;
 	}
 	
 	/**
-	 * metodo chiamato dopo aver interpretato un comando per salvare il messaggio di risposta,
-	 * da mandare poi al client, all'interno della variabile this.sessions
-	 * @param key la chiave associata al client a cui mandare poi la risposta
-	 * @param msg il messaggio da salvare come risposta alla richiesta TCP
+	 * metodo chiamato prima di leggere la chat di un progetto, con il lock this.stateLock
+	 * in lettura dalla corsia del progetto: se i messaggi salvati nell'archivio non sono in memoria
+	 * vengono letti e inseriti prima di quelli ricevuti dopo l'avvio
+	 * come loadBoard,  uno dei due accessi all'archivio ammessi sulle corsie, una sola volta per progetto:
+	 * i messaggi salvati non sono in memoria e servono per rispondere al client
+	 * @param p il progetto di cui leggere la chat
+	 * @return true se i messaggi salvati sono in memoria, false se non possono essere letti
 	 */
-	private void replaceClientMsg(SelectionKey key, String msg) {
+	private boolean loadChat(Project p) {
+		
+		if(p.chatLoaded()) return true;
+		
+		try {
+			p.restoreChat(this.storage.readChat(p.getProjectName()));
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Can't read chat of project "+p.getProjectName());
+			return false;
+		}
 		
-		this.sessions.get(key.channel()).replace(0, this.sessions.get(key.channel()).toString().length(), msg);
+		return true;
 	}
 	
 	/**
-	 * analizzatore delle richieste TCP
-	 * metodo chiamato dal gestore delle chiavi per analizzare la richiesta di un client:
-	 * ricerca nella mappa delle sessioni la chiave parametro e fa il parsing del messaggio
-	 * ad essa associato, lo confronta con la lista di comandi disponibili e invoca
-	 * il metodo corretto da eseguire
-	 * @param key la chiave associata al client
+	 * metodo chiamato dal thread this.checkpointer dopo ogni checkpoint per scaricare dalla memoria
+	 * le card dei progetti non usati da this.boardIdle millisecondi e, se le card in memoria sono
+	 * pi di this.boardBudget, quelle dei progetti usati meno di recente
+	 * vengono scaricati solo i progetti senza modifiche da salvare: essendo eseguito dallo stesso
+	 * thread del checkpoint, i file dei progetti sono gi stati scritti e verranno riletti da loadBoard
+	 * la chat del progetto resta attiva, cos non vengono persi i messaggi inviati dai membri
 	 */
-	private void analyzeRequest(SelectionKey key) {
+	private void evictBoards() {
 		
-		if(key==null||key.channel()==null||this.sessions.isEmpty()) {	//Ignora richiesta
-			return;
-		}
-		
-		String clientmsg = this.sessions.get(key.channel()).toString();
-		
-		//Fa il parsing del messaggio ricevuto
-		StringTokenizer tokenizer = new StringTokenizer(clientmsg);
+		long now = System.currentTimeMillis();
 		
-		String command = tokenizer.nextToken();	//Salva il comando ricevuto
+		int evicted = 0;
 		
-		boolean didlogout;	//Utilizzata per la terminazione della connessione TCP
-		
-		didlogout = false;
-		
-		switch(command.toLowerCase()) {
-		
-			case "login":
-				
-				if(tokenizer.countTokens()!=2) {	//Il comando login richiede 2 argomenti (username, password)
-					
-					replaceClientMsg(key, "Errore: sono richiesti username e password");
-				}
-				
-				else {
-					String username = tokenizer.nextToken().trim();
-					String password = tokenizer.nextToken().trim();
-					
-					login(username, password, key);
-				}
-				
-				break;
-				
-			case "logout":
-				if(tokenizer.countTokens()!=1) {
-					
-					replaceClientMsg(key, "Errore:  richiesto l' username per il logout");
-				}
-				
-				else {
-					String username = tokenizer.nextToken().trim();
-					
-					didlogout = logout(username, key);
-				}
-				
-				break;
+		this.stateLock.writeLock().lock();
+		try {
+			ArrayList<Project> clean = new ArrayList<Project>();	//I progetti che possono essere scaricati
 			
-			case "listprojects":
-				
-				String name = tokenizer.nextToken().trim();
-				
-				listProjects(name, key);
-				
-				break;
-				
-			case "createproject":
-				
-				if(tokenizer.countTokens()!=2) {
-					replaceClientMsg(key, "Errore:  richiesto un nome per il progetto");
-				}
-				
-				else {
-					String projectname = tokenizer.nextToken().trim();
-					
-					String username = tokenizer.nextToken().trim();
-					
-					createProject(projectname, username, key);
-				}
-				
-				break;
-				
-			case "addmember":
-				
-				if(tokenizer.countTokens()!=3) {
-					replaceClientMsg(key, "Errore: sono richiesti nome del progetto e nickname del nuovo membro");
-				}
-				
-				else {
-					String projectname = tokenizer.nextToken().trim();
-					
-					String newmemberusername = tokenizer.nextToken().trim();
-					
-					String clientusername = tokenizer.nextToken().trim();
-					
-					addMember(projectname, newmemberusername, clientusername, key);
-				}
-				
-				break;
-				
-			case "showmembers":
-				
-				if(tokenizer.countTokens()!=2) {
-					replaceClientMsg(key, "Errore:  richiesto il nome del progetto");
-				}
-				
-				else {
-					String projectname = tokenizer.nextToken().trim();
-					
-					String clientusername = tokenizer.nextToken().trim();
-					
-					showMembers(projectname, clientusername, key);
-				}
-				
-				break;
-				
-			case "showcards":
-				
-				if(tokenizer.countTokens()!=2) {
-					replaceClientMsg(key, "Errore:  richiesto il nome del progetto");
-				}
-				
-				else {
-					String projectname = tokenizer.nextToken().trim();
-					
-					String clientusername = tokenizer.nextToken().trim();
-					
-					showCards(projectname, clientusername, key);
-				}
-				
-				break;
-				
-			case "showcard":
-				
-				if(tokenizer.countTokens()!=3) {
-					replaceClientMsg(key, "Errore: sono richiesti il nome del progetto e il nome della card");
-				}
-				
-				else {
-					String projectname = tokenizer.nextToken().trim();
-					
-					String cardname = tokenizer.nextToken().trim();
-					
-					String clientusername = tokenizer.nextToken().trim();
-					
-					showCard(projectname, cardname, clientusername, key);
-				}
-				
-				break;
-				
-			case "addcard":
-				
-				if(tokenizer.countTokens()!=4) {
-					replaceClientMsg(key, "Errore: sono richiesti il nome del progetto, il nome della card ed una breve descrizione");
-				}
-				
-				else {
-					String projectname = tokenizer.nextToken().trim();
-					
-					String cardname = tokenizer.nextToken().trim();
-					
-					String description = tokenizer.nextToken().trim();
-					
-					String clientusername = tokenizer.nextToken().trim();
-					
-					addCard(projectname, cardname, description, clientusername, key);
-				}
-				
-				break;
-				
-			case "movecard":
-				
-				if(tokenizer.countTokens()!=5) {
-					replaceClientMsg(key, "Errore: sono richiesti il nome del progetto, il nome della card, la lista di partenza e la lista destinazione");
-				}
-				
-				else {
-					String projectname = tokenizer.nextToken().trim();
-					
-					String cardname = tokenizer.nextToken().trim();
-					
-					String fromlist = tokenizer.nextToken().trim();
-					
-					String tolist = tokenizer.nextToken().trim();
-					
-					String clientusername = tokenizer.nextToken().trim();
-					
-					moveCard(projectname, cardname, fromlist, tolist, clientusername, key);
-				}
-				
-				break;
-				
-			case "getcardhistory":
-				
-				if(tokenizer.countTokens()!=3) {
-					replaceClientMsg(key, "Errore: sono richiesti il nome del progetto e il nome della card");
-				}
-				
-				else {
-					String projectname = tokenizer.nextToken().trim();
-					
-					String cardname = tokenizer.nextToken().trim();
-					
-					String clientusername = tokenizer.nextToken().trim();
-					
-					getCardHistory(projectname, cardname, clientusername, key);
-				}
-				
-				break;
-				
-			case "readchat":
+			int cards = 0;	//Le card in memoria
+			
+			for(String name : this.loadedBoards) {
 				
-				if(tokenizer.countTokens()!=2) {
-					replaceClientMsg(key, "Errore:  richiesto il nome del progetto");
-				}
+				Project p = this.projects.get(name);
 				
-				else {
-					String projectname = tokenizer.nextToken().trim();
-					
-					String clientusername = tokenizer.nextToken().trim();
-					
-					readChat(projectname, clientusername, key);
-				}
+				if(p==null) continue;	//Progetto cancellato
 				
-				break;
+				cards += p.countCards();
 				
-			case "cancelproject":
+				if(!this.dirtyProjects.contains(name) && !this.dirtyCards.containsKey(name) && !this.deletedProjects.contains(name)) clean.add(p);
+			}
+			
+			clean.sort((p1, p2) -> Long.compare(p1.retrieveLastAccess(), p2.retrieveLastAccess()));	//Prima i progetti usati meno di recente
+			
+			for(Project p : clean) {
 				
-				if(tokenizer.countTokens()!=2) {
-					replaceClientMsg(key, "Errore:  richiesto il nome del progetto");
-				}
+				if(now-p.retrieveLastAccess()<this.boardIdle && cards<=this.boardBudget) break;	//I successivi sono stati usati pi di recente
 				
-				else {
-					String projectname = tokenizer.nextToken().trim();
-					
-					String username = tokenizer.nextToken().trim();
-					
-					cancelProject(projectname, username, key);
-				}
+				cards -= p.countCards();
 				
-				break;
+				p.unloadCards();
 				
-			default:
+				this.loadedBoards.remove(p.getProjectName());
 				
-				replaceClientMsg(key, "Errore: comando inesistente");
-				break;
-		}
-		
-		if(didlogout) {
-			try {
-				key.channel().close();	//TERMINA CONNESSIONE TCP
-			} catch (IOException e) {
-				if(DEBUG) System.err.println("Can't terminate TCP connection for key "+key.toString());
-				key.interestOps(SelectionKey.OP_WRITE);
+				evicted++;
 			}
-			if(DEBUG) System.out.println("TCP connection closed for a client");
-			this.sessions.remove(key.channel());
-			key.cancel();
+		} finally {
+			this.stateLock.writeLock().unlock();
 		}
-		else
-			key.interestOps(SelectionKey.OP_WRITE);
 		
+		if(DEBUG && evicted>0) System.out.println(evicted+" boards evicted from memory");
 	}
-
+	
 	/**
-	 * metodo chiamato per inviare la risposta ad un comando ricevuto da un client tramite TCP
-	 * @param message il messaggio da inviare al client
-	 * @param key la chiave associata al client
+	 * metodo chiamato da loadBoard per leggere dall'archivio un progetto e le sue card,
+	 * posizionando ogni card nella lista del suo ultimo stato salvato
+	 * se le liste ottenute dalle card sono diverse da quelle salvate nel progetto,
+	 * il progetto viene riscritto dal prossimo checkpoint
+	 * @param projectname il nome del progetto
+	 * @return il progetto letto, null se il progetto non  salvato o non  valido
 	 */
-	private void sendResponse(String message, SelectionKey key) {
-
-		ByteBuffer buffer = ByteBuffer.wrap(message.trim().getBytes());	//Salva il messaggio nel buffer
+	private Project loadProject(String projectname) {
 		
-		SocketChannel sc = (SocketChannel) key.channel();
+		Project progetto = null;
 		
-		while(buffer.hasRemaining()) {
-			try {
-				sc.write(buffer);	//Invia il messaggio al client
-			} catch (IOException e) {
-				if(DEBUG) System.out.println("Error sending TCP response to client with key "+key.toString());
-				this.sessions.remove(key.channel());	//Rimuove il client dalle sessioni
-				try {
-					key.channel().close();
-				} catch (IOException e1) {
-					if(DEBUG) System.err.println("Error closing connection "+key.toString());
-				}
-				key.cancel();
-				break;
-			}
+		List<Card> cards = null;
+		
+		try {
+			progetto = this.storage.readProject(projectname);
+			
+			if(progetto==null) return null;	//Progetto non salvato
+			
+			cards = this.storage.readCards(projectname);
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Errore in lettura: fallita lettura del progetto "+projectname+" dall'archivio");
+			e.printStackTrace();
+			return null;
 		}
 		
+		if(placeCards(progetto, cards)) this.dirtyProjects.add(progetto.getProjectName());	//Il progetto salvato non  aggiornato
+		
+		return progetto;
 	}
-
+	
 	/**
-	 * metodo chiamato dal client via RMI per la registrazione
-	 * il controllo sui parametri viene effettuato sia dal client che dal server
-	 * synchronized in quanto modifica il file degli utenti
-	 * modifica il file specificato nella variabile this.usersFile
+	 * metodo chiamato per posizionare le card lette dall'archivio nelle liste di un progetto:
+	 * le card mantengono l'ordine salvato nel progetto, le card che non vi compaiono
+	 * o che vi compaiono in un'altra lista vengono aggiunte in coda alla lista del loro stato
+	 * @param p il progetto letto dal file project.json
+	 * @param cards le card lette dai loro file
+	 * @return true se le liste sono diverse da quelle del file project.json, false altrimenti
 	 */
-	public synchronized String register(String nickUtente, String password)
-			throws RemoteException, EmptyUserException, EmptyPasswordException, UserAlreadyRegisteredException {
-
-		//Controlla che nome utente e password non siano vuoti
-		if(nickUtente.isBlank()) throw new EmptyUserException();
-		if(password.isBlank()) throw new EmptyPasswordException();
-		
-		if(DEBUG) System.out.println("Received register command");
+	private boolean placeCards(Project p, List<Card> cards) {
 		
-		//Controlla se c' gi un altro utente registrato con lo stesso nome
-		List<User> listautenti = Arrays.asList(this.registeredUsers);
+		Map<String, Card> byname = new LinkedHashMap<String, Card>();
 		
-		if(!listautenti.isEmpty()) {
-			//Ci sono altri utenti registrati
-			
-			for(User u : listautenti) {
-				if(u.getUsername().equals(nickUtente))
-					return "Un altro utente  gi registrato con quel nome utente";
+		for(Card c : cards) {
+			if(c.getCurrentList()==null) {
+				if(DEBUG) System.out.println("Card "+c.getName()+" on project "+p.getProjectName()+" has no valid list field, skipping it");
+				continue;
 			}
-			
+			byname.put(c.getName(), c);
 		}
 		
-		//Non c' un altro utente con il nome desiderato, registra il nuovo utente
-		User u = new User();
-		u.setUsername(nickUtente);
-		u.setPassword(password);
+		EnumMap<CardState, List<Card>> lists = new EnumMap<CardState, List<Card>>(CardState.class);
 		
-		List<User> nuovalista = new ArrayList<User>(listautenti.size()+1);
-
-		nuovalista.addAll(listautenti);	//Rimette tutti gli utenti registrati in una nuova lista
+		for(CardState state : CardState.values()) {
+			lists.put(state, new ArrayList<Card>());
+		}
 		
-		nuovalista.add(u);	//Aggiunge il nuovo utente alla nuova lista
+		boolean changed = false;
 		
-		this.registeredUsers = nuovalista.toArray(this.registeredUsers);	//Salva la nuova lista nella variabile del server
+		for(Card saved : p.getAllCards()) {	//Le card nell'ordine del file project.json
+			
+			Card c = byname.get(saved.getName());
+			
+			if(c==null || c.getCurrentList()!=saved.getCurrentList()) {
+				changed = true;	//Card senza file o spostata dopo l'ultimo salvataggio del progetto
+				continue;
+			}
+			
+			if(c.getLsn()!=saved.getLsn()) changed = true;	//Card modificata dopo l'ultimo salvataggio del progetto
+			
+			lists.get(c.getCurrentList()).add(byname.remove(saved.getName()));
+		}
 		
-		this.users.put(nickUtente, false);	//Salva l'utente nella struttura dati usata per callback
+		for(Card c : byname.values()) {	//Card che non compaiono nella loro lista del file project.json
+			lists.get(c.getCurrentList()).add(c);
+			changed = true;
+		}
 		
-		//Salva la nuova lista sul file di registrazione
-		File f = new File(this.usersFile);
-		assert f.exists();	//Assicura che il file esiste
+		for(CardState state : CardState.values()) {
+			p.replaceCards(state, lists.get(state));
+		}
 		
-		//Scrive sul file in formato JSON la nuova lista
-		ObjectMapper mapper = new ObjectMapper();
+		return changed;
+	}
+
+	/**
+	 * metodo chiamato per inizializzare il servizio RMI con
+	 * nome = this.RMIServiceName e porta = this.RMIServicePort
+	 */
+	private void initRMIService() {
 		
-		ObjectWriter writer = mapper.writer(new DefaultPrettyPrinter());
+		Server.rmiimpl = new RMIUserImpl(this);
 		
 		try {
-			writer.writeValue(f, this.registeredUsers);
-		} catch (JsonGenerationException | JsonMappingException e) {
-			if(DEBUG) System.err.println("Errore registrazione: fallita scrittura oggetto JSON su file"+this.usersFile);
-			e.printStackTrace();
-			return "Errore interno del server";
-		} catch (IOException e) {
-			if(DEBUG) System.err.println("Errore registrazione: fallita scrittura su file"+this.usersFile);
+			
+			Registry r = LocateRegistry.createRegistry(this.RMIServicePort);
+			
+			RMIUserInterface rmiinterface = 
+					(RMIUserInterface) UnicastRemoteObject.exportObject(rmiimpl, 0);
+			
+			r.rebind(this.RMIServiceName, rmiinterface);
+			
+			Server.RMIRegistry = r;
+			
+			if(DEBUG) System.out.println("RMIService succesfully initialized");
+		} catch (RemoteException e) {
+			System.err.println("Errore nell'inizializzazione del servizio RMI");
+			e.printStackTrace();
+			System.exit(0);
+		}
+	}
+	
+	/**
+	 * metodo chiamato per inizializzare il servizio NIO Multiplexing
+	 * per la gestione delle richieste TCP dei client, utilizzando
+	 * this.serverPort come porta associata al canale this.serverChannel
+	 * e this.socket come socket
+	 * il canale viene associato in modalita' accept al reactor this.acceptor,
+	 * cos da poter ricevere subito nuove connessioni, che vengono assegnate a turno
+	 * ai this.reactorsCount reactor worker, ognuno eseguito da un proprio thread
+	 * se non sono richiesti reactor worker l'acceptor gestisce anche le connessioni accettate
+	 */
+	private void initMultiplexing() throws IOException {
+		
+		this.serverChannel = ServerSocketChannel.open();
+		this.socket = serverChannel.socket();
+		this.serverChannel.configureBlocking(false);
+		this.socket.bind(new InetSocketAddress(this.serverPort));
+		
+		this.acceptor = new Reactor(this);
+		this.acceptor.listen(this.serverChannel);
+		
+		if(this.reactorsCount==0) {
+			this.reactors = new Reactor[] {this.acceptor};
+		}
+		else {
+			this.reactors = new Reactor[this.reactorsCount];
+			for(int i=0; i<this.reactorsCount; i++) {
+				this.reactors[i] = new Reactor(this);
+				
+				Thread t = new Thread(this.reactors[i], "worth-reactor-"+i);
+				t.start();
+			}
+		}
+		
+		if(DEBUG) System.out.println("NIO Multiplexing service Online on port "+this.serverPort+" with "+this.reactorsCount+" worker reactors");
+		
+	}
+	
+	/**
+	 * metodo chiamato dall'acceptor per scegliere, a turno, il reactor a cui
+	 * assegnare una nuova connessione
+	 * @return il reactor worker a cui assegnare la connessione
+	 */
+	Reactor nextReactor() {
+		
+		Reactor r = this.reactors[this.nextReactor];
+		
+		this.nextReactor = (this.nextReactor+1)%this.reactors.length;
+		
+		return r;
+	}
+	
+	/**
+	 * metodo chiamato per inizializzare il servizio RMI Callback con
+	 * nome = this.RMICallbackServiceName e porta = this.RMICallbackServicePort
+	 */
+	private void initCallbackService() {
+		
+		CallbackServerImpl callbackimpl = new CallbackServerImpl(this);
+		
+		try {
+			
+			CallbackServerInterface callbackinterface = 
+					(CallbackServerInterface) UnicastRemoteObject.exportObject(callbackimpl, 0);
+			
+			Server.RMIRegistry.rebind(this.RMICallbackServiceName, callbackinterface);
+			
+			if(DEBUG) System.out.println("RMICallbackService succesfully initialized");
+		} catch (RemoteException e) {
+			System.err.println("Errore nell'inizializzazione del servizio RMI Callback");
+			e.printStackTrace();
+			System.exit(0); //Termina il server
+		}
+		
+	}
+
+	/**
+	 * metodo chiamato dopo aver interpretato un comando per salvare il messaggio di risposta,
+	 * da mandare poi al client, all'interno della richiesta
+	 * @param request la richiesta del client a cui mandare poi la risposta
+	 * @param msg il messaggio da salvare come risposta alla richiesta TCP
+	 */
+	private void replaceClientMsg(Request request, String msg) {
+		
+		request.setResponse(msg);
+	}
+	
+	/**
+	 * metodo chiamato per aggiungere un progetto al catalogo this.projects
+	 * e all'indice dei progetti di ogni suo membro
+	 * @param p il progetto da aggiungere
+	 */
+	private void addToCatalog(Project p) {
+		
+		this.projects.put(p.getProjectName(), p);
+		
+		for(String member : p.getMembers()) {
+			this.projectsByMember.computeIfAbsent(member, k -> ConcurrentHashMap.newKeySet()).add(p.getProjectName());
+		}
+	}
+	
+	/**
+	 * metodo chiamato per rimuovere un progetto dal catalogo this.projects
+	 * e dall'indice dei progetti di ogni suo membro
+	 * @param p il progetto da rimuovere
+	 */
+	private void removeFromCatalog(Project p) {
+		
+		this.projects.remove(p.getProjectName());
+		
+		for(String member : p.getMembers()) {
+			Set<String> memberprojects = this.projectsByMember.get(member);
+			if(memberprojects!=null) memberprojects.remove(p.getProjectName());
+		}
+	}
+	
+	/**
+	 * metodo chiamato all'avvio per costruire la tabella dei comandi TCP:
+	 * per ogni comando vengono dichiarati il numero di argomenti, il messaggio di errore
+	 * se gli argomenti non sono corretti, la corsia e il lock con cui eseguirlo
+	 * i comandi che modificano utenti online o elenco dei progetti acquisiscono il lock
+	 * this.stateLock in scrittura, tutti gli altri in lettura
+	 * @return la tabella dei comandi
+	 */
+	private CommandRegistry initCommands() {
+		
+		CommandRegistry registry = new CommandRegistry();
+		
+		registry.register(new Command("login", 2, "Errore: sono richiesti username e password",
+				Command.USER_LANE, true, false, r -> login(r.getArgument(0), r.getArgument(1), r)));
+		
+		registry.register(new Command("logout", 1, "Errore:  richiesto l' username per il logout",
+				Command.USER_LANE, true, false, r -> {
+					if(logout(r.getArgument(0), r)) r.setCloseConnection();	//Il reactor terminer la connessione TCP
+				}));
+		
+		registry.register(new Command("listprojects", 1, "Errore:  richiesto l' username",
+				Command.USER_LANE, false, false, r -> listProjects(r.getArgument(0), r)));
+		
+		registry.register(new Command("createproject", 2, "Errore:  richiesto un nome per il progetto",
+				Command.PROJECT_LANE, true, false, r -> createProject(r.getArgument(0), r.getArgument(1), r)));
+		
+		registry.register(new Command("addmember", 3, "Errore: sono richiesti nome del progetto e nickname del nuovo membro",
+				Command.PROJECT_LANE, false, false, r -> addMember(r.getArgument(0), r.getArgument(1), r.getArgument(2), r)));
+		
+		registry.register(new Command("showmembers", 2, "Errore:  richiesto il nome del progetto",
+				Command.PROJECT_LANE, false, false, r -> showMembers(r.getArgument(0), r.getArgument(1), r)));
+		
+		registry.register(new Command("showcards", 2, "Errore:  richiesto il nome del progetto",
+				Command.PROJECT_LANE, false, false, r -> showCards(r.getArgument(0), r.getArgument(1), r)));
+		
+		registry.register(new Command("showcard", 3, "Errore: sono richiesti il nome del progetto e il nome della card",
+				Command.PROJECT_LANE, false, false, r -> showCard(r.getArgument(0), r.getArgument(1), r.getArgument(2), r)));
+		
+		registry.register(new Command("addcard", 4, "Errore: sono richiesti il nome del progetto, il nome della card ed una breve descrizione",
+				Command.PROJECT_LANE, false, false, r -> addCard(r.getArgument(0), r.getArgument(1), r.getArgument(2), r.getArgument(3), r)));
+		
+		registry.register(new Command("movecard", 5, "Errore: sono richiesti il nome del progetto, il nome della card, la lista di partenza e la lista destinazione",
+				Command.PROJECT_LANE, false, false, r -> moveCard(r.getArgument(0), r.getArgument(1), r.getArgument(2), r.getArgument(3), r.getArgument(4), r)));
+		
+		registry.register(new Command("getcardhistory", 3, "Errore: sono richiesti il nome del progetto e il nome della card",
+				Command.PROJECT_LANE, false, false, r -> getCardHistory(r.getArgument(0), r.getArgument(1), r.getArgument(2), r)));
+		
+		registry.register(new Command("readchat", 2, 4, "Errore:  richiesto il nome del progetto, seguito facoltativamente da since e da un numero di messaggio",
+				Command.PROJECT_LANE, false, false, r -> {
+					if(r.getArgumentCount()==2) readChat(r.getArgument(0), r.getArgument(1), -1, r);
+					else if(r.getArgumentCount()==4 && r.getArgument(1).equalsIgnoreCase("since") && parseSeq(r.getArgument(2))>=0)
+						readChat(r.getArgument(0), r.getArgument(3), parseSeq(r.getArgument(2)), r);
+					else replaceClientMsg(r, "Errore: per leggere i nuovi messaggi  richiesto since seguito dal numero dell'ultimo messaggio letto");
+				}));
+		
+		registry.register(new Command("cancelproject", 2, "Errore:  richiesto il nome del progetto",
+				Command.PROJECT_LANE, true, false, r -> cancelProject(r.getArgument(0), r.getArgument(1), r)));
+		
+		//La prima riga contiene progetto e utente, le successive i comandi da eseguire
+		registry.register(new Command("batch", 2, "Errore: sono richiesti il nome del progetto ed una lista di comandi",
+				Command.PROJECT_LANE, false, true, r -> batch(r.getArgument(0), r.getArgument(1), r)));
+		
+		return registry;
+	}
+	
+	/**
+	 * metodo chiamato dai reactor per restituire la tabella dei comandi TCP,
+	 * usata per riconoscere i comandi direttamente sul buffer di lettura
+	 * @return la tabella dei comandi
+	 */
+	CommandRegistry getCommands() {
+		return this.commands;
+	}
+	
+	/**
+	 * metodo chiamato da un reactor per affidare al pool this.executor una richiesta ricevuta:
+	 * i comandi su un progetto vengono eseguiti nella corsia del progetto, cos da mantenere
+	 * l'ordine delle modifiche, gli altri nella corsia dell'utente
+	 * le richieste con un comando inesistente o un numero di argomenti errato ricevono subito
+	 * la risposta di errore, senza passare dal pool
+	 * una volta eseguito il comando la richiesta viene restituita al reactor, se il comando
+	 * ha salvato modifiche sul journal solo quando queste sono su disco, senza occupare
+	 * il thread del pool durante l'attesa: se la sincronizzazione del journal fallisce
+	 * la risposta attende il checkpoint che salva le modifiche nell'archivio
+	 * @param request la richiesta ricevuta
+	 */
+	void submitRequest(Request request) {
+		
+		Command command = request.getCommand();
+		
+		if(command==null) {
+			replaceClientMsg(request, "Errore: comando inesistente");
+			request.complete();
+			return;
+		}
+		
+		if(request.getArgumentCount()<command.getArguments() || request.getArgumentCount()>command.getMaxArguments()) {
+			replaceClientMsg(request, command.getUsage());
+			request.complete();
+			return;
+		}
+		
+		Lock lock = command.isExclusive() ? this.stateLock.writeLock() : this.stateLock.readLock();
+		
+		this.executor.execute(command.getLane(request), () -> {
+			lock.lock();
+			try {
+				command.getHandler().execute(request);
+			} catch (RuntimeException e) {
+				if(DEBUG) System.err.println("Error executing command "+request.getText());
+				e.printStackTrace();
+				replaceClientMsg(request, "Errore del server");
+			} finally {
+				lock.unlock();
+			}
+			
+			if(request.getJournalLsn()==0) {
+				request.complete();	//Restituisce la risposta al reactor
+				return;
+			}
+			
+			this.journal.whenDurable(request.getJournalLsn(), request::complete);	//Restituisce la risposta al reactor quando le modifiche sono su disco
+		});
+	}
+
+	/**
+	 * metodo chiamato dal client via RMI per la registrazione
+	 * il controllo sui parametri viene effettuato sia dal client che dal server
+	 * acquisisce il lock this.stateLock in scrittura in quanto modifica gli utenti registrati,
+	 * e lo rilascia prima di attendere che la registrazione salvata sul journal sia su disco
+	 * e di notificare i client via callback, con una copia degli utenti presa con il lock
+	 * il file this.usersFile viene aggiornato dal checkpoint
+	 */
+	public String register(String nickUtente, String password)
+			throws RemoteException, EmptyUserException, EmptyPasswordException, UserAlreadyRegisteredException {
+		
+		long lsn;
+		Map<String, Boolean> users;	//Gli utenti da notificare ai client, copiati con il lock
+		
+		this.stateLock.writeLock().lock();
+		try {
+			lsn = doRegister(nickUtente, password);
+			
+			users = new HashMap<String, Boolean>(this.users);
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Errore registrazione: fallita scrittura sul journal");
 			e.printStackTrace();
 			return "Errore interno del server";
+		} finally {
+			this.stateLock.writeLock().unlock();
 		}
 		
-		//Aggiorna per tutti i client la lista degli utenti registrati
-		updateRegisteredUsers();
+		if(lsn==0) return "Un altro utente  gi registrato con quel nome utente";
+		
+		//Senza il lock, cos gli altri comandi non attendono la sincronizzazione del journal
+		this.journal.awaitDurable(lsn);
+		
+		//Aggiorna per tutti i client la lista degli utenti registrati, un client lento non blocca i comandi
+		updateRegisteredUsers(users);
 		
 		return "Registrazione effettuata";
+	}
+	
+	/**
+	 * metodo chiamato da register, con il lock this.stateLock acquisito in scrittura,
+	 * per registrare un nuovo utente e salvare la registrazione sul journal
+	 * @param nickUtente il nome utente da registrare
+	 * @param password la password associata al nome utente
+	 * @return il lsn della registrazione, da attendere senza il lock, 0 se il nome utente  gi registrato
+	 * @throws IOException se la registrazione non pu essere salvata sul journal, l'utente non viene registrato
+	 */
+	private long doRegister(String nickUtente, String password)
+			throws EmptyUserException, EmptyPasswordException, IOException {
+
+		//Controlla che nome utente e password non siano vuoti
+		if(nickUtente.isBlank()) throw new EmptyUserException();
+		if(password.isBlank()) throw new EmptyPasswordException();
+		
+		if(DEBUG) System.out.println("Received register command");
+		
+		//Controlla se c' gi un altro utente registrato con lo stesso nome
+		if(this.registeredUsers.containsKey(nickUtente)) return 0;
+		
+		//Non c' un altro utente con il nome desiderato, salva la registrazione sul journal
+		long lsn = this.journal.append(Collections.singletonList(JournalRecord.register(nickUtente, password)));
 		
+		//Registra il nuovo utente, il file degli utenti viene riscritto dal checkpoint
+		addUser(nickUtente, password);
+		
+		return lsn;
 	}
 
 	/**
-	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un login:
-	 * ricerca tra gli utenti registrati l'username passato come argomento, se lo trova
-	 * e la password corrisponde a quella di registrazione allora
-	 * imposta l'utente come pubblicamente online aggiornando this.users e lo aggiunge alla lista locale
-	 * this.onlineUsers utilizzata dal server
-	 * altrimenti invia un messaggio di errore tramite TCP al client
-	 * @param username l'username da ricercare tra gli utenti registrati
-	 * @param password la password inserita dall'utente
-	 * @param key la chiave associata al client da notificare
+	 * metodo chiamato alla registrazione di un utente, anche ripetuta dal journal all'avvio,
+	 * per salvarlo tra gli utenti registrati e segnare il file degli utenti da riscrivere
+	 * @param nickUtente il nome utente
+	 * @param password la password associata al nome utente
+	 */
+	private void addUser(String nickUtente, String password) {
+		
+		User u = new User();
+		u.setUsername(nickUtente);
+		u.setPassword(password);
+		
+		this.registeredUsers.put(nickUtente, u);	//Salva il nuovo utente nella variabile del server
+		
+		this.users.put(nickUtente, false);	//Salva l'utente nella struttura dati usata per callback
+		
+		this.usersDirty = true;
+	}
+	
+	/**
+	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un login:
+	 * ricerca tra gli utenti registrati l'username passato come argomento, se lo trova
+	 * e la password corrisponde a quella di registrazione allora
+	 * imposta l'utente come pubblicamente online aggiornando this.users e lo aggiunge alla lista locale
+	 * this.onlineUsers utilizzata dal server
+	 * altrimenti invia un messaggio di errore tramite TCP al client
+	 * @param username l'username da ricercare tra gli utenti registrati
+	 * @param password la password inserita dall'utente
+	 * @param request la richiesta del client da notificare
+	 */
+	private void login(String username, String password, Request request) {
+		
+		User u = this.registeredUsers.get(username.trim());	//Controlla se esiste un utente con l'username indicato
+		
+		if(u==null) {
+			if(DEBUG) System.err.println("User not found");
+			replaceClientMsg(request, "Utente non trovato");
+			return;
+		}
+		
+		if(!u.getPassword().equals(password.trim())) {
+			//Password non corretta
+			if(DEBUG) System.err.println("Wrong password");
+			replaceClientMsg(request, "Password errata");
+			return;
+		}
+		
+		//Username e password ricevuti corretti
+		if(this.onlineUsers.put(username.trim(), request.getSession())==null) {	//Associa l'utente alla sessione TCP da cui ha effettuato il login
+			
+			for(String projectname : this.projectsByMember.getOrDefault(username.trim(), Collections.emptySet())) {
+				memberOnline(this.projects.get(projectname));	//Riceve le chat dei progetti dell'utente
+			}
+		}
+		
+		this.users.put(username.trim(), true);	//Imposta l'utente come pubblicamente online
+		
+		request.setAuthenticates();
+		
+		replaceClientMsg(request, "ok");
+	}
+	
+	/**
+	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un logout:
+	 * ricerca tra gli utenti online l'username passato come argomento, se lo trova
+	 * imposta l'utente come pubblicamente offline aggiornando this.users e lo rimuove dalla lista locale
+	 * this.onlineUsers utilizzata dal server
+	 * altrimenti invia un messaggio di errore tramite TCP al client
+	 * @param username l'username da ricercare tra gli utenti online
+	 * @param request la richiesta del client da notificare
+	 * @return true se l'utente ha effettuato correttamente il logout, false altrimenti
+	 */
+	private boolean logout(String username, Request request) {
+		
+		if(this.onlineUsers.remove(username.trim())!=null) {	//Utente online trovato e rimosso
+			
+			for(String projectname : this.projectsByMember.getOrDefault(username.trim(), Collections.emptySet())) {
+				this.projects.get(projectname).chatMemberOffline(this.chatReceiver);	//Smette di ricevere le chat rimaste senza membri online
+			}
+			
+			this.users.put(username.trim(), false);	//Imposta l'utente come pubblicamente offline
+			
+			replaceClientMsg(request, "ok");
+			return true;
+		}
+		//Utente online non trovato
+		replaceClientMsg(request, "Errore del server: impossibile eseguire logout per "+username);
+		if(DEBUG) System.err.println("Can't execute logout for user "+username);
+		
+		return false;
+	}
+	
+	/**
+	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un listProjects:
+	 * ricerca tra gli utenti online l'username passato come argomento, se lo trova
+	 * ricerca tra tutti i progetti il suo username tra i membri, se lo trova
+	 * aggiunge il nome del progetto alla risposta da inviare al client
+	 * @param username l'username da ricercare tra gli utenti online e tra i membri dei progetti
+	 * @param request la richiesta del client da notificare
+	 */
+	private void listProjects(String username, Request request) {
+		
+		if(this.projects.isEmpty()) {	//Non ci sono progetti
+			replaceClientMsg(request, "Errore: impossibile trovare progetti");
+			return;
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		
+		if(this.onlineUsers.containsKey(username)) { //L'utente che ha richiesto la lista  online
+			
+			for(String projectname : this.projectsByMember.getOrDefault(username, Collections.emptySet())) {	//Solo i progetti di cui l'utente  membro
+				
+				sb.append(projectname.trim());
+				sb.append(System.getProperty("line.separator"));
+			}
+			
+			if(sb.length()==0) {
+				replaceClientMsg(request, "Errore: impossibile trovare progetti di cui fai parte");
+				return;
+			}
+			else {
+				replaceClientMsg(request, sb.toString());
+				return;
+			}
+		}
+		//Utente non online
+		replaceClientMsg(request, "Errore: per vedere la lista dei progetti di cui fai parte devi aver effettuato il login");
+	}
+	
+	/**
+	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un createProject:
+	 * ricerca tra gli utenti online l'username passato come argomento, se lo trova
+	 * ricerca tra tutti i progetti un progetto con il nome passato come parametro,
+	 * se lo trova restituisce un messaggio di errore altrimenti
+	 * crea il nuovo progetto e aggiunge la creazione al journal, il progetto viene salvato
+	 * nell'archivio dal checkpoint
+	 * @param projectname il nome del progetto da creare
+	 * @param username l'username da ricercare tra gli utenti online
+	 * @param request la richiesta del client da notificare
+	 */
+	private void createProject(String projectname, String username, Request request) {
+		
+		if(this.projects.containsKey(projectname)) {	//Controlla che non esiste gi un altro progetto con il nome richiesto
+			replaceClientMsg(request, "Errore: esiste gi un altro progetto con il nome scelto");
+			return;
+		}
+		//Non esiste un progetto con il nome desiderato, lo crea
+		
+		if(this.onlineUsers.containsKey(username)) {	//L'utente che ha richiesto la creazione del progetto  online
+			
+			if(projectname.equals(".") || projectname.equals("..") || projectname.contains("/") || projectname.contains(File.separator)) {
+				//Nome non utilizzabile per la cartella del progetto
+				replaceClientMsg(request, "Errore del server: impossibile creare un progetto con il nome scelto");
+				return;
+			}
+			
+			InetAddress group = this.chatAddresses.allocate();	//Salvato nel journal, la chat lo riceve di nuovo al riavvio
+			
+			JournalRecord record = JournalRecord.createProject(projectname, username, group==null ? null : group.getHostAddress());
+			
+			try {
+				request.setJournalLsn(this.journal.append(Collections.singletonList(record)));
+			} catch (IOException e) {
+				if(DEBUG) System.err.println("Error in writing on journal");
+				if(group!=null) this.chatAddresses.release(group);
+				replaceClientMsg(request, "Errore del server: impossibile creare un progetto con il nome scelto");
+				return;
+			}
+			
+			//Creazione salvata sul journal, crea il progetto localmente e avvia il servizio chat
+			Project p = openProject(projectname, username, group);
+			
+			markDirty(p, record);
+			
+			replaceClientMsg(request, "ok");
+			return;
+		}
+		//L'utente che ha richiesto la creazione del progetto non  online
+		replaceClientMsg(request, "Errore: per creare un progetto devi aver effettuato il login");
+		
+	}
+	
+	/**
+	 * metodo chiamato alla creazione di un progetto, anche ripetuta dal journal all'avvio:
+	 * crea il progetto con il suo creatore come unico membro, lo aggiunge al catalogo
+	 * e ne avvia il servizio chat
+	 * @param projectname il nome del progetto
+	 * @param username il nome utente del creatore
+	 * @param group l'indirizzo multicast assegnato alla chat del progetto, null se non disponibile
+	 * @return il progetto creato
+	 */
+	private Project openProject(String projectname, String username, InetAddress group) {
+		
+		Project p = new Project();
+		
+		ArrayList<String> members = new ArrayList<String>();
+		
+		p.setProjectName(projectname);
+		p.setCreatedBy(username);
+		members.add(username);
+		p.setMembers(members);
+		
+		addToCatalog(p);
+		
+		p.markCardsLoaded();	//Un nuovo progetto non ha card n messaggi da leggere dall'archivio
+		p.markChatLoaded();
+		p.markAccess(System.currentTimeMillis());
+		this.loadedBoards.add(projectname);
+		
+		//Avvia il servizio chat per il progetto
+		startChat(p, group);
+		
+		return p;
+	}
+	
+	/**
+	 * metodo chiamato alla lettura o alla creazione di un progetto per avviarne la chat
+	 * sull'indirizzo multicast assegnato, ricevuta subito se un membro  online
+	 * il progetto resta senza chat se l'intervallo  esaurito
+	 * @param p il progetto di cui avviare la chat
+	 * @param group l'indirizzo assegnato alla chat da this.chatAddresses, null se l'intervallo  esaurito
+	 */
+	private void startChat(Project p, InetAddress group) {
+		
+		if(group==null) {
+			if(DEBUG) System.err.println("Error: Can't open chat service for project "+p.getProjectName()+", no more multicast addresses in "+this.chatAddresses);
+			return;
+		}
+		
+		//Chiesta anche dal receiver, la scrittura avviene sul thread del checkpoint, come le altre scritture nell'archivio
+		p.startChatService(this.chatPort, this.chatHistory, group, last -> this.checkpointer.execute(() -> reserveChat(p, last)));
+		
+		if(this.onlineUsers.isEmpty()) return;	//All'avvio nessun membro  online
+		
+		for(String member : new HashSet<String>(p.getMembers())) {	//I progetti salvati possono contenere un membro ripetuto, il logout lo conta una volta sola
+			if(this.onlineUsers.containsKey(member)) memberOnline(p);
+		}
+	}
+	
+	/**
+	 * metodo chiamato dal thread this.checkpointer, chiesto dalla storia della chat quando met
+	 * dei numeri riservati  assegnata, per salvare nell'archivio l'ultimo numero di sequenza
+	 * riservato prima di comunicarlo ai client: dopo un riavvio la numerazione riprende dal successivo
+	 * e i client non ricevono due messaggi con lo stesso numero
+	 * il receiver non scrive mai nell'archivio, i messaggi oltre l'ultimo numero salvato restano provvisori
+	 * @param p il progetto della chat
+	 * @param last l'ultimo numero di sequenza da riservare
+	 */
+	private void reserveChat(Project p, long last) {
+		
+		this.stateLock.readLock().lock();
+		try {
+			if(this.projects.get(p.getProjectName())!=p) return;	//Cancellato nel frattempo
+			
+			//Un progetto ricreato con il nome di uno cancellato non  ancora salvato: l'archivio contiene
+			//ancora il progetto cancellato, e il checkpoint eliminerebbe anche i numeri riservati
+			if(this.deletedProjects.contains(p.getProjectName()) || this.deletingProjects.contains(p.getProjectName())) {
+				p.chatReserveFailed();	//Riprovato dopo che il checkpoint lo ha salvato
+				return;
+			}
+			
+			if(!this.storage.appendChat(p.getProjectName(), JsonCodec.encodeChat(last+1, new ArrayList<String>()))) {
+				p.chatReserveFailed();	//Progetto nuovo, riprovato dopo che il checkpoint lo ha salvato
+				return;
+			}
+			
+			this.storage.sync();	//Senza compattazione, che resta al checkpoint
+			
+			p.chatReserved(last);
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Can't reserve sequence numbers of chat "+p.getProjectName()+", will retry");
+			p.chatReserveFailed();
+		} finally {
+			this.stateLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * metodo chiamato quando un membro di un progetto diventa online, con il lock this.stateLock
+	 * in scrittura o dalla corsia del progetto: il receiver inizia a ricevere la chat e,
+	 * se i messaggi salvati non sono ancora stati letti, vengono letti dalla corsia del progetto,
+	 * cos i messaggi ricevuti vengono inoltrati ai membri con il numero di sequenza definitivo
+	 * @param p il progetto del membro
+	 */
+	private void memberOnline(Project p) {
+		
+		p.chatMemberOnline(this.chatReceiver);
+		
+		if(p.chatLoaded()) return;
+		
+		this.executor.execute(Command.PROJECT_LANE+p.getProjectName(), () -> {
+			this.stateLock.readLock().lock();
+			try {
+				if(this.projects.get(p.getProjectName())==p) loadChat(p);	//Non se cancellato nel frattempo
+			} finally {
+				this.stateLock.readLock().unlock();
+			}
+		});
+	}
+	
+	/**
+	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un addMember:
+	 * se l'utente che ha richiesto il comando risulta online allora
+	 * ricerca l'username del nuovo membro tra i membri registrati su WORTH, se lo trova
+	 * ricerca il progetto da modificare e se lo trova
+	 * ricerca tra i membri del progetto l'utente che ha richiesto la modifica, se lo trova
+	 * aggiorna la lista dei membri del progetto aggiungendo l'username richiesto
+	 * @param projectname il nome del progetto da modificare
+	 * @param newmemberusername il nome del nuovo membro da aggiungere al progetto
+	 * @param clientusername il nome dell'utente che ha richiesto la modifica del progetto
+	 * @param request la richiesta del client da notificare
 	 */
-	private void login(String username, String password, SelectionKey key) {
+	private void addMember(String projectname, String newmemberusername, String clientusername, Request request) {
+		
+		if(this.projects.isEmpty()) {	//Non ci sono progetti
+			replaceClientMsg(request, "Errore: impossibile trovare progetti");
+			return;
+		}
 		
-		for(User u : getUsers()) {	//Controlla se esiste un utente con l'username e la password indicati
+		if(this.onlineUsers.containsKey(clientusername)) {	//L'utente che ha richiesto l'aggiunta di un membro  online
 			
-			if(u.getUsername().equals(username.trim())) {
-				if(u.getPassword().equals(password.trim())) {
-					//Username e password ricevuti corretti
-					
-					List<User> nuovalista = new ArrayList<User>(getOnlineUsers().size()+1);
-
-					nuovalista.addAll(getOnlineUsers());	//Rimette tutti gli utenti online in una nuova lista
-					
-					nuovalista.add(u);	//Aggiunge il nuovo utente alla nuova lista
-					
-					this.onlineUsers = nuovalista.toArray(this.onlineUsers);	//Salva la nuova lista nella variabile del server
-					
-					this.users.put(username.trim(), true);	//Imposta l'utente come pubblicamente online
+			if(this.registeredUsers.containsKey(newmemberusername)) {	//Il nuovo membro  un utente di WORTH
+				
+				Project p = this.projects.get(projectname);
+				if(p!=null) {	//Progetto richiesto trovato
 					
-					replaceClientMsg(key, "ok");
-					return;
-				}
-				else {
-					//Password non corretta
-					if(DEBUG) System.err.println("Wrong password");
-					replaceClientMsg(key, "Password errata");
+					for(String member : p.getMembers()) {
+						if(member.equals(clientusername)) {	//L'utente che ha richiesto l'aggiunta di un membro fa parte del progetto
+							
+							ArrayList<JournalRecord> records = new ArrayList<JournalRecord>(1);
+							
+							String result = applyAddMember(p, newmemberusername, records);
+							
+							if(result.equals("ok") && !saveProject(p, records, request)) {
+								replaceClientMsg(request, "Errore del server");
+								return;
+							}
+							
+							replaceClientMsg(request, result);
+							return;
+						}
+					}
+					//L'utente non fa parte del progetto
+					replaceClientMsg(request, "Errore: devi essere membro del progetto per poter aggiungere un nuovo partecipante");
 					return;
 				}
+				//Progetto non trovato
+				replaceClientMsg(request, "Errore: impossibile trovare il progetto specificato");
+				return;
 			}
+			//Il nuovo membro non  registrato a WORTH
+			replaceClientMsg(request, "Errore: l'utente specificato non  registrato a WORTH");
+			return;
 		}
+		//L'utente che ha richiesto il comando non  online
+		replaceClientMsg(request, "Errore: per aggiungere un membro ad un progetto devi aver effettuato il login");
 		
-		if(DEBUG) System.err.println("User not found");
-		replaceClientMsg(key, "Utente non trovato");
 	}
 	
 	/**
-	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un logout:
-	 * ricerca tra gli utenti online l'username passato come argomento, se lo trova
-	 * imposta l'utente come pubblicamente offline aggiornando this.users e lo rimuove dalla lista locale
-	 * this.onlineUsers utilizzata dal server
-	 * altrimenti invia un messaggio di errore tramite TCP al client
-	 * @param username l'username da ricercare tra gli utenti online
-	 * @param key la chiave associata al client da notificare
-	 * @return true se l'utente ha effettuato correttamente il logout, false altrimenti
+	 * metodo chiamato per aggiungere un membro ad un progetto, modifica solo lo stato locale
+	 * del progetto, che deve essere poi salvato con saveProject
+	 * @param p il progetto da modificare
+	 * @param newmemberusername il nome del nuovo membro da aggiungere al progetto
+	 * @param records la lista a cui aggiungere il record della modifica, da salvare sul journal
+	 * @return "ok" se il membro  stato aggiunto, il messaggio di errore altrimenti
 	 */
-	private boolean logout(String username, SelectionKey key) {
+	private String applyAddMember(Project p, String newmemberusername, List<JournalRecord> records) {
 		
-		for(User u: getOnlineUsers()) {
-			
-			if(u.getUsername().equals(username.trim())) {	//Utente online trovato
-				
-				List<User> nuovalista = new ArrayList<User>(getOnlineUsers().size());
-
-				nuovalista.addAll(getOnlineUsers());	//Rimette tutti gli utenti online in una nuova lista
-				
-				nuovalista.remove(u);	//Rimuove l'utente dalla nuova lista
-				
-				//Deve rimuovere l'elemento null dalla lista
-				List<User> cleanlist = cleanList(nuovalista);
-				
-				User[] newarray = new User[cleanlist.size()];
-				
-				newarray = cleanlist.toArray(newarray);
-				
-				this.onlineUsers = null;
-				
-				this.onlineUsers = newarray.clone();
-				
-				this.users.put(username.trim(), false);	//Imposta l'utente come pubblicamente offline
-				
-				replaceClientMsg(key, "ok");
-				return true;
-			}
+		if(!this.registeredUsers.containsKey(newmemberusername)) {	//Il nuovo membro non  un utente di WORTH
+			return "Errore: l'utente specificato non  registrato a WORTH";
 		}
-		//Utente online non trovato
-		replaceClientMsg(key, "Errore del server: impossibile eseguire logout per "+username);
-		if(DEBUG) System.err.println("Can't execute logout for user "+username);
 		
-		return false;
+		if(p.getMembers().contains(newmemberusername)) {	//Un membro ripetuto verrebbe contato due volte tra i membri online della chat
+			return "Errore: l'utente fa gi parte del progetto";
+		}
+		
+		insertMember(p, newmemberusername);
+		
+		records.add(JournalRecord.addMember(p.getProjectName(), newmemberusername));
+		
+		return "ok";
 	}
 	
 	/**
-	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un listProjects:
-	 * ricerca tra gli utenti online l'username passato come argomento, se lo trova
-	 * ricerca tra tutti i progetti il suo username tra i membri, se lo trova
-	 * aggiunge il nome del progetto alla risposta da inviare al client
-	 * @param username l'username da ricercare tra gli utenti online e tra i membri dei progetti
-	 * @param key la chiave associata al client da notificare
+	 * metodo chiamato per inserire un nuovo membro nella lista dei membri di un progetto
+	 * e nell'indice dei progetti del membro
+	 * @param p il progetto da modificare
+	 * @param newmemberusername il nome del nuovo membro
 	 */
-	private void listProjects(String username, SelectionKey key) {
+	private void insertMember(Project p, String newmemberusername) {
 		
-		File projectfolder = new File(this.projectsFolder);
+		ArrayList<String> newmembers = new ArrayList<String>(p.getMembers().size()+1);
 		
-		if(projectfolder.list().length==0) {	//Non ci sono progetti
-			replaceClientMsg(key, "Errore: impossibile trovare progetti");
-			return;
-		}
+		newmembers.addAll(p.getMembers());	//Inserisce tutti i vecchi membri del progetto in una nuova lista
 		
-		StringBuilder sb = new StringBuilder();
+		newmembers.add(newmemberusername);	//Aggiunge il nuovo membro al progetto
 		
-		for(User u : this.onlineUsers) {
-			if(u.getUsername().equals(username)) { //L'utente che ha richiesto la lista  online
-				
-				for(Project p : this.projects) {
-
-					for(String nickname : p.getMembers()) {
-						
-						if(nickname.equals(username)) {	//L'utente  membro del progetto
-							
-							sb.append(p.getProjectName().trim());
-							sb.append(System.getProperty("line.separator"));
-							break;
-						}
-					}
-				}
-				
-				if(sb.length()==0) {
-					replaceClientMsg(key, "Errore: impossibile trovare progetti di cui fai parte");
-					return;
-				}
-				else {
-					replaceClientMsg(key, sb.toString());
-					return;
-				}
-			}
-		}
-		//Utente non online
-		replaceClientMsg(key, "Errore: per vedere la lista dei progetti di cui fai parte devi aver effettuato il login");
+		p.setMembers(newmembers);	//Aggiorna la lista del progetto localmente
+		
+		this.projectsByMember.computeIfAbsent(newmemberusername, k -> ConcurrentHashMap.newKeySet()).add(p.getProjectName());
+		
+		if(this.onlineUsers.containsKey(newmemberusername)) memberOnline(p);
 	}
 	
 	/**
-	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un createProject:
-	 * ricerca tra gli utenti online l'username passato come argomento, se lo trova
-	 * ricerca tra tutti i progetti un progetto con il nome passato come parametro,
-	 * se lo trova restituisce un messaggio di errore altrimenti
-	 * crea una nuova cartella con il nome desiderato all'interno di this.projectsFolder
-	 * e all'interno un file project.json che memorizza lo stato del progetto
-	 * @param projectname il nome del progetto da creare
-	 * @param username l'username da ricercare tra gli utenti online
-	 * @param key la chiave associata al client da notificare
+	 * metodo chiamato per annullare insertMember, se l'aggiunta del membro non pu essere salvata
+	 * @param p il progetto modificato
+	 * @param membername il nome del membro da rimuovere
 	 */
-	private void createProject(String projectname, String username, SelectionKey key) {
+	private void removeMember(Project p, String membername) {
 		
-		File projectfolder = new File(this.projectsFolder);
+		ArrayList<String> newmembers = new ArrayList<String>(p.getMembers());
 		
-		if(projectfolder.list().length!=0) {	//Ci sono altri progetti
-			for(Project p : getProjects()) {	//Controlla che non esiste gi un altro progetto con il nome richiesto
-				if(p.getProjectName().equals(projectname)) {
-					replaceClientMsg(key, "Errore: esiste gi un altro progetto con il nome scelto");
-					return;
-				}
-			}
+		newmembers.remove(newmembers.lastIndexOf(membername));	//Aggiunto in fondo alla lista da insertMember
+		
+		p.setMembers(newmembers);
+		
+		Set<String> memberprojects = this.projectsByMember.get(membername);
+		if(memberprojects!=null) memberprojects.remove(p.getProjectName());
+		
+		if(this.onlineUsers.containsKey(membername)) p.chatMemberOffline(this.chatReceiver);
+	}
+	
+	/**
+	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un showMembers:
+	 * se l'utente che ha richiesto il comando risulta online allora
+	 * ricerca tra i progetti quello ricevuto come parametro e se lo trova
+	 * ricerca tra i membri del progetto l'utente che ha richiesto il comando, e se lo trova
+	 * notifica al client la lista dei membri del progetto
+	 * @param projectname il nome del progetto
+	 * @param clientusername il nickname dell'utente che ha richiesto il comando
+	 * @param request la richiesta del client da notificare
+	 */
+	private void showMembers(String projectname, String clientusername, Request request) {
+		
+		if(this.projects.isEmpty()) {	//Non ci sono progetti
+			replaceClientMsg(request, "Errore: impossibile trovare progetti");
+			return;
 		}
-		//Non esiste un progetto con il nome desiderato, lo crea
 		
-		for(User u : getOnlineUsers()) {
-			if(u.getUsername().equals(username)) {	//L'utente che ha richiesto la creazione del progetto  online
-				
-				//Crea il progetto localmente e poi lo salva sul file project.json interno ad una nuova cartella con il nome desiderato
-				Project p = new Project();
-				
-				ArrayList<String> members = new ArrayList<String>();
-				
-				p.setProjectName(projectname);
-				p.setCreatedBy(username);
-				members.add(username);
-				p.setMembers(members);
-				
-				File projectsdir = new File(this.projectsFolder);
-				
-				assert(projectsdir.exists());	//Assicura che la directory dei progetti esiste
-				
-				File projectnewdir = new File(projectsdir+File.separator+projectname);
-				
-				if(!projectnewdir.mkdir()) {
-					if(DEBUG) System.err.println("Error in creating folder "+projectnewdir);
-					replaceClientMsg(key, "Errore del server: impossibile creare un progetto con il nome scelto");
-					return;
-				}
-				else {	//Cartella del nuovo progetto creata correttamente
-					//Crea il file project.json e scrive il nuovo progetto creato sul file
-					File projectfile = new File(projectnewdir+File.separator+"project.json");
-					
-					try {
-						projectfile.createNewFile();
-					} catch (IOException e) {
-						if(DEBUG) System.err.println("Error in creating file "+projectfile);
-						projectnewdir.delete();	//Cancella la cartella creata
-						replaceClientMsg(key, "Errore del server: impossibile creare un progetto con il nome scelto");
-						return;
-					}
-					//File project.json creato, scrive l'oggetto progetto nel file
+		if(this.onlineUsers.containsKey(clientusername)) {	//L'utente che ha richiesto la lista dei membri  online
 					
-					ObjectMapper mapper = new ObjectMapper();
-					
-					ObjectWriter writer = mapper.writer(new DefaultPrettyPrinter());
-					
-					try {
-						writer.writeValue(projectfile, p);
-					} catch (IOException e) {
-						if(DEBUG) System.err.println("Error in writing on file "+projectfile);
-						projectfile.delete();	//Cancella il file project.json
-						projectnewdir.delete();	//Cancella la cartella creata
-						replaceClientMsg(key, "Errore del server: impossibile creare un progetto con il nome scelto");
+			Project p = this.projects.get(projectname);
+			if(p!=null) {	//Progetto richiesto trovato
+				
+				for(String member : p.getMembers()) {
+					if(member.equals(clientusername)) {	//L'utente che ha richiesto la lista dei membri fa parte del progetto
+						
+						StringBuilder sb = new StringBuilder();
+						
+						List<String> members = p.getMembers();
+						
+						for(String user : members) {
+							sb.append(user.trim());
+							sb.append(System.getProperty("line.separator"));
+						}
+						
+						replaceClientMsg(request, sb.toString());
 						return;
 					}
-					
-					//File project.json scritto correttamente, salva il nuovo progetto localmente
-					List<Project> newprojectlist = new ArrayList<Project>(getProjects().size()+1);
-					
-					newprojectlist.addAll(getProjects());
-					
-					newprojectlist.add(p);
-					
-					this.projects = newprojectlist.toArray(this.projects);
-				}
-				//Avvia il servizio chat per il progetto
-				int n1,n2,n3,n4;
-				if(this.firstfreeaddress==null) {	//Non ci sono ancora progetti
-					n1 = 224;
-					n2 = 0;
-					n3 = 0;
-					n4 = 2;
-				}
-				else {
-					String[] parts = this.firstfreeaddress.split(" ");
-					n1 = Integer.parseInt(parts[0]);
-					n2 = Integer.parseInt(parts[1]);
-					n3 = Integer.parseInt(parts[2]);
-					n4 = Integer.parseInt(parts[3]);
-				}
-				int i = 0, j = 0, k = 0, l = 0;
-				if(i<255) {
-					p.startChatService(this.chatPort,n1+l,n2+k,n3+j,n4+i);
-					i++;
 				}
-				else if(j<255) {
-					j++;
-					i=0;
-					p.startChatService(this.chatPort,n1+l,n2+k,n3+j,n4+i);
-				}
-				else if(k<255) {
-					k++;
-					i=0;
-					j=0;
-					p.startChatService(this.chatPort,n1+l,n2+k,n3+j,n4+i);
-				}
-				else if(l<239) {
-					l++;
-					i=0;
-					j=0;
-					k=0;
-					p.startChatService(this.chatPort,n1+l,n2+k,n3+j,n4+i);
-				}
-				
-				this.firstfreeaddress = String.valueOf(n1+l)+" "+String.valueOf(n2+k)+" "+String.valueOf(n3+j)+" "+String.valueOf(n4+i+1);
-				
-				replaceClientMsg(key, "ok");
+				//L'utente non fa parte del progetto
+				replaceClientMsg(request, "Errore: devi essere membro del progetto per poterne vedere i partecipanti");
 				return;
 			}
+			//Progetto non trovato
+			replaceClientMsg(request, "Errore: impossibile trovare il progetto specificato");
+			return;
 		}
-		//L'utente che ha richiesto la creazione del progetto non  online
-		replaceClientMsg(key, "Errore: per creare un progetto devi aver effettuato il login");
-		
+		//L'utente che ha richiesto il comando non  online
+		replaceClientMsg(request, "Errore: per visualizzare i membri di un progetto devi aver effettuato il login");
 	}
 	
 	/**
-	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un addMember:
+	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un showCards:
 	 * se l'utente che ha richiesto il comando risulta online allora
-	 * ricerca l'username del nuovo membro tra i membri registrati su WORTH, se lo trova
-	 * ricerca il progetto da modificare e se lo trova
-	 * ricerca tra i membri del progetto l'utente che ha richiesto la modifica, se lo trova
-	 * aggiorna la lista dei membri del progetto aggiungendo l'username richiesto
-	 * @param projectname il nome del progetto da modificare
-	 * @param newmemberusername il nome del nuovo membro da aggiungere al progetto
-	 * @param clientusername il nome dell'utente che ha richiesto la modifica del progetto
-	 * @param key la chiave associata al client da notificare
+	 * ricerca tra i progetti quello ricevuto come parametro e se lo trova
+	 * ricerca tra i membri del progetto l'utente che ha richiesto il comando, e se lo trova
+	 * notifica al client la lista delle card del progetto
+	 * @param projectname il nome del progetto
+	 * @param clientusername il nickname dell'utente che ha richiesto il comando
+	 * @param request la richiesta del client da notificare
 	 */
-	private void addMember(String projectname, String newmemberusername, String clientusername, SelectionKey key) {
-		
-		File projectfolder = new File(this.projectsFolder);
+	private void showCards(String projectname, String clientusername, Request request) {
 		
-		if(projectfolder.list().length==0) {	//Non ci sono progetti
-			replaceClientMsg(key, "Errore: impossibile trovare progetti");
+		if(this.projects.isEmpty()) {	//Non ci sono progetti
+			replaceClientMsg(request, "Errore: impossibile trovare progetti");
 			return;
 		}
 		
-		for(User u : this.onlineUsers) {
-			if(u.getUsername().equals(clientusername)) {	//L'utente che ha richiesto l'aggiunta di un membro  online
+		if(this.onlineUsers.containsKey(clientusername)) {	//L'utente che ha richiesto la lista delle card  online
+					
+			Project p = this.projects.get(projectname);
+			if(p!=null) {	//Progetto richiesto trovato
 				
-				for(User k : this.registeredUsers) {
-					if(k.getUsername().equals(newmemberusername)) {	//Il nuovo membro  un utente di WORTH
+				for(String member : p.getMembers()) {
+					if(member.equals(clientusername)) {	//L'utente che ha richiesto le card fa parte del progetto
 						
-						for(Project p : this.projects) {
-							if(p.getProjectName().equals(projectname)) {	//Progetto richiesto trovato
-								
-								for(String member : p.getMembers()) {
-									if(member.equals(clientusername)) {	//L'utente che ha richiesto l'aggiunta di un membro fa parte del progetto
-										
-										ArrayList<String> newmembers = new ArrayList<String>(p.getMembers().size()+1);
-										
-										newmembers.addAll(p.getMembers());	//Inserisce tutti i vecchi membri del progetto in una nuova lista
-										
-										newmembers.add(newmemberusername);	//Aggiunge il nuovo membro al progetto
-										
-										p.setMembers(newmembers);	//Aggiorna la lista del progetto localmente
-										
-										//Aggiorna il file project.json
-										File project = new File(this.projectsFolder+File.separator+projectname+File.separator+"project.json");
-										
-										if(!project.exists()) {	//File json non trovato
-											replaceClientMsg(key, "Errore del server");
-											if(DEBUG) System.out.print("Error in adding member for project "+projectname+": ");
-											if(DEBUG) System.out.println("Can't locate file "+project);
-											return;
-										}
-										
-										ObjectMapper mapper = new ObjectMapper();
-										
-										ObjectWriter writer = mapper.writer(new DefaultPrettyPrinter());
-										
-										try {
-											writer.writeValue(project, p);
-										} catch (IOException e) {
-											if(DEBUG) System.err.println("Error in writing on file "+project);
-											replaceClientMsg(key, "Errore del server");
-											return;
-										}
-										
-										replaceClientMsg(key, "ok");
-										return;
-									}
-								}
-								//L'utente non fa parte del progetto
-								replaceClientMsg(key, "Errore: devi essere membro del progetto per poter aggiungere un nuovo partecipante");
-								return;
-							}
+						if(!loadBoard(p)) {	//Legge le card dai file se non sono in memoria
+							replaceClientMsg(request, "Errore del server");
+							return;
+						}
+						
+						if(p.countCards()==0) {	//Non ci sono card nel progetto
+							replaceClientMsg(request, "Non sono state trovate card nel progetto");
+							return;
+						}
+						
+						StringBuilder sb = new StringBuilder();
+						
+						for(Card c : p.getAllCards()) {
+							sb.append(c.getName()+" /");
+							sb.append(" Status: "+c.getCurrentList());
+							sb.append(System.getProperty("line.separator"));
 						}
-						//Progetto non trovato
-						replaceClientMsg(key, "Errore: impossibile trovare il progetto specificato");
+						
+						replaceClientMsg(request, sb.toString());
 						return;
 					}
 				}
-				//Il nuovo membro non  registrato a WORTH
-				replaceClientMsg(key, "Errore: l'utente specificato non  registrato a WORTH");
+				//L'utente non fa parte del progetto
+				replaceClientMsg(request, "Errore: devi essere membro del progetto per poterne vedere le card");
 				return;
 			}
+			//Progetto non trovato
+			replaceClientMsg(request, "Errore: impossibile trovare il progetto specificato");
+			return;
 		}
 		//L'utente che ha richiesto il comando non  online
-		replaceClientMsg(key, "Errore: per aggiungere un membro ad un progetto devi aver effettuato il login");
-		
+		replaceClientMsg(request, "Errore: per visualizzare le card di un progetto devi aver effettuato il login");
 	}
 	
 	/**
-	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un showMembers:
+	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un showCard:
 	 * se l'utente che ha richiesto il comando risulta online allora
 	 * ricerca tra i progetti quello ricevuto come parametro e se lo trova
 	 * ricerca tra i membri del progetto l'utente che ha richiesto il comando, e se lo trova
-	 * notifica al client la lista dei membri del progetto
+	 * ricerca nella lista delle card del progetto quella con il nome specificato e la notifica al client
 	 * @param projectname il nome del progetto
+	 * @param cardname il nome della card richiesta
 	 * @param clientusername il nickname dell'utente che ha richiesto il comando
-	 * @param key la chiave associata al client da notificare
+	 * @param request la richiesta del client da notificare
 	 */
-	private void showMembers(String projectname, String clientusername, SelectionKey key) {
-		
-		File projectfolder = new File(this.projectsFolder);
+	private void showCard(String projectname, String cardname, String clientusername, Request request) {
 		
-		if(projectfolder.list().length==0) {	//Non ci sono progetti
-			replaceClientMsg(key, "Errore: impossibile trovare progetti");
+		if(this.projects.isEmpty()) {	//Non ci sono progetti
+			replaceClientMsg(request, "Errore: impossibile trovare progetti");
 			return;
 		}
 		
-		for(User u : this.onlineUsers) {
-			if(u.getUsername().equals(clientusername)) {	//L'utente che ha richiesto la lista dei membri  online
+		if(this.onlineUsers.containsKey(clientusername)) {	//L'utente che ha richiesto la card  online
+					
+			Project p = this.projects.get(projectname);
+			if(p!=null) {	//Progetto richiesto trovato
+				
+				for(String member : p.getMembers()) {
+					if(member.equals(clientusername)) {	//L'utente che ha richiesto la card fa parte del progetto
 						
-				for(Project p : this.projects) {
-					if(p.getProjectName().equals(projectname)) {	//Progetto richiesto trovato
+						if(!loadBoard(p)) {	//Legge le card dai file se non sono in memoria
+							replaceClientMsg(request, "Errore del server");
+							return;
+						}
 						
-						for(String member : p.getMembers()) {
-							if(member.equals(clientusername)) {	//L'utente che ha richiesto la lista dei membri fa parte del progetto
-								
-								StringBuilder sb = new StringBuilder();
-								
-								List<String> members = p.getMembers();
-								
-								for(String user : members) {
-									sb.append(user.trim());
-									sb.append(System.getProperty("line.separator"));
-								}
-								
-								replaceClientMsg(key, sb.toString());
-								return;
-							}
+						if(p.countCards()==0) {	//Non ci sono card nel progetto
+							replaceClientMsg(request, "Non sono state trovate card nel progetto");
+							return;
+						}
+						
+						StringBuilder sb = new StringBuilder();
+						
+						Card c = p.retrieveCard(cardname);
+						if(c!=null) {	//Card specificata trovata
+							sb.append(c.getName()+" /");
+							sb.append(" Status: "+c.getCurrentList());
+							replaceClientMsg(request, sb.toString());
+							return;
 						}
-						//L'utente non fa parte del progetto
-						replaceClientMsg(key, "Errore: devi essere membro del progetto per poterne vedere i partecipanti");
+						//Card specificata non trovata
+						replaceClientMsg(request, "Errore: card specificata non trovata per il progetto");
 						return;
 					}
 				}
-				//Progetto non trovato
-				replaceClientMsg(key, "Errore: impossibile trovare il progetto specificato");
+				//L'utente non fa parte del progetto
+				replaceClientMsg(request, "Errore: devi essere membro del progetto per poterne vedere le card");
 				return;
 			}
+			//Progetto non trovato
+			replaceClientMsg(request, "Errore: impossibile trovare il progetto specificato");
+			return;
 		}
 		//L'utente che ha richiesto il comando non  online
-		replaceClientMsg(key, "Errore: per visualizzare i membri di un progetto devi aver effettuato il login");
+		replaceClientMsg(request, "Errore: per visualizzare una card di un progetto devi aver effettuato il login");
 	}
 	
 	/**
-	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un showCards:
+	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un addCard:
 	 * se l'utente che ha richiesto il comando risulta online allora
 	 * ricerca tra i progetti quello ricevuto come parametro e se lo trova
 	 * ricerca tra i membri del progetto l'utente che ha richiesto il comando, e se lo trova
-	 * notifica al client la lista delle card del progetto
+	 * ricerca nella lista delle card del progetto quella con il nome specificato e se NON la trova
+	 * crea una nuova card localmente e un nuovo file "cardname".json all'interno della cartella del progetto
+	 * in cui viene serializzata la nuova card creata
+	 * viene quindi aggiornato il file project.json
 	 * @param projectname il nome del progetto
+	 * @param cardname il nome della card richiesta
+	 * @param description la descrizione testuale breve della card
 	 * @param clientusername il nickname dell'utente che ha richiesto il comando
-	 * @param key la chiave associata al client da notificare
+	 * @param request la richiesta del client da notificare
 	 */
-	private void showCards(String projectname, String clientusername, SelectionKey key) {
-		
-		File projectfolder = new File(this.projectsFolder);
+	private void addCard(String projectname, String cardname, String description, String clientusername, Request request) {
 		
-		if(projectfolder.list().length==0) {	//Non ci sono progetti
-			replaceClientMsg(key, "Errore: impossibile trovare progetti");
+		if(this.projects.isEmpty()) {	//Non ci sono progetti
+			replaceClientMsg(request, "Errore: impossibile trovare progetti");
 			return;
 		}
 		
-		for(User u : this.onlineUsers) {
-			if(u.getUsername().equals(clientusername)) {	//L'utente che ha richiesto la lista delle card  online
+		if(this.onlineUsers.containsKey(clientusername)) {	//L'utente che ha richiesto la creazione della card  online
+			
+			Project p = this.projects.get(projectname);
+			if(p!=null) {	//Progetto richiesto trovato
+				
+				for(String member : p.getMembers()) {
+					if(member.equals(clientusername)) {	//L'utente che ha richiesto la creazione della card fa parte del progetto
 						
-				for(Project p : this.projects) {
-					if(p.getProjectName().equals(projectname)) {	//Progetto richiesto trovato
+						if(!loadBoard(p)) {	//Legge le card dai file se non sono in memoria
+							replaceClientMsg(request, "Errore del server");
+							return;
+						}
 						
-						for(String member : p.getMembers()) {
-							if(member.equals(clientusername)) {	//L'utente che ha richiesto le card fa parte del progetto
-								
-								if(p.getAllCards().size()==0) {	//Non ci sono card nel progetto
-									replaceClientMsg(key, "Non sono state trovate card nel progetto");
-									return;
-								}
-								
-								StringBuilder sb = new StringBuilder();
-								
-								for(Card c : p.getAllCards()) {
-									sb.append(c.getName()+" /");
-									sb.append(" Status: "+c.getCurrentList());
-									sb.append(System.getProperty("line.separator"));
-								}
-								
-								replaceClientMsg(key, sb.toString());
-								return;
-							}
+						ArrayList<JournalRecord> records = new ArrayList<JournalRecord>(1);
+						
+						String result = applyAddCard(p, cardname, description, records);
+						
+						if(result.equals("ok") && !saveProject(p, records, request)) {
+							replaceClientMsg(request, "Errore del server");
+							return;
 						}
-						//L'utente non fa parte del progetto
-						replaceClientMsg(key, "Errore: devi essere membro del progetto per poterne vedere le card");
+						
+						//Variabili locali aggiornate e file aggiornati
+						replaceClientMsg(request, result);
 						return;
 					}
 				}
-				//Progetto non trovato
-				replaceClientMsg(key, "Errore: impossibile trovare il progetto specificato");
+				//L'utente non fa parte del progetto
+				replaceClientMsg(request, "Errore: devi essere membro del progetto per poter creare la card");
 				return;
 			}
+			//Progetto non trovato
+			replaceClientMsg(request, "Errore: impossibile trovare il progetto specificato");
+			return;
 		}
 		//L'utente che ha richiesto il comando non  online
-		replaceClientMsg(key, "Errore: per visualizzare le card di un progetto devi aver effettuato il login");
+		replaceClientMsg(request, "Errore: per creare una card di un progetto devi aver effettuato il login");
 	}
 	
 	/**
-	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un showCard:
+	 * metodo chiamato per creare una nuova card nella lista todo di un progetto, modifica solo
+	 * lo stato locale del progetto, che deve essere poi salvato con saveProject
+	 * @param p il progetto in cui creare la card
+	 * @param cardname il nome della card da creare
+	 * @param description la descrizione testuale breve della card
+	 * @param records la lista a cui aggiungere il record della modifica, da salvare sul journal
+	 * @return "ok" se la card  stata creata, il messaggio di errore altrimenti
+	 */
+	private String applyAddCard(Project p, String cardname, String description, List<JournalRecord> records) {
+		
+		if(cardname.equalsIgnoreCase("project")) {	//Nome vietato, andrebbe in conflitto con il file project.json
+			return "Errore: nome vietato, scegliere un altro nome per la card";
+		}
+		
+		if(p.retrieveCard(cardname)!=null) {	//Esiste gi una card con il nome richiesto
+			return "Esiste gi una card con questo nome nel progetto";
+		}
+		
+		long now = System.currentTimeMillis();
+		
+		insertCard(p, cardname, description, now);	//Salva la card localmente
+		
+		records.add(JournalRecord.addCard(p.getProjectName(), cardname, description, now));
+		
+		return "ok";
+	}
+	
+	/**
+	 * metodo chiamato per creare una card e inserirla nella lista todo di un progetto
+	 * @param p il progetto in cui creare la card
+	 * @param cardname il nome della card
+	 * @param description la descrizione testuale breve della card
+	 * @param created l'istante di creazione della card
+	 */
+	private void insertCard(Project p, String cardname, String description, long created) {
+		
+		Card c = new Card(created);
+		
+		c.setProjectname(p.getProjectName());
+		
+		c.setName(cardname);
+		
+		c.setDescription(description);
+		
+		p.addCard(c);	//Inserisce la nuova card nella lista todo
+	}
+	
+	/**
+	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un moveCard:
 	 * se l'utente che ha richiesto il comando risulta online allora
 	 * ricerca tra i progetti quello ricevuto come parametro e se lo trova
 	 * ricerca tra i membri del progetto l'utente che ha richiesto il comando, e se lo trova
-	 * ricerca nella lista delle card del progetto quella con il nome specificato e la notifica al client
+	 * ricerca nella lista delle card del progetto quella con il nome specificato e se la trova
+	 * verifica che le liste ricevute sono diverse e sposta la card dalla lista "fromlist" alla lista "tolist"
+	 * viene quindi aggiornato il file project.json
+	 * ed il file associato alla card
 	 * @param projectname il nome del progetto
 	 * @param cardname il nome della card richiesta
+	 * @param fromlist il nome della lista da cui spostare la card: Liste valide = "todo","inprogress","toberevised","done"
+	 * @param tolist la lista in cui spostare la card: Liste valide = "todo","inprogress","toberevised","done"
 	 * @param clientusername il nickname dell'utente che ha richiesto il comando
-	 * @param key la chiave associata al client da notificare
+	 * @param request la richiesta del client da notificare
 	 */
-	private void showCard(String projectname, String cardname, String clientusername, SelectionKey key) {
+	private void moveCard(String projectname, String cardname, String fromlist, String tolist, String clientusername, Request request) {
 		
-		File projectfolder = new File(this.projectsFolder);
-		
-		if(projectfolder.list().length==0) {	//Non ci sono progetti
-			replaceClientMsg(key, "Errore: impossibile trovare progetti");
+		if(this.projects.isEmpty()) {	//Non ci sono progetti
+			replaceClientMsg(request, "Errore: impossibile trovare progetti");
 			return;
 		}
 		
-		for(User u : this.onlineUsers) {
-			if(u.getUsername().equals(clientusername)) {	//L'utente che ha richiesto la card  online
+		if(this.onlineUsers.containsKey(clientusername)) {	//L'utente che ha richiesto lo spostamento della card  online
+					
+			Project p = this.projects.get(projectname);
+			if(p!=null) {	//Progetto richiesto trovato
+				
+				for(String member : p.getMembers()) {
+					if(member.equals(clientusername)) {	//L'utente che ha richiesto lo spostamento della card fa parte del progetto
+						
+						if(!loadBoard(p)) {	//Legge le card dai file se non sono in memoria
+							replaceClientMsg(request, "Errore del server");
+							return;
+						}
 						
-				for(Project p : this.projects) {
-					if(p.getProjectName().equals(projectname)) {	//Progetto richiesto trovato
+						ArrayList<JournalRecord> records = new ArrayList<JournalRecord>(1);
 						
-						for(String member : p.getMembers()) {
-							if(member.equals(clientusername)) {	//L'utente che ha richiesto la card fa parte del progetto
-								
-								if(p.getAllCards().size()==0) {	//Non ci sono card nel progetto
-									replaceClientMsg(key, "Non sono state trovate card nel progetto");
-									return;
-								}
-								
-								StringBuilder sb = new StringBuilder();
-								
-								for(Card c : p.getAllCards()) {
-									if(c.getName().equals(cardname)) {	//Card specificata trovata
-										sb.append(c.getName()+" /");
-										sb.append(" Status: "+c.getCurrentList());
-										replaceClientMsg(key, sb.toString());
-										return;
-									}
-								}
-								//Card specificata non trovata
-								replaceClientMsg(key, "Errore: card specificata non trovata per il progetto");
-								return;
-							}
+						String result = applyMoveCard(p, cardname, fromlist, tolist, records);
+						
+						if(result.equals("ok") && !saveProject(p, records, request)) {
+							replaceClientMsg(request, "Errore del server");
+							return;
 						}
-						//L'utente non fa parte del progetto
-						replaceClientMsg(key, "Errore: devi essere membro del progetto per poterne vedere le card");
+						
+						replaceClientMsg(request, result);
 						return;
 					}
 				}
-				//Progetto non trovato
-				replaceClientMsg(key, "Errore: impossibile trovare il progetto specificato");
+				//L'utente non fa parte del progetto
+				replaceClientMsg(request, "Errore: devi essere membro del progetto per poterne spostare le card");
 				return;
 			}
+			//Progetto non trovato
+			replaceClientMsg(request, "Errore: impossibile trovare il progetto specificato");
+			return;
 		}
 		//L'utente che ha richiesto il comando non  online
-		replaceClientMsg(key, "Errore: per visualizzare una card di un progetto devi aver effettuato il login");
+		replaceClientMsg(request, "Errore: per spostare una card di un progetto devi aver effettuato il login");
 	}
 	
 	/**
-	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un addCard:
-	 * se l'utente che ha richiesto il comando risulta online allora
-	 * ricerca tra i progetti quello ricevuto come parametro e se lo trova
-	 * ricerca tra i membri del progetto l'utente che ha richiesto il comando, e se lo trova
-	 * ricerca nella lista delle card del progetto quella con il nome specificato e se NON la trova
-	 * crea una nuova card localmente e un nuovo file "cardname".json all'interno della cartella del progetto
-	 * in cui viene serializzata la nuova card creata
-	 * viene quindi aggiornato il file project.json
-	 * @param projectname il nome del progetto
-	 * @param cardname il nome della card richiesta
-	 * @param description la descrizione testuale breve della card
-	 * @param clientusername il nickname dell'utente che ha richiesto il comando
-	 * @param key la chiave associata al client da notificare
+	 * metodo chiamato per spostare una card tra due liste di un progetto, modifica solo
+	 * lo stato locale del progetto, che deve essere poi salvato con saveProject
+	 * @param p il progetto in cui si trova la card
+	 * @param cardname il nome della card da spostare
+	 * @param fromlist il nome della lista da cui spostare la card
+	 * @param tolist la lista in cui spostare la card
+	 * @param records la lista a cui aggiungere il record della modifica, da salvare sul journal
+	 * @return "ok" se la card  stata spostata, il messaggio di errore altrimenti
 	 */
-	private void addCard(String projectname, String cardname, String description, String clientusername, SelectionKey key) {
+	private String applyMoveCard(Project p, String cardname, String fromlist, String tolist, List<JournalRecord> records) {
 		
-		File projectfolder = new File(this.projectsFolder);
+		if(p.countCards()==0) {	//Non ci sono card nel progetto
+			return "Non sono state trovate card nel progetto";
+		}
 		
-		if(projectfolder.list().length==0) {	//Non ci sono progetti
-			replaceClientMsg(key, "Errore: impossibile trovare progetti");
-			return;
+		Card c = p.retrieveCard(cardname);
+		CardState from = CardState.parse(fromlist);
+		if(c!=null && c.getCurrentList()==from) {	//Card specificata trovata nella lista specificata
+			
+			CardState to = CardState.parse(tolist);
+			
+			if(to==from) {	//La lista di partenza  uguale alla lista destinazione
+				return "Errore: la nuova lista per la card non pu essere la lista attuale";
+			}
+			
+			if(to==null) {
+				//Lista destinazione specificata non valida
+				return "Errore: la nuova lista per la card non  una lista valida";
+			}
+			
+			if(to==CardState.TODO) {
+				//Nessuna card pu tornare in todo
+				return "Errore: non puoi spostare una card in TODO";
+			}
+			
+			if(!from.canMoveTo(to)) {
+				//Spostamento non consentito dalla lista di partenza
+				return "Errore: non puoi spostare una card da "+from+" a "+to;
+			}
+			
+			p.moveCard(c, to);	//Sposta la card in tempo costante
+			c.getHistory().add("Card spostata dalla lista "+from+" alla lista "+to);
+			
+			records.add(JournalRecord.moveCard(p.getProjectName(), cardname, from, to));
+			
+			return "ok";
 		}
+		//Card specificata non trovata
+		return "Errore: card specificata non trovata per il progetto";
+	}
+	
+	/**
+	 * metodo chiamato dopo aver modificato un progetto per rendere persistenti le modifiche:
+	 * aggiunge al journal, con una sola scrittura, i record delle modifiche applicate,
+	 * i file del progetto e delle card modificate vengono poi riscritti dal checkpoint
+	 * la risposta alla richiesta viene inviata quando i record sono su disco
+	 * @param p il progetto modificato
+	 * @param records i record delle modifiche applicate
+	 * @param request la richiesta del client che ha modificato il progetto
+	 * @return true se i record sono stati salvati sul journal, false altrimenti (modifiche annullate)
+	 */
+	private boolean saveProject(Project p, List<JournalRecord> records, Request request) {
 		
-		for(User u : this.onlineUsers) {
-			if(u.getUsername().equals(clientusername)) {	//L'utente che ha richiesto la creazione della card  online
-				
-				if(cardname.equalsIgnoreCase("project")) {	//Nome vietato, andrebbe in conflitto con il file project.json
-					replaceClientMsg(key, "Errore: nome vietato, scegliere un altro nome per la card");
-					return;
-				}
+		try {
+			request.setJournalLsn(this.journal.append(records));
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("Error in writing on journal for project "+p.getProjectName());
+			undo(p, records);	//Il client riceve un errore, il progetto torna com'era prima del comando
+			return false;
+		}
+		
+		for(JournalRecord r : records) {
+			markDirty(p, r);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * metodo chiamato da saveProject quando i record non possono essere salvati sul journal:
+	 * annulla in memoria, dall'ultima alla prima, le modifiche applicate dal comando,
+	 * cos i comandi successivi e il checkpoint non partono da modifiche che il client ha visto fallire
+	 * una card riportata nella lista di partenza torna in fondo a quella lista
+	 * @param p il progetto modificato
+	 * @param records i record delle modifiche applicate, nell'ordine in cui sono state applicate
+	 */
+	private void undo(Project p, List<JournalRecord> records) {
+		
+		for(int i=records.size()-1; i>=0; i--) {
+			
+			JournalRecord r = records.get(i);
+			
+			switch(r.getType()) {
 				
-				for(Project p : this.projects) {
-					if(p.getProjectName().equals(projectname)) {	//Progetto richiesto trovato
-						
-						for(String member : p.getMembers()) {
-							if(member.equals(clientusername)) {	//L'utente che ha richiesto la creazione della card fa parte del progetto
-								
-								for(Card c : p.getAllCards()) {
-									if(c.getName().equals(cardname)) {	//Esiste gi una card con il nome richiesto
-										replaceClientMsg(key, "Esiste gi una card con questo nome nel progetto");
-										return;
-									}
-								}
-								
-								Card c = new Card();	//Salva la card localmente
-								
-								c.setProjectname(projectname);
-								
-								c.setName(cardname);
-								
-								c.setDescription(description);
-								
-								//Crea un nuovo file "cardname".json nella cartella del progetto, se non esiste un'altra card con lo stesso nome
-								File cardfile = new File(this.projectsFolder+File.separator+projectname+File.separator+cardname+".json");
-								
-								if(cardfile.exists()) {	//La card esiste gi
-									replaceClientMsg(key, "Esiste gi una card con questo nome nel progetto");
-									return;
-								}
-								
-								try {
-									cardfile.createNewFile();
-								} catch (IOException e1) {
-									if(DEBUG) System.err.println("Error in creating file "+cardfile);
-									replaceClientMsg(key, "Errore del server");
-									return;
-								}
-								
-								ObjectMapper mapper = new ObjectMapper();
-								
-								ObjectWriter writer = mapper.writer(new DefaultPrettyPrinter());
-								
-								try {
-									writer.writeValue(cardfile, c);
-								} catch (IOException e) {
-									if(DEBUG) System.err.println("Error in writing on file "+cardfile);
-									cardfile.delete();	//Elimina il file creato
-									replaceClientMsg(key, "Errore del server");
-									return;
-								}
-								
-								ArrayList<Card> newtodolist = new ArrayList<Card>(p.getTodoList().size()+1);
-								
-								newtodolist.addAll(p.getTodoList());	//Rimette tutte le card gi esistenti nella nuova lista
-								
-								newtodolist.add(c);	//Inserisce la nuova card nella nuova lista
-								
-								p.setTodoList(newtodolist);	//Aggiorna la lista localmente
-								
-								//Aggiorna il file project.json
-								File project = new File(this.projectsFolder+File.separator+projectname+File.separator+"project.json");
-								
-								if(!project.exists()) {	//File json non trovato
-									replaceClientMsg(key, "Errore del server");
-									if(DEBUG) System.out.print("Error in adding card for project "+projectname+": ");
-									if(DEBUG) System.out.println("Can't locate file "+project);
-									return;
-								}
-								
-								ObjectMapper mapper2 = new ObjectMapper();
-								
-								ObjectWriter writer2 = mapper2.writer(new DefaultPrettyPrinter());
-								
-								try {
-									writer2.writeValue(project, p);
-								} catch (IOException e) {
-									if(DEBUG) System.err.println("Error in writing on file "+project);
-									replaceClientMsg(key, "Errore del server");
-									return;
-								}
-								
-								//Variabili locali aggiornate e file aggiornati
-								replaceClientMsg(key, "ok");
-								return;
-							}
-						}
-						//L'utente non fa parte del progetto
-						replaceClientMsg(key, "Errore: devi essere membro del progetto per poter creare la card");
-						return;
-					}
-				}
-				//Progetto non trovato
-				replaceClientMsg(key, "Errore: impossibile trovare il progetto specificato");
-				return;
+				case ADDMEMBER:
+					removeMember(p, r.getUser());
+					break;
+					
+				case ADDCARD:
+					p.removeCard(p.retrieveCard(r.getCard()));
+					break;
+					
+				case MOVECARD:
+					Card c = p.retrieveCard(r.getCard());
+					p.moveCard(c, r.getFrom());
+					c.getHistory().remove(c.getHistory().size()-1);	//L'evento dello spostamento annullato
+					break;
+					
+				default:
+					break;
 			}
 		}
-		//L'utente che ha richiesto il comando non  online
-		replaceClientMsg(key, "Errore: per creare una card di un progetto devi aver effettuato il login");
 	}
 	
 	/**
-	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un moveCard:
-	 * se l'utente che ha richiesto il comando risulta online allora
-	 * ricerca tra i progetti quello ricevuto come parametro e se lo trova
-	 * ricerca tra i membri del progetto l'utente che ha richiesto il comando, e se lo trova
-	 * ricerca nella lista delle card del progetto quella con il nome specificato e se la trova
-	 * verifica che le liste ricevute sono diverse e sposta la card dalla lista "fromlist" alla lista "tolist"
-	 * viene quindi aggiornato il file project.json
-	 * ed il file associato alla card
+	 * metodo chiamato dopo aver applicato una modifica salvata sul journal per aggiornare
+	 * il numero di sequenza di progetto e card e segnarli da salvare al prossimo checkpoint
+	 * @param p il progetto modificato
+	 * @param r il record della modifica, con il numero di sequenza assegnato dal journal
+	 */
+	private void markDirty(Project p, JournalRecord r) {
+		
+		p.setLsn(r.getLsn());
+		
+		this.dirtyProjects.add(p.getProjectName());
+		
+		if(r.getCard()!=null) {	//Modifica di una card
+			
+			p.retrieveCard(r.getCard()).setLsn(r.getLsn());
+			
+			this.dirtyCards.computeIfAbsent(p.getProjectName(), k -> ConcurrentHashMap.newKeySet()).add(r.getCard());
+		}
+	}
+	
+	/**
+	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un batch:
+	 * esegue su un solo progetto una lista di comandi addcard, movecard e addmember,
+	 * uno per riga dopo la prima, verificando una sola volta che l'utente sia online
+	 * e membro del progetto e aggiungendo al journal tutte le modifiche con una sola scrittura alla fine
+	 * ogni riga viene separata in token e riconosciuta con il registro dei comandi, come la prima
 	 * @param projectname il nome del progetto
-	 * @param cardname il nome della card richiesta
-	 * @param fromlist il nome della lista da cui spostare la card: Liste valide = "todo","inprogress","toberevised","done"
-	 * @param tolist la lista in cui spostare la card: Liste valide = "todo","inprogress","toberevised","done"
 	 * @param clientusername il nickname dell'utente che ha richiesto il comando
-	 * @param key la chiave associata al client da notificare
+	 * @param request la richiesta del client, con i comandi da eseguire nel corpo, da notificare con l'esito di ogni comando
 	 */
-	private void moveCard(String projectname, String cardname, String fromlist, String tolist, String clientusername, SelectionKey key) {
+	private void batch(String projectname, String clientusername, Request request) {
+		
+		if(!this.onlineUsers.containsKey(clientusername)) {
+			//L'utente che ha richiesto il comando non  online
+			replaceClientMsg(request, "Errore: per modificare un progetto devi aver effettuato il login");
+			return;
+		}
 		
-		File projectfolder = new File(this.projectsFolder);
+		Project project = this.projects.get(projectname);
 		
-		if(projectfolder.list().length==0) {	//Non ci sono progetti
-			replaceClientMsg(key, "Errore: impossibile trovare progetti");
+		if(project==null) {
+			//Progetto non trovato
+			replaceClientMsg(request, "Errore: impossibile trovare il progetto specificato");
 			return;
 		}
 		
-		for(User u : this.onlineUsers) {
-			if(u.getUsername().equals(clientusername)) {	//L'utente che ha richiesto lo spostamento della card  online
-						
-				for(Project p : this.projects) {
-					if(p.getProjectName().equals(projectname)) {	//Progetto richiesto trovato
-						
-						for(String member : p.getMembers()) {
-							if(member.equals(clientusername)) {	//L'utente che ha richiesto lo spostamento della card fa parte del progetto
-								
-								if(p.getAllCards().size()==0) {	//Non ci sono card nel progetto
-									replaceClientMsg(key, "Non sono state trovate card nel progetto");
-									return;
-								}
-								
-								for(Card c : p.getAllCards()) {
-									if(c.getName().equals(cardname)) {	//Card specificata trovata
-										
-										if(c.getCurrentList().equalsIgnoreCase(fromlist)) {	//La card si trova nella lista specificata
-											
-											if(fromlist.equalsIgnoreCase(tolist)) {	//La lista di partenza  uguale alla lista destinazione
-												replaceClientMsg(key, "Errore: la nuova lista per la card non pu essere la lista attuale");
-												return;
-											}
-											
-											String fl = fromlist.toUpperCase();
-											
-											if(!fl.equals("TODO")&&!fl.equals("INPROGRESS")&&!fl.equals("TOBEREVISED")&&!fl.equals("DONE")) {
-												replaceClientMsg(key, "Errore: lista di partenza sconosciuta, liste valide: todo, inprogress, toberevised, done");
-												return;
-											}
-											
-											ArrayList<Card> toupdatedlist = null;
-											
-											ArrayList<Card> fromupdatedlist = null;
-											
-											switch (tolist.toUpperCase()) {
-												
-												case "TODO":
-													//Lista destinazione = todo, non si pu spostare una card in todo
-													replaceClientMsg(key, "Errore: non puoi spostare una card in TODO");
-													return;
-													
-												case "INPROGRESS":
-													//Lista destinazione = inprogress, posso muovere card da toberevised o da todo
-													if(!fl.equals("TOBEREVISED")&&!fl.equals("TODO")) {
-														replaceClientMsg(key, "Errore: non puoi spostare una card da "+fl+" a INPROGRESS");
-														return;
-													}
-													else {
-														if(fl.equals("TOBEREVISED")) {
-															//Lista provenienza = toberevised
-															c.setCurrentList("INPROGRESS");
-															c.getHistory().add("Card spostata dalla lista "+fl+" alla lista INPROGRESS");
-															toupdatedlist = new ArrayList<Card>(p.getInprogressList().size()+1);
-															toupdatedlist.addAll(p.getInprogressList());
-															toupdatedlist.add(c);
-															fromupdatedlist = new ArrayList<Card>(p.getToberevisedList().size());
-															fromupdatedlist.addAll(p.getToberevisedList());
-															fromupdatedlist.remove(c);
-															p.setInprogressList(toupdatedlist);
-															p.setToberevisedList(fromupdatedlist);
-														}
-														else {
-															//Lista provenienza = todo
-															c.setCurrentList("INPROGRESS");
-															c.getHistory().add("Card spostata dalla lista "+fl+" alla lista INPROGRESS");
-															toupdatedlist = new ArrayList<Card>(p.getInprogressList().size()+1);
-															toupdatedlist.addAll(p.getInprogressList());
-															toupdatedlist.add(c);
-															fromupdatedlist = new ArrayList<Card>(p.getTodoList().size());
-															fromupdatedlist.addAll(p.getTodoList());
-															fromupdatedlist.remove(c);
-															p.setInprogressList(toupdatedlist);
-															p.setTodoList(fromupdatedlist);
-														}
-													}
-													
-													break;
-													
-												case "TOBEREVISED":
-													//Lista destinazione = toberevised, posso muovere solo una card da inprogress
-													if(!fl.equals("INPROGRESS")) {
-														replaceClientMsg(key, "Errore: non puoi spostare una card da "+fl+" a TOBEREVISED");
-														return;
-													}
-													else {
-														c.setCurrentList("TOBEREVISED");
-														c.getHistory().add("Card spostata dalla lista "+fl+" alla lista TOBEREVISED");
-														toupdatedlist = new ArrayList<Card>(p.getToberevisedList().size()+1);
-														toupdatedlist.addAll(p.getToberevisedList());
-														toupdatedlist.add(c);
-														fromupdatedlist = new ArrayList<Card>(p.getInprogressList().size());
-														fromupdatedlist.addAll(p.getInprogressList());
-														fromupdatedlist.remove(c);
-														p.setToberevisedList(toupdatedlist);
-														p.setInprogressList(fromupdatedlist);
-													}
-													
-													break;
-													
-												case "DONE":
-													//Lista destinazione = done, posso muovere una card da toberevised o da inprogress
-													if(!fl.equals("TOBEREVISED")&&!fl.equals("INPROGRESS")) {
-														replaceClientMsg(key, "Errore: non puoi spostare una card da "+fl+" a INPROGRESS");
-														return;
-													}
-													else {
-														if(fl.equals("TOBEREVISED")) {
-															//Lista provenienza = toberevised
-															c.setCurrentList("DONE");
-															c.getHistory().add("Card spostata dalla lista "+fl+" alla lista DONE");
-															toupdatedlist = new ArrayList<Card>(p.getDoneList().size()+1);
-															toupdatedlist.addAll(p.getDoneList());
-															toupdatedlist.add(c);
-															fromupdatedlist = new ArrayList<Card>(p.getToberevisedList().size());
-															fromupdatedlist.addAll(p.getToberevisedList());
-															fromupdatedlist.remove(c);
-															p.setDoneList(toupdatedlist);
-															p.setToberevisedList(fromupdatedlist);
-														}
-														else {
-															//Lista provenienza = inprogress
-															c.setCurrentList("DONE");
-															c.getHistory().add("Card spostata dalla lista "+fl+" alla lista DONE");
-															toupdatedlist = new ArrayList<Card>(p.getDoneList().size()+1);
-															toupdatedlist.addAll(p.getDoneList());
-															toupdatedlist.add(c);
-															fromupdatedlist = new ArrayList<Card>(p.getInprogressList().size());
-															fromupdatedlist.addAll(p.getInprogressList());
-															fromupdatedlist.remove(c);
-															p.setDoneList(toupdatedlist);
-															p.setInprogressList(fromupdatedlist);
-														}
-													}
-													
-													break;
-													
-												default:
-													//Lista destinazione specificata non valida
-													replaceClientMsg(key, "Errore: la nuova lista per la card non  una lista valida");
-													return;
-											}
-											//Aggiorna i file project.json e "cardname".json
-											
-											File project = new File(this.projectsFolder+File.separator+projectname+File.separator+"project.json");
-											
-											if(!project.exists()) {	//File json non trovato
-												replaceClientMsg(key, "Errore del server");
-												if(DEBUG) System.out.print("Error in updating card for project "+projectname+": ");
-												if(DEBUG) System.out.println("Can't locate file "+project);
-												return;
-											}
-											
-											ObjectMapper mapper = new ObjectMapper();
-											
-											ObjectWriter writer = mapper.writer(new DefaultPrettyPrinter());
-											
-											try {
-												writer.writeValue(project, p);
-											} catch (IOException e) {
-												if(DEBUG) System.err.println("Error in writing on file "+project);
-												replaceClientMsg(key, "Errore del server");
-												return;
-											}
-											
-											File cardfile = new File(this.projectsFolder+File.separator+projectname+File.separator+cardname+".json");
-											
-											if(!cardfile.exists()) {	//File json non trovato
-												replaceClientMsg(key, "Errore del server");
-												if(DEBUG) System.out.print("Error in updating card for project "+projectname+": ");
-												if(DEBUG) System.out.println("Can't locate file "+project);
-												return;
-											}
-											
-											ObjectMapper mapper2 = new ObjectMapper();
-											
-											ObjectWriter writer2 = mapper2.writer(new DefaultPrettyPrinter());
-											
-											try {
-												writer2.writeValue(cardfile, c);
-											} catch (IOException e) {
-												if(DEBUG) System.err.println("Error in writing on file "+project);
-												replaceClientMsg(key, "Errore del server");
-												return;
-											}
-											
-											replaceClientMsg(key, "ok");
-											return;
-										}
-									}
-								}
-								//Card specificata non trovata
-								replaceClientMsg(key, "Errore: card specificata non trovata per il progetto");
-								return;
-							}
-						}
-						//L'utente non fa parte del progetto
-						replaceClientMsg(key, "Errore: devi essere membro del progetto per poterne spostare le card");
-						return;
+		if(!project.getMembers().contains(clientusername)) {
+			//L'utente non fa parte del progetto
+			replaceClientMsg(request, "Errore: devi essere membro del progetto per poterlo modificare");
+			return;
+		}
+		
+		if(!loadBoard(project)) {	//Legge le card dai file se non sono in memoria
+			replaceClientMsg(request, "Errore del server");
+			return;
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		
+		ArrayList<JournalRecord> records = new ArrayList<JournalRecord>();	//Le modifiche applicate dai comandi
+		
+		int n = 0;
+		
+		int[] line = new int[CommandRegistry.BOUNDS_SIZE];	//Indici dei token della riga corrente
+		
+		for(int start=request.getBodyStart(); start<request.getLength(); start=line[CommandRegistry.BODY]) {
+			
+			Command c = request.tokenizeLine(this.commands, start, line);
+			
+			int arguments = line[CommandRegistry.COUNT]-1;
+			
+			if(arguments<0) continue;	//Riga vuota
+			
+			n++;
+			
+			String command = c!=null ? c.getName() : request.getToken(line, 0).toLowerCase();
+			
+			String result;
+			
+			switch(command) {
+				
+				case "addcard":
+					if(arguments!=2) {
+						result = "Errore: sono richiesti il nome della card ed una breve descrizione";
 					}
-				}
-				//Progetto non trovato
-				replaceClientMsg(key, "Errore: impossibile trovare il progetto specificato");
-				return;
+					else {
+						result = applyAddCard(project, request.getToken(line, 1), request.getToken(line, 2), records);
+					}
+					break;
+					
+				case "movecard":
+					if(arguments!=3) {
+						result = "Errore: sono richiesti il nome della card, la lista di partenza e la lista destinazione";
+					}
+					else {
+						result = applyMoveCard(project, request.getToken(line, 1), request.getToken(line, 2), request.getToken(line, 3), records);
+					}
+					break;
+					
+				case "addmember":
+					if(arguments!=1) {
+						result = "Errore:  richiesto il nickname del nuovo membro";
+					}
+					else {
+						result = applyAddMember(project, request.getToken(line, 1), records);
+					}
+					break;
+					
+				default:
+					result = "Errore: comando non supportato in un batch";
+					break;
 			}
+			
+			sb.append(n+" "+command+": "+result);
+			sb.append(System.getProperty("line.separator"));
 		}
-		//L'utente che ha richiesto il comando non  online
-		replaceClientMsg(key, "Errore: per spostare una card di un progetto devi aver effettuato il login");
+		
+		if(n==0) {
+			replaceClientMsg(request, "Errore: il batch non contiene comandi");
+			return;
+		}
+		
+		if(!records.isEmpty() && !saveProject(project, records, request)) {
+			replaceClientMsg(request, "Errore del server: impossibile salvare le modifiche al progetto");
+			return;
+		}
+		
+		replaceClientMsg(request, sb.toString());
 	}
 	
 	/**
@@ -1986,190 +2235,150 @@ public class Server implements Runnable, RMIUserInterface {
 	 * @param projectname il nome del progetto
 	 * @param cardname il nome della card richiesta
 	 * @param clientusername il nickname dell'utente che ha richiesto il comando
-	 * @param key la chiave associata al client da notificare
+	 * @param request la richiesta del client da notificare
 	 */
-	private void getCardHistory(String projectname, String cardname, String clientusername, SelectionKey key) {
-		
-		File projectfolder = new File(this.projectsFolder);
+	private void getCardHistory(String projectname, String cardname, String clientusername, Request request) {
 		
-		if(projectfolder.list().length==0) {	//Non ci sono progetti
-			replaceClientMsg(key, "Errore: impossibile trovare progetti");
+		if(this.projects.isEmpty()) {	//Non ci sono progetti
+			replaceClientMsg(request, "Errore: impossibile trovare progetti");
 			return;
 		}
 		
-		for(User u : this.onlineUsers) {
-			if(u.getUsername().equals(clientusername)) {	//L'utente che ha richiesto la storia della card  online
+		if(this.onlineUsers.containsKey(clientusername)) {	//L'utente che ha richiesto la storia della card  online
+					
+			Project p = this.projects.get(projectname);
+			if(p!=null) {	//Progetto richiesto trovato
+				
+				for(String member : p.getMembers()) {
+					if(member.equals(clientusername)) {	//L'utente che ha richiesto la storia della card fa parte del progetto
 						
-				for(Project p : this.projects) {
-					if(p.getProjectName().equals(projectname)) {	//Progetto richiesto trovato
+						if(!loadBoard(p)) {	//Legge le card dai file se non sono in memoria
+							replaceClientMsg(request, "Errore del server");
+							return;
+						}
 						
-						for(String member : p.getMembers()) {
-							if(member.equals(clientusername)) {	//L'utente che ha richiesto la storia della card fa parte del progetto
-								
-								if(p.getAllCards().size()==0) {	//Non ci sono card nel progetto
-									replaceClientMsg(key, "Non sono state trovate card nel progetto");
-									return;
-								}
-								
-								StringBuilder sb = new StringBuilder();
-								
-								for(Card c : p.getAllCards()) {
-									if(c.getName().equals(cardname)) {	//Card specificata trovata
-										
-										ArrayList<String> history = c.getHistory();
-										
-										for(String event : history) {
-											sb.append(event.trim());
-											sb.append(System.getProperty("line.separator"));
-										}
-										
-										replaceClientMsg(key, sb.toString());
-										return;
-									}
-								}
-								//Card specificata non trovata
-								replaceClientMsg(key, "Errore: card specificata non trovata per il progetto");
-								return;
+						if(p.countCards()==0) {	//Non ci sono card nel progetto
+							replaceClientMsg(request, "Non sono state trovate card nel progetto");
+							return;
+						}
+						
+						StringBuilder sb = new StringBuilder();
+						
+						Card c = p.retrieveCard(cardname);
+						if(c!=null) {	//Card specificata trovata
+							
+							ArrayList<String> history = c.getHistory();
+							
+							for(String event : history) {
+								sb.append(event.trim());
+								sb.append(System.getProperty("line.separator"));
 							}
+							
+							replaceClientMsg(request, sb.toString());
+							return;
 						}
-						//L'utente non fa parte del progetto
-						replaceClientMsg(key, "Errore: devi essere membro del progetto per poterne vedere le card");
+						//Card specificata non trovata
+						replaceClientMsg(request, "Errore: card specificata non trovata per il progetto");
 						return;
 					}
 				}
-				//Progetto non trovato
-				replaceClientMsg(key, "Errore: impossibile trovare il progetto specificato");
+				//L'utente non fa parte del progetto
+				replaceClientMsg(request, "Errore: devi essere membro del progetto per poterne vedere le card");
 				return;
 			}
+			//Progetto non trovato
+			replaceClientMsg(request, "Errore: impossibile trovare il progetto specificato");
+			return;
 		}
 		//L'utente che ha richiesto il comando non  online
-		replaceClientMsg(key, "Errore: per visualizzare una storia di una card di un progetto devi aver effettuato il login");
+		replaceClientMsg(request, "Errore: per visualizzare una storia di una card di un progetto devi aver effettuato il login");
 	}
 	
 	/**
 	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un cancelProject:
 	 * ricerca tra gli utenti online l'username passato come argomento, se lo trova
 	 * ricerca tra tutti i progetti un progetto con il nome passato come parametro,
-	 * se lo trova rimuove il progetto dalla lista locale this.projects ed
-	 * elimina: la chat e la cartella associate al progetto
+	 * se lo trova aggiunge la cancellazione al journal, rimuove il progetto dalla lista locale
+	 * this.projects e ne ferma la chat, la cartella associata al progetto viene eliminata dal checkpoint
 	 * @param projectname il nome del progetto da eliminare
 	 * @param username l'username da ricercare tra gli utenti online
-	 * @param key la chiave associata al client da notificare
+	 * @param request la richiesta del client da notificare
 	 */
-	private void cancelProject(String projectname, String clientusername, SelectionKey key) {
-		
-		File projectfolder = new File(this.projectsFolder);
+	private void cancelProject(String projectname, String clientusername, Request request) {
 		
-		if(projectfolder.list().length==0) {	//Non ci sono progetti
-			replaceClientMsg(key, "Errore: impossibile trovare progetti");
+		if(this.projects.isEmpty()) {	//Non ci sono progetti
+			replaceClientMsg(request, "Errore: impossibile trovare progetti");
 			return;
 		}
 		
-		for(User u : this.onlineUsers) {
-			if(u.getUsername().equals(clientusername)) {	//L'utente che ha richiesto la cancellazione del progetto  online
+		if(this.onlineUsers.containsKey(clientusername)) {	//L'utente che ha richiesto la cancellazione del progetto  online
+					
+			Project p = this.projects.get(projectname);
+			if(p!=null) {	//Progetto richiesto trovato
+				
+				for(String member : p.getMembers()) {
+					if(member.equals(clientusername)) {	//L'utente che ha richiesto la cancellazione del progetto fa parte del progetto
 						
-				for(Project p : this.projects) {
-					if(p.getProjectName().equals(projectname)) {	//Progetto richiesto trovato
+						if(!loadBoard(p)) {	//Legge le card dai file se non sono in memoria
+							replaceClientMsg(request, "Errore del server");
+							return;
+						}
 						
-						for(String member : p.getMembers()) {
-							if(member.equals(clientusername)) {	//L'utente che ha richiesto la cancellazione del progetto fa parte del progetto
-								
-								for(Card c : p.getAllCards()) {
-									if(c.getCurrentList()!="DONE") {	//Esiste una card che non  nello stato DONE
-										replaceClientMsg(key, "Errore: tutte le card del progetto "+projectname+
-												" devono essere nello stato Done per poter cancellare un progetto");
-										return;
-									}
-								}
-								
-								//Ferma il servizio chat associato al progetto
-								p.stopChatService();
-								
-								//Cancella la variabile locale e la cartella del progetto
-								List<Project> newprojectlist = new ArrayList<Project>(getProjects().size());
-								
-								newprojectlist.addAll(getProjects());
-								
-								newprojectlist.remove(p);
-								
-								//Deve rimuovere l'elemento null dalla lista
-								List<Project> cleanlist = cleanList2(newprojectlist);
-								
-								Project[] newarray = new Project[cleanlist.size()];
-								
-								newarray = cleanlist.toArray(newarray);
-								
-								this.projects = null;
-								
-								this.projects = newarray.clone();
-								
-								File projectdir = new File(this.projectsFolder+File.separator+p.getProjectName());
-								
-								//Cancella i file interni alla cartella
-								for(File f :projectdir.listFiles()) {
-									if(!f.delete()) {
-										if(DEBUG) System.out.println("Can't delete project file "+f);
-										replaceClientMsg(key, "Errore del server: progetto cancellato temporaneamente fino al prossimo riavvio");
-										return;
-									}
-								}
-								
-								if(projectdir.delete()) {
-									//Cartella progetto cancellata
-									replaceClientMsg(key, "ok");
-									return;
-								}
-								else {
-									if(DEBUG) System.out.println("Can't delete project folder "+projectdir);
-									replaceClientMsg(key, "Errore del server: progetto cancellato temporaneamente fino al prossimo riavvio");
-									return;
-								}
-							}
+						if(p.countCards(CardState.DONE)!=p.countCards()) {	//Esiste una card che non  nello stato DONE
+							replaceClientMsg(request, "Errore: tutte le card del progetto "+projectname+
+									" devono essere nello stato Done per poter cancellare un progetto");
+							return;
+						}
+						
+						try {
+							request.setJournalLsn(this.journal.append(Collections.singletonList(JournalRecord.cancelProject(projectname))));
+						} catch (IOException e) {
+							if(DEBUG) System.err.println("Error in writing on journal");
+							replaceClientMsg(request, "Errore del server: impossibile cancellare il progetto");
+							return;
 						}
-						//L'utente non fa parte del progetto
-						replaceClientMsg(key, "Errore: devi essere membro del progetto per poterlo cancellare");
+						
+						//Cancellazione salvata sul journal, la cartella del progetto viene cancellata dal checkpoint
+						closeProject(p);
+						
+						replaceClientMsg(request, "ok");
 						return;
 					}
 				}
-				//Progetto non trovato
-				replaceClientMsg(key, "Errore: impossibile trovare il progetto specificato");
+				//L'utente non fa parte del progetto
+				replaceClientMsg(request, "Errore: devi essere membro del progetto per poterlo cancellare");
 				return;
 			}
+			//Progetto non trovato
+			replaceClientMsg(request, "Errore: impossibile trovare il progetto specificato");
+			return;
 		}
 		//L'utente che ha richiesto il comando non  online
-		replaceClientMsg(key, "Errore: per cancellare un progetto devi aver effettuato il login");
+		replaceClientMsg(request, "Errore: per cancellare un progetto devi aver effettuato il login");
 	}
 	
 	/**
-	 * metodo di utility chiamato per rimuovere gli elementi null da una lista di utenti
-	 * @param lista degli utenti
-	 * @return la lista senza oggetti null
+	 * metodo chiamato alla cancellazione di un progetto, anche ripetuta dal journal all'avvio:
+	 * ferma il servizio chat, rimuove il progetto dal catalogo e segna la sua cartella
+	 * da cancellare al prossimo checkpoint
+	 * @param p il progetto da cancellare
 	 */
-	private List<User> cleanList(List<User> lista) {
-		List<User> cleanlist = new ArrayList<User>();
-		for(User u : lista) {
-			if(u!=null) {
-				cleanlist.add(u);
-			}
-		}
+	private void closeProject(Project p) {
 		
-		return cleanlist;
-	}
-	
-	/**
-	 * metodo di utility chiamato per rimuovere gli elementi null da una lista di progetti
-	 * @param lista dei progetti
-	 * @return la lista senza oggetti null
-	 */
-	private List<Project> cleanList2(List<Project> lista) {
-		List<Project> cleanlist = new ArrayList<Project>();
-		for(Project p : lista) {
-			if(p!=null) {
-				cleanlist.add(p);
-			}
-		}
+		//Ferma il servizio chat associato al progetto e ne libera l'indirizzo
+		InetAddress group = p.stopChatService(this.chatReceiver);
+		
+		if(group!=null) this.chatAddresses.release(group);
+		
+		removeFromCatalog(p);
 		
-		return cleanlist;
+		this.dirtyProjects.remove(p.getProjectName());
+		
+		this.dirtyCards.remove(p.getProjectName());
+		
+		this.loadedBoards.remove(p.getProjectName());
+		
+		this.deletedProjects.add(p.getProjectName());
 	}
 	
 	/**
@@ -2182,155 +2391,198 @@ public class Server implements Runnable, RMIUserInterface {
 	 * @return address l'indirizzo multicast su cui mandare il messaggio
 	 */
 	public String getMulticastAddress(String projectname, String clientusername) {
-		File projectfolder = new File(this.projectsFolder);
-		
-		if(projectfolder.list().length==0) {	//Non ci sono progetti
+		if(this.projects.isEmpty()) {	//Non ci sono progetti
 			return null;
 		}
 		
-		for(User u : this.onlineUsers) {
-			if(u.getUsername().equals(clientusername)) {	//L'utente che ha richiesto di mandare un messaggio  online
-						
-				for(Project p : this.projects) {
-					if(p.getProjectName().equals(projectname)) {	//Progetto richiesto trovato
+		if(this.onlineUsers.containsKey(clientusername)) {	//L'utente che ha richiesto di mandare un messaggio  online
+					
+			Project p = this.projects.get(projectname);
+			if(p!=null) {	//Progetto richiesto trovato
+				
+				for(String member : p.getMembers()) {
+					if(member.equals(clientusername)) {	//L'utente che ha richiesto di mandare un messaggio fa parte del progetto
 						
-						for(String member : p.getMembers()) {
-							if(member.equals(clientusername)) {	//L'utente che ha richiesto di mandare un messaggio fa parte del progetto
-								
-								return p.retrieveAddress();
-							}
-						}
-						//L'utente non fa parte del progetto
-						if(DEBUG) System.out.println("utente non fa parte del progetto");
-						return null;
+						return p.retrieveAddress();
 					}
 				}
-				//Progetto non trovato
-				if(DEBUG) System.out.println("progetto non trovato");
+				//L'utente non fa parte del progetto
+				if(DEBUG) System.out.println("utente non fa parte del progetto");
 				return null;
 			}
+			//Progetto non trovato
+			if(DEBUG) System.out.println("progetto non trovato");
+			return null;
 		}
 		//L'utente che ha richiesto il comando non  online
 		if(DEBUG) System.out.println("utente offline");
 		return null;
 	}
 	
-	/**
-	 * metodo chiamato da un client via RMI dopo aver mandato un messaggio in multicast sulla chat di un progetto
-	 * permette di salvare il messaggio nella struttura dati chat del progetto
-	 * @param projectname il nome del progetto su cui  stato mandato il messaggio
-	 */
-	public void receiveChatMessage(String projectname) {
-		File projectfolder = new File(this.projectsFolder);
-		
-		if(projectfolder.list().length==0) {	//Non ci sono progetti
-			return;
-		}
-		
-		for(Project p : this.projects) {
-			if(p.getProjectName().equals(projectname.trim())) {	//Progetto trovato
-				p.refreshChat();
-				return;
-			}
-		}
-	}
-	
 	/**
 	 * metodo chiamato dall'analizzatore delle richieste TCP se il comando ricevuto  un readChat:
 	 * ricerca tra gli utenti online l'username passato come argomento, se lo trova
 	 * ricerca tra tutti i progetti un progetto con il nome passato come parametro,
 	 * se lo trova ricerca il nome utente tra i membri del progetto e se lo trova
-	 * restituisce i messaggi associati alla chat del progetto
+	 * restituisce gli ultimi messaggi associati alla chat del progetto, quelli in memoria,
+	 * oppure, con since, i messaggi successivi all'ultimo letto dal client, ognuno preceduto
+	 * dal suo numero di sequenza, fino a this.chatHistory messaggi per risposta
 	 * @param projectname il nome del progetto
 	 * @param username l'username da ricercare tra gli utenti online
-	 * @param key la chiave associata al client da notificare
+	 * @param since il numero di sequenza dell'ultimo messaggio letto, -1 per gli ultimi messaggi
+	 * @param request la richiesta del client da notificare
 	 */
-	public void readChat(String projectname, String clientusername, SelectionKey key) {
+	public void readChat(String projectname, String clientusername, long since, Request request) {
 		
-		File projectfolder = new File(this.projectsFolder);
-		
-		if(projectfolder.list().length==0) {	//Non ci sono progetti
-			replaceClientMsg(key, "Errore: impossibile trovare progetti");
+		if(this.projects.isEmpty()) {	//Non ci sono progetti
+			replaceClientMsg(request, "Errore: impossibile trovare progetti");
 			return;
 		}
 		
-		for(User u : this.onlineUsers) {
-			if(u.getUsername().equals(clientusername)) {	//L'utente che ha richiesto di mandare un messaggio  online
+		if(this.onlineUsers.containsKey(clientusername)) {	//L'utente che ha richiesto di mandare un messaggio  online
+					
+			Project p = this.projects.get(projectname);
+			if(p!=null) {	//Progetto richiesto trovato
+				
+				for(String member : p.getMembers()) {
+					if(member.equals(clientusername)) {	//L'utente che ha richiesto di mandare un messaggio fa parte del progetto
 						
-				for(Project p : this.projects) {
-					if(p.getProjectName().equals(projectname)) {	//Progetto richiesto trovato
+						StringBuilder sb = new StringBuilder();
 						
-						for(String member : p.getMembers()) {
-							if(member.equals(clientusername)) {	//L'utente che ha richiesto di mandare un messaggio fa parte del progetto
-								
-								StringBuilder sb = new StringBuilder();
-								
-								ArrayList<String> chat = p.retrieveChatMessages();
-								
-								sb.append("Inizio chat progetto "+p.getProjectName());
-								sb.append(System.getProperty("line.separator"));
-								
-								for(String message : chat) {
-									sb.append(message.trim());
-									sb.append(System.getProperty("line.separator"));
-								}
-
-								sb.append("Fine chat progetto "+p.getProjectName());
-								replaceClientMsg(key, sb.toString());
-								return;
-							}
+						loadChat(p);	//Se la lettura fallisce restano i messaggi ricevuti dopo l'avvio
+						
+						if(since>=0) {
+							readChatSince(p, since, request);
+							return;
+						}
+						
+						long last = p.retrieveLastChatSeq();	//Prima dei messaggi, cos il numero corrisponde all'ultimo restituito
+						
+						List<String> chat = p.retrieveChatMessages(last);
+						
+						sb.append("Inizio chat progetto "+p.getProjectName());
+						sb.append(System.getProperty("line.separator"));
+						
+						for(String message : chat) {
+							if(message==null) continue;	//Numero riservato prima di un riavvio, senza messaggio
+							sb.append(message.trim());
+							sb.append(System.getProperty("line.separator"));
 						}
-						//L'utente non fa parte del progetto
-						replaceClientMsg(key, "Errore: devi essere membro del progetto per poter inviare un messaggio");
+
+						sb.append("Fine chat progetto "+p.getProjectName()+", ultimo messaggio "+last);
+						replaceClientMsg(request, sb.toString());
 						return;
 					}
 				}
-				//Progetto non trovato
-				replaceClientMsg(key, "Errore: impossibile trovare il progetto specificato");
+				//L'utente non fa parte del progetto
+				replaceClientMsg(request, "Errore: devi essere membro del progetto per poter inviare un messaggio");
 				return;
 			}
+			//Progetto non trovato
+			replaceClientMsg(request, "Errore: impossibile trovare il progetto specificato");
+			return;
 		}
 		//L'utente che ha richiesto il comando non  online
-		replaceClientMsg(key, "Errore: per visualizzare una storia di una card di un progetto devi aver effettuato il login");
+		replaceClientMsg(request, "Errore: per visualizzare una storia di una card di un progetto devi aver effettuato il login");
 		return;
 	}
 	
 	/**
-	 * metodo chiamato per restituire la lista aggiornata degli
-	 * utenti registrati
-	 * @return la lista degli utenti registrati a worth
+	 * metodo chiamato da readChat, dopo aver verificato che il client sia membro del progetto,
+	 * per restituire i messaggi successivi a since: quelli non pi in memoria vengono letti
+	 * dalla chat salvata nell'archivio, dove il messaggio con numero di sequenza n  l'n-esimo;
+	 * i numeri senza messaggio, riservati prima di un riavvio, vengono saltati
+	 * l'archivio viene letto solo se il client chiede messaggi non pi in memoria, l'unico altro
+	 * accesso all'archivio ammesso sulle corsie oltre a loadBoard e loadChat
+	 * @param p il progetto di cui leggere la chat
+	 * @param since il numero di sequenza dell'ultimo messaggio letto dal client
+	 * @param request la richiesta del client da notificare
 	 */
-	private List<User> getUsers() {
-		return Arrays.asList(this.registeredUsers);
+	private void readChatSince(Project p, long since, Request request) {
+		
+		List<String> messages = new ArrayList<String>();
+		long seq = since;	//Il numero di sequenza dell'ultimo messaggio da restituire
+		int found = 0;	//I messaggi da restituire, senza i numeri senza messaggio
+		
+		while(found<this.chatHistory && seq<p.retrieveLastChatSeq()) {
+			
+			List<String> recent = p.retrieveChatMessages(seq, this.chatHistory-found);
+			
+			if(!recent.isEmpty()) {	//Messaggi in memoria
+				messages.addAll(recent);
+				seq += recent.size();
+				for(String message : recent) {
+					if(message!=null) found++;
+				}
+				continue;
+			}
+			
+			//Il messaggio seq+1  stato scaricato dalla memoria, quindi  nell'archivio
+			long first = p.retrieveFirstChatSeq();
+			List<String> saved;
+			
+			try {	//Solo i messaggi tra seq+1 e il primo in memoria vengono decodificati
+				saved = this.storage.readChat(p.getProjectName(), seq, first-1, this.chatHistory-found);
+			} catch (IOException e) {
+				if(DEBUG) System.err.println("Can't read chat of project "+p.getProjectName());
+				replaceClientMsg(request, "Errore del server: impossibile leggere i messaggi salvati della chat");
+				return;
+			}
+			
+			messages.addAll(saved);
+			seq += saved.size();
+			for(String message : saved) {
+				if(message!=null) found++;
+			}
+			
+			if(saved.isEmpty() || (found<this.chatHistory && seq+1<first)) break;	//Archivio incompleto, non si restituiscono messaggi fuori ordine
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append("Inizio chat progetto "+p.getProjectName());
+		sb.append(System.getProperty("line.separator"));
+		
+		long n = since;
+		for(String message : messages) {
+			n++;
+			if(message==null) continue;
+			sb.append("["+n+"] "+message.trim());
+			sb.append(System.getProperty("line.separator"));
+		}
+		
+		sb.append("Fine chat progetto "+p.getProjectName()+", ultimo messaggio "+p.retrieveLastChatSeq());
+		replaceClientMsg(request, sb.toString());
 	}
 	
 	/**
-	 * metodo chiamato per restituire la mappa aggiornata degli
-	 * utenti registrati
-	 * @return la mappa username/status aggiornata degli utenti
-	 */
-	public Map<String, Boolean> getUsersData() {
-		return this.users;
-	}
-
-	/**
-	 * metodo chiamato per restituire la lista aggiornata degli
-	 * utenti online
-	 * @return la lista degli utenti attualmente online su worth
+	 * metodo di utility chiamato per leggere il numero di sequenza di un readchat since
+	 * @param value l'argomento ricevuto
+	 * @return il numero di sequenza, -1 se l'argomento non  un numero non negativo
 	 */
-	private List<User> getOnlineUsers() {
-		return Arrays.asList(this.onlineUsers);
+	private static long parseSeq(String value) {
+		try {
+			return Math.max(Long.parseLong(value), -1);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
 	}
 	
 	/**
-	 * metodo chiamato per restituire la lista aggiornata dei
-	 * progetti
-	 * @return la lista dei progetti aggiornata
+	 * metodo chiamato per restituire la mappa aggiornata degli
+	 * utenti registrati, copiata con il lock this.stateLock in lettura
+	 * cos la serializzazione RMI avviene senza lock e senza login o logout concorrenti
+	 * @return una copia della mappa username/status aggiornata degli utenti
 	 */
-	private List<Project> getProjects(){
-		return Arrays.asList(this.projects);
+	public Map<String, Boolean> getUsersData() {
+		this.stateLock.readLock().lock();
+		try {
+			return new HashMap<String, Boolean>(this.users);
+		} finally {
+			this.stateLock.readLock().unlock();
+		}
 	}
-	
+
 	/**
 	 * metodo chiamato per aggiungere un client alla lista dei registrati al
 	 * servizio callback
@@ -2340,8 +2592,11 @@ public class Server implements Runnable, RMIUserInterface {
 	 * altrimenti
 	 */
 	public boolean addCallbackUser(CallbackUserInterface client) {
-		if(this.callbackUsers.contains(client)) return false;
-		boolean added = this.callbackUsers.add(client);
+		boolean added;
+		synchronized(this.callbackUsers) {
+			if(this.callbackUsers.contains(client)) return false;
+			added = this.callbackUsers.add(client);
+		}
 		if(added && DEBUG) System.out.println("Client added to callback service");
 		return added;
 	}
@@ -2355,7 +2610,10 @@ public class Server implements Runnable, RMIUserInterface {
 	 * altrimenti
 	 */
 	public boolean removeCallbackUser(CallbackUserInterface client) {
-		boolean removed = this.callbackUsers.remove(client);
+		boolean removed;
+		synchronized(this.callbackUsers) {
+			removed = this.callbackUsers.remove(client);
+		}
 		if(removed && DEBUG) System.out.println("Client removed from callback service");
 		return removed;
 	}
@@ -2363,12 +2621,21 @@ public class Server implements Runnable, RMIUserInterface {
 	/**
 	 * metodo chiamato per aggiornare, per tutti i client registrati al
 	 * servizio callback, la lista degli utenti registrati a WORTH
+	 * chiamato senza il lock this.stateLock: le callback RMI possono attendere un client
+	 * lento o irraggiungibile, che altrimenti bloccherebbe i comandi di tutti i progetti
+	 * @param users la copia degli utenti da inviare, presa con il lock
 	 */
-	private void updateRegisteredUsers() {
+	private void updateRegisteredUsers(Map<String, Boolean> users) {
+		
+		List<CallbackUserInterface> clients;
+		
+		synchronized(this.callbackUsers) {	//Modificata dalle registrazioni alle callback
+			clients = new ArrayList<CallbackUserInterface>(this.callbackUsers);
+		}
 		
-		for(CallbackUserInterface ci : this.callbackUsers) {
+		for(CallbackUserInterface ci : clients) {
 			try {
-				ci.updateAllUsers(this.users);
+				ci.updateAllUsers(users);
 			} catch (RemoteException e) {
 				if(DEBUG) 
 					System.err.println("Can't update list of WORTH registered members for client "+ci);
@@ -2377,12 +2644,13 @@ public class Server implements Runnable, RMIUserInterface {
 		
 	}
 
-	public synchronized String needToSendMessage(String projectname, String username) throws RemoteException {
-		return getMulticastAddress(projectname, username);
-	}
-
-	public synchronized void didSendMessage(String projectname) throws RemoteException {
-		receiveChatMessage(projectname);
+	public String needToSendMessage(String projectname, String username) throws RemoteException {
+		this.stateLock.readLock().lock();
+		try {
+			return getMulticastAddress(projectname, username);
+		} finally {
+			this.stateLock.readLock().unlock();
+		}
 	}
 	
 }
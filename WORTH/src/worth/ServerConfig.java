@@ -0,0 +1,237 @@
+package worth;
+
+/**
+ *
+ * Parametri di avvio del server, letti dagli argomenti passati al main
+ * nel formato --nome=valore
+ *
+ */
+public class ServerConfig {
+
+	private int reactors = 0;	//Numero di selettori worker, 0 = un solo thread per accept e richieste
+	private int workers = Runtime.getRuntime().availableProcessors();	//Numero di thread che eseguono i comandi
+	private int checkpointInterval = 30;	//Secondi tra due checkpoint del journal
+	private Journal.Durability durability = Journal.Durability.GROUP;	//Politica di durabilita' del journal
+	private int commitWindow = 0;	//Millisecondi di attesa di altri record per una sincronizzazione di gruppo
+	private int commitSize = 256;	//Numero di record che fa partire subito una sincronizzazione di gruppo
+	private int boardIdle = 300;	//Secondi dopo i quali le card di un progetto non usato vengono scaricate dalla memoria
+	private int boardBudget = 100000;	//Numero massimo di card tenute in memoria dai progetti non modificati
+	private Storage.Engine store = Storage.Engine.JSON;	//Archivio su cui salvare utenti, progetti, card e chat
+	private StorageFormat format = StorageFormat.JSON;	//Formato in cui salvare utenti, progetti e card
+	private int chatHistory = 1000;	//Numero di messaggi di ogni chat tenuti in memoria
+	private String chatRange = "239.0.0.0/8";	//Intervallo di indirizzi multicast assegnati alle chat dei progetti
+
+	/**
+	 * metodo chiamato dal main per costruire la configurazione a partire dagli argomenti
+	 * @param args gli argomenti passati al main
+	 * @return la configurazione del server
+	 * @throws IllegalArgumentException se un argomento non e' riconosciuto o non e' valido
+	 */
+	public static ServerConfig fromArgs(String[] args) {
+
+		ServerConfig config = new ServerConfig();
+
+		for(String arg : args) {
+
+			int separator = arg.indexOf('=');
+
+			if(!arg.startsWith("--") || separator<0) throw new IllegalArgumentException("Argomento non valido: "+arg);
+
+			String name = arg.substring(2, separator);
+			String value = arg.substring(separator+1);
+
+			switch(name) {
+
+				case "reactors":
+					config.reactors = parseInt(name, value, 0);
+					break;
+
+				case "workers":
+					config.workers = parseInt(name, value, 1);
+					break;
+
+				case "checkpoint-interval":
+					config.checkpointInterval = parseInt(name, value, 1);
+					break;
+
+				case "durability":
+					try {
+						config.durability = Journal.Durability.valueOf(value.toUpperCase());
+					} catch (IllegalArgumentException e) {
+						throw new IllegalArgumentException("Valore non valido per "+name+": "+value+" (sync, group, async)");
+					}
+					break;
+
+				case "commit-window":
+					config.commitWindow = parseInt(name, value, 0);
+					break;
+
+				case "commit-size":
+					config.commitSize = parseInt(name, value, 1);
+					break;
+
+				case "board-idle":
+					config.boardIdle = parseInt(name, value, 1);
+					break;
+
+				case "board-budget":
+					config.boardBudget = parseInt(name, value, 0);
+					break;
+
+				case "store":
+					try {
+						config.store = Storage.Engine.valueOf(value.toUpperCase());
+					} catch (IllegalArgumentException e) {
+						throw new IllegalArgumentException("Valore non valido per "+name+": "+value+" (memory, json, log)");
+					}
+					break;
+
+				case "format":
+					try {
+						config.format = StorageFormat.valueOf(value.toUpperCase());
+					} catch (IllegalArgumentException e) {
+						throw new IllegalArgumentException("Valore non valido per "+name+": "+value+" (json, binary)");
+					}
+					break;
+
+				case "chat-history":
+					config.chatHistory = parseInt(name, value, 1);
+					break;
+
+				case "chat-range":
+					new MulticastAllocator(value);	//Verifica l'intervallo
+					config.chatRange = value;
+					break;
+
+				default:
+					throw new IllegalArgumentException("Parametro sconosciuto: "+name);
+			}
+		}
+
+		if(config.store==Storage.Engine.JSON && config.format!=StorageFormat.JSON) {
+			throw new IllegalArgumentException("L'archivio json salva solo in formato json, usare --store=log o --store=memory");
+		}
+
+		return config;
+	}
+
+	/**
+	 * metodo di utility chiamato per leggere un parametro intero
+	 * @param name il nome del parametro
+	 * @param value il valore da convertire
+	 * @param min il valore minimo ammesso
+	 * @return il valore convertito
+	 */
+	private static int parseInt(String name, String value, int min) {
+		try {
+			int n = Integer.parseInt(value);
+			if(n<min) throw new IllegalArgumentException("Valore non valido per "+name+": "+value);
+			return n;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Valore non valido per "+name+": "+value);
+		}
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero di selettori worker
+	 * @return il numero di selettori worker, 0 se accept e richieste sono gestite da un solo thread
+	 */
+	public int getReactors() {
+		return this.reactors;
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero di thread che eseguono i comandi dei client
+	 * @return il numero di thread del pool
+	 */
+	public int getWorkers() {
+		return this.workers;
+	}
+
+	/**
+	 * metodo chiamato per restituire l'intervallo tra due checkpoint del journal
+	 * @return i secondi tra due checkpoint
+	 */
+	public int getCheckpointInterval() {
+		return this.checkpointInterval;
+	}
+
+	/**
+	 * metodo chiamato per restituire la politica di durabilita' del journal
+	 * @return sync, group o async
+	 */
+	public Journal.Durability getDurability() {
+		return this.durability;
+	}
+
+	/**
+	 * metodo chiamato per restituire quanto attendere altri record prima di una sincronizzazione
+	 * di gruppo del journal, 0 per sincronizzare subito i record accumulati durante la precedente
+	 * @return i millisecondi di attesa
+	 */
+	public int getCommitWindow() {
+		return this.commitWindow;
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero di record che fa partire subito una sincronizzazione
+	 * di gruppo del journal, senza attendere la fine della finestra
+	 * @return il numero di record
+	 */
+	public int getCommitSize() {
+		return this.commitSize;
+	}
+
+	/**
+	 * metodo chiamato per restituire dopo quanto tempo senza accessi le card di un progetto
+	 * vengono scaricate dalla memoria
+	 * @return i secondi senza accessi
+	 */
+	public int getBoardIdle() {
+		return this.boardIdle;
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero massimo di card da tenere in memoria: oltre questo
+	 * numero vengono scaricate le card dei progetti usati meno di recente, anche se non inattivi
+	 * @return il numero massimo di card in memoria
+	 */
+	public int getBoardBudget() {
+		return this.boardBudget;
+	}
+
+	/**
+	 * metodo chiamato per restituire l'archivio su cui salvare utenti, progetti, card e chat
+	 * @return memory, json o log
+	 */
+	public Storage.Engine getStore() {
+		return this.store;
+	}
+
+	/**
+	 * metodo chiamato per restituire il formato in cui salvare utenti, progetti e card
+	 * @return json o binary
+	 */
+	public StorageFormat getFormat() {
+		return this.format;
+	}
+
+	/**
+	 * metodo chiamato per restituire il numero di messaggi di ogni chat da tenere in memoria,
+	 * i messaggi precedenti vengono letti dall'archivio quando richiesti
+	 * @return il numero di messaggi in memoria per chat
+	 */
+	public int getChatHistory() {
+		return this.chatHistory;
+	}
+
+	/**
+	 * metodo chiamato per restituire l'intervallo da cui assegnare gli indirizzi multicast
+	 * delle chat, nella forma indirizzo/prefisso
+	 * @return l'intervallo di indirizzi
+	 */
+	public String getChatRange() {
+		return this.chatRange;
+	}
+
+}
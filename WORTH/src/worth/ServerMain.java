@@ -4,7 +4,16 @@ public class ServerMain {
 
 	public static void main(String[] args) {
 		
-		Server s = new Server();
+		ServerConfig config = null;
+		
+		try {
+			config = ServerConfig.fromArgs(args);	//Legge i parametri di avvio, es. --reactors=4
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		
+		Server s = new Server(config);
 		
 		Thread t = new Thread(s);
 		
@@ -0,0 +1,344 @@
+package worth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ *
+ * Stato di una connessione TCP con un client, salvato come attachment
+ * della SelectionKey associata al canale: contiene il buffer di lettura,
+ * riutilizzato per tutte le richieste della connessione, la coda delle
+ * risposte ancora da inviare al client e le richieste e i buffer di risposta
+ * gia' usati, riutilizzati per i messaggi successivi
+ *
+ */
+public class Session {
+
+	private static final int INITIAL_BUFFER_SIZE = 4096;	//Dimensione iniziale del buffer di lettura
+	private static final int MAX_GATHER = 64;	//Numero massimo di buffer inviati con una sola scrittura
+	private static final int RESPONSE_BUFFER_SIZE = 4096;	//Dimensione dei buffer di risposta riutilizzati, le risposte piu' grandi hanno un buffer dedicato
+	private static final int MAX_FREE = 16;	//Numero massimo di richieste e di buffer di risposta conservati per il riutilizzo
+	public static final int MAX_PENDING_BYTES = 1024*1024;	//Oltre questa soglia di byte da inviare non vengono letti altri comandi
+
+	private ByteBuffer readBuffer;	//Buffer di lettura, sempre in modalita' scrittura tra una lettura e l'altra
+	private ArrayDeque<ByteBuffer> outbound;	//Header e payload delle risposte da inviare, nell'ordine di invio
+	private ArrayDeque<ByteBuffer> freeBuffers;	//Buffer di risposta gia' inviati, pronti per la scrittura
+	private ArrayDeque<Request> freeRequests;	//Richieste completate, riutilizzate per i messaggi successivi
+	private ByteBuffer[] gather;	//Array riutilizzato per le scritture gathering
+	private long pendingBytes;	//Numero di byte accodati e non ancora inviati
+	private CommandRegistry registry;	//I comandi riconosciuti dal server
+	private int[] scratchBounds;	//Indici dei token nel buffer di lettura, riutilizzato per ogni messaggio
+	private int inFlight;	//Numero di richieste affidate al pool e non ancora completate
+	private boolean closing;	//true se il client ha effettuato il logout e la connessione va chiusa
+	private boolean authenticated;	//true se sulla connessione e' stato effettuato il login, solo allora sono accettati messaggi grandi
+
+	/**
+	 * costruttore per la classe sessione, invocato dal server
+	 * quando viene accettata una nuova connessione
+	 * @param registry i comandi riconosciuti dal server
+	 */
+	public Session(CommandRegistry registry) {
+
+		this.registry = registry;
+
+		this.scratchBounds = new int[CommandRegistry.BOUNDS_SIZE];
+
+		this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+		this.outbound = new ArrayDeque<ByteBuffer>();
+
+		this.freeBuffers = new ArrayDeque<ByteBuffer>();
+
+		this.freeRequests = new ArrayDeque<Request>();
+
+		this.gather = new ByteBuffer[MAX_GATHER];
+
+	}
+
+	/**
+	 * metodo chiamato per restituire il buffer in cui leggere i dati dal canale
+	 * @return il buffer di lettura della connessione
+	 */
+	public ByteBuffer getReadBuffer() {
+		return this.readBuffer;
+	}
+
+	/**
+	 * metodo chiamato dopo una lettura dal canale per estrarre il prossimo messaggio
+	 * completo presente nel buffer di lettura, i byte di un messaggio incompleto
+	 * restano nel buffer in attesa delle letture successive
+	 * il buffer viene ingrandito solo per il messaggio che non vi entra e riportato alla
+	 * dimensione iniziale appena quel messaggio e' stato estratto
+	 * il comando viene separato in token e riconosciuto direttamente sul buffer di lettura
+	 * e caricato in una richiesta gia' usata dalla connessione e restituita con recycle,
+	 * cosi' a regime l'estrazione di un messaggio non alloca memoria
+	 * @param reactor il reactor che gestisce la connessione
+	 * @param key la chiave associata alla connessione
+	 * @return la richiesta con il comando ricevuto, null se non e' ancora arrivato un messaggio completo
+	 * @throws IllegalStateException se l'header ricevuto contiene una lunghezza non valida,
+	 * o superiore a Frame.MAX_LOGIN_PAYLOAD_SIZE prima del login
+	 */
+	public Request pollFrame(Reactor reactor, SelectionKey key) {
+
+		boolean consumed = false;	//true se un messaggio e' stato estratto dal buffer
+
+		this.readBuffer.flip();
+
+		try {
+			if(this.readBuffer.remaining()<Frame.HEADER_SIZE) return null;	//Header incompleto
+
+			int length = this.readBuffer.getInt(this.readBuffer.position());
+
+			if(!Frame.isValidLength(length, this.authenticated)) throw new IllegalStateException("Invalid frame length "+length);
+
+			if(this.readBuffer.remaining()<Frame.HEADER_SIZE+length) {
+				//Payload incompleto, se necessario ingrandisce il buffer per contenere l'intero messaggio
+				if(this.readBuffer.capacity()<Frame.HEADER_SIZE+length) {
+					ByteBuffer bigger = ByteBuffer.allocate(Frame.HEADER_SIZE+length);
+					bigger.put(this.readBuffer);
+					bigger.flip();
+					this.readBuffer = bigger;
+				}
+				return null;
+			}
+
+			int id = this.readBuffer.getInt(this.readBuffer.position()+4);
+
+			int start = this.readBuffer.arrayOffset()+this.readBuffer.position()+Frame.HEADER_SIZE;
+
+			byte[] data = this.readBuffer.array();
+
+			Command command = this.registry.tokenize(data, start, start+length, this.scratchBounds);
+
+			Request request = this.freeRequests.poll();
+			if(request==null) request = new Request(reactor, key);
+
+			request.load(id, command, data, start, length, this.scratchBounds);	//Copia il payload fuori dal buffer che verra' riutilizzato
+
+			this.readBuffer.position(this.readBuffer.position()+Frame.HEADER_SIZE+length);
+
+			consumed = true;
+
+			return request;
+		}
+		finally {
+			this.readBuffer.compact();	//Riporta il buffer in modalita' scrittura mantenendo i byte non consumati
+
+			if(consumed && this.readBuffer.capacity()>INITIAL_BUFFER_SIZE && this.readBuffer.position()<=INITIAL_BUFFER_SIZE) {
+				//Il messaggio grande e' stato estratto, i byte rimasti entrano nel buffer iniziale
+				ByteBuffer smaller = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+				this.readBuffer.flip();
+				smaller.put(this.readBuffer);
+				this.readBuffer = smaller;
+			}
+		}
+	}
+
+	/**
+	 * metodo chiamato dal reactor dopo aver accodato la risposta di una richiesta,
+	 * che viene conservata per i messaggi successivi della connessione
+	 * @param request la richiesta completata, non piu' usata da altri thread
+	 */
+	public void recycle(Request request) {
+
+		request.recycle();
+
+		if(this.freeRequests.size()<MAX_FREE) this.freeRequests.add(request);
+	}
+
+	/**
+	 * metodo chiamato per accodare una risposta da inviare al client, inviata cosi' com'e':
+	 * gli spazi iniziali e finali vengono eliminati dal client
+	 * header e payload vengono codificati in un solo buffer, preso tra quelli gia' inviati
+	 * dalla connessione se la risposta vi entra, e inviati insieme alle altre risposte
+	 * in coda con una scrittura gathering
+	 * @param id l'identificativo della richiesta a cui si risponde
+	 * @param message la risposta da inviare
+	 */
+	public void queueResponse(int id, String message) {
+
+		int length = utf8Length(message);
+
+		ByteBuffer buffer = null;
+		if(Frame.HEADER_SIZE+length<=RESPONSE_BUFFER_SIZE) buffer = this.freeBuffers.poll();
+		if(buffer==null) buffer = ByteBuffer.allocate(Math.max(Frame.HEADER_SIZE+length, RESPONSE_BUFFER_SIZE));
+
+		buffer.putInt(length);
+		buffer.putInt(id);
+
+		int position = encodeUtf8(message, buffer.array(), buffer.arrayOffset()+buffer.position());
+		buffer.position(position-buffer.arrayOffset());
+		buffer.flip();
+
+		this.outbound.add(buffer);
+
+		this.pendingBytes += Frame.HEADER_SIZE+length;
+	}
+
+	/**
+	 * metodo chiamato dal reactor per inviare le risposte accodate: scrive solo i byte
+	 * che il canale accetta senza bloccare, quelli rimanenti restano in coda fino alla
+	 * prossima scrittura
+	 * i buffer inviati completamente vengono conservati per le risposte successive
+	 * @param channel il canale, non bloccante, su cui inviare le risposte
+	 * @return true se tutte le risposte accodate sono state inviate, false altrimenti
+	 * @throws IOException se la scrittura sul canale fallisce
+	 */
+	public boolean flush(GatheringByteChannel channel) throws IOException {
+
+		while(!this.outbound.isEmpty()) {
+
+			int n = 0;
+			while(n<MAX_GATHER && !this.outbound.isEmpty()) this.gather[n++] = this.outbound.poll();	//Raccoglie i primi buffer della coda per una sola scrittura
+
+			long written = channel.write(this.gather, 0, n);
+
+			this.pendingBytes -= written;
+
+			int sent = n;
+			while(sent>0 && this.gather[sent-1].hasRemaining()) this.outbound.addFirst(this.gather[--sent]);	//Rimette in testa alla coda i buffer non inviati
+
+			for(int i=0; i<sent; i++) {	//Conserva i buffer inviati per le risposte successive
+				if(this.gather[i].capacity()==RESPONSE_BUFFER_SIZE && this.freeBuffers.size()<MAX_FREE) this.freeBuffers.add(this.gather[i].clear());
+			}
+
+			if(written==0) break;	//Buffer del socket pieno, si riprova quando il canale torna scrivibile
+		}
+
+		Arrays.fill(this.gather, 0, MAX_GATHER, null);
+
+		return this.outbound.isEmpty();
+	}
+
+	/**
+	 * metodo di utility chiamato per calcolare i byte della codifica UTF-8 di una stringa,
+	 * i surrogati spaiati valgono un byte perche' codificati come '?', come in String.getBytes
+	 * @param s la stringa
+	 * @return il numero di byte della codifica
+	 */
+	private static int utf8Length(String s) {
+
+		int length = 0;
+		int end = s.length();
+
+		for(int i=0; i<end; i++) {
+			char c = s.charAt(i);
+			if(c<0x80) length++;
+			else if(c<0x800) length += 2;
+			else if(Character.isHighSurrogate(c) && i+1<end && Character.isLowSurrogate(s.charAt(i+1))) {
+				length += 4;
+				i++;
+			}
+			else if(Character.isSurrogate(c)) length++;
+			else length += 3;
+		}
+
+		return length;
+	}
+
+	/**
+	 * metodo di utility chiamato per codificare in UTF-8 una stringa direttamente
+	 * nell'array di un buffer, con le stesse regole di utf8Length
+	 * @param s la stringa
+	 * @param dest l'array in cui scrivere, con almeno utf8Length byte liberi da offset
+	 * @param offset la posizione del primo byte da scrivere
+	 * @return la posizione successiva all'ultimo byte scritto
+	 */
+	private static int encodeUtf8(String s, byte[] dest, int offset) {
+
+		int end = s.length();
+
+		for(int i=0; i<end; i++) {
+			char c = s.charAt(i);
+			if(c<0x80) dest[offset++] = (byte) c;
+			else if(c<0x800) {
+				dest[offset++] = (byte) (0xC0 | (c>>6));
+				dest[offset++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else if(Character.isHighSurrogate(c) && i+1<end && Character.isLowSurrogate(s.charAt(i+1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				dest[offset++] = (byte) (0xF0 | (cp>>18));
+				dest[offset++] = (byte) (0x80 | ((cp>>12) & 0x3F));
+				dest[offset++] = (byte) (0x80 | ((cp>>6) & 0x3F));
+				dest[offset++] = (byte) (0x80 | (cp & 0x3F));
+			}
+			else if(Character.isSurrogate(c)) dest[offset++] = (byte) '?';
+			else {
+				dest[offset++] = (byte) (0xE0 | (c>>12));
+				dest[offset++] = (byte) (0x80 | ((c>>6) & 0x3F));
+				dest[offset++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+
+		return offset;
+	}
+
+	/**
+	 * metodo chiamato per sapere se ci sono risposte ancora da inviare al client
+	 * @return true se la coda delle risposte non e' vuota, false altrimenti
+	 */
+	public boolean hasPendingOutput() {
+		return !this.outbound.isEmpty();
+	}
+
+	/**
+	 * metodo chiamato per sapere se il client non sta leggendo le risposte abbastanza
+	 * velocemente, in tal caso il reactor smette di leggere i suoi comandi finche'
+	 * la coda non si svuota
+	 * @return true se i byte da inviare superano MAX_PENDING_BYTES, false altrimenti
+	 */
+	public boolean isOverloaded() {
+		return this.pendingBytes>MAX_PENDING_BYTES;
+	}
+
+	/**
+	 * metodo chiamato dal reactor quando una richiesta della connessione viene affidata al pool
+	 */
+	public void requestStarted() {
+		this.inFlight++;
+	}
+
+	/**
+	 * metodo chiamato dal reactor quando una richiesta della connessione e' stata completata
+	 */
+	public void requestCompleted() {
+		this.inFlight--;
+	}
+
+	/**
+	 * metodo chiamato per sapere se ci sono richieste della connessione ancora in esecuzione
+	 * @return true se ci sono richieste non ancora completate, false altrimenti
+	 */
+	public boolean hasRequestsInFlight() {
+		return this.inFlight>0;
+	}
+
+	/**
+	 * metodo chiamato dopo un logout per indicare che la connessione va chiusa
+	 * appena completate le richieste ancora in esecuzione
+	 */
+	public void setClosing() {
+		this.closing = true;
+	}
+
+	/**
+	 * metodo chiamato dal reactor dopo un login riuscito sulla connessione,
+	 * da quel momento sono accettati messaggi fino a Frame.MAX_PAYLOAD_SIZE
+	 */
+	public void setAuthenticated() {
+		this.authenticated = true;
+	}
+
+	/**
+	 * metodo chiamato per sapere se la connessione va chiusa
+	 * @return true se il client ha effettuato il logout, false altrimenti
+	 */
+	public boolean isClosing() {
+		return this.closing;
+	}
+
+}
@@ -0,0 +1,149 @@
+package worth;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Archivio dello stato persistente del server (utenti, progetti, card e chat dei progetti),
+ * scritto dal checkpoint e letto all'avvio (utenti e solo nome, creatore e membri dei progetti),
+ * al primo accesso alle card di un progetto e alla prima lettura della sua chat
+ * i contenuti vengono passati gia' codificati nel formato scelto con --format (StorageFormat),
+ * cosi' il checkpoint puo' codificarli con il lock del server e scriverli dopo averlo rilasciato;
+ * i messaggi delle chat sono sempre codificati da JsonCodec.encodeChat
+ * l'archivio da usare viene scelto all'avvio con il parametro --store
+ *
+ */
+public interface Storage {
+
+	/**
+	 *
+	 * Archivi disponibili
+	 * MEMORY: nessun file, lo stato si perde alla chiusura del server, usato per i test di carico (MemoryStorage)
+	 * JSON: un file per gli utenti, una cartella per progetto e un file per card (JsonStorage)
+	 * LOG: pochi file di segmento mappati in memoria con un indice delle posizioni (LogStorage)
+	 *
+	 */
+	enum Engine {
+		MEMORY,
+		JSON,
+		LOG
+	}
+
+	/**
+	 * metodo chiamato all'avvio per leggere gli utenti registrati
+	 * @return gli utenti salvati, una lista vuota se non ce ne sono
+	 * @throws IOException se gli utenti non possono essere letti
+	 */
+	List<User> readUsers() throws IOException;
+
+	/**
+	 * metodo chiamato dal checkpoint per salvare gli utenti registrati
+	 * @param users gli utenti codificati
+	 * @throws IOException se gli utenti non possono essere salvati
+	 */
+	void writeUsers(byte[] users) throws IOException;
+
+	/**
+	 * metodo chiamato all'avvio per leggere nome, creatore, membri e numero di sequenza
+	 * di tutti i progetti salvati, senza le card
+	 * @return i progetti salvati, senza card
+	 * @throws IOException se l'archivio non puo' essere letto
+	 */
+	List<Project> readProjectHeaders() throws IOException;
+
+	/**
+	 * metodo chiamato per leggere un progetto con le sue liste, che contengono solo nome,
+	 * stato e numero di sequenza delle card: il contenuto delle card e' salvato solo a parte
+	 * @param projectname il nome del progetto
+	 * @return il progetto letto, null se il progetto non e' salvato
+	 * @throws IOException se il progetto non puo' essere letto
+	 */
+	Project readProject(String projectname) throws IOException;
+
+	/**
+	 * metodo chiamato per leggere l'ultima versione salvata di ogni card di un progetto:
+	 * una card non leggibile fa fallire la lettura, una board senza quella card verrebbe
+	 * poi riscritta al posto di quella salvata
+	 * @param projectname il nome del progetto
+	 * @return le card del progetto, in nessun ordine particolare
+	 * @throws IOException se le card del progetto non possono essere elencate o una card non puo' essere letta
+	 */
+	List<Card> readCards(String projectname) throws IOException;
+
+	/**
+	 * metodo chiamato dal checkpoint per salvare un progetto: prima le card modificate,
+	 * poi il progetto, che contiene il numero di sequenza dell'ultima modifica salvata
+	 * @param projectname il nome del progetto
+	 * @param cards le card modificate codificate, indicizzate per nome
+	 * @param project il progetto codificato
+	 * @throws IOException se il progetto non puo' essere salvato
+	 */
+	void writeBoard(String projectname, Map<String, byte[]> cards, byte[] project) throws IOException;
+
+	/**
+	 * metodo chiamato dal checkpoint per eliminare un progetto cancellato, tutte le sue card
+	 * e la sua chat
+	 * @param projectname il nome del progetto
+	 * @throws IOException se il progetto non puo' essere eliminato
+	 */
+	void deleteBoard(String projectname) throws IOException;
+
+	/**
+	 * metodo chiamato per leggere i messaggi salvati della chat di un progetto
+	 * @param projectname il nome del progetto
+	 * @return i messaggi salvati, dal piu' vecchio, una lista vuota se non ce ne sono;
+	 * il messaggio con numero di sequenza n e' l'n-esimo, null se il numero e' senza messaggio
+	 * @throws IOException se la chat non puo' essere letta
+	 */
+	List<String> readChat(String projectname) throws IOException;
+
+	/**
+	 * metodo chiamato per leggere i messaggi salvati della chat di un progetto successivi ad un
+	 * numero di sequenza, decodificando solo quelli richiesti
+	 * @param projectname il nome del progetto
+	 * @param since il numero di sequenza dell'ultimo messaggio gia' letto
+	 * @param until il numero di sequenza dell'ultimo messaggio che puo' essere restituito
+	 * @param max il numero massimo di messaggi da restituire
+	 * @return i messaggi, in cui l'i-esimo ha numero di sequenza since+1+i, null se il numero
+	 * e' senza messaggio, una lista vuota se non ce ne sono
+	 * @throws IOException se la chat non puo' essere letta
+	 */
+	List<String> readChat(String projectname, long since, long until, int max) throws IOException;
+
+	/**
+	 * metodo chiamato dal checkpoint per aggiungere in coda alla chat salvata di un progetto
+	 * i messaggi ricevuti dall'ultimo checkpoint, da rendere persistenti con flush, e per riservare
+	 * i numeri di sequenza successivi, da rendere persistenti con sync
+	 * se il progetto non e' nell'archivio, perche' cancellato o non ancora salvato dal checkpoint,
+	 * i messaggi non vengono aggiunti: la chat non ricrea un progetto cancellato
+	 * @param projectname il nome del progetto
+	 * @param messages i messaggi codificati da JsonCodec.encodeChat
+	 * @return true se i messaggi sono stati aggiunti, false se il progetto non e' nell'archivio
+	 * @throws IOException se i messaggi non possono essere salvati
+	 */
+	boolean appendChat(String projectname, byte[] messages) throws IOException;
+
+	/**
+	 * metodo chiamato al termine di ogni checkpoint, dopo aver scritto ed eliminato i progetti:
+	 * al ritorno tutte le modifiche devono essere su disco
+	 * @throws IOException se le modifiche non possono essere sincronizzate
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * metodo chiamato dopo aver riservato i numeri di sequenza di una chat: al ritorno i messaggi
+	 * aggiunti con appendChat devono essere su disco, senza la manutenzione eseguita da flush
+	 * (es. la compattazione), che resta al checkpoint
+	 * @throws IOException se le modifiche non possono essere sincronizzate
+	 */
+	void sync() throws IOException;
+
+	/**
+	 * metodo chiamato per chiudere l'archivio e rilasciare i file aperti
+	 * @throws IOException se un file non puo' essere chiuso
+	 */
+	void close() throws IOException;
+
+}
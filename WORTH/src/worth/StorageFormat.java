@@ -0,0 +1,111 @@
+package worth;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ *
+ * Formati in cui il checkpoint codifica progetti, card e utenti, scelto all'avvio
+ * con il parametro --format
+ * JSON: leggibile e indentato (JsonCodec), l'unico formato dell'archivio JSON, usato anche per l'esportazione
+ * BINARY: codifica binaria compatta (BinaryCodec), per l'archivio log-structured e quello in memoria
+ * la lettura riconosce il formato di ogni contenuto, cosi' il formato puo' essere cambiato
+ * senza convertire l'archivio
+ *
+ */
+public enum StorageFormat {
+
+	JSON {
+		public byte[] encodeProject(Project project) throws IOException {
+			return JsonCodec.encodeProject(project);
+		}
+
+		public byte[] encodeCard(Card card) throws IOException {
+			return JsonCodec.encodeCard(card);
+		}
+
+		public byte[] encodeUsers(Collection<User> users) throws IOException {
+			return JsonCodec.encodeUsers(users);
+		}
+	},
+
+	BINARY {
+		public byte[] encodeProject(Project project) {
+			return BinaryCodec.encodeProject(project);
+		}
+
+		public byte[] encodeCard(Card card) {
+			return BinaryCodec.encodeCard(card);
+		}
+
+		public byte[] encodeUsers(Collection<User> users) {
+			return BinaryCodec.encodeUsers(users);
+		}
+	};
+
+	/**
+	 * metodo chiamato dal checkpoint per codificare un progetto, senza il contenuto delle sue card
+	 * @param project il progetto da codificare
+	 * @return il progetto codificato
+	 * @throws IOException se la codifica fallisce
+	 */
+	public abstract byte[] encodeProject(Project project) throws IOException;
+
+	/**
+	 * metodo chiamato dal checkpoint per codificare una card
+	 * @param card la card da codificare
+	 * @return la card codificata
+	 * @throws IOException se la codifica fallisce
+	 */
+	public abstract byte[] encodeCard(Card card) throws IOException;
+
+	/**
+	 * metodo chiamato dal checkpoint per codificare gli utenti registrati
+	 * @param users gli utenti da codificare
+	 * @return gli utenti codificati
+	 * @throws IOException se la codifica fallisce
+	 */
+	public abstract byte[] encodeUsers(Collection<User> users) throws IOException;
+
+	/**
+	 * metodo chiamato dagli archivi per leggere un progetto in uno qualsiasi dei formati
+	 * @param bytes il progetto codificato
+	 * @return il progetto letto, con card che contengono solo nome, stato e lsn
+	 * @throws IOException se il contenuto non e' un progetto valido
+	 */
+	public static Project readProject(byte[] bytes) throws IOException {
+		return BinaryCodec.isBinary(bytes) ? BinaryCodec.readProject(bytes) : JsonCodec.readProject(bytes);
+	}
+
+	/**
+	 * metodo chiamato dagli archivi all'avvio per leggere nome, creatore, membri, lsn
+	 * e indirizzo della chat di un progetto in uno qualsiasi dei formati
+	 * @param bytes il progetto codificato
+	 * @return il progetto letto, senza card
+	 * @throws IOException se il contenuto non e' un progetto valido
+	 */
+	public static Project readProjectHeader(byte[] bytes) throws IOException {
+		return BinaryCodec.isBinary(bytes) ? BinaryCodec.readProjectHeader(bytes) : JsonCodec.readProjectHeader(bytes);
+	}
+
+	/**
+	 * metodo chiamato dagli archivi per leggere una card in uno qualsiasi dei formati
+	 * @param bytes la card codificata
+	 * @return la card letta
+	 * @throws IOException se il contenuto non e' una card valida
+	 */
+	public static Card readCard(byte[] bytes) throws IOException {
+		return BinaryCodec.isBinary(bytes) ? BinaryCodec.readCard(bytes) : JsonCodec.readCard(bytes);
+	}
+
+	/**
+	 * metodo chiamato dagli archivi per leggere gli utenti registrati in uno qualsiasi dei formati
+	 * @param bytes gli utenti codificati
+	 * @return gli utenti letti
+	 * @throws IOException se il contenuto non e' una lista di utenti valida
+	 */
+	public static User[] readUsers(byte[] bytes) throws IOException {
+		return BinaryCodec.isBinary(bytes) ? BinaryCodec.readUsers(bytes) : JsonCodec.readUsers(bytes);
+	}
+
+}
@@ -0,0 +1,124 @@
+package worth;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Strumento da riga di comando per copiare l'archivio JSON (file degli utenti, una cartella
+ * per progetto, un file per card) nell'archivio log-structured e viceversa, da eseguire a server fermo:
+ * java worth.StorageMigration import [formato] [cartella progetti] [cartella segmenti] [file utenti]
+ * copia l'archivio JSON nell'archivio log-structured, codificando nel formato indicato (json o binary),
+ * il server va poi avviato con --store=log e lo stesso --format
+ * java worth.StorageMigration export [cartella progetti] [cartella segmenti] [file utenti]
+ * esporta l'archivio log-structured, in qualsiasi formato, nell'archivio JSON
+ * (predefiniti json, ./projects, ./storage e ./users/members.json)
+ * l'archivio di partenza non viene modificato, il journal resta valido con entrambi gli archivi
+ *
+ */
+public class StorageMigration {
+
+	public static void main(String[] args) {
+
+		if(args.length==0 || !(args[0].equals("import") || args[0].equals("export"))) {
+			System.err.println("Uso: java worth.StorageMigration import [json|binary] [cartella progetti] [cartella segmenti] [file utenti]");
+			System.err.println("     java worth.StorageMigration export [cartella progetti] [cartella segmenti] [file utenti]");
+			System.exit(1);
+		}
+
+		boolean export = args[0].equals("export");
+
+		int i = 1;
+
+		StorageFormat format = StorageFormat.JSON;
+
+		if(!export && args.length>i && (args[i].equalsIgnoreCase("json") || args[i].equalsIgnoreCase("binary"))) {
+			format = StorageFormat.valueOf(args[i++].toUpperCase());
+		}
+
+		String projects = args.length>i ? args[i] : "./projects";
+		String segments = args.length>i+1 ? args[i+1] : "./storage";
+		String users = args.length>i+2 ? args[i+2] : "./users/members.json";
+
+		if(!export && !Files.isDirectory(Paths.get(projects))) {
+			System.err.println("Cartella dei progetti inesistente: "+projects);
+			System.exit(1);
+		}
+
+		if(export && !Files.isDirectory(Paths.get(segments))) {
+			System.err.println("Cartella dei segmenti inesistente: "+segments);
+			System.exit(1);
+		}
+
+		try {
+			Storage json = new JsonStorage(users, projects);
+
+			Storage log = new LogStorage(segments);
+
+			if(export) copy(log, json, StorageFormat.JSON, segments, projects);
+			else copy(json, log, format, projects, segments);
+
+			log.close();
+		} catch (IOException e) {
+			System.err.println("Migrazione fallita: "+e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * metodo chiamato per copiare utenti, progetti, card e chat da un archivio ad un altro vuoto
+	 * @param source l'archivio di partenza
+	 * @param target l'archivio di destinazione
+	 * @param format il formato in cui codificare utenti, progetti e card
+	 * @param from il nome dell'archivio di partenza, per i messaggi
+	 * @param to il nome dell'archivio di destinazione, per i messaggi
+	 * @throws IOException se un archivio non puo' essere letto o scritto
+	 */
+	private static void copy(Storage source, Storage target, StorageFormat format, String from, String to) throws IOException {
+
+		if(!target.readProjectHeaders().isEmpty() || !target.readUsers().isEmpty()) {
+			System.err.println("L'archivio "+to+" contiene gia' dei dati");
+			System.exit(1);
+		}
+
+		int projects = 0, cards = 0, messages = 0;
+
+		List<User> utenti = source.readUsers();
+
+		if(!utenti.isEmpty()) target.writeUsers(format.encodeUsers(utenti));
+
+		for(Project header : source.readProjectHeaders()) {
+
+			String name = header.getProjectName();
+
+			Project p = source.readProject(name);
+
+			Map<String, byte[]> encoded = new LinkedHashMap<String, byte[]>();
+
+			for(Card c : source.readCards(name)) {
+				encoded.put(c.getName(), format.encodeCard(c));
+			}
+
+			target.writeBoard(name, encoded, format.encodeProject(p));
+
+			List<String> chat = source.readChat(name);
+
+			if(!chat.isEmpty()) target.appendChat(name, JsonCodec.encodeChat(1, chat));	//Con gli stessi numeri di sequenza
+
+			projects++;
+			cards += encoded.size();
+			for(String m : chat) {
+				if(m!=null) messages++;
+			}
+		}
+
+		target.flush();
+
+		System.out.println("Migrati "+utenti.size()+" utenti, "+projects+" progetti, "+cards+" card e "+messages+" messaggi da "+from+" a "+to);
+	}
+
+}
@@ -7,14 +7,21 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.StringTokenizer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import myExceptions.EmptyPasswordException;
 import myExceptions.EmptyUserException;
@@ -33,6 +40,10 @@ public class User implements Runnable {
 	//Parametri e variabili per la connessione TCP al server
 	private int serverPort = 7777;
 	private SocketChannel clientChannel;
+	private ByteBuffer headerBuffer = ByteBuffer.allocate(Frame.HEADER_SIZE);	//Buffer riutilizzato per leggere l'header delle risposte
+	private ByteBuffer responseBuffer = ByteBuffer.allocate(4096);	//Buffer riutilizzato per leggere il payload delle risposte
+	private int nextRequestId = 0;	//Identificativo da assegnare al prossimo comando inviato
+	private int lastRequestId;	//Identificativo dell'ultimo comando inviato
 	
 	//Parametri e variabili per RMI e RMI callback
 	private Registry RMIRegistry = null;
@@ -44,6 +55,11 @@ public class User implements Runnable {
 	private String RMICallbackServiceName = "RMICallbackService";
 	private Map<String, Boolean> users;	//Contiene gli utenti ed il loro status associato su worth
 	
+	//Parametri e variabili per le chat
+	private ChatListener chatListener;	//Riceve dai gruppi multicast i messaggi delle chat lette, null se non disponibile
+	private static final Pattern MESSAGE_LINE = Pattern.compile("\\[(\\d+)\\] (.*)");	//Un messaggio di readchat since, con il suo numero di sequenza
+	private static final Pattern LAST_SEQ = Pattern.compile("ultimo messaggio (\\d+)\\s*$");	//L'ultimo numero di sequenza, alla fine di readchat
+	
 	/**
 	 * Costruttore per la classe utente, invocato dal main
 	 * inizializza le variabili locali
@@ -171,6 +187,8 @@ public class User implements Runnable {
 						
 						this.password = tokenizer.nextToken().trim();
 						
+						startChatListener();
+						
 						if(this.RMIRegistry==null) {	//Non  stato definito il registro RMI
 							Registry r = null;
 							try {
@@ -240,6 +258,11 @@ public class User implements Runnable {
 						
 						unregisterFromCallbackService();
 						
+						if(this.chatListener!=null) {
+							this.chatListener.stop();
+							this.chatListener = null;	//Un nuovo login ne avvia un altro
+						}
+						
 						sc.close();
 						
 						hasDone = true;
@@ -682,31 +705,68 @@ public class User implements Runnable {
 						break;
 					}
 					
-					//Messaggio inviato, informa il server di effettuare la lettura
+					break;
+					
+				case "readChat":
+					
+					if(!this.isLoggedIn) {	//Utente non loggato in worth
+						System.err.println("Non sei loggato su worth");
+						break;
+					}
+					
+					if(tokenizer.countTokens()!=1 && tokenizer.countTokens()!=3) {	//Argomenti richiesti (nome progetto, facoltativi since e numero dell'ultimo messaggio letto)
+						System.err.println("Errore argomenti");
+						printHelp();
+						break;
+					}
+					
+					if(tokenizer.countTokens()==1 && this.chatListener!=null) {	//Nuovi messaggi, ricevuti dal gruppo multicast
+						readNewMessages(tokenizer.nextToken().trim());
+						break;
+					}
+					
+					if(!sendCommand(input+" "+this.username)) {
+						System.err.println("Errore nell' invio del comando al server");
+						break;
+					}
+					
 					try {
-						this.RMIUserInterface.didSendMessage(projectname);	//Informa il server di aver inviato un messaggio
-					} catch (RemoteException e) {
-						System.out.println("<"+e);	//Errore nella comunicazione con il server
+						serverresponse = receiveResponse();
+					} catch (IOException e) {
+						System.err.println("Errore nella ricezione della risposta del server");
 						e.printStackTrace();
 						break;
 					}
 					
+					System.out.println("<"+serverresponse.trim());
+					
 					break;
 					
-				case "readChat":
+				case "batch":
 					
 					if(!this.isLoggedIn) {	//Utente non loggato in worth
 						System.err.println("Non sei loggato su worth");
 						break;
 					}
 					
-					if(tokenizer.countTokens()!=1) {	//Argomenti richiesti (nome progetto)
+					if(tokenizer.countTokens()!=2) {	//Argomenti richiesti (nome progetto, file dei comandi)
 						System.err.println("Errore argomenti");
 						printHelp();
 						break;
 					}
 					
-					if(!sendCommand(input+" "+this.username)) {
+					String batchproject = tokenizer.nextToken();
+					
+					List<String> batchcommands;
+					
+					try {
+						batchcommands = Files.readAllLines(Paths.get(tokenizer.nextToken()));	//Un comando per riga
+					} catch (IOException e) {
+						System.err.println("Errore nella lettura del file dei comandi");
+						break;
+					}
+					
+					if(!sendCommand("batch "+batchproject+" "+this.username+"\n"+String.join("\n", batchcommands))) {
 						System.err.println("Errore nell' invio del comando al server");
 						break;
 					}
@@ -757,14 +817,17 @@ public class User implements Runnable {
 	}
 
 	/**
-	 * metodo chiamato per inviare un messaggio tramite TCP al server
+	 * metodo chiamato per inviare un messaggio tramite TCP al server,
+	 * al messaggio viene assegnato un nuovo identificativo salvato in this.lastRequestId
 	 * @param input il messaggio da inviare
 	 * @return true se il messaggio  stato correttamente inviato al server,
 	 * false altrimenti
 	 */
 	private boolean sendCommand(String input) {
 		
-		ByteBuffer buffer = ByteBuffer.wrap(input.getBytes());	//Buffer con il messaggio da inviare
+		this.lastRequestId = this.nextRequestId++;
+		
+		ByteBuffer buffer = Frame.encode(this.lastRequestId, input);	//Buffer con header e messaggio da inviare
 		
 		while(buffer.hasRemaining()) {
 			try {
@@ -780,29 +843,205 @@ public class User implements Runnable {
 	}
 	
 	/**
-	 * metodo chiamato per leggere un messaggio inviato dal server al client
-	 * tramite TCP
-	 * @return il messaggio ricevuto tramite TCP
+	 * metodo chiamato per leggere la risposta del server all'ultimo comando inviato:
+	 * il client invia un comando alla volta, quindi una risposta con un altro identificativo
+	 * appartiene ad un comando precedente di cui non  stata letta la risposta, e viene scartata
+	 * @return il messaggio ricevuto tramite TCP, vuoto se il server ha chiuso la connessione
 	 * @throws IOException se il messaggio non  stato ricevuto correttamente
 	 */
 	private String receiveResponse() throws IOException {
+		
+		do {
+			if(!readFrame()) {
+				return "";	//Connessione terminata dal server, messaggio vuoto
+			}
+		} while(this.headerBuffer.getInt(4)!=this.lastRequestId);
+		
+		return new String(this.responseBuffer.array(), 0, this.responseBuffer.limit(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * metodo chiamato per leggere un messaggio inviato dal server al client
+	 * tramite TCP: legge prima l'header con la lunghezza e l'identificativo del messaggio
+	 * in this.headerBuffer e poi l'intero payload in this.responseBuffer,
+	 * indipendentemente dalla sua dimensione
+	 * @return true se il messaggio  stato letto, false se il server ha chiuso la connessione
+	 * @throws IOException se il messaggio non  stato ricevuto correttamente
+	 */
+	private boolean readFrame() throws IOException {
 
-		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		this.headerBuffer.clear();
 		
-		StringBuilder sb = new StringBuilder();	//Ricostruisce il messaggio ricevuto
+		if(!readFully(this.headerBuffer)) {
+			return false;	//Connessione terminata dal server
+		}
 		
-		int bytesread = this.clientChannel.read(buffer);
+		int length = this.headerBuffer.getInt(0);
 		
-		if(bytesread>0) {
-			sb.append(new String(buffer.array()));	//Salva il messaggio nello StringBuilder
+		if(!Frame.isValidLength(length)) {
+			throw new IOException("Lunghezza del messaggio non valida: "+length);
 		}
-		else if(bytesread<0) {
-			sb.append("");	//Messaggio vuoto
+		
+		if(this.responseBuffer.capacity()<length) {
+			this.responseBuffer = ByteBuffer.allocate(length);	//Ingrandisce il buffer, che verr riutilizzato
 		}
 		
-		String msgreceived = sb.toString();
+		this.responseBuffer.clear();
+		this.responseBuffer.limit(length);
+		
+		if(!readFully(this.responseBuffer)) {
+			throw new IOException("Connessione terminata durante la ricezione della risposta");
+		}
+		
+		this.responseBuffer.flip();
+		
+		return true;
+	}
+	
+	/**
+	 * metodo chiamato per riempire completamente un buffer leggendo dal canale TCP
+	 * @param buffer il buffer da riempire fino al suo limite
+	 * @return true se il buffer  stato riempito, false se il server ha chiuso la connessione
+	 * @throws IOException se la lettura dal canale fallisce
+	 */
+	private boolean readFully(ByteBuffer buffer) throws IOException {
+		
+		while(buffer.hasRemaining()) {
+			if(this.clientChannel.read(buffer)<0) return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * metodo chiamato dopo un login riuscito per avviare il thread che ascolta le chat dei progetti letti
+	 * con readChat, se non pu essere avviato i messaggi vengono sempre letti dal server
+	 * se il thread  gi in esecuzione non ne viene avviato un altro
+	 */
+	private void startChatListener() {
+		
+		if(this.chatListener!=null) return;	//Gi avviato da un login precedente
+		
+		try {
+			this.chatListener = new ChatListener();
+		} catch (IOException e) {
+			System.err.println("Impossibile ricevere le chat dai gruppi multicast, i messaggi verranno letti dal server");
+			return;
+		}
+		
+		Thread t = new Thread(this.chatListener, "worth-chat-listener");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * metodo chiamato da readChat per stampare i nuovi messaggi di un progetto: alla prima lettura
+	 * il client si iscrive al gruppo della chat e legge dal server gli ultimi messaggi,
+	 * in seguito stampa i messaggi ricevuti dal gruppo, dopo aver richiesto al server via TCP
+	 * quelli persi, riconosciuti dai numeri di sequenza mancanti
+	 * @param projectname il nome del progetto
+	 */
+	private void readNewMessages(String projectname) {
+		
+		String serverresponse;
+		
+		if(!this.chatListener.isListening(projectname)) {
+			
+			String addressreceived = null;
+			try {
+				searchRMIService();
+				addressreceived = this.RMIUserInterface.needToSendMessage(projectname, this.username);
+			} catch (RemoteException e) {
+				System.err.println("Errore: impossibile ricevere la chat dal gruppo multicast");
+			}
+			
+			if(addressreceived!=null) {	//Iscrizione al gruppo prima della lettura, cos nessun messaggio successivo va perso
+				String[] parts = addressreceived.split(":");
+				this.chatListener.listen(projectname, new InetSocketAddress(parts[0], Integer.parseInt(parts[1])));
+			}
+			
+			serverresponse = requestChat("readchat "+projectname+" "+this.username);
+			if(serverresponse==null) return;
+			
+			System.out.println("<"+serverresponse.trim());
+			
+			long last = parseLastSeq(serverresponse);
+			if(last>=0) this.chatListener.start(projectname, last);
+			else this.chatListener.forget(projectname);	//Errore, ad esempio il client non  membro del progetto
+			return;
+		}
+		
+		List<String> messages = new ArrayList<String>();
+		long since;
+		
+		while((since = this.chatListener.missing(projectname))>=0) {	//Messaggi persi, richiesti al server
+			
+			serverresponse = requestChat("readchat "+projectname+" since "+since+" "+this.username);
+			if(serverresponse==null) return;
+			
+			long last = parseLastSeq(serverresponse);
+			if(last<0) {	//Errore del server
+				System.out.println("<"+serverresponse.trim());
+				return;
+			}
+			
+			int filled = 0;
+			for(String line : serverresponse.split("\\R")) {
+				Matcher m = MESSAGE_LINE.matcher(line);
+				if(m.matches()) {
+					this.chatListener.fill(projectname, Long.parseLong(m.group(1)), m.group(2));
+					filled++;
+				}
+			}
+			
+			this.chatListener.known(projectname, last);
+			
+			if(filled==0 || this.chatListener.missing(projectname)==since) {	//Messaggi non pi disponibili sul server, o numeri senza messaggio
+				messages.addAll(this.chatListener.drain(projectname));
+				this.chatListener.skip(projectname);
+			}
+		}
+		
+		messages.addAll(this.chatListener.drain(projectname));
+		
+		System.out.println("<Inizio chat progetto "+projectname);
+		for(String message : messages) {
+			System.out.println(message);
+		}
+		System.out.println("Fine chat progetto "+projectname+", ultimo messaggio "+this.chatListener.lastSeq(projectname));
+	}
+	
+	/**
+	 * metodo chiamato da readNewMessages per inviare un readchat al server e leggerne la risposta
+	 * @param command il comando da inviare
+	 * @return la risposta del server, null se il comando non  stato inviato o la risposta ricevuta
+	 */
+	private String requestChat(String command) {
+		
+		if(!sendCommand(command)) {
+			System.err.println("Errore nell' invio del comando al server");
+			return null;
+		}
+		
+		try {
+			return receiveResponse();
+		} catch (IOException e) {
+			System.err.println("Errore nella ricezione della risposta del server");
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * metodo di utility chiamato per leggere l'ultimo numero di sequenza alla fine di una risposta a readchat
+	 * @param response la risposta del server
+	 * @return il numero di sequenza, -1 se la risposta  un errore
+	 */
+	private static long parseLastSeq(String response) {
+		
+		Matcher m = LAST_SEQ.matcher(response);
 		
-		return msgreceived;
+		return m.find() ? Long.parseLong(m.group(1)) : -1;
 	}
 	
 	/*
@@ -946,10 +1185,13 @@ public class User implements Runnable {
 		System.out.println("moveCard nomeprogetto nomecard listapartenza* listadestinazione*		per spostare una card da una lista ad un'altra");
 		System.out.println("				*NB liste valide: todo, inprogress, toberevised, done (Case Insensitive)");
 		System.out.println("getCardHistory nomeprogetto nomecard		per visualizzare la storia della card, ossia tutti i suoi spostamenti");
-		System.out.println("readChat nomeprogetto		per leggere i messaggi in chat di un progetto di cui fai parte");
+		System.out.println("readChat nomeprogetto		per leggere i messaggi in chat di un progetto di cui fai parte, poi solo i nuovi messaggi");
+		System.out.println("readChat nomeprogetto since numero		per leggere i messaggi in chat successivi all'ultimo letto");
 		System.out.println("sendChatMsg nomeprogetto messaggio		per inviare un messaggio in chat in un progetto di cui fai parte");
 		System.out.println("cancelProject nomeprogetto		per cancellare un progetto di cui fai parte*");
 		System.out.println("				*NB per poter cancellare un progetto, tutte le card devono essere nello stato DONE");
+		System.out.println("batch nomeprogetto nomefile		per eseguire su un progetto i comandi contenuti in un file, uno per riga:");
+		System.out.println("				addcard nomecard descrizione, movecard nomecard listapartenza listadestinazione, addmember username");
 		System.out.println("-------------------------------------------------------------------------------------------------------");
 		System.out.println("!!!Tutti i comandi sono Case Sensitive!!!");
 	}